@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.android.internal.telephony.CarrierResolver.CarrierMatchingRule;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Immutable index of the carrier matching rules of one mccmnc, to find the rules which can match
+ * a subscription without scoring every rule.
+ * <p/>
+ * Rules are indexed by their imsi prefix pattern in a trie, where 'x' matches any digit, and by
+ * their gid1, gid2 and spn in hash maps. A rule without a value for an attribute is a candidate
+ * for any subscription value. The candidates still have to be scored with
+ * {@link CarrierMatchingRule#match(CarrierMatchingRule)}, as the other attributes aren't indexed.
+ * Candidates are returned in the order of the rules, so the scoring resolves ties the same way as
+ * when every rule is scored.
+ */
+final class CarrierMatchingRuleIndex {
+    /** An index without rules. */
+    static final CarrierMatchingRuleIndex EMPTY =
+            new CarrierMatchingRuleIndex(null, 0, Collections.emptyList());
+
+    @Nullable
+    private final String mMccMnc;
+    private final int mVersion;
+    @NonNull
+    private final List<CarrierMatchingRule> mRules;
+    @NonNull
+    private final ImsiTrieNode mImsiRoot = new ImsiTrieNode();
+    /** Rules matching any imsi. */
+    @NonNull
+    private final BitSet mAnyImsi = new BitSet();
+    @NonNull
+    private final HashedAttribute mGid1 = new HashedAttribute(true /* prefix */);
+    @NonNull
+    private final HashedAttribute mGid2 = new HashedAttribute(true /* prefix */);
+    @NonNull
+    private final HashedAttribute mSpn = new HashedAttribute(false /* prefix */);
+
+    /**
+     * @param mccMnc The mccmnc of the rules.
+     * @param version The version of the carrier id table the rules are from.
+     * @param rules The rules, rules of another mccmnc are ignored.
+     */
+    CarrierMatchingRuleIndex(@Nullable String mccMnc, int version,
+            @NonNull List<CarrierMatchingRule> rules) {
+        mMccMnc = mccMnc;
+        mVersion = version;
+        mRules = new ArrayList<>(rules.size());
+        for (CarrierMatchingRule rule : rules) {
+            // Rules of another mccmnc never match.
+            if (rule.mccMnc != null && !rule.mccMnc.equals(mccMnc)) continue;
+            int position = mRules.size();
+            mRules.add(rule);
+            if (TextUtils.isEmpty(rule.imsiPrefixPattern)) {
+                mAnyImsi.set(position);
+            } else {
+                mImsiRoot.add(rule.imsiPrefixPattern, 0, position);
+            }
+            mGid1.add(rule.gid1, position);
+            mGid2.add(rule.gid2, position);
+            mSpn.add(rule.spn, position);
+        }
+    }
+
+    /** @return The mccmnc of the rules. */
+    @Nullable
+    String getMccMnc() {
+        return mMccMnc;
+    }
+
+    /** @return The version of the carrier id table the rules are from. */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /** @return The indexed rules, in order. */
+    @NonNull
+    List<CarrierMatchingRule> getRules() {
+        return mRules;
+    }
+
+    /**
+     * @param subscriptionRule The attributes of the subscription.
+     * @return The rules which can match the subscription, in order.
+     */
+    @NonNull
+    List<CarrierMatchingRule> getCandidates(@NonNull CarrierMatchingRule subscriptionRule) {
+        BitSet candidates = (BitSet) mAnyImsi.clone();
+        String imsi = subscriptionRule.imsiPrefixPattern;
+        if (!TextUtils.isEmpty(imsi)) {
+            mImsiRoot.collect(imsi, 0, candidates);
+        }
+        candidates.and(mGid1.get(subscriptionRule.gid1));
+        candidates.and(mGid2.get(subscriptionRule.gid2));
+        candidates.and(mSpn.get(subscriptionRule.spn));
+
+        List<CarrierMatchingRule> rules = new ArrayList<>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            rules.add(mRules.get(i));
+        }
+        return rules;
+    }
+
+    /** Node of the trie of imsi prefix patterns. */
+    private static final class ImsiTrieNode {
+        private final Map<Character, ImsiTrieNode> mChildren = new HashMap<>();
+        /** Child for 'x', which matches any character. */
+        private ImsiTrieNode mAnyChild;
+        /** Rules whose pattern ends at this node. */
+        private final BitSet mRules = new BitSet();
+
+        void add(@NonNull String pattern, int depth, int position) {
+            if (depth == pattern.length()) {
+                mRules.set(position);
+                return;
+            }
+            char c = pattern.charAt(depth);
+            ImsiTrieNode child;
+            if (c == 'x' || c == 'X') {
+                if (mAnyChild == null) mAnyChild = new ImsiTrieNode();
+                child = mAnyChild;
+            } else {
+                child = mChildren.computeIfAbsent(c, k -> new ImsiTrieNode());
+            }
+            child.add(pattern, depth + 1, position);
+        }
+
+        void collect(@NonNull String imsi, int depth, @NonNull BitSet out) {
+            out.or(mRules);
+            if (depth == imsi.length()) return;
+            ImsiTrieNode child = mChildren.get(imsi.charAt(depth));
+            if (child != null) child.collect(imsi, depth + 1, out);
+            if (mAnyChild != null) mAnyChild.collect(imsi, depth + 1, out);
+        }
+    }
+
+    /**
+     * Rules keyed by a case insensitive attribute, either matched as a prefix of the subscription
+     * value like gid, or matched as the whole value like spn.
+     */
+    private static final class HashedAttribute {
+        private final boolean mPrefix;
+        private final Map<String, BitSet> mRules = new HashMap<>();
+        /** Lengths of the keys, to look up the prefixes of the subscription value. */
+        private final TreeSet<Integer> mKeyLengths = new TreeSet<>();
+        /** Rules without a value for the attribute. */
+        private final BitSet mAnyValue = new BitSet();
+
+        HashedAttribute(boolean prefix) {
+            mPrefix = prefix;
+        }
+
+        void add(@Nullable String value, int position) {
+            if (value == null) {
+                mAnyValue.set(position);
+                return;
+            }
+            String key = fold(value);
+            mRules.computeIfAbsent(key, k -> new BitSet()).set(position);
+            mKeyLengths.add(key.length());
+        }
+
+        @NonNull
+        BitSet get(@Nullable String value) {
+            BitSet rules = (BitSet) mAnyValue.clone();
+            if (value == null) return rules;
+            String key = fold(value);
+            if (!mPrefix) {
+                BitSet matched = mRules.get(key);
+                if (matched != null) rules.or(matched);
+                return rules;
+            }
+            for (int length : mKeyLengths) {
+                if (length > key.length()) break;
+                BitSet matched = mRules.get(key.substring(0, length));
+                if (matched != null) rules.or(matched);
+            }
+            return rules;
+        }
+
+        /**
+         * Fold the case the same way as the matching: gid prefixes are compared in lower case,
+         * and spn with {@link String#equalsIgnoreCase(String)}.
+         */
+        @NonNull
+        private String fold(@NonNull String value) {
+            if (mPrefix) return value.toLowerCase(Locale.ROOT);
+            char[] chars = value.toCharArray();
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -54,8 +54,10 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * CarrierResolver identifies the subscription carrier and returns a canonical carrier Id
@@ -83,8 +85,22 @@ public class CarrierResolver extends Handler {
 
     // cached version of the carrier list, so that we don't need to re-query it every time.
     private Integer mCarrierListVersion;
+    // max number of mccmnc whose matching rules are kept across sim events
+    private static final int MAX_CACHED_RULE_INDEXES = 4;
     // cached matching rules based mccmnc to speed up resolution
-    private List<CarrierMatchingRule> mCarrierMatchingRulesOnMccMnc = new ArrayList<>();
+    private CarrierMatchingRuleIndex mCarrierMatchingRulesOnMccMnc =
+            CarrierMatchingRuleIndex.EMPTY;
+    // matching rules of the recently used mccmnc, kept across sim events until the carrier id
+    // table changes. Access ordered to evict the least recently used mccmnc.
+    private final Map<String, CarrierMatchingRuleIndex> mCarrierMatchingRuleIndexes =
+            new LinkedHashMap<String, CarrierMatchingRuleIndex>(
+                    MAX_CACHED_RULE_INDEXES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, CarrierMatchingRuleIndex> eldest) {
+                    return size() > MAX_CACHED_RULE_INDEXES;
+                }
+            };
     // cached carrier Id
     private int mCarrierId = TelephonyManager.UNKNOWN_CARRIER_ID;
     // cached specific carrier Id
@@ -241,7 +257,7 @@ public class CarrierResolver extends Handler {
     }
 
     private void handleSimAbsent() {
-        mCarrierMatchingRulesOnMccMnc.clear();
+        mCarrierMatchingRulesOnMccMnc = CarrierMatchingRuleIndex.EMPTY;
         mSpn = null;
         mPreferApn = null;
         updateCarrierIdAndName(TelephonyManager.UNKNOWN_CARRIER_ID, null,
@@ -287,8 +303,10 @@ public class CarrierResolver extends Handler {
                 handleSimLoaded(isSimOverride);
                 break;
             case CARRIER_ID_DB_UPDATE_EVENT:
-                // clean the cached carrier list version, so that a new one will be queried.
+                // clean the cached carrier list version and matching rules, so that new ones
+                // will be queried.
                 mCarrierListVersion = null;
+                mCarrierMatchingRuleIndexes.clear();
                 loadCarrierMatchingRulesOnMccMnc(true /* update carrier config*/, false);
                 break;
             case PREFER_APN_UPDATE_EVENT:
@@ -328,36 +346,69 @@ public class CarrierResolver extends Handler {
             boolean isSimOverride) {
         try {
             String mccmnc = mTelephonyMgr.getSimOperatorNumericForPhone(mPhone.getPhoneId());
-            Cursor cursor = mContext.getContentResolver().query(
-                    CarrierId.All.CONTENT_URI,
-                    /* projection */ null,
-                    /* selection */ CarrierId.All.MCCMNC + "=?",
-                    /* selectionArgs */ new String[]{mccmnc}, null);
+            Integer version = null;
             try {
-                if (cursor != null) {
-                    if (VDBG) {
-                        logd("[loadCarrierMatchingRules]- " + cursor.getCount()
-                                + " Records(s) in DB" + " mccmnc: " + mccmnc);
-                    }
-                    mCarrierMatchingRulesOnMccMnc.clear();
-                    while (cursor.moveToNext()) {
-                        mCarrierMatchingRulesOnMccMnc.add(makeCarrierMatchingRule(cursor));
-                    }
-                    matchSubscriptionCarrier(updateCarrierConfig, isSimOverride);
-
-                    // Generate metrics related to carrier ID table version.
-                    CarrierIdMatchStats.sendCarrierIdTableVersion(getCarrierListVersion());
+                version = getCarrierListVersion();
+            } catch (Exception ex) {
+                // Rules can still be matched, but can't be kept without knowing their version.
+                loge("[loadCarrierMatchingRules]- failed to get version, ex: " + ex);
+            }
+            CarrierMatchingRuleIndex index = mCarrierMatchingRuleIndexes.get(mccmnc);
+            if (index != null && version != null && index.getVersion() == version) {
+                if (VDBG) {
+                    logd("[loadCarrierMatchingRules]- reuse " + index.getRules().size()
+                            + " Records(s) mccmnc: " + mccmnc + " version: " + version);
                 }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+            } else {
+                index = queryCarrierMatchingRules(mccmnc, version != null ? version : 0);
+                if (index == null) return;
+                if (version != null) {
+                    mCarrierMatchingRuleIndexes.put(mccmnc, index);
+                } else {
+                    mCarrierMatchingRuleIndexes.remove(mccmnc);
                 }
             }
+            mCarrierMatchingRulesOnMccMnc = index;
+            matchSubscriptionCarrier(updateCarrierConfig, isSimOverride);
+
+            // Generate metrics related to carrier ID table version.
+            if (version != null) {
+                CarrierIdMatchStats.sendCarrierIdTableVersion(version);
+            }
         } catch (Exception ex) {
             loge("[loadCarrierMatchingRules]- ex: " + ex);
         }
     }
 
+    /**
+     * @return the index of the matching rules of the mccmnc, {@code null} if the carrier id
+     * provider can't be queried.
+     */
+    @Nullable
+    private CarrierMatchingRuleIndex queryCarrierMatchingRules(String mccmnc, int version) {
+        Cursor cursor = mContext.getContentResolver().query(
+                CarrierId.All.CONTENT_URI,
+                /* projection */ null,
+                /* selection */ CarrierId.All.MCCMNC + "=?",
+                /* selectionArgs */ new String[]{mccmnc}, null);
+        try {
+            if (cursor == null) return null;
+            if (VDBG) {
+                logd("[loadCarrierMatchingRules]- " + cursor.getCount()
+                        + " Records(s) in DB" + " mccmnc: " + mccmnc);
+            }
+            List<CarrierMatchingRule> rules = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                rules.add(makeCarrierMatchingRule(cursor));
+            }
+            return new CarrierMatchingRuleIndex(mccmnc, version, rules);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     private String getCarrierNameFromId(int cid) {
         try {
             Cursor cursor = mContext.getContentResolver().query(
@@ -860,7 +911,9 @@ public class CarrierResolver extends Handler {
         CarrierMatchingRule mnoRule = null;
         CarrierMatchingRule subscriptionRule = getSubscriptionMatchingRule();
 
-        for (CarrierMatchingRule rule : mCarrierMatchingRulesOnMccMnc) {
+        // only the rules which can match the subscription are scored, in the order of the rules.
+        for (CarrierMatchingRule rule
+                : mCarrierMatchingRulesOnMccMnc.getCandidates(subscriptionRule)) {
             rule.match(subscriptionRule);
             if (rule.mScore > maxScore) {
                 maxScore = rule.mScore;
@@ -1203,7 +1256,7 @@ public class CarrierResolver extends Handler {
         ipw.println("mCarrierMatchingRules on mccmnc: "
                 + mTelephonyMgr.getSimOperatorNumericForPhone(mPhone.getPhoneId()));
         ipw.increaseIndent();
-        for (CarrierMatchingRule rule : mCarrierMatchingRulesOnMccMnc) {
+        for (CarrierMatchingRule rule : mCarrierMatchingRulesOnMccMnc.getRules()) {
             ipw.println(rule.toString());
         }
         ipw.decreaseIndent();
@@ -66,6 +66,10 @@ public final class CellBroadcastConfigTracker extends StateMachine {
     private List<CellBroadcastIdRange> mCbRanges3gpp2 = new CopyOnWriteArrayList<>();
     private Phone mPhone;
     private final LocalLog mLocalLog = new LocalLog(128);
+    // The latest request received while the modem is being configured, which replaced the
+    // earlier ones as each request sets all the ranges.
+    private Request mDeferredRequest;
+    private int mCoalescedRequestCount;
     @VisibleForTesting
     public int mSubId;
     @VisibleForTesting
@@ -110,6 +114,15 @@ public final class CellBroadcastConfigTracker extends StateMachine {
             return mCallback;
         }
 
+        /**
+         * Replace the request with this one, which reports its result to the callbacks of both.
+         *
+         * @param request the request replaced by this one
+         */
+        void supersede(@NonNull Request request) {
+            mCallback = request.getCallback().andThen(mCallback);
+        }
+
         @Override
         public String toString() {
             return "Request[mCbRangesRequest3gpp = " + mCbRangesRequest3gpp + ", "
@@ -173,6 +186,15 @@ public final class CellBroadcastConfigTracker extends StateMachine {
      * The idle state which does not have ongoing radio request.
      */
     private class IdleState extends State {
+        @Override
+        public void enter() {
+            if (mDeferredRequest != null) {
+                // handle the latest request received while the modem was being configured
+                sendMessageAtFrontOfQueue(EVENT_REQUEST, mDeferredRequest);
+                mDeferredRequest = null;
+            }
+        }
+
         @Override
         public boolean processMessage(Message msg) {
             boolean retVal = NOT_HANDLED;
@@ -224,7 +246,7 @@ public final class CellBroadcastConfigTracker extends StateMachine {
             }
             switch (msg.what) {
                 case EVENT_REQUEST:
-                    deferMessage(msg);
+                    deferRequest(msg);
                     retVal = HANDLED;
                     break;
                 case EVENT_CONFIGURATION_DONE:
@@ -269,7 +291,7 @@ public final class CellBroadcastConfigTracker extends StateMachine {
             }
             switch (msg.what) {
                 case EVENT_REQUEST:
-                    deferMessage(msg);
+                    deferRequest(msg);
                     retVal = HANDLED;
                     break;
                 case EVENT_ACTIVATION_DONE:
@@ -324,7 +346,7 @@ public final class CellBroadcastConfigTracker extends StateMachine {
             }
             switch (msg.what) {
                 case EVENT_REQUEST:
-                    deferMessage(msg);
+                    deferRequest(msg);
                     retVal = HANDLED;
                     break;
                 case EVENT_CONFIGURATION_DONE:
@@ -369,7 +391,7 @@ public final class CellBroadcastConfigTracker extends StateMachine {
             }
             switch (msg.what) {
                 case EVENT_REQUEST:
-                    deferMessage(msg);
+                    deferRequest(msg);
                     retVal = HANDLED;
                     break;
                 case EVENT_ACTIVATION_DONE:
@@ -498,6 +520,24 @@ public final class CellBroadcastConfigTracker extends StateMachine {
         return newRanges;
     }
 
+    /**
+     * Defer the request received while the modem is being configured. When coalescing requests,
+     * only the latest one is kept, so the modem is configured once for all of them.
+     */
+    private void deferRequest(Message msg) {
+        if (!mPhone.mFeatureFlags.coalesceCellBroadcastConfigRequests()) {
+            deferMessage(msg);
+            return;
+        }
+        Request request = (Request) msg.obj;
+        if (mDeferredRequest != null) {
+            request.supersede(mDeferredRequest);
+            mCoalescedRequestCount++;
+            mLocalLog.log("Coalesced request:" + mDeferredRequest + " into request:" + request);
+        }
+        mDeferredRequest = request;
+    }
+
     private void resetConfig() {
         mCbRanges3gpp.clear();
         mCbRanges3gpp2.clear();
@@ -564,6 +604,7 @@ public final class CellBroadcastConfigTracker extends StateMachine {
         pw.increaseIndent();
         pw.println("Current mCbRanges3gpp:" + mCbRanges3gpp);
         pw.println("Current mCbRanges3gpp2:" + mCbRanges3gpp2);
+        pw.println("Coalesced requests:" + mCoalescedRequestCount);
         pw.decreaseIndent();
 
         pw.println("Local logs:");
@@ -17,7 +17,10 @@
 package com.android.internal.telephony;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.Context;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.telephony.Annotation;
 import android.telephony.Annotation.RadioPowerState;
 import android.telephony.Annotation.SrvccState;
@@ -31,6 +34,8 @@ import android.telephony.PhysicalChannelConfig;
 import android.telephony.PreciseCallState;
 import android.telephony.PreciseDataConnectionState;
 import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyDisplayInfo;
 import android.telephony.TelephonyManager.DataEnabledReason;
 import android.telephony.TelephonyManager.EmergencyCallbackModeStopReason;
@@ -40,10 +45,16 @@ import android.telephony.emergency.EmergencyNumber;
 import android.telephony.ims.ImsCallSession;
 import android.telephony.ims.ImsReasonInfo;
 import android.telephony.ims.MediaQualityStatus;
+import android.util.IndentingPrintWriter;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.PhoneNotificationDispatcher.NotificationType;
 import com.android.internal.telephony.flags.FeatureFlags;
 import com.android.telephony.Rlog;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -61,11 +72,95 @@ public class DefaultPhoneNotifier implements PhoneNotifier {
     @NonNull
     private final FeatureFlags mFeatureFlags;
 
+    /**
+     * The looper the notifications are sent on, or {@code null} if they are sent synchronously
+     * from the caller's thread.
+     */
+    @Nullable
+    private final Looper mDispatcherLooper;
+
+    /** The notification dispatchers, by phone id. */
+    @GuardedBy("mDispatchers")
+    private final SparseArray<PhoneNotificationDispatcher> mDispatchers = new SparseArray<>();
 
     public DefaultPhoneNotifier(Context context, @NonNull FeatureFlags featureFlags) {
+        this(context, featureFlags, featureFlags.asyncTelephonyRegistryNotifications()
+                ? createDispatcherLooper() : null);
+    }
+
+    /**
+     * @param context The context.
+     * @param featureFlags The feature flags.
+     * @param dispatcherLooper The looper to send the notifications on, or {@code null} to send
+     * them synchronously.
+     */
+    @VisibleForTesting
+    public DefaultPhoneNotifier(Context context, @NonNull FeatureFlags featureFlags,
+            @Nullable Looper dispatcherLooper) {
         mTelephonyRegistryMgr = (TelephonyRegistryManager) context.getSystemService(
             Context.TELEPHONY_REGISTRY_SERVICE);
         mFeatureFlags = featureFlags;
+        mDispatcherLooper = dispatcherLooper;
+    }
+
+    @NonNull
+    private static Looper createDispatcherLooper() {
+        HandlerThread handlerThread = new HandlerThread(LOG_TAG);
+        handlerThread.start();
+        return handlerThread.getLooper();
+    }
+
+    /**
+     * Send a notification, either now or from the dispatcher of the phone.
+     *
+     * @param phoneId The phone the notification is from.
+     * @param type The type of notification.
+     * @param subId The subscription the notification is for.
+     * @param value The value of a state notification, to drop duplicates.
+     * @param notification Sends the notification, with all the values captured by the caller.
+     */
+    private void dispatch(int phoneId, @NonNull NotificationType type, int subId,
+            @Nullable Object value, @NonNull Runnable notification) {
+        if (mDispatcherLooper == null) {
+            notification.run();
+            return;
+        }
+        getDispatcher(phoneId).dispatch(type, subId, value, notification);
+    }
+
+    private void dispatch(int phoneId, @NonNull NotificationType type,
+            @NonNull Runnable notification) {
+        dispatch(phoneId, type, SubscriptionManager.INVALID_SUBSCRIPTION_ID, null, notification);
+    }
+
+    /**
+     * @param phoneId The phone id.
+     * @return The notification dispatcher of the phone.
+     */
+    @VisibleForTesting
+    @NonNull
+    PhoneNotificationDispatcher getDispatcher(int phoneId) {
+        synchronized (mDispatchers) {
+            PhoneNotificationDispatcher dispatcher = mDispatchers.get(phoneId);
+            if (dispatcher == null) {
+                dispatcher = new PhoneNotificationDispatcher(mDispatcherLooper, phoneId);
+                mDispatchers.put(phoneId, dispatcher);
+            }
+            return dispatcher;
+        }
+    }
+
+    /**
+     * @return {@code true} if the notifications are sent asynchronously, in which case mutable
+     * values have to be copied before being dispatched.
+     */
+    private boolean isAsync() {
+        return mDispatcherLooper != null;
+    }
+
+    @Nullable
+    private <T> List<T> copyIfAsync(@Nullable List<T> list) {
+        return isAsync() && list != null ? new ArrayList<>(list) : list;
     }
 
     @Override
@@ -77,8 +172,10 @@ public class DefaultPhoneNotifier implements PhoneNotifier {
         if (ringingCall != null && ringingCall.getEarliestConnection() != null) {
             incomingNumber = ringingCall.getEarliestConnection().getAddress();
         }
-        mTelephonyRegistryMgr.notifyCallStateChanged(phoneId, subId,
-                PhoneConstantConversions.convertCallState(sender.getState()), incomingNumber);
+        int callState = PhoneConstantConversions.convertCallState(sender.getState());
+        String number = incomingNumber;
+        dispatch(phoneId, NotificationType.CALL_STATE, () ->
+                mTelephonyRegistryMgr.notifyCallStateChanged(phoneId, subId, callState, number));
     }
 
     @Override
@@ -95,8 +192,12 @@ public class DefaultPhoneNotifier implements PhoneNotifier {
         if (ss == null) {
             ss = new ServiceState();
             ss.setStateOutOfService();
+        } else if (isAsync()) {
+            ss = new ServiceState(ss);
         }
-        mTelephonyRegistryMgr.notifyServiceStateChanged(phoneId, subId, ss);
+        ServiceState serviceState = ss;
+        dispatch(phoneId, NotificationType.SERVICE_STATE, subId, serviceState, () ->
+                mTelephonyRegistryMgr.notifyServiceStateChanged(phoneId, subId, serviceState));
     }
 
     @Override
@@ -108,16 +209,23 @@ public class DefaultPhoneNotifier implements PhoneNotifier {
             Rlog.d(LOG_TAG, "notifySignalStrength: mRegistryMgr=" + mTelephonyRegistryMgr
                 + " ss=" + sender.getSignalStrength() + " sender=" + sender);
         }
-        mTelephonyRegistryMgr.notifySignalStrengthChanged(phoneId, subId,
-                sender.getSignalStrength());
+        SignalStrength signalStrength = sender.getSignalStrength();
+        if (isAsync() && signalStrength != null) {
+            // The signal strength level is updated in place.
+            signalStrength = new SignalStrength(signalStrength);
+        }
+        SignalStrength ss = signalStrength;
+        dispatch(phoneId, NotificationType.SIGNAL_STRENGTH, subId, ss, () ->
+                mTelephonyRegistryMgr.notifySignalStrengthChanged(phoneId, subId, ss));
     }
 
     @Override
     public void notifyMessageWaitingChanged(Phone sender) {
         int phoneId = sender.getPhoneId();
         int subId = sender.getSubId();
-        mTelephonyRegistryMgr.notifyMessageWaitingChanged(phoneId, subId,
-                sender.getMessageWaitingIndicator());
+        boolean mwi = sender.getMessageWaitingIndicator();
+        dispatch(phoneId, NotificationType.MESSAGE_WAITING, subId, mwi, () ->
+                mTelephonyRegistryMgr.notifyMessageWaitingChanged(phoneId, subId, mwi));
     }
 
     @Override
@@ -126,40 +234,50 @@ public class DefaultPhoneNotifier implements PhoneNotifier {
         Rlog.d(LOG_TAG, "notifyCallForwardingChanged: subId=" + subId + ", isCFActive="
             + sender.getCallForwardingIndicator());
 
-        mTelephonyRegistryMgr.notifyCallForwardingChanged(subId,
-            sender.getCallForwardingIndicator());
+        boolean cfi = sender.getCallForwardingIndicator();
+        dispatch(sender.getPhoneId(), NotificationType.CALL_FORWARDING, subId, cfi, () ->
+                mTelephonyRegistryMgr.notifyCallForwardingChanged(subId, cfi));
     }
 
     @Override
     public void notifyDataActivity(Phone sender) {
 
         int subId = sender.getSubId();
+        int phoneId = sender.getPhoneId();
+        int dataActivity = sender.getDataActivityState();
 
         if (mFeatureFlags.notifyDataActivityChangedWithSlot()) {
-            int phoneId = sender.getPhoneId();
-            mTelephonyRegistryMgr.notifyDataActivityChanged(phoneId, subId,
-                    sender.getDataActivityState());
+            dispatch(phoneId, NotificationType.DATA_ACTIVITY, subId, dataActivity, () ->
+                    mTelephonyRegistryMgr.notifyDataActivityChanged(phoneId, subId,
+                            dataActivity));
         } else {
-            mTelephonyRegistryMgr.notifyDataActivityChanged(subId, sender.getDataActivityState());
+            dispatch(phoneId, NotificationType.DATA_ACTIVITY, subId, dataActivity, () ->
+                    mTelephonyRegistryMgr.notifyDataActivityChanged(subId, dataActivity));
         }
     }
 
     @Override
     public void notifyDataConnection(Phone sender, PreciseDataConnectionState preciseState) {
-        mTelephonyRegistryMgr.notifyDataConnectionForSubscriber(sender.getPhoneId(),
-                sender.getSubId(), preciseState);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.DATA_CONNECTION, () ->
+                mTelephonyRegistryMgr.notifyDataConnectionForSubscriber(phoneId, subId,
+                        preciseState));
     }
 
     @Override
     public void notifyCellLocation(Phone sender, CellIdentity cellIdentity) {
         int subId = sender.getSubId();
-        mTelephonyRegistryMgr.notifyCellLocation(subId, cellIdentity);
+        dispatch(sender.getPhoneId(), NotificationType.CELL_LOCATION, subId, cellIdentity, () ->
+                mTelephonyRegistryMgr.notifyCellLocation(subId, cellIdentity));
     }
 
     @Override
     public void notifyCellInfo(Phone sender, List<CellInfo> cellInfo) {
         int subId = sender.getSubId();
-        mTelephonyRegistryMgr.notifyCellInfoChanged(subId, cellInfo);
+        List<CellInfo> cellInfos = copyIfAsync(cellInfo);
+        dispatch(sender.getPhoneId(), NotificationType.CELL_INFO, subId, cellInfos, () ->
+                mTelephonyRegistryMgr.notifyCellInfoChanged(subId, cellInfos));
     }
 
     /**
@@ -182,141 +300,218 @@ public class DefaultPhoneNotifier implements PhoneNotifier {
             int[] callStates = {convertPreciseCallState(ringingCall.getState()),
                     convertPreciseCallState(foregroundCall.getState()),
                     convertPreciseCallState(backgroundCall.getState())};
-            mTelephonyRegistryMgr.notifyPreciseCallState(sender.getPhoneId(), sender.getSubId(),
-                    callStates, imsCallIds, imsCallServiceTypes, imsCallTypes);
+            int phoneId = sender.getPhoneId();
+            int subId = sender.getSubId();
+            dispatch(phoneId, NotificationType.PRECISE_CALL_STATE, () ->
+                    mTelephonyRegistryMgr.notifyPreciseCallState(phoneId, subId, callStates,
+                            imsCallIds, imsCallServiceTypes, imsCallTypes));
         }
     }
 
     public void notifyDisconnectCause(Phone sender, int cause, int preciseCause) {
-        mTelephonyRegistryMgr.notifyDisconnectCause(sender.getPhoneId(), sender.getSubId(), cause,
-                preciseCause);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.DISCONNECT_CAUSE, () ->
+                mTelephonyRegistryMgr.notifyDisconnectCause(phoneId, subId, cause,
+                        preciseCause));
     }
 
     @Override
     public void notifyImsDisconnectCause(@NonNull Phone sender, ImsReasonInfo imsReasonInfo) {
-        mTelephonyRegistryMgr.notifyImsDisconnectCause(sender.getSubId(), imsReasonInfo);
+        int subId = sender.getSubId();
+        dispatch(sender.getPhoneId(), NotificationType.IMS_DISCONNECT_CAUSE, () ->
+                mTelephonyRegistryMgr.notifyImsDisconnectCause(subId, imsReasonInfo));
     }
 
     @Override
     public void notifySrvccStateChanged(Phone sender, @SrvccState int state) {
-        mTelephonyRegistryMgr.notifySrvccStateChanged(sender.getSubId(), state);
+        int subId = sender.getSubId();
+        dispatch(sender.getPhoneId(), NotificationType.SRVCC_STATE, () ->
+                mTelephonyRegistryMgr.notifySrvccStateChanged(subId, state));
     }
 
     @Override
     public void notifyDataActivationStateChanged(Phone sender, int activationState) {
-        mTelephonyRegistryMgr.notifyDataActivationStateChanged(sender.getPhoneId(),
-                sender.getSubId(), activationState);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.DATA_ACTIVATION_STATE, () ->
+                mTelephonyRegistryMgr.notifyDataActivationStateChanged(phoneId, subId,
+                        activationState));
     }
 
     @Override
     public void notifyVoiceActivationStateChanged(Phone sender, int activationState) {
-        mTelephonyRegistryMgr.notifyVoiceActivationStateChanged(sender.getPhoneId(),
-                sender.getSubId(), activationState);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.VOICE_ACTIVATION_STATE, () ->
+                mTelephonyRegistryMgr.notifyVoiceActivationStateChanged(phoneId, subId,
+                        activationState));
     }
 
     @Override
     public void notifyUserMobileDataStateChanged(Phone sender, boolean state) {
-        mTelephonyRegistryMgr.notifyUserMobileDataStateChanged(sender.getPhoneId(),
-                sender.getSubId(), state);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.USER_MOBILE_DATA_STATE, () ->
+                mTelephonyRegistryMgr.notifyUserMobileDataStateChanged(phoneId, subId, state));
     }
 
     @Override
     public void notifyDisplayInfoChanged(Phone sender, TelephonyDisplayInfo telephonyDisplayInfo) {
-        mTelephonyRegistryMgr.notifyDisplayInfoChanged(sender.getPhoneId(), sender.getSubId(),
-                telephonyDisplayInfo);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.DISPLAY_INFO, subId, telephonyDisplayInfo, () ->
+                mTelephonyRegistryMgr.notifyDisplayInfoChanged(phoneId, subId,
+                        telephonyDisplayInfo));
     }
 
     @Override
     public void notifyPhoneCapabilityChanged(PhoneCapability capability) {
-        mTelephonyRegistryMgr.notifyPhoneCapabilityChanged(capability);
+        dispatch(SubscriptionManager.INVALID_PHONE_INDEX, NotificationType.PHONE_CAPABILITY, () ->
+                mTelephonyRegistryMgr.notifyPhoneCapabilityChanged(capability));
     }
 
     @Override
     public void notifyRadioPowerStateChanged(Phone sender, @RadioPowerState int state) {
-        mTelephonyRegistryMgr.notifyRadioPowerStateChanged(sender.getPhoneId(), sender.getSubId(),
-                state);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.RADIO_POWER_STATE, subId, state, () ->
+                mTelephonyRegistryMgr.notifyRadioPowerStateChanged(phoneId, subId, state));
     }
 
     @Override
     public void notifyEmergencyNumberList(Phone sender) {
-        mTelephonyRegistryMgr.notifyEmergencyNumberList(sender.getPhoneId(), sender.getSubId());
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.EMERGENCY_NUMBER_LIST, () ->
+                mTelephonyRegistryMgr.notifyEmergencyNumberList(phoneId, subId));
     }
 
     @Override
     public void notifyOutgoingEmergencySms(Phone sender, EmergencyNumber emergencyNumber) {
-        mTelephonyRegistryMgr.notifyOutgoingEmergencySms(
-                sender.getPhoneId(), sender.getSubId(), emergencyNumber);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.OUTGOING_EMERGENCY_SMS, () ->
+                mTelephonyRegistryMgr.notifyOutgoingEmergencySms(phoneId, subId,
+                        emergencyNumber));
     }
 
     @Override
     public void notifyCallQualityChanged(Phone sender, CallQuality callQuality,
             int callNetworkType) {
-        mTelephonyRegistryMgr.notifyCallQualityChanged(sender.getPhoneId(), sender.getSubId(),
-                callQuality, callNetworkType);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.CALL_QUALITY, () ->
+                mTelephonyRegistryMgr.notifyCallQualityChanged(phoneId, subId, callQuality,
+                        callNetworkType));
     }
 
     @Override
     public void notifyMediaQualityStatusChanged(Phone sender, MediaQualityStatus status) {
-        mTelephonyRegistryMgr.notifyMediaQualityStatusChanged(
-                sender.getPhoneId(), sender.getSubId(), status);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.MEDIA_QUALITY_STATUS, () ->
+                mTelephonyRegistryMgr.notifyMediaQualityStatusChanged(phoneId, subId, status));
     }
 
     @Override
     public void notifyRegistrationFailed(Phone sender, @NonNull CellIdentity cellIdentity,
             @NonNull String chosenPlmn, int domain, int causeCode, int additionalCauseCode) {
-        mTelephonyRegistryMgr.notifyRegistrationFailed(sender.getPhoneId(), sender.getSubId(),
-                cellIdentity, chosenPlmn, domain, causeCode, additionalCauseCode);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.REGISTRATION_FAILED, () ->
+                mTelephonyRegistryMgr.notifyRegistrationFailed(phoneId, subId, cellIdentity,
+                        chosenPlmn, domain, causeCode, additionalCauseCode));
     }
 
     @Override
     public void notifyBarringInfoChanged(Phone sender, BarringInfo barringInfo) {
-        mTelephonyRegistryMgr.notifyBarringInfoChanged(sender.getPhoneId(), sender.getSubId(),
-                barringInfo);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.BARRING_INFO, subId, barringInfo, () ->
+                mTelephonyRegistryMgr.notifyBarringInfoChanged(phoneId, subId, barringInfo));
     }
 
     @Override
     public void notifyPhysicalChannelConfig(Phone sender,
                                                    List<PhysicalChannelConfig> configs) {
-        mTelephonyRegistryMgr.notifyPhysicalChannelConfigForSubscriber(
-                sender.getPhoneId(), sender.getSubId(), configs);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        List<PhysicalChannelConfig> physicalChannelConfigs = copyIfAsync(configs);
+        dispatch(phoneId, NotificationType.PHYSICAL_CHANNEL_CONFIG, subId,
+                physicalChannelConfigs, () ->
+                        mTelephonyRegistryMgr.notifyPhysicalChannelConfigForSubscriber(phoneId,
+                                subId, physicalChannelConfigs));
     }
 
     @Override
     public void notifyDataEnabled(Phone sender, boolean enabled, @DataEnabledReason int reason) {
-        mTelephonyRegistryMgr.notifyDataEnabled(sender.getPhoneId(), sender.getSubId(),
-                enabled, reason);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.DATA_ENABLED, () ->
+                mTelephonyRegistryMgr.notifyDataEnabled(phoneId, subId, enabled, reason));
     }
 
     @Override
     public void notifyAllowedNetworkTypesChanged(Phone sender, int reason,
             long allowedNetworkType) {
-        mTelephonyRegistryMgr.notifyAllowedNetworkTypesChanged(sender.getPhoneId(),
-                sender.getSubId(), reason, allowedNetworkType);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.ALLOWED_NETWORK_TYPES, () ->
+                mTelephonyRegistryMgr.notifyAllowedNetworkTypesChanged(phoneId, subId, reason,
+                        allowedNetworkType));
     }
 
     @Override
     public void notifyLinkCapacityEstimateChanged(Phone sender,
             List<LinkCapacityEstimate> linkCapacityEstimateList) {
-        mTelephonyRegistryMgr.notifyLinkCapacityEstimateChanged(sender.getPhoneId(),
-                sender.getSubId(), linkCapacityEstimateList);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        List<LinkCapacityEstimate> estimates = copyIfAsync(linkCapacityEstimateList);
+        dispatch(phoneId, NotificationType.LINK_CAPACITY_ESTIMATE, subId, estimates, () ->
+                mTelephonyRegistryMgr.notifyLinkCapacityEstimateChanged(phoneId, subId,
+                        estimates));
     }
 
     @Override
     public void notifySimultaneousCellularCallingSubscriptionsChanged(Set<Integer> subIds) {
-        mTelephonyRegistryMgr.notifySimultaneousCellularCallingSubscriptionsChanged(subIds);
+        dispatch(SubscriptionManager.INVALID_PHONE_INDEX,
+                NotificationType.SIMULTANEOUS_CALLING_SUBSCRIPTIONS, () ->
+                        mTelephonyRegistryMgr.notifySimultaneousCellularCallingSubscriptionsChanged(
+                                subIds));
     }
 
     @Override
     public void notifyCallbackModeStarted(Phone sender, @EmergencyCallbackModeType int type) {
-        mTelephonyRegistryMgr.notifyCallBackModeStarted(sender.getPhoneId(),
-                sender.getSubId(), type);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.CALLBACK_MODE_STARTED, () ->
+                mTelephonyRegistryMgr.notifyCallBackModeStarted(phoneId, subId, type));
     }
 
     @Override
     public void notifyCallbackModeStopped(Phone sender, @EmergencyCallbackModeType int type,
             @EmergencyCallbackModeStopReason int reason) {
-        mTelephonyRegistryMgr.notifyCallbackModeStopped(sender.getPhoneId(),
-                sender.getSubId(), type, reason);
+        int phoneId = sender.getPhoneId();
+        int subId = sender.getSubId();
+        dispatch(phoneId, NotificationType.CALLBACK_MODE_STOPPED, () ->
+                mTelephonyRegistryMgr.notifyCallbackModeStopped(phoneId, subId, type, reason));
+    }
+
+    /**
+     * Dump the statistics of the notifications sent asynchronously.
+     *
+     * @param pw The print writer.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("DefaultPhoneNotifier: async=" + isAsync());
+        pw.increaseIndent();
+        synchronized (mDispatchers) {
+            for (int i = 0; i < mDispatchers.size(); i++) {
+                mDispatchers.valueAt(i).dump(pw);
+            }
+        }
+        pw.decreaseIndent();
     }
     /**
      * Convert the {@link Call.State} enum into the PreciseCallState.PRECISE_CALL_STATE_* constants
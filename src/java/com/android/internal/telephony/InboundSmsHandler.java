@@ -139,6 +139,11 @@ public abstract class InboundSmsHandler extends StateMachine {
             PDU_COLUMN, 0,
             DELETED_FLAG_COLUMN, 1);
 
+    /** Query projection for counting concatenated message segments. */
+    private static final String[] SEQUENCE_PROJECTION = {
+            "sequence"
+    };
+
     /** Query projection for combining concatenated message segments. */
     private static final String[] PDU_SEQUENCE_PORT_PROJECTION = {
             "pdu",
@@ -224,6 +229,9 @@ public abstract class InboundSmsHandler extends StateMachine {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private final ContentResolver mResolver;
 
+    /** Segments of the multi-part messages in the raw table, shared by all the handlers. */
+    private final InboundSmsSegmentIndex mSegmentIndex = InboundSmsSegmentIndex.getInstance();
+
     /** Special handler for WAP push messages. */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private final WapPushOverSms mWapPush;
@@ -926,24 +934,38 @@ public abstract class InboundSmsHandler extends StateMachine {
                 String refNumber = Integer.toString(tracker.getReferenceNumber());
                 String count = Integer.toString(tracker.getMessageCount());
 
-                // query for all segments and broadcast message if we have all the parts
+                // check the index for all segments and broadcast message if we have all the parts
                 String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        tracker.getQueryForSegments(), whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
+                int segmentCount = mSegmentIndex.getSegmentCount(tracker,
+                        () -> querySegmentSequenceNumbers(tracker.getQueryForSegments(),
+                                whereArgs));
+                if (segmentCount < messageCount) {
                     // Wait for the other message parts to arrive. It's also possible for the last
                     // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
                     // earlier segments. In that case, the broadcast will be sent as soon as all
                     // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
                     // get a row count of 0 and return.
-                    log("processMessagePart: returning false. Only " + cursorCount + " of "
+                    log("processMessagePart: returning false. Only " + segmentCount + " of "
                             + messageCount + " segments " + " have arrived. refNumber: "
                             + refNumber, tracker.getMessageId());
                     return false;
                 }
 
+                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
+                        tracker.getQueryForSegments(), whereArgs, null);
+
+                int cursorCount = cursor.getCount();
+                if (cursorCount < messageCount) {
+                    // Segments were deleted from the raw table since they were indexed, index the
+                    // message again from the raw table.
+                    mSegmentIndex.remove(tracker, false /* complete */);
+                    log("processMessagePart: returning false. Only " + cursorCount + " of "
+                            + messageCount + " segments " + " are in the raw table. refNumber: "
+                            + refNumber, tracker.getMessageId());
+                    return false;
+                }
+                mSegmentIndex.remove(tracker, true /* complete */);
+
                 // All the parts are in place, deal with them
                 pdus = new byte[messageCount][];
                 timestamps = new long[messageCount];
@@ -1138,6 +1160,28 @@ public abstract class InboundSmsHandler extends StateMachine {
         return true;
     }
 
+    /**
+     * Query the sequence numbers of the segments of a multi-part message in the raw table.
+     *
+     * @param selection the selection of the segments of the message
+     * @param selectionArgs the selection arguments of the segments of the message
+     * @return the sequence numbers, or null if the raw table can't be read
+     */
+    @Nullable
+    private int[] querySegmentSequenceNumbers(String selection, String[] selectionArgs) {
+        try (Cursor cursor = mResolver.query(sRawUri, SEQUENCE_PROJECTION, selection,
+                selectionArgs, null)) {
+            if (cursor == null) {
+                return null;
+            }
+            int[] sequenceNumbers = new int[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                sequenceNumbers[i] = cursor.getInt(0);
+            }
+            return sequenceNumbers;
+        }
+    }
+
     /**
      * Processes the message part while the credential-encrypted storage is still locked.
      *
@@ -1651,6 +1695,7 @@ public abstract class InboundSmsHandler extends StateMachine {
                 // set the delete selection args for multi-part message
                 String[] deleteWhereArgs = {address, refNumber, count};
                 tracker.setDeleteWhere(tracker.getQueryForSegments(), deleteWhereArgs);
+                mSegmentIndex.onSegmentAdded(tracker);
             }
             return Intents.RESULT_SMS_HANDLED;
         } catch (Exception e) {
@@ -2039,6 +2084,7 @@ public abstract class InboundSmsHandler extends StateMachine {
         pw.increaseIndent();
         mCarrierServiceLocalLog.dump(fd, pw, args);
         pw.decreaseIndent();
+        mSegmentIndex.dump(pw);
         pw.decreaseIndent();
     }
 
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Index of the segments of the multi-part messages in the raw table, so the raw table only needs
+ * to be read when all the segments of a message arrived.
+ * <p/>
+ * The raw table is shared by all the {@link InboundSmsHandler}s, e.g. of each SIM and of both
+ * formats, and {@link InboundSmsTracker#getQueryForSegments()} doesn't select by subscription, so
+ * a single index is shared by all the handlers too. A message is indexed by the same values as
+ * that query. The index is seeded from the raw table the first time a message is looked up, and
+ * then updated with the segments added by any handler. As every segment added to the raw table
+ * is added to the index after its insertion, and seeding reads the raw table under the index
+ * lock, a segment in the raw table is never missing from the index. Segments deleted from the raw
+ * table may still be indexed, so the raw table has to be read to confirm a message is complete.
+ * Messages which are not indexed, because they completed or were evicted, are seeded again from
+ * the raw table.
+ * <p/>
+ * This class is thread safe, the handlers run on their own threads.
+ */
+final class InboundSmsSegmentIndex {
+    /** Maximum number of messages indexed, messages which never complete are evicted. */
+    private static final int MAX_MESSAGES = 64;
+
+    private static final InboundSmsSegmentIndex sInstance = new InboundSmsSegmentIndex();
+
+    /** Key of a multi-part message in the raw table. */
+    private static final class Key {
+        @NonNull
+        final String selection;
+        @Nullable
+        final String address;
+        final int referenceNumber;
+        final int messageCount;
+
+        Key(@NonNull InboundSmsTracker tracker) {
+            selection = tracker.getQueryForSegments();
+            address = tracker.getAddress();
+            referenceNumber = tracker.getReferenceNumber();
+            messageCount = tracker.getMessageCount();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return referenceNumber == key.referenceNumber && messageCount == key.messageCount
+                    && selection.equals(key.selection) && Objects.equals(address, key.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(selection, address, referenceNumber, messageCount);
+        }
+    }
+
+    /** The segments of a message in the raw table. */
+    private static final class Segments {
+        final Set<Integer> sequenceNumbers = new HashSet<>();
+        final long indexedTimeMillis = SystemClock.elapsedRealtime();
+    }
+
+    private final LinkedHashMap<Key, Segments> mMessages =
+            new LinkedHashMap<>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Segments> eldest) {
+                    if (size() > MAX_MESSAGES) {
+                        mEvictedCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private long mSeededCount;
+    private long mEvictedCount;
+    private long mCompletedCount;
+    private long mTotalReassemblyMillis;
+    private long mMaxReassemblyMillis;
+
+    private final LocalLog mLocalLog = new LocalLog(16);
+
+    /** @return The index shared by all the handlers, as they share the raw table. */
+    @NonNull
+    static InboundSmsSegmentIndex getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param tracker A segment of the message.
+     * @param querySequenceNumbers Reads the sequence numbers of the segments of the message in
+     * the raw table, if the message isn't indexed. Returns {@code null} if the raw table can't be
+     * read. Called with the index locked, so no segment added meanwhile is missed.
+     * @return The number of segments of the message which arrived.
+     */
+    synchronized int getSegmentCount(@NonNull InboundSmsTracker tracker,
+            @NonNull Supplier<int[]> querySequenceNumbers) {
+        Key key = new Key(tracker);
+        Segments segments = mMessages.get(key);
+        if (segments == null) {
+            int[] sequenceNumbers = querySequenceNumbers.get();
+            if (sequenceNumbers == null) return 0;
+            segments = new Segments();
+            for (int sequenceNumber : sequenceNumbers) {
+                segments.sequenceNumbers.add(sequenceNumber);
+            }
+            mMessages.put(key, segments);
+            mSeededCount++;
+        }
+        return segments.sequenceNumbers.size();
+    }
+
+    /**
+     * Called when a segment was added to the raw table.
+     *
+     * @param tracker The segment.
+     */
+    synchronized void onSegmentAdded(@NonNull InboundSmsTracker tracker) {
+        // A message which isn't indexed is seeded from the raw table, including this segment.
+        Segments segments = mMessages.get(new Key(tracker));
+        if (segments != null) {
+            segments.sequenceNumbers.add(tracker.getSequenceNumber());
+        }
+    }
+
+    /**
+     * Stop indexing a message after its segments were read from the raw table.
+     *
+     * @param tracker A segment of the message.
+     * @param complete {@code true} if all the segments were read, {@code false} if segments were
+     * missing from the raw table, in which case the message is seeded again from the raw table.
+     */
+    synchronized void remove(@NonNull InboundSmsTracker tracker, boolean complete) {
+        Segments segments = mMessages.remove(new Key(tracker));
+        if (segments == null || !complete) return;
+        long reassemblyMillis = SystemClock.elapsedRealtime() - segments.indexedTimeMillis;
+        mCompletedCount++;
+        mTotalReassemblyMillis += reassemblyMillis;
+        mMaxReassemblyMillis = Math.max(mMaxReassemblyMillis, reassemblyMillis);
+        mLocalLog.log("Reassembled " + tracker.getMessageCount() + " segments in "
+                + reassemblyMillis + "ms, "
+                + SmsController.formatCrossStackMessageId(tracker.getMessageId()));
+    }
+
+    /** @return The number of messages indexed. */
+    synchronized int size() {
+        return mMessages.size();
+    }
+
+    /**
+     * Dump the state of the index.
+     *
+     * @param pw The print writer.
+     */
+    synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("InboundSmsSegmentIndex: messages=" + mMessages.size()
+                + ", seeded=" + mSeededCount + ", evicted=" + mEvictedCount
+                + ", completed=" + mCompletedCount
+                + ", avgReassemblyMs=" + (mCompletedCount == 0 ? 0
+                        : mTotalReassemblyMillis / mCompletedCount)
+                + ", maxReassemblyMs=" + mMaxReassemblyMillis);
+        pw.increaseIndent();
+        mLocalLog.dump(pw);
+        pw.decreaseIndent();
+    }
+}
@@ -21,6 +21,7 @@ import android.os.Build;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.stream.Collectors;
 
 /**
@@ -219,7 +220,9 @@ public abstract class IntRangeManager {
             }
         }
 
-        for (int startIndex = 0; startIndex < len; startIndex++) {
+        // skip the IntRanges ending before the new range, which can't be joined with it
+        for (int startIndex = findFirstRangeEndingFrom(Math.min(startId - 1, endId));
+                startIndex < len; startIndex++) {
             IntRange range = mRanges.get(startIndex);
             if ((startId) >= range.mStartId && (endId) <= range.mEndId) {
                 // exact same range:  new [1, 1] existing [1, 1]
@@ -230,35 +233,30 @@ public abstract class IntRangeManager {
                 return true;
             } else if ((startId - 1) == range.mEndId) {
                 // new [3, x] existing [1, 2]  OR new [2, 2] existing [1, 1]
-                // found missing link? check if next range can be joined
+                // found missing link? find last range that can be joined
+                int endIndex = startIndex;
+                for (int testIndex = startIndex + 1; testIndex < len; testIndex++) {
+                    if ((endId + 1) < mRanges.get(testIndex).mStartId) {
+                        break;
+                    }
+                    // new [3, x] existing [1, 2] [5, 7] OR  new [2 , 2] existing [1, 1] [3, 5]
+                    endIndex = testIndex;
+                }
                 int newRangeEndId = endId;
-                IntRange nextRange = null;
-                if ((startIndex + 1) < len) {
-                    nextRange = mRanges.get(startIndex + 1);
-                    if ((nextRange.mStartId - 1) <= endId) {
-                        // new [3, x] existing [1, 2] [5, 7] OR  new [2 , 2] existing [1, 1] [3, 5]
-                        if (endId <= nextRange.mEndId) {
-                            // new [3, 6] existing [1, 2] [5, 7]
-                            newRangeEndId = nextRange.mStartId - 1; // need to enable [3, 4]
-                        }
-                    } else {
-                        // mark nextRange to be joined as null.
-                        nextRange = null;
+                int joinedEndId = endId;
+                if (endIndex > startIndex) {
+                    IntRange endRange = mRanges.get(endIndex);
+                    if (endId <= endRange.mEndId) {
+                        // new [3, 6] existing [1, 2] [5, 7]
+                        newRangeEndId = endRange.mStartId - 1; // need to enable [3, 4]
+                        joinedEndId = endRange.mEndId;
                     }
                 }
                 if (tryAddRanges(startId, newRangeEndId, true)) {
-                    range.mEndId = endId;
+                    range.mEndId = joinedEndId;
                     range.insert(new ClientRange(startId, endId, client));
-
-                    // found missing link? check if next range can be joined
-                    if (nextRange != null) {
-                        if (range.mEndId < nextRange.mEndId) {
-                            // new [3, 6] existing [1, 2] [5, 10]
-                            range.mEndId = nextRange.mEndId;
-                        }
-                        range.mClients.addAll(nextRange.mClients);
-                        mRanges.remove(nextRange);
-                    }
+                    // new [3, 10] existing [1, 2] [5, 6] [8, 12]
+                    joinRanges(range, startIndex, endIndex + 1);
                     return true;
                 } else {
                     return false;   // failed to update radio
@@ -299,17 +297,8 @@ public abstract class IntRangeManager {
                                 // insert new ClientRange before existing ranges
                                 range.mClients.add(0, new ClientRange(startId, endId, client));
                                 // coalesce range with following ranges up to endIndex-1
-                                // remove each range after adding its elements, so the index
-                                // of the next range to join is always startIndex+1.
-                                // i is the index if no elements were removed: we only care
-                                // about the number of loop iterations, not the value of i.
-                                int joinIndex = startIndex + 1;
-                                for (int i = joinIndex; i < endIndex; i++) {
-                                    // new [1, 10] existing [2, 3] [5, 6] [14, 15]
-                                    IntRange joinRange = mRanges.get(joinIndex);
-                                    range.mClients.addAll(joinRange.mClients);
-                                    mRanges.remove(joinRange);
-                                }
+                                // new [1, 10] existing [2, 3] [5, 6] [14, 15]
+                                joinRanges(range, startIndex, endIndex);
                                 return true;
                             } else {
                                 return false;   // failed to update radio
@@ -324,16 +313,7 @@ public abstract class IntRangeManager {
                                 // insert new ClientRange before existing ranges
                                 range.mClients.add(0, new ClientRange(startId, endId, client));
                                 // coalesce range with following ranges up to endIndex
-                                // remove each range after adding its elements, so the index
-                                // of the next range to join is always startIndex+1.
-                                // i is the index if no elements were removed: we only care
-                                // about the number of loop iterations, not the value of i.
-                                int joinIndex = startIndex + 1;
-                                for (int i = joinIndex; i <= endIndex; i++) {
-                                    IntRange joinRange = mRanges.get(joinIndex);
-                                    range.mClients.addAll(joinRange.mClients);
-                                    mRanges.remove(joinRange);
-                                }
+                                joinRanges(range, startIndex, endIndex + 1);
                                 return true;
                             } else {
                                 return false;   // failed to update radio
@@ -349,24 +329,15 @@ public abstract class IntRangeManager {
                         // insert new ClientRange before existing ranges
                         range.mClients.add(0, new ClientRange(startId, endId, client));
                         // coalesce range with following ranges up to len-1
-                        // remove each range after adding its elements, so the index
-                        // of the next range to join is always startIndex+1.
-                        // i is the index if no elements were removed: we only care
-                        // about the number of loop iterations, not the value of i.
-                        int joinIndex = startIndex + 1;
-                        for (int i = joinIndex; i < len; i++) {
-                            // new [1, 10] existing [2, 3] [5, 6]
-                            IntRange joinRange = mRanges.get(joinIndex);
-                            range.mClients.addAll(joinRange.mClients);
-                            mRanges.remove(joinRange);
-                        }
+                        // new [1, 10] existing [2, 3] [5, 6]
+                        joinRanges(range, startIndex, len);
                         return true;
                     } else {
                         return false;   // failed to update radio
                     }
                 }
-            } else if ((startId + 1) <= range.mEndId) {
-                // new [2, x] existing [1, 4]
+            } else if (startId <= range.mEndId) {
+                // new [2, x] existing [1, 4]  OR new [4, x] existing [1, 4]
                 if (endId <= range.mEndId) {
                     // new [2, 3] existing [1, 4]
                     // completely contained in existing range; no radio changes
@@ -412,16 +383,7 @@ public abstract class IntRangeManager {
                         // insert new ClientRange in place
                         range.insert(new ClientRange(startId, endId, client));
                         // coalesce range with following ranges up to endIndex
-                        // remove each range after adding its elements, so the index
-                        // of the next range to join is always startIndex+1 (joinIndex).
-                        // i is the index if no elements had been removed: we only care
-                        // about the number of loop iterations, not the value of i.
-                        int joinIndex = startIndex + 1;
-                        for (int i = joinIndex; i <= endIndex; i++) {
-                            IntRange joinRange = mRanges.get(joinIndex);
-                            range.mClients.addAll(joinRange.mClients);
-                            mRanges.remove(joinRange);
-                        }
+                        joinRanges(range, startIndex, endIndex + 1);
                         return true;
                     } else {
                         return false;   // failed to update radio
@@ -453,7 +415,8 @@ public abstract class IntRangeManager {
     public synchronized boolean disableRange(int startId, int endId, String client) {
         int len = mRanges.size();
 
-        for (int i=0; i < len; i++) {
+        // skip the IntRanges ending before the range, which can't enclose it
+        for (int i = findFirstRangeEndingFrom(endId); i < len; i++) {
             IntRange range = mRanges.get(i);
             if (startId < range.mStartId) {
                 return false;   // not found
@@ -592,6 +555,40 @@ public abstract class IntRangeManager {
         return false;   // not found
     }
 
+    /**
+     * Find the first IntRange ending at or after the specified id. The IntRanges are sorted
+     * and never overlap, so their end ids are sorted as well and can be binary searched.
+     * @param id the id the IntRange must end at or after
+     * @return the index of the IntRange, or the number of IntRanges if none ends at or after id
+     */
+    private int findFirstRangeEndingFrom(int id) {
+        int low = 0;
+        int high = mRanges.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mRanges.get(mid).mEndId < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Coalesce the IntRanges following an IntRange into it, and remove them all at once.
+     * @param range the IntRange to coalesce the following IntRanges into
+     * @param startIndex the index of range
+     * @param endIndex the index after the last IntRange to coalesce
+     */
+    private void joinRanges(IntRange range, int startIndex, int endIndex) {
+        List<IntRange> joinRanges = mRanges.subList(startIndex + 1, endIndex);
+        for (IntRange joinRange : joinRanges) {
+            range.mClients.addAll(joinRange.mClients);
+        }
+        joinRanges.clear();
+    }
+
     /**
      * Perform a complete update operation (enable all ranges). Useful
      * after a radio reset. Calls {@link #startUpdate}, followed by zero or
@@ -54,10 +54,13 @@ import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.text.TextUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.gsm.SuppServiceNotification;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
 
 /**
@@ -118,6 +121,11 @@ public class NetworkIndication extends IRadioNetworkIndication.Stub {
     public void cellInfoList(int indicationType,
             android.hardware.radio.network.CellInfo[] records) {
         mRil.processIndication(HAL_SERVICE_NETWORK, indicationType);
+        mRil.mIndicationCoalescer.offer(RadioIndicationCoalescer.TYPE_CELL_INFO, records,
+                NetworkIndication::isSameCellInfos, this::notifyCellInfoList);
+    }
+
+    private void notifyCellInfoList(android.hardware.radio.network.CellInfo[] records) {
         ArrayList<CellInfo> response = RILUtils.convertHalCellInfoList(records);
         if (mRil.isLogOrTrace()) mRil.unsljLogRet(RIL_UNSOL_CELL_INFO_LIST, response);
         mRil.mRilCellInfoListRegistrants.notifyRegistrants(new AsyncResult(null, response, null));
@@ -149,6 +157,13 @@ public class NetworkIndication extends IRadioNetworkIndication.Stub {
     public void currentPhysicalChannelConfigs(int indicationType,
             android.hardware.radio.network.PhysicalChannelConfig[] configs) {
         mRil.processIndication(HAL_SERVICE_NETWORK, indicationType);
+        mRil.mIndicationCoalescer.offer(RadioIndicationCoalescer.TYPE_PHYSICAL_CHANNEL_CONFIG,
+                configs, NetworkIndication::isSamePhysicalChannelConfigs,
+                this::notifyPhysicalChannelConfigs);
+    }
+
+    private void notifyPhysicalChannelConfigs(
+            android.hardware.radio.network.PhysicalChannelConfig[] configs) {
         List<PhysicalChannelConfig> response = new ArrayList<>(configs.length);
         try {
             for (android.hardware.radio.network.PhysicalChannelConfig config : configs) {
@@ -210,10 +225,15 @@ public class NetworkIndication extends IRadioNetworkIndication.Stub {
     public void currentSignalStrength(int indicationType,
             android.hardware.radio.network.SignalStrength signalStrength) {
         mRil.processIndication(HAL_SERVICE_NETWORK, indicationType);
+        mRil.mIndicationCoalescer.offer(RadioIndicationCoalescer.TYPE_SIGNAL_STRENGTH,
+                signalStrength, NetworkIndication::isSameSignalStrength,
+                this::notifySignalStrength);
+    }
 
-        SignalStrength ssInitial = RILUtils.convertHalSignalStrength(signalStrength);
-
-        SignalStrength ss = mRil.fixupSignalStrength10(ssInitial);
+    private void notifySignalStrength(
+            android.hardware.radio.network.SignalStrength signalStrength) {
+        SignalStrength ss = mRil.fixupSignalStrength10(
+                RILUtils.convertHalSignalStrength(signalStrength));
         // Note this is set to "verbose" because it happens frequently
         if (mRil.isLogvOrTrace()) mRil.unsljLogvRet(RIL_UNSOL_SIGNAL_STRENGTH, ss);
 
@@ -476,6 +496,225 @@ public class NetworkIndication extends IRadioNetworkIndication.Stub {
         return IRadioNetworkIndication.VERSION;
     }
 
+    /**
+     * Compare two lists of HAL physical channel configs field by field, without converting them.
+     */
+    @VisibleForTesting
+    public static boolean isSamePhysicalChannelConfigs(
+            android.hardware.radio.network.PhysicalChannelConfig[] a,
+            android.hardware.radio.network.PhysicalChannelConfig[] b) {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < a.length; i++) {
+            android.hardware.radio.network.PhysicalChannelConfig x = a[i];
+            android.hardware.radio.network.PhysicalChannelConfig y = b[i];
+            if (x.status != y.status
+                    || x.rat != y.rat
+                    || x.downlinkChannelNumber != y.downlinkChannelNumber
+                    || x.uplinkChannelNumber != y.uplinkChannelNumber
+                    || x.cellBandwidthDownlinkKhz != y.cellBandwidthDownlinkKhz
+                    || x.cellBandwidthUplinkKhz != y.cellBandwidthUplinkKhz
+                    || x.physicalCellId != y.physicalCellId
+                    || !Arrays.equals(x.contextIds, y.contextIds)
+                    || x.band.getTag() != y.band.getTag()
+                    || getBandValue(x.band) != getBandValue(y.band)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getBandValue(android.hardware.radio.network.PhysicalChannelConfigBand band) {
+        switch (band.getTag()) {
+            case android.hardware.radio.network.PhysicalChannelConfigBand.geranBand:
+                return band.getGeranBand();
+            case android.hardware.radio.network.PhysicalChannelConfigBand.utranBand:
+                return band.getUtranBand();
+            case android.hardware.radio.network.PhysicalChannelConfigBand.eutranBand:
+                return band.getEutranBand();
+            case android.hardware.radio.network.PhysicalChannelConfigBand.ngranBand:
+                return band.getNgranBand();
+            default:
+                return PhysicalChannelConfig.BAND_UNKNOWN;
+        }
+    }
+
+    /**
+     * Compare two lists of HAL cell infos by the fields used in their conversion.
+     */
+    @VisibleForTesting
+    public static boolean isSameCellInfos(android.hardware.radio.network.CellInfo[] a,
+            android.hardware.radio.network.CellInfo[] b) {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < a.length; i++) {
+            if (!isSameCellInfo(a[i], b[i])) return false;
+        }
+        return true;
+    }
+
+    private static boolean isSameCellInfo(android.hardware.radio.network.CellInfo x,
+            android.hardware.radio.network.CellInfo y) {
+        if (x.registered != y.registered || x.connectionStatus != y.connectionStatus
+                || x.ratSpecificInfo.getTag() != y.ratSpecificInfo.getTag()) {
+            return false;
+        }
+        switch (x.ratSpecificInfo.getTag()) {
+            case android.hardware.radio.network.CellInfoRatSpecificInfo.gsm: {
+                android.hardware.radio.network.CellInfoGsm gx = x.ratSpecificInfo.getGsm();
+                android.hardware.radio.network.CellInfoGsm gy = y.ratSpecificInfo.getGsm();
+                android.hardware.radio.network.CellIdentityGsm cx = gx.cellIdentityGsm;
+                android.hardware.radio.network.CellIdentityGsm cy = gy.cellIdentityGsm;
+                return cx.lac == cy.lac && cx.cid == cy.cid && cx.arfcn == cy.arfcn
+                        && cx.bsic == cy.bsic && isSamePlmn(cx.mcc, cx.mnc, cy.mcc, cy.mnc)
+                        && isSameOperatorNames(cx.operatorNames, cy.operatorNames)
+                        && isSameGsm(gx.signalStrengthGsm, gy.signalStrengthGsm);
+            }
+            case android.hardware.radio.network.CellInfoRatSpecificInfo.cdma: {
+                android.hardware.radio.network.CellInfoCdma gx = x.ratSpecificInfo.getCdma();
+                android.hardware.radio.network.CellInfoCdma gy = y.ratSpecificInfo.getCdma();
+                android.hardware.radio.network.CellIdentityCdma cx = gx.cellIdentityCdma;
+                android.hardware.radio.network.CellIdentityCdma cy = gy.cellIdentityCdma;
+                return cx.networkId == cy.networkId && cx.systemId == cy.systemId
+                        && cx.baseStationId == cy.baseStationId && cx.longitude == cy.longitude
+                        && cx.latitude == cy.latitude
+                        && isSameOperatorNames(cx.operatorNames, cy.operatorNames)
+                        && isSameCdma(gx.signalStrengthCdma, gy.signalStrengthCdma)
+                        && isSameEvdo(gx.signalStrengthEvdo, gy.signalStrengthEvdo);
+            }
+            case android.hardware.radio.network.CellInfoRatSpecificInfo.lte: {
+                android.hardware.radio.network.CellInfoLte gx = x.ratSpecificInfo.getLte();
+                android.hardware.radio.network.CellInfoLte gy = y.ratSpecificInfo.getLte();
+                android.hardware.radio.network.CellIdentityLte cx = gx.cellIdentityLte;
+                android.hardware.radio.network.CellIdentityLte cy = gy.cellIdentityLte;
+                return cx.ci == cy.ci && cx.pci == cy.pci && cx.tac == cy.tac
+                        && cx.earfcn == cy.earfcn && cx.bandwidth == cy.bandwidth
+                        && Arrays.equals(cx.bands, cy.bands)
+                        && isSamePlmn(cx.mcc, cx.mnc, cy.mcc, cy.mnc)
+                        && isSameOperatorNames(cx.operatorNames, cy.operatorNames)
+                        && Arrays.equals(cx.additionalPlmns, cy.additionalPlmns)
+                        && isSameCsgInfo(cx.csgInfo, cy.csgInfo)
+                        && isSameLte(gx.signalStrengthLte, gy.signalStrengthLte);
+            }
+            case android.hardware.radio.network.CellInfoRatSpecificInfo.wcdma: {
+                android.hardware.radio.network.CellInfoWcdma gx = x.ratSpecificInfo.getWcdma();
+                android.hardware.radio.network.CellInfoWcdma gy = y.ratSpecificInfo.getWcdma();
+                android.hardware.radio.network.CellIdentityWcdma cx = gx.cellIdentityWcdma;
+                android.hardware.radio.network.CellIdentityWcdma cy = gy.cellIdentityWcdma;
+                return cx.lac == cy.lac && cx.cid == cy.cid && cx.psc == cy.psc
+                        && cx.uarfcn == cy.uarfcn && isSamePlmn(cx.mcc, cx.mnc, cy.mcc, cy.mnc)
+                        && isSameOperatorNames(cx.operatorNames, cy.operatorNames)
+                        && Arrays.equals(cx.additionalPlmns, cy.additionalPlmns)
+                        && isSameCsgInfo(cx.csgInfo, cy.csgInfo)
+                        && isSameWcdma(gx.signalStrengthWcdma, gy.signalStrengthWcdma);
+            }
+            case android.hardware.radio.network.CellInfoRatSpecificInfo.tdscdma: {
+                android.hardware.radio.network.CellInfoTdscdma gx =
+                        x.ratSpecificInfo.getTdscdma();
+                android.hardware.radio.network.CellInfoTdscdma gy =
+                        y.ratSpecificInfo.getTdscdma();
+                android.hardware.radio.network.CellIdentityTdscdma cx = gx.cellIdentityTdscdma;
+                android.hardware.radio.network.CellIdentityTdscdma cy = gy.cellIdentityTdscdma;
+                return cx.lac == cy.lac && cx.cid == cy.cid && cx.cpid == cy.cpid
+                        && cx.uarfcn == cy.uarfcn && isSamePlmn(cx.mcc, cx.mnc, cy.mcc, cy.mnc)
+                        && isSameOperatorNames(cx.operatorNames, cy.operatorNames)
+                        && Arrays.equals(cx.additionalPlmns, cy.additionalPlmns)
+                        && isSameCsgInfo(cx.csgInfo, cy.csgInfo)
+                        && isSameTdscdma(gx.signalStrengthTdscdma, gy.signalStrengthTdscdma);
+            }
+            case android.hardware.radio.network.CellInfoRatSpecificInfo.nr: {
+                android.hardware.radio.network.CellInfoNr gx = x.ratSpecificInfo.getNr();
+                android.hardware.radio.network.CellInfoNr gy = y.ratSpecificInfo.getNr();
+                android.hardware.radio.network.CellIdentityNr cx = gx.cellIdentityNr;
+                android.hardware.radio.network.CellIdentityNr cy = gy.cellIdentityNr;
+                return cx.nci == cy.nci && cx.pci == cy.pci && cx.tac == cy.tac
+                        && cx.nrarfcn == cy.nrarfcn && Arrays.equals(cx.bands, cy.bands)
+                        && isSamePlmn(cx.mcc, cx.mnc, cy.mcc, cy.mnc)
+                        && isSameOperatorNames(cx.operatorNames, cy.operatorNames)
+                        && Arrays.equals(cx.additionalPlmns, cy.additionalPlmns)
+                        && isSameNr(gx.signalStrengthNr, gy.signalStrengthNr);
+            }
+            default:
+                // Not converted either
+                return true;
+        }
+    }
+
+    private static boolean isSamePlmn(String mccX, String mncX, String mccY, String mncY) {
+        return Objects.equals(mccX, mccY) && Objects.equals(mncX, mncY);
+    }
+
+    private static boolean isSameOperatorNames(android.hardware.radio.network.OperatorInfo x,
+            android.hardware.radio.network.OperatorInfo y) {
+        return Objects.equals(x.alphaLong, y.alphaLong)
+                && Objects.equals(x.alphaShort, y.alphaShort);
+    }
+
+    private static boolean isSameCsgInfo(
+            android.hardware.radio.network.ClosedSubscriberGroupInfo x,
+            android.hardware.radio.network.ClosedSubscriberGroupInfo y) {
+        if (x == null || y == null) return x == y;
+        return x.csgIndication == y.csgIndication && x.csgIdentity == y.csgIdentity
+                && Objects.equals(x.homeNodebName, y.homeNodebName);
+    }
+
+    /**
+     * Compare two HAL signal strengths by the fields used in their conversion.
+     */
+    @VisibleForTesting
+    public static boolean isSameSignalStrength(android.hardware.radio.network.SignalStrength a,
+            android.hardware.radio.network.SignalStrength b) {
+        return isSameGsm(a.gsm, b.gsm)
+                && isSameCdma(a.cdma, b.cdma)
+                && isSameEvdo(a.evdo, b.evdo)
+                && isSameLte(a.lte, b.lte)
+                && isSameTdscdma(a.tdscdma, b.tdscdma)
+                && isSameWcdma(a.wcdma, b.wcdma)
+                && isSameNr(a.nr, b.nr);
+    }
+
+    private static boolean isSameGsm(android.hardware.radio.network.GsmSignalStrength x,
+            android.hardware.radio.network.GsmSignalStrength y) {
+        return x.signalStrength == y.signalStrength && x.bitErrorRate == y.bitErrorRate
+                && x.timingAdvance == y.timingAdvance;
+    }
+
+    private static boolean isSameCdma(android.hardware.radio.network.CdmaSignalStrength x,
+            android.hardware.radio.network.CdmaSignalStrength y) {
+        return x.dbm == y.dbm && x.ecio == y.ecio;
+    }
+
+    private static boolean isSameEvdo(android.hardware.radio.network.EvdoSignalStrength x,
+            android.hardware.radio.network.EvdoSignalStrength y) {
+        return x.dbm == y.dbm && x.ecio == y.ecio && x.signalNoiseRatio == y.signalNoiseRatio;
+    }
+
+    private static boolean isSameLte(android.hardware.radio.network.LteSignalStrength x,
+            android.hardware.radio.network.LteSignalStrength y) {
+        return x.signalStrength == y.signalStrength && x.rsrp == y.rsrp && x.rsrq == y.rsrq
+                && x.rssnr == y.rssnr && x.cqi == y.cqi && x.cqiTableIndex == y.cqiTableIndex
+                && x.timingAdvance == y.timingAdvance;
+    }
+
+    private static boolean isSameTdscdma(android.hardware.radio.network.TdscdmaSignalStrength x,
+            android.hardware.radio.network.TdscdmaSignalStrength y) {
+        return x.signalStrength == y.signalStrength && x.bitErrorRate == y.bitErrorRate
+                && x.rscp == y.rscp;
+    }
+
+    private static boolean isSameWcdma(android.hardware.radio.network.WcdmaSignalStrength x,
+            android.hardware.radio.network.WcdmaSignalStrength y) {
+        return x.signalStrength == y.signalStrength && x.bitErrorRate == y.bitErrorRate
+                && x.rscp == y.rscp && x.ecno == y.ecno;
+    }
+
+    private static boolean isSameNr(android.hardware.radio.network.NrSignalStrength x,
+            android.hardware.radio.network.NrSignalStrength y) {
+        return x.ssRsrp == y.ssRsrp && x.ssRsrq == y.ssRsrq && x.ssSinr == y.ssSinr
+                && x.csiRsrp == y.csiRsrp && x.csiRsrq == y.csiRsrq && x.csiSinr == y.csiSinr
+                && x.csiCqiTableIndex == y.csiCqiTableIndex
+                && Arrays.equals(x.csiCqiReport, y.csiCqiReport)
+                && x.timingAdvance == y.timingAdvance;
+    }
+
     private void reportAnomaly(UUID uuid, String msg) {
         Phone phone = mRil.mPhoneId == null ? null : PhoneFactory.getPhone(mRil.mPhoneId);
         int carrierId = phone == null ? UNKNOWN_CARRIER_ID : phone.getCarrierId();
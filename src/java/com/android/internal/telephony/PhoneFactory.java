@@ -581,6 +581,12 @@ public class PhoneFactory {
             pw.println("++++++++++++++++++++++++++++++++");
         }
 
+        if (sPhoneNotifier instanceof DefaultPhoneNotifier) {
+            ((DefaultPhoneNotifier) sPhoneNotifier).dump(pw);
+            pw.flush();
+            pw.println("++++++++++++++++++++++++++++++++");
+        }
+
         pw.println("UiccController:");
         pw.increaseIndent();
         try {
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the notifications of one phone to {@link android.telephony.TelephonyRegistryManager} on
+ * its own looper, so the binder calls don't block the phone's handlers.
+ * <p/>
+ * Notifications are sent in the order they are requested. A state notification supersedes the
+ * pending notification of the same type and subscription (latest value wins), and is dropped if
+ * its value is the same as the last one sent. Other notifications are events, which are all sent.
+ */
+final class PhoneNotificationDispatcher extends Handler {
+    /** Event to send the pending notifications. */
+    private static final int EVENT_DISPATCH = 1;
+
+    /** Types of notifications. */
+    enum NotificationType {
+        CALL_STATE(false),
+        SERVICE_STATE(true),
+        SIGNAL_STRENGTH(true),
+        MESSAGE_WAITING(true),
+        CALL_FORWARDING(true),
+        DATA_ACTIVITY(true),
+        DATA_CONNECTION(false),
+        CELL_LOCATION(true),
+        CELL_INFO(true),
+        PRECISE_CALL_STATE(false),
+        DISCONNECT_CAUSE(false),
+        IMS_DISCONNECT_CAUSE(false),
+        SRVCC_STATE(false),
+        DATA_ACTIVATION_STATE(false),
+        VOICE_ACTIVATION_STATE(false),
+        USER_MOBILE_DATA_STATE(false),
+        DISPLAY_INFO(true),
+        PHONE_CAPABILITY(false),
+        RADIO_POWER_STATE(true),
+        EMERGENCY_NUMBER_LIST(false),
+        OUTGOING_EMERGENCY_SMS(false),
+        CALL_QUALITY(false),
+        MEDIA_QUALITY_STATUS(false),
+        REGISTRATION_FAILED(false),
+        BARRING_INFO(true),
+        PHYSICAL_CHANNEL_CONFIG(true),
+        DATA_ENABLED(false),
+        ALLOWED_NETWORK_TYPES(false),
+        LINK_CAPACITY_ESTIMATE(true),
+        SIMULTANEOUS_CALLING_SUBSCRIPTIONS(false),
+        CALLBACK_MODE_STARTED(false),
+        CALLBACK_MODE_STOPPED(false);
+
+        /**
+         * {@code true} if only the latest value of the notification matters, {@code false} if
+         * every notification has to be sent.
+         */
+        private final boolean mIsState;
+
+        NotificationType(boolean isState) {
+            mIsState = isState;
+        }
+
+        /** @return {@code true} if only the latest value of the notification matters. */
+        public boolean isState() {
+            return mIsState;
+        }
+    }
+
+    /** A requested notification. */
+    private static final class Notification {
+        @NonNull
+        final NotificationType type;
+        final int subId;
+        @Nullable
+        final Object value;
+        @NonNull
+        final Runnable sender;
+        /** Set when a newer notification of the same state replaced this one. */
+        boolean superseded;
+
+        Notification(@NonNull NotificationType type, int subId, @Nullable Object value,
+                @NonNull Runnable sender) {
+            this.type = type;
+            this.subId = subId;
+            this.value = value;
+            this.sender = sender;
+        }
+    }
+
+    /** Statistics of one type of notification. */
+    private static final class Stats {
+        long requested;
+        long sent;
+        long coalesced;
+        long duplicates;
+        long binderNanos;
+        long maxBinderNanos;
+    }
+
+    private static final int TYPE_COUNT = NotificationType.values().length;
+
+    @NonNull
+    private final String mLogTag;
+
+    @GuardedBy("this")
+    @NonNull
+    private final ArrayDeque<Notification> mQueue = new ArrayDeque<>();
+
+    /** The pending state notification of each type, which a newer value supersedes. */
+    @GuardedBy("this")
+    @NonNull
+    private final Notification[] mPendingStates = new Notification[TYPE_COUNT];
+
+    @GuardedBy("this")
+    @NonNull
+    private final Stats[] mStats = new Stats[TYPE_COUNT];
+
+    /** The last sent state notification of each type, only accessed on the handler thread. */
+    @NonNull
+    private final Notification[] mSentStates = new Notification[TYPE_COUNT];
+
+    private final long mCreationTimeMillis = SystemClock.elapsedRealtime();
+
+    /**
+     * @param looper The looper to send the notifications on.
+     * @param phoneId The phone the notifications are from.
+     */
+    PhoneNotificationDispatcher(@NonNull Looper looper, int phoneId) {
+        super(looper);
+        mLogTag = "PhoneNotificationDispatcher-" + phoneId;
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            mStats[i] = new Stats();
+        }
+    }
+
+    /**
+     * Request to send a notification.
+     *
+     * @param type The type of notification.
+     * @param subId The subscription the notification is for.
+     * @param value The value of a state notification, compared with the value last sent to drop
+     * duplicates. It must not be modified afterwards.
+     * @param sender Sends the notification, with the values captured when requested.
+     */
+    void dispatch(@NonNull NotificationType type, int subId, @Nullable Object value,
+            @NonNull Runnable sender) {
+        synchronized (this) {
+            mStats[type.ordinal()].requested++;
+            if (type.isState()) {
+                // Keep the newest value at its position among the other notifications.
+                Notification pending = mPendingStates[type.ordinal()];
+                if (pending != null && pending.subId == subId) {
+                    pending.superseded = true;
+                    mStats[type.ordinal()].coalesced++;
+                }
+            }
+            Notification notification = new Notification(type, subId, value, sender);
+            if (type.isState()) {
+                mPendingStates[type.ordinal()] = notification;
+            }
+            mQueue.add(notification);
+            if (mQueue.size() == 1) {
+                sendEmptyMessage(EVENT_DISPATCH);
+            }
+        }
+    }
+
+    /**
+     * Request to send an event notification.
+     *
+     * @param type The type of notification.
+     * @param sender Sends the notification, with the values captured when requested.
+     */
+    void dispatch(@NonNull NotificationType type, @NonNull Runnable sender) {
+        dispatch(type, 0, null, sender);
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what != EVENT_DISPATCH) return;
+        while (true) {
+            Notification notification;
+            synchronized (this) {
+                notification = mQueue.poll();
+                if (notification == null) return;
+                if (mPendingStates[notification.type.ordinal()] == notification) {
+                    mPendingStates[notification.type.ordinal()] = null;
+                }
+            }
+            if (!notification.superseded) {
+                send(notification);
+            }
+        }
+    }
+
+    private void send(@NonNull Notification notification) {
+        int type = notification.type.ordinal();
+        if (notification.type.isState()) {
+            Notification sent = mSentStates[type];
+            if (sent != null && sent.subId == notification.subId
+                    && Objects.equals(sent.value, notification.value)) {
+                synchronized (this) {
+                    mStats[type].duplicates++;
+                }
+                return;
+            }
+            mSentStates[type] = notification;
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        notification.sender.run();
+        long nanos = SystemClock.elapsedRealtimeNanos() - start;
+        synchronized (this) {
+            Stats stats = mStats[type];
+            stats.sent++;
+            stats.binderNanos += nanos;
+            stats.maxBinderNanos = Math.max(stats.maxBinderNanos, nanos);
+        }
+    }
+
+    /**
+     * @param type The type of notification.
+     * @return The number of notifications of the type sent to the registry.
+     */
+    synchronized long getSentCount(@NonNull NotificationType type) {
+        return mStats[type.ordinal()].sent;
+    }
+
+    /**
+     * @param type The type of notification.
+     * @return The number of state notifications of the type not sent, either replaced by a newer
+     * value before being sent or the same as the value last sent.
+     */
+    synchronized long getSuppressedCount(@NonNull NotificationType type) {
+        Stats stats = mStats[type.ordinal()];
+        return stats.coalesced + stats.duplicates;
+    }
+
+    /**
+     * Dump the statistics of the notifications.
+     *
+     * @param pw The print writer.
+     */
+    synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        long minutes = Math.max(1, TimeUnit.MILLISECONDS.toMinutes(
+                SystemClock.elapsedRealtime() - mCreationTimeMillis));
+        pw.println(mLogTag + ": pending=" + mQueue.size());
+        pw.increaseIndent();
+        for (NotificationType type : NotificationType.values()) {
+            Stats stats = mStats[type.ordinal()];
+            if (stats.requested == 0) continue;
+            pw.println(type + ": requested=" + stats.requested + ", sent=" + stats.sent
+                    + " (" + stats.sent / minutes + "/min), coalesced=" + stats.coalesced
+                    + ", duplicates=" + stats.duplicates
+                    + ", avgBinderUs=" + (stats.sent == 0 ? 0
+                            : TimeUnit.NANOSECONDS.toMicros(stats.binderNanos / stats.sent))
+                    + ", maxBinderUs=" + TimeUnit.NANOSECONDS.toMicros(stats.maxBinderNanos));
+        }
+        pw.decreaseIndent();
+    }
+}
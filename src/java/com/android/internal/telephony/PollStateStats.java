@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.PrintWriter;
+
+/**
+ * Counters of the service state polls done by {@link ServiceStateTracker}.
+ * <p/>
+ * Only accessed from the handler thread of the service state tracker.
+ */
+public class PollStateStats {
+    /** Upper bounds of the poll latency histogram buckets, the last bucket is unbounded. */
+    private static final long[] LATENCY_BUCKETS_MILLIS = {100, 250, 500, 1000, 2000, 5000};
+
+    private long mStartedCount;
+    private long mCompletedCount;
+    private long mMergedTriggerCount;
+    private long mDiscardedCount;
+    private long mSkippedQueryCount;
+    private final long[] mLatencyHistogram = new long[LATENCY_BUCKETS_MILLIS.length + 1];
+
+    /** A poll sent its requests to the radio. */
+    public void onPollStarted() {
+        mStartedCount++;
+    }
+
+    /** A trigger arrived during an in-flight poll and was merged into the follow-up poll. */
+    public void onTriggerMerged() {
+        mMergedTriggerCount++;
+    }
+
+    /** A sub-query of a poll was skipped because its inputs did not change. */
+    public void onQuerySkipped() {
+        mSkippedQueryCount++;
+    }
+
+    /**
+     * All the responses of a poll arrived.
+     *
+     * @param latencyMillis The time since the poll started.
+     * @param discarded {@code true} if the results were discarded for a follow-up poll.
+     */
+    public void onPollCompleted(long latencyMillis, boolean discarded) {
+        mCompletedCount++;
+        if (discarded) {
+            mDiscardedCount++;
+        }
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MILLIS.length
+                && latencyMillis >= LATENCY_BUCKETS_MILLIS[bucket]) {
+            bucket++;
+        }
+        mLatencyHistogram[bucket]++;
+    }
+
+    /** @return The number of polls that sent requests to the radio. */
+    public long getStartedCount() {
+        return mStartedCount;
+    }
+
+    /** @return The number of triggers merged into a follow-up poll. */
+    public long getMergedTriggerCount() {
+        return mMergedTriggerCount;
+    }
+
+    /** @return The number of polls whose results were discarded for a follow-up poll. */
+    public long getDiscardedCount() {
+        return mDiscardedCount;
+    }
+
+    /** @return The number of sub-queries skipped because their inputs did not change. */
+    public long getSkippedQueryCount() {
+        return mSkippedQueryCount;
+    }
+
+    /**
+     * Dump the counters.
+     *
+     * @param pw The print writer.
+     */
+    public void dump(PrintWriter pw) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(" pollState: started=").append(mStartedCount)
+                .append(" completed=").append(mCompletedCount)
+                .append(" mergedTriggers=").append(mMergedTriggerCount)
+                .append(" discarded=").append(mDiscardedCount)
+                .append(" skippedQueries=").append(mSkippedQueryCount);
+        pw.println(sb);
+        sb.setLength(0);
+        sb.append(" pollState latency:");
+        for (int i = 0; i < mLatencyHistogram.length; i++) {
+            sb.append(i < LATENCY_BUCKETS_MILLIS.length
+                    ? " <" + LATENCY_BUCKETS_MILLIS[i] + "ms="
+                    : " >=" + LATENCY_BUCKETS_MILLIS[i - 1] + "ms=");
+            sb.append(mLatencyHistogram[i]);
+        }
+        pw.println(sb);
+    }
+}
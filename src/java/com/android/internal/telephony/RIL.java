@@ -99,6 +99,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.cdma.CdmaInformationRecords;
 import com.android.internal.telephony.cdma.CdmaSmsBroadcastConfigInfo;
 import com.android.internal.telephony.emergency.EmergencyConstants;
+import com.android.internal.telephony.flags.FeatureFlagsImpl;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 import com.android.internal.telephony.imsphone.ImsCallInfo;
 import com.android.internal.telephony.metrics.ModemRestartStats;
@@ -213,8 +214,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
     volatile int mWlSequenceNum = 0;
     volatile int mAckWlSequenceNum = 0;
 
+    private final RILRequestTable mRequestTable = new RILRequestTable();
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
-    SparseArray<RILRequest> mRequestList = new SparseArray<>();
+    SparseArray<RILRequest> mRequestList = mRequestTable.asSparseArray();
     static SparseArray<TelephonyHistogram> sRilTimeHistograms = new SparseArray<>();
 
     Object[] mLastNITZTimeInfo;
@@ -286,6 +288,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
     private final SparseArray<AtomicLong> mServiceCookies = new SparseArray<>();
     private final RadioProxyDeathRecipient mRadioProxyDeathRecipient;
     final RilHandler mRilHandler;
+
+    /** Dedups and coalesces high rate network indications. */
+    final RadioIndicationCoalescer mIndicationCoalescer;
     private MockModem mMockModem;
     OemHookResponse mOemHookResponse;
     OemHookIndication mOemHookIndication;
@@ -350,20 +355,19 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     // Note: Keep mRequestList so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
-                            if (mRadioBugDetector != null) {
-                                mRadioBugDetector.processWakelockTimeout();
-                            }
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + RILUtils.requestToString(rr.mRequest));
-                                }
+                    if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
+                        if (mRadioBugDetector != null) {
+                            mRadioBugDetector.processWakelockTimeout();
+                        }
+                        if (RILJ_LOGD) {
+                            List<RILRequest> requests = mRequestTable.snapshot();
+                            int count = requests.size();
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestList=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = requests.get(i);
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + RILUtils.requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -518,6 +522,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest.resetSerial();
         // Clear request list on close
         clearRequestList(RADIO_NOT_AVAILABLE, false);
+        // Deliver the first indications from the new service even if unchanged
+        mIndicationCoalescer.reset();
 
         if (service == HAL_SERVICE_RADIO) {
             getRadioProxy();
@@ -1227,6 +1233,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 	mOemHookResponse = new OemHookResponse(this);
 	mOemHookIndication = new OemHookIndication(this);
         mRilHandler = new RilHandler();
+        mIndicationCoalescer = new RadioIndicationCoalescer(mRilHandler, new FeatureFlagsImpl());
         mRadioProxyDeathRecipient = new RadioProxyDeathRecipient();
         for (int service = MIN_SERVICE_IDX; service <= MAX_SERVICE_IDX; service++) {
             if (service != HAL_SERVICE_RADIO) {
@@ -1396,10 +1403,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
         Trace.asyncTraceForTrackBegin(
                 Trace.TRACE_TAG_NETWORK, "RIL", rr.mSerial + "> "
                 + RILUtils.requestToString(rr.mRequest), rr.mSerial);
-        synchronized (mRequestList) {
-            rr.mStartTimeMs = SystemClock.elapsedRealtime();
-            mRequestList.append(rr.mSerial, rr);
-        }
+        rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        mRequestTable.put(rr);
     }
 
     private RILRequest obtainRequest(int request, Message result, WorkSource workSource) {
@@ -6252,10 +6257,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     void processRequestAck(int serial) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-        }
+        RILRequest rr = mRequestTable.get(serial);
         if (rr == null) {
             Rlog.w(RILJ_LOG_TAG, "processRequestAck: Unexpected solicited ack response! "
                     + "serial: " + serial);
@@ -6312,9 +6314,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr;
 
         if (type == RadioResponseType.SOLICITED_ACK) {
-            synchronized (mRequestList) {
-                rr = mRequestList.get(serial);
-            }
+            rr = mRequestTable.get(serial);
             if (rr == null) {
                 Rlog.w(RILJ_LOG_TAG, "Unexpected solicited ack response! sn: " + serial);
             } else {
@@ -6683,39 +6683,29 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private void clearRequestList(int error, boolean loggable) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
-                        + mWakeLockCount + " mRequestList=" + count);
-            }
+        // Claim the requests first, a response may be processed concurrently.
+        List<RILRequest> requests = mRequestTable.removeAll();
+        int count = requests.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
+                    + mWakeLockCount + " mRequestList=" + count);
+        }
 
-            for (int i = 0; i < count; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                            + RILUtils.requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                decrementWakeLock(rr);
-                rr.release();
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = requests.get(i);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                        + RILUtils.requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            rr.onError(error, null);
+            decrementWakeLock(rr);
+            rr.release();
         }
     }
 
     @UnsupportedAppUsage
     private RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestTable.remove(serial);
     }
 
     private void addToRilHistogram(RILRequest rr) {
@@ -7043,20 +7033,19 @@ public class RIL extends BaseCommands implements CommandsInterface {
         pw.println(" " + mServiceProxies.get(HAL_SERVICE_IMS));
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + RILUtils.requestToString(rr.mRequest));
-            }
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        List<RILRequest> requests = mRequestTable.snapshot();
+        pw.println(" mRequestList count=" + requests.size() + " " + mRequestTable);
+        for (RILRequest rr : requests) {
+            pw.println("  [" + rr.mSerial + "] " + RILUtils.requestToString(rr.mRequest));
         }
         pw.println(" mLastNITZTimeInfo=" + Arrays.toString(mLastNITZTimeInfo));
         pw.println(" mLastRadioPowerResult=" + mLastRadioPowerResult);
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
+        RILRequest.dumpPoolStats(pw);
+        mIndicationCoalescer.dump(pw);
         mClientWakelockTracker.dumpClientRequestTracker(pw);
     }
 
@@ -20,14 +20,18 @@ import android.compat.annotation.UnsupportedAppUsage;
 import android.os.AsyncResult;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.WorkSource;
 import android.os.WorkSource.WorkChain;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.telephony.Rlog;
 
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * {@hide}
@@ -39,10 +43,34 @@ public class RILRequest {
     //***** Class Variables
     static Random sRandom = new Random();
     static AtomicInteger sNextSerial = new AtomicInteger(0);
-    private static Object sPoolSync = new Object();
-    private static RILRequest sPool = null;
-    private static int sPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 4;
+
+    /** System property to override the total number of pooled RILRequest instances. */
+    private static final String PROPERTY_POOL_SIZE = "ro.telephony.ril_request_pool_size";
+    private static final int DEFAULT_MAX_POOL_SIZE = 32;
+    /** Number of independently locked pool stripes. Must be a power of two. */
+    private static final int POOL_STRIPES = 4;
+
+    /** A singly-linked free list guarded by its own monitor. */
+    private static final class PoolStripe {
+        RILRequest mHead;
+        int mSize;
+    }
+
+    private static final PoolStripe[] sPoolStripes = new PoolStripe[POOL_STRIPES];
+    private static final int sMaxStripeSize;
+    private static final AtomicInteger sPoolSize = new AtomicInteger(0);
+    private static final AtomicInteger sPoolHighWaterMark = new AtomicInteger(0);
+    private static final AtomicLong sPoolHits = new AtomicLong(0);
+    private static final AtomicLong sPoolMisses = new AtomicLong(0);
+
+    static {
+        for (int i = 0; i < POOL_STRIPES; i++) {
+            sPoolStripes[i] = new PoolStripe();
+        }
+        int maxPoolSize = Math.max(0,
+                SystemProperties.getInt(PROPERTY_POOL_SIZE, DEFAULT_MAX_POOL_SIZE));
+        sMaxStripeSize = (maxPoolSize + POOL_STRIPES - 1) / POOL_STRIPES;
+    }
 
     //***** Instance Variables
     @UnsupportedAppUsage
@@ -83,17 +111,26 @@ public class RILRequest {
     private static RILRequest obtain(int request, Message result) {
         RILRequest rr = null;
 
-        synchronized (sPoolSync) {
-            if (sPool != null) {
-                rr = sPool;
-                sPool = rr.mNext;
-                rr.mNext = null;
-                sPoolSize--;
+        // Start with the stripe of the calling thread and steal from the others if it is empty.
+        int stripe = currentStripe();
+        for (int i = 0; i < POOL_STRIPES && rr == null; i++) {
+            PoolStripe pool = sPoolStripes[(stripe + i) & (POOL_STRIPES - 1)];
+            synchronized (pool) {
+                if (pool.mHead != null) {
+                    rr = pool.mHead;
+                    pool.mHead = rr.mNext;
+                    rr.mNext = null;
+                    pool.mSize--;
+                }
             }
         }
 
         if (rr == null) {
+            sPoolMisses.incrementAndGet();
             rr = new RILRequest();
+        } else {
+            sPoolSize.decrementAndGet();
+            sPoolHits.incrementAndGet();
         }
 
         // Increment serial number. Wrap to 0 when reaching Integer.MAX_VALUE.
@@ -183,11 +220,12 @@ public class RILRequest {
      */
     @UnsupportedAppUsage
     void release() {
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                mNext = sPool;
-                sPool = this;
-                sPoolSize++;
+        PoolStripe pool = sPoolStripes[currentStripe()];
+        synchronized (pool) {
+            if (pool.mSize < sMaxStripeSize) {
+                mNext = pool.mHead;
+                pool.mHead = this;
+                pool.mSize++;
                 mResult = null;
                 if (mWakeLockType != RIL.INVALID_WAKELOCK) {
                     //This is OK for some wakelock types and not others
@@ -197,8 +235,47 @@ public class RILRequest {
                     }
                 }
                 mArguments = null;
+                mWorkSource = null;
+                mClientId = null;
+            } else {
+                return;
             }
         }
+        sPoolHighWaterMark.accumulateAndGet(sPoolSize.incrementAndGet(), Math::max);
+    }
+
+    private static int currentStripe() {
+        return (int) Thread.currentThread().getId() & (POOL_STRIPES - 1);
+    }
+
+    /** @return number of {@link #obtain} calls served from the pool. */
+    @VisibleForTesting
+    public static long getPoolHits() {
+        return sPoolHits.get();
+    }
+
+    /** @return number of {@link #obtain} calls that had to allocate a new instance. */
+    @VisibleForTesting
+    public static long getPoolMisses() {
+        return sPoolMisses.get();
+    }
+
+    /**
+     * Dump the pool configuration and hit/miss counters.
+     *
+     * @param pw The print writer.
+     */
+    static void dumpPoolStats(PrintWriter pw) {
+        long hits = sPoolHits.get();
+        long misses = sPoolMisses.get();
+        long total = hits + misses;
+        pw.println(" RILRequest pool: capacity=" + sMaxStripeSize * POOL_STRIPES
+                + " stripes=" + POOL_STRIPES
+                + " size=" + sPoolSize.get()
+                + " highWaterMark=" + sPoolHighWaterMark.get()
+                + " hits=" + hits
+                + " misses=" + misses
+                + " hitRate=" + (total == 0 ? 0 : hits * 100 / total) + "%");
     }
 
     private RILRequest() {
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free table of in-flight {@link RILRequest}s, indexed by serial.
+ * <p/>
+ * Requests are stored in a ring buffer slot chosen by {@code serial & (capacity - 1)}. Serials
+ * are handed out sequentially, so as long as fewer than {@code capacity} requests are in flight
+ * every request gets its own slot. When a slot is still taken by an older request, the new
+ * request is placed in an overflow map instead. Insert, lookup and removal never block, so
+ * binder response threads of the different radio HAL services don't contend with each other.
+ * <p/>
+ * {@link RILRequest}s are pooled and get a new {@link RILRequest#mSerial} when reused, so the
+ * table never relies on the serial of a request it did not just receive. Each insertion wraps the
+ * request in a new immutable entry holding the serial it was added with; lookups compare against
+ * that serial and removals swap out that entry, so a request released and obtained again under
+ * another serial can't be matched or removed through a stale slot.
+ * <p/>
+ * {@link #snapshot()} returns a weakly consistent copy of the in-flight requests sorted by
+ * serial. Callers that need to act on every request (e.g. when clearing the table) must use
+ * {@link #removeAll()}, so that a request is handled exactly once even if its response arrives
+ * concurrently.
+ */
+public class RILRequestTable {
+    /** Default number of ring buffer slots. Must be a power of two. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** A request and the serial it was added with. */
+    private static final class Entry {
+        final int mSerial;
+        final RILRequest mRequest;
+
+        Entry(int serial, RILRequest request) {
+            mSerial = serial;
+            mRequest = request;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mSlots;
+    private final int mMask;
+    private final ConcurrentHashMap<Integer, Entry> mOverflow = new ConcurrentHashMap<>();
+    private final AtomicInteger mSize = new AtomicInteger(0);
+
+    public RILRequestTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of ring buffer slots, must be a positive power of two.
+     */
+    public RILRequestTable(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mSlots = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Add a request to the table, keyed by {@link RILRequest#mSerial}.
+     *
+     * @param rr The request to add.
+     */
+    public void put(@NonNull RILRequest rr) {
+        Entry entry = new Entry(rr.mSerial, rr);
+        if (!mSlots.compareAndSet(entry.mSerial & mMask, null, entry)) {
+            mOverflow.put(entry.mSerial, entry);
+        }
+        mSize.incrementAndGet();
+    }
+
+    /**
+     * @param serial The serial of the request.
+     * @return The in-flight request with the given serial, or {@code null} if there is none.
+     */
+    public @Nullable RILRequest get(int serial) {
+        Entry entry = mSlots.get(serial & mMask);
+        if (entry == null || entry.mSerial != serial) {
+            entry = mOverflow.isEmpty() ? null : mOverflow.get(serial);
+        }
+        return entry != null ? entry.mRequest : null;
+    }
+
+    /**
+     * Remove the request with the given serial. If several threads race to remove the same
+     * request, exactly one of them gets it back.
+     *
+     * @param serial The serial of the request.
+     * @return The removed request, or {@code null} if it was not in the table.
+     */
+    public @Nullable RILRequest remove(int serial) {
+        int index = serial & mMask;
+        Entry entry = mSlots.get(index);
+        if (entry != null && entry.mSerial == serial) {
+            if (mSlots.compareAndSet(index, entry, null)) {
+                mSize.decrementAndGet();
+                return entry.mRequest;
+            }
+            return null;
+        }
+        entry = mOverflow.isEmpty() ? null : mOverflow.remove(serial);
+        if (entry != null) {
+            mSize.decrementAndGet();
+            return entry.mRequest;
+        }
+        return null;
+    }
+
+    /**
+     * Remove all requests that are in the table when it is scanned. Requests removed
+     * concurrently, e.g. by their response, are not returned.
+     *
+     * @return The removed requests sorted by serial.
+     */
+    public @NonNull List<RILRequest> removeAll() {
+        List<RILRequest> requests = new ArrayList<>();
+        for (Entry entry : entries()) {
+            if (remove(entry)) {
+                requests.add(entry.mRequest);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * @return Number of in-flight requests.
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    /**
+     * @return A copy of the in-flight requests sorted by serial. Requests added or removed while
+     * the snapshot is taken may or may not be included.
+     */
+    public @NonNull List<RILRequest> snapshot() {
+        List<Entry> entries = entries();
+        List<RILRequest> requests = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            requests.add(entry.mRequest);
+        }
+        return requests;
+    }
+
+    /**
+     * @return Number of requests currently held in the overflow map.
+     */
+    public int getOverflowSize() {
+        return mOverflow.size();
+    }
+
+    /**
+     * @return A view of the table as a {@link SparseArray} keyed by serial, for code that still
+     * expects the request list to be one.
+     */
+    public @NonNull SparseArray<RILRequest> asSparseArray() {
+        return new SparseArrayView(this);
+    }
+
+    @Override
+    public String toString() {
+        return "RILRequestTable{size=" + mSize.get() + ", capacity=" + mSlots.length()
+                + ", overflow=" + mOverflow.size() + "}";
+    }
+
+    /** Returns the in-flight entries sorted by serial. */
+    private @NonNull List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(Math.max(mSize.get(), 0));
+        for (int i = 0; i < mSlots.length(); i++) {
+            Entry entry = mSlots.get(i);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        entries.addAll(mOverflow.values());
+        entries.sort((a, b) -> Integer.compare(a.mSerial, b.mSerial));
+        return entries;
+    }
+
+    /** Removes the given entry if it is still in the table. */
+    private boolean remove(@NonNull Entry entry) {
+        if (mSlots.compareAndSet(entry.mSerial & mMask, entry, null)
+                || mOverflow.remove(entry.mSerial, entry)) {
+            mSize.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * {@link SparseArray} backed by the table. Lookups by serial and removals go to the table
+     * directly; index based accessors work on a snapshot taken for each call, so indices are only
+     * stable while no request is added or removed.
+     */
+    private static final class SparseArrayView extends SparseArray<RILRequest> {
+        private final RILRequestTable mTable;
+
+        SparseArrayView(@NonNull RILRequestTable table) {
+            super(0);
+            mTable = table;
+        }
+
+        @Override
+        public RILRequest get(int key) {
+            return mTable.get(key);
+        }
+
+        @Override
+        public RILRequest get(int key, RILRequest valueIfKeyNotFound) {
+            RILRequest rr = mTable.get(key);
+            return rr != null ? rr : valueIfKeyNotFound;
+        }
+
+        @Override
+        public boolean contains(int key) {
+            return mTable.get(key) != null;
+        }
+
+        @Override
+        public void put(int key, RILRequest value) {
+            if (value == null || value.mSerial != key) {
+                throw new IllegalArgumentException("key must be the serial of the request");
+            }
+            mTable.remove(key);
+            mTable.put(value);
+        }
+
+        @Override
+        public void append(int key, RILRequest value) {
+            put(key, value);
+        }
+
+        @Override
+        public void set(int key, RILRequest value) {
+            put(key, value);
+        }
+
+        @Override
+        public void delete(int key) {
+            mTable.remove(key);
+        }
+
+        @Override
+        public void remove(int key) {
+            mTable.remove(key);
+        }
+
+        @Override
+        public void removeAt(int index) {
+            mTable.remove(mTable.entries().get(index));
+        }
+
+        @Override
+        public void removeAtRange(int index, int size) {
+            List<Entry> entries = mTable.entries();
+            int end = Math.min(entries.size(), index + size);
+            for (int i = index; i < end; i++) {
+                mTable.remove(entries.get(i));
+            }
+        }
+
+        @Override
+        public void clear() {
+            mTable.removeAll();
+        }
+
+        @Override
+        public int size() {
+            return mTable.size();
+        }
+
+        @Override
+        public int keyAt(int index) {
+            return mTable.entries().get(index).mSerial;
+        }
+
+        @Override
+        public RILRequest valueAt(int index) {
+            return mTable.entries().get(index).mRequest;
+        }
+
+        @Override
+        public void setValueAt(int index, RILRequest value) {
+            put(keyAt(index), value);
+        }
+
+        @Override
+        public int indexOfKey(int key) {
+            List<Entry> entries = mTable.entries();
+            int low = 0;
+            int high = entries.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int serial = entries.get(mid).mSerial;
+                if (serial < key) {
+                    low = mid + 1;
+                } else if (serial > key) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return ~low;
+        }
+
+        @Override
+        public int indexOfValue(RILRequest value) {
+            List<Entry> entries = mTable.entries();
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).mRequest == value) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public SparseArray<RILRequest> clone() {
+            SparseArray<RILRequest> copy = new SparseArray<>();
+            for (Entry entry : mTable.entries()) {
+                copy.append(entry.mSerial, entry.mRequest);
+            }
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return clone().toString();
+        }
+    }
+}
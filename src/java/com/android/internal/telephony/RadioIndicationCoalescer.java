@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.flags.FeatureFlags;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Filters high rate radio indications before they are converted and notified.
+ * <p/>
+ * Each indication type is handled independently:
+ * <ul>
+ * <li>A payload equal to the last one delivered (or to the one waiting to be delivered) is
+ * dropped, unless the last delivery is older than {@link #DUPLICATE_REFRESH_MILLIS}.</li>
+ * <li>The first payload after a quiet period is delivered right away. Payloads received within
+ * the coalescing window of the last delivery replace each other, and only the latest one is
+ * delivered when the window ends.</li>
+ * </ul>
+ * Payloads are compared in their HAL form, so dropped indications are never converted. Delivery
+ * happens on the calling thread when there is nothing to wait for, or on the handler otherwise.
+ * <p/>
+ * When {@link FeatureFlags#coalesceRadioIndications()} is disabled, every payload is delivered
+ * right away.
+ */
+public class RadioIndicationCoalescer {
+    /** Signal strength indication. */
+    public static final int TYPE_SIGNAL_STRENGTH = 0;
+    /** Cell info list indication. */
+    public static final int TYPE_CELL_INFO = 1;
+    /** Physical channel config indication. */
+    public static final int TYPE_PHYSICAL_CHANNEL_CONFIG = 2;
+    private static final int NUM_TYPES = 3;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(prefix = {"TYPE_"}, value = {
+            TYPE_SIGNAL_STRENGTH,
+            TYPE_CELL_INFO,
+            TYPE_PHYSICAL_CHANNEL_CONFIG,
+    })
+    public @interface IndicationType {}
+
+    private static final String[] TYPE_NAMES = {"SIGNAL_STRENGTH", "CELL_INFO",
+            "PHYSICAL_CHANNEL_CONFIG"};
+
+    /** Default coalescing window of each indication type. */
+    private static final long[] DEFAULT_WINDOW_MILLIS = {1000, 1000, 200};
+
+    /** A duplicate is delivered anyway if nothing was delivered for this long. */
+    @VisibleForTesting
+    public static final long DUPLICATE_REFRESH_MILLIS = 10_000;
+
+    /** State of one indication type. */
+    private final class Channel implements Runnable {
+        private final int mType;
+        private long mWindowMillis;
+
+        private Object mLastDelivered;
+        private long mLastDeliveredTime;
+        private Object mPending;
+        private Consumer<Object> mPendingDelivery;
+
+        private long mReceivedCount;
+        private long mDeliveredCount;
+        private long mDuplicateCount;
+        private long mCoalescedCount;
+        private long mFirstReceivedTime = -1;
+
+        Channel(int type) {
+            mType = type;
+            mWindowMillis = DEFAULT_WINDOW_MILLIS[type];
+        }
+
+        /** Deliver the pending payload when the window ends. */
+        @Override
+        public void run() {
+            Object payload;
+            Consumer<Object> delivery;
+            synchronized (this) {
+                if (mPending == null) return;
+                payload = mPending;
+                delivery = mPendingDelivery;
+                mPending = null;
+                mPendingDelivery = null;
+                markDelivered(payload);
+            }
+            delivery.accept(payload);
+        }
+
+        private void markDelivered(Object payload) {
+            mLastDelivered = payload;
+            mLastDeliveredTime = mClock.getAsLong();
+            mDeliveredCount++;
+        }
+    }
+
+    @NonNull private final Handler mHandler;
+    @NonNull private final LongSupplier mClock;
+    @NonNull private final FeatureFlags mFeatureFlags;
+    private final Channel[] mChannels = new Channel[NUM_TYPES];
+
+    /**
+     * @param handler The handler to deliver coalesced indications on.
+     * @param featureFlags The feature flags.
+     */
+    public RadioIndicationCoalescer(@NonNull Handler handler,
+            @NonNull FeatureFlags featureFlags) {
+        this(handler, SystemClock::uptimeMillis, featureFlags);
+    }
+
+    /**
+     * @param handler The handler to deliver coalesced indications on.
+     * @param clock The clock, in the time base of {@link SystemClock#uptimeMillis}.
+     * @param featureFlags The feature flags.
+     */
+    @VisibleForTesting
+    public RadioIndicationCoalescer(@NonNull Handler handler, @NonNull LongSupplier clock,
+            @NonNull FeatureFlags featureFlags) {
+        mHandler = handler;
+        mClock = clock;
+        mFeatureFlags = featureFlags;
+        for (int type = 0; type < NUM_TYPES; type++) {
+            mChannels[type] = new Channel(type);
+        }
+    }
+
+    /**
+     * Set the coalescing window of an indication type. With a window of 0 every changed payload
+     * is delivered right away, and only duplicates are dropped.
+     *
+     * @param type The indication type.
+     * @param windowMillis The window in milliseconds.
+     */
+    public void setWindowMillis(@IndicationType int type, long windowMillis) {
+        Channel channel = mChannels[type];
+        synchronized (channel) {
+            channel.mWindowMillis = Math.max(windowMillis, 0);
+        }
+    }
+
+    /**
+     * Offer an indication payload.
+     *
+     * @param type The indication type.
+     * @param payload The payload in its HAL form. It must not be modified afterwards.
+     * @param sameAs Compares two payloads of this type.
+     * @param delivery Converts and notifies the payload, if it's not dropped.
+     * @param <T> The payload type.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void offer(@IndicationType int type, @NonNull T payload,
+            @NonNull BiPredicate<T, T> sameAs, @NonNull Consumer<T> delivery) {
+        if (!mFeatureFlags.coalesceRadioIndications()) {
+            delivery.accept(payload);
+            return;
+        }
+        Channel channel = mChannels[type];
+        synchronized (channel) {
+            long now = mClock.getAsLong();
+            channel.mReceivedCount++;
+            if (channel.mFirstReceivedTime < 0) {
+                channel.mFirstReceivedTime = now;
+            }
+
+            T latest = (T) (channel.mPending != null ? channel.mPending : channel.mLastDelivered);
+            if (latest != null && sameAs.test(latest, payload)
+                    && now - channel.mLastDeliveredTime < DUPLICATE_REFRESH_MILLIS) {
+                channel.mDuplicateCount++;
+                return;
+            }
+
+            if (channel.mPending != null) {
+                // Replace the pending payload, it will be delivered when the window ends.
+                channel.mPending = payload;
+                channel.mPendingDelivery = (Consumer<Object>) delivery;
+                channel.mCoalescedCount++;
+                return;
+            }
+
+            long elapsed = now - channel.mLastDeliveredTime;
+            if (channel.mLastDelivered != null && elapsed >= 0 && elapsed < channel.mWindowMillis) {
+                channel.mPending = payload;
+                channel.mPendingDelivery = (Consumer<Object>) delivery;
+                mHandler.postDelayed(channel, channel.mWindowMillis - elapsed);
+                return;
+            }
+            channel.markDelivered(payload);
+        }
+        delivery.accept(payload);
+    }
+
+    /**
+     * Drop the pending payloads and forget the last delivered ones, so that the next payload of
+     * each type is delivered. Used when the radio service restarts.
+     */
+    public void reset() {
+        for (Channel channel : mChannels) {
+            synchronized (channel) {
+                mHandler.removeCallbacks(channel);
+                channel.mPending = null;
+                channel.mPendingDelivery = null;
+                channel.mLastDelivered = null;
+            }
+        }
+    }
+
+    /**
+     * @return The number of payloads of an indication type that were dropped, either as
+     * duplicates or because a newer payload replaced them.
+     */
+    @VisibleForTesting
+    public long getDroppedCount(@IndicationType int type) {
+        Channel channel = mChannels[type];
+        synchronized (channel) {
+            return channel.mDuplicateCount + channel.mCoalescedCount;
+        }
+    }
+
+    /**
+     * Dump the rates and drop counts of each indication type.
+     *
+     * @param pw The print writer.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        long now = mClock.getAsLong();
+        pw.println(" Indication coalescing:");
+        for (Channel channel : mChannels) {
+            synchronized (channel) {
+                long seconds = channel.mFirstReceivedTime < 0 ? 0
+                        : Math.max((now - channel.mFirstReceivedTime) / 1000, 1);
+                pw.println("  " + TYPE_NAMES[channel.mType]
+                        + " window=" + channel.mWindowMillis + "ms"
+                        + " received=" + channel.mReceivedCount
+                        + " delivered=" + channel.mDeliveredCount
+                        + " duplicates=" + channel.mDuplicateCount
+                        + " coalesced=" + channel.mCoalescedCount
+                        + " receivedPerMin=" + (seconds == 0 ? 0
+                                : channel.mReceivedCount * 60 / seconds)
+                        + " deliveredPerMin=" + (seconds == 0 ? 0
+                                : channel.mDeliveredCount * 60 / seconds));
+            }
+        }
+    }
+}
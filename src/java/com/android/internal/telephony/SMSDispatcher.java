@@ -204,6 +204,8 @@ public abstract class SMSDispatcher extends Handler {
     public static final int SEND_RETRY_DELAY = 2000;
     /** Message sending queue limit */
     private static final int MO_MSG_QUEUE_LIMIT = 5;
+    /** Maximum number of MO SMS parts sent to the modem at a time by the send scheduler. */
+    private static final int MO_SMS_SEND_WINDOW = 2;
     /** SMS anomaly uuid -- CarrierMessagingService did not respond */
     private static final UUID sAnomalyNoResponseFromCarrierMessagingService =
             UUID.fromString("279d9fbc-462d-4fc2-802c-bf21ddd9dd90");
@@ -224,6 +226,10 @@ public abstract class SMSDispatcher extends Handler {
     /** Number of outgoing SmsTrackers waiting for user confirmation. */
     private int mPendingTrackerCount;
 
+    /** Schedules the MO SMS parts sent to the modem. */
+    private final SmsSendScheduler mSendScheduler =
+            new SmsSendScheduler(this::sendSms, MO_SMS_SEND_WINDOW);
+
     /* Flags indicating whether the current device allows sms service */
     protected boolean mSmsCapable = true;
     protected boolean mSmsSendDisabled;
@@ -391,9 +397,7 @@ public abstract class SMSDispatcher extends Handler {
 
             case EVENT_SEND_CONFIRMED_SMS: {
                 SmsTracker[] trackers = (SmsTracker[]) msg.obj;
-                for (SmsTracker tracker : trackers) {
-                    sendSms(tracker);
-                }
+                sendSmsParts(trackers);
                 mPendingTrackerCount--;
                 break;
             }
@@ -1033,6 +1037,7 @@ public abstract class SMSDispatcher extends Handler {
     protected void handleSendComplete(AsyncResult ar) {
         SmsTracker tracker = (SmsTracker) ar.userObj;
         PendingIntent sentIntent = tracker.mSentIntent;
+        mSendScheduler.onSendComplete(tracker);
         SmsResponse smsResponse = (SmsResponse) ar.result;
 
         if (smsResponse != null) {
@@ -2107,9 +2112,7 @@ public abstract class SMSDispatcher extends Handler {
                 return;
             }
 
-            for (SmsTracker tracker : trackers) {
-                sendSms(tracker);
-            }
+            sendSmsParts(trackers);
         }
 
         if (mTelephonyManager.isEmergencyNumber(trackers[0].mDestAddress)) {
@@ -2372,6 +2375,40 @@ public abstract class SMSDispatcher extends Handler {
     @UnsupportedAppUsage
     protected abstract void sendSms(SmsTracker tracker);
 
+    /**
+     * Send the parts of a message along to the radio, through the send scheduler if enabled.
+     *
+     * @param trackers holds the parts of the SMS message to send
+     */
+    private void sendSmsParts(SmsTracker[] trackers) {
+        if (isSendSchedulerSupported() && mSmsDispatchersController != null
+                && mSmsDispatchersController.isSmsSendSchedulerEnabled()) {
+            mSendScheduler.schedule(trackers);
+            return;
+        }
+        for (SmsTracker tracker : trackers) {
+            sendSms(tracker);
+        }
+    }
+
+    /**
+     * @return true if the dispatcher sends the parts to the modem with
+     * {@link #EVENT_SEND_SMS_COMPLETE} as reply, so they can be scheduled
+     */
+    protected boolean isSendSchedulerSupported() {
+        return false;
+    }
+
+    /**
+     * Called when sending a part failed without sending it to the modem, so no
+     * {@link #EVENT_SEND_SMS_COMPLETE} will follow.
+     *
+     * @param tracker holds the SMS message which failed
+     */
+    protected void onSmsNotSentToModem(SmsTracker tracker) {
+        mSendScheduler.onSendComplete(tracker);
+    }
+
     /**
      * Retry the message along to the radio.
      *
@@ -3073,6 +3110,8 @@ public abstract class SMSDispatcher extends Handler {
         mSmsOutgoingErrorCodes.dump(fd, pw, args);
         pw.decreaseIndent();
 
+        mSendScheduler.dump(pw);
+
         pw.decreaseIndent();
     }
 }
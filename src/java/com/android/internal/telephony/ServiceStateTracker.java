@@ -183,6 +183,15 @@ public class ServiceStateTracker extends Handler {
     // this only impacts the behavior of one-shot requests (be they blocking or non-blocking).
     private static final long CELL_INFO_LIST_QUERY_TIMEOUT = 2000;
 
+    /** Time after which a poll still waiting for responses does not hold new polls back. */
+    private static final long POLL_STATE_IN_FLIGHT_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * Maximum number of consecutive polls whose results are discarded because a follow-up poll
+     * was triggered, so that a continuous stream of triggers can't hold the service state back.
+     */
+    private static final int MAX_CONSECUTIVE_DISCARDED_POLLS = 2;
+
     private long mLastCellInfoReqTime;
     private List<CellInfo> mLastCellInfoList = null;
     private List<PhysicalChannelConfig> mLastPhysicalChannelConfigList = null;
@@ -198,6 +207,29 @@ public class ServiceStateTracker extends Handler {
      */
     @VisibleForTesting
     public int[] mPollingContext;
+
+    /** Set if a poll was triggered while another one was in flight. */
+    private boolean mHasPendingPoll;
+    /** Whether any of the triggers merged into the pending poll came from the modem. */
+    private boolean mPendingPollModemTriggered;
+    /** Number of consecutive polls whose results were discarded for a follow-up poll. */
+    private int mConsecutiveDiscardedPolls;
+    /** The polling context of the poll waiting for responses, if any. */
+    @Nullable
+    private int[] mInFlightPollingContext;
+    /** Start time of the in-flight poll. */
+    private long mPollStartTimeMillis;
+    private final PollStateStats mPollStateStats = new PollStateStats();
+
+    /** Number of IWLAN registration changes reported by the WLAN network service. */
+    private int mWlanRegChangeCount;
+    /** Value of {@link #mWlanRegChangeCount} when the in-flight IWLAN query was sent. */
+    private int mRequestedWlanRegChangeCount;
+    /** Value of {@link #mWlanRegChangeCount} when {@link #mLastPolledWlanRegInfo} was polled. */
+    private int mPolledWlanRegChangeCount;
+    /** The IWLAN registration info of the last poll, {@code null} if it must be polled again. */
+    @Nullable
+    private NetworkRegistrationInfo mLastPolledWlanRegInfo;
     @UnsupportedAppUsage
     private boolean mDesiredPowerState;
 
@@ -292,6 +324,7 @@ public class ServiceStateTracker extends Handler {
     // Telecom has un/registered a PhoneAccount that provides OTT voice calling capability, e.g.
     // wi-fi calling.
     protected static final int EVENT_TELECOM_VOICE_SERVICE_STATE_OVERRIDE_CHANGED = 65;
+    private static final int EVENT_WLAN_NETWORK_STATE_CHANGED          = 66;
 
     /**
      * The current service state.
@@ -357,6 +390,9 @@ public class ServiceStateTracker extends Handler {
 
     private final LocaleTracker mLocaleTracker;
 
+    @NonNull
+    private final FeatureFlags mFeatureFlags;
+
     private final LocalLog mRoamingLog = new LocalLog(8);
     private final LocalLog mAttachLog = new LocalLog(8);
     private final LocalLog mPhoneTypeLog = new LocalLog(8);
@@ -635,6 +671,7 @@ public class ServiceStateTracker extends Handler {
                 .makeNitzStateMachine(phone);
         mPhone = phone;
         mCi = ci;
+        mFeatureFlags = featureFlags;
 
         mServiceStateStats = new ServiceStateStats(mPhone);
 
@@ -677,7 +714,9 @@ public class ServiceStateTracker extends Handler {
             mRegStateManagers.append(transportType, new NetworkRegistrationManager(
                     transportType, phone));
             mRegStateManagers.get(transportType).registerForNetworkRegistrationInfoChanged(
-                    this, EVENT_NETWORK_STATE_CHANGED, null);
+                    this, transportType == AccessNetworkConstants.TRANSPORT_TYPE_WLAN
+                            ? EVENT_WLAN_NETWORK_STATE_CHANGED : EVENT_NETWORK_STATE_CHANGED,
+                    null);
         }
         mLocaleTracker = TelephonyComponentFactory.getInstance()
                 .inject(LocaleTracker.class.getName())
@@ -1358,6 +1397,11 @@ public class ServiceStateTracker extends Handler {
                 pollStateInternal(true);
                 break;
 
+            case EVENT_WLAN_NETWORK_STATE_CHANGED:
+                mWlanRegChangeCount++;
+                pollStateInternal(true);
+                break;
+
             case EVENT_GET_LOC_DONE:
                 ar = (AsyncResult) msg.obj;
                 if (ar.exception == null) {
@@ -1957,6 +2001,8 @@ public class ServiceStateTracker extends Handler {
 
             if (err == CommandException.Error.RADIO_NOT_AVAILABLE) {
                 loge("handlePollStateResult: RIL returned RADIO_NOT_AVAILABLE.");
+                // The poll won't complete, don't hold new polls back for it
+                mInFlightPollingContext = null;
                 if (mCi.getRadioState() == TelephonyManager.RADIO_POWER_ON) {
                     cancelPollState();
                 } else {
@@ -1980,6 +2026,18 @@ public class ServiceStateTracker extends Handler {
         mPollingContext[0]--;
 
         if (mPollingContext[0] == 0) {
+            mInFlightPollingContext = null;
+            long latencyMillis = SystemClock.elapsedRealtime() - mPollStartTimeMillis;
+            if (mHasPendingPoll && mConsecutiveDiscardedPolls < MAX_CONSECUTIVE_DISCARDED_POLLS) {
+                // Triggered again while in flight, so these results may be outdated already.
+                // Only the results of the follow-up poll are used.
+                mPollStateStats.onPollCompleted(latencyMillis, true /* discarded */);
+                mConsecutiveDiscardedPolls++;
+                pollStateInternal(mPendingPollModemTriggered);
+                return;
+            }
+            mPollStateStats.onPollCompleted(latencyMillis, false /* discarded */);
+            mConsecutiveDiscardedPolls = 0;
             mNewSS.setEmergencyOnly(mEmergencyOnly);
             combinePsRegistrationStates(mNewSS);
             updateOperatorNameForServiceState(mNewSS);
@@ -2092,6 +2150,11 @@ public class ServiceStateTracker extends Handler {
                 }
             }
             pollStateDone();
+
+            if (mHasPendingPoll) {
+                // Triggers kept coming while polling, don't hold the results back any longer.
+                pollStateInternal(mPendingPollModemTriggered);
+            }
         }
 
     }
@@ -2291,6 +2354,8 @@ public class ServiceStateTracker extends Handler {
             case EVENT_POLL_STATE_PS_IWLAN_REGISTRATION: {
                 NetworkRegistrationInfo networkRegState = (NetworkRegistrationInfo) ar.result;
                 mNewSS.addNetworkRegistrationInfo(networkRegState);
+                mLastPolledWlanRegInfo = networkRegState;
+                mPolledWlanRegChangeCount = mRequestedWlanRegChangeCount;
 
                 if (DBG) {
                     log("handlePollStateResultMessage: PS IWLAN. " + networkRegState);
@@ -3319,6 +3384,18 @@ public class ServiceStateTracker extends Handler {
     }
 
     private void pollStateInternal(boolean modemTriggered) {
+        if (mFeatureFlags.mergePollStateTriggers()
+                && mCi.getRadioState() == TelephonyManager.RADIO_POWER_ON && isPollInFlight()) {
+            // Rather than abandoning the in-flight poll and sending all the requests again, poll
+            // once more after it completes, however many triggers arrive in the meantime.
+            mHasPendingPoll = true;
+            mPendingPollModemTriggered |= modemTriggered;
+            mPollStateStats.onTriggerMerged();
+            if (VDBG) log("pollState: merged, modemTriggered=" + modemTriggered);
+            return;
+        }
+        mHasPendingPoll = false;
+        mPendingPollModemTriggered = false;
         mPollingContext = new int[1];
 
         log("pollState: modemTriggered=" + modemTriggered + ", radioState=" + mCi.getRadioState());
@@ -3358,11 +3435,21 @@ public class ServiceStateTracker extends Handler {
                         obtainMessage(EVENT_POLL_STATE_CS_CELLULAR_REGISTRATION, mPollingContext));
 
                 if (mRegStateManagers.get(AccessNetworkConstants.TRANSPORT_TYPE_WLAN) != null) {
-                    mPollingContext[0]++;
-                    mRegStateManagers.get(AccessNetworkConstants.TRANSPORT_TYPE_WLAN)
-                            .requestNetworkRegistrationInfo(NetworkRegistrationInfo.DOMAIN_PS,
-                                    obtainMessage(EVENT_POLL_STATE_PS_IWLAN_REGISTRATION,
-                                            mPollingContext));
+                    if (mFeatureFlags.mergePollStateTriggers()
+                            && modemTriggered && mLastPolledWlanRegInfo != null
+                            && mPolledWlanRegChangeCount == mWlanRegChangeCount) {
+                        // The WLAN network service reported no change since the last poll, which
+                        // is always the case when the poll is triggered by the cellular modem.
+                        mNewSS.addNetworkRegistrationInfo(mLastPolledWlanRegInfo);
+                        mPollStateStats.onQuerySkipped();
+                    } else {
+                        mRequestedWlanRegChangeCount = mWlanRegChangeCount;
+                        mPollingContext[0]++;
+                        mRegStateManagers.get(AccessNetworkConstants.TRANSPORT_TYPE_WLAN)
+                                .requestNetworkRegistrationInfo(NetworkRegistrationInfo.DOMAIN_PS,
+                                        obtainMessage(EVENT_POLL_STATE_PS_IWLAN_REGISTRATION,
+                                                mPollingContext));
+                    }
                 }
 
                 if (mPhone.isPhoneTypeGsm()) {
@@ -3370,6 +3457,9 @@ public class ServiceStateTracker extends Handler {
                     mCi.getNetworkSelectionMode(obtainMessage(
                             EVENT_POLL_STATE_NETWORK_SELECTION_MODE, mPollingContext));
                 }
+                mInFlightPollingContext = mPollingContext;
+                mPollStartTimeMillis = SystemClock.elapsedRealtime();
+                mPollStateStats.onPollStarted();
                 break;
         }
     }
@@ -5078,6 +5168,29 @@ public class ServiceStateTracker extends Handler {
     protected void cancelPollState() {
         // This will effectively cancel the rest of the poll requests.
         mPollingContext = new int[1];
+        mInFlightPollingContext = null;
+        mHasPendingPoll = false;
+        mPendingPollModemTriggered = false;
+        mConsecutiveDiscardedPolls = 0;
+        mLastPolledWlanRegInfo = null;
+    }
+
+    /**
+     * @return {@code true} if a poll is waiting for responses. A poll that did not complete in
+     * {@link #POLL_STATE_IN_FLIGHT_TIMEOUT_MILLIS} is not considered in flight anymore, so that
+     * a lost response doesn't block polling.
+     */
+    private boolean isPollInFlight() {
+        return mInFlightPollingContext != null && mInFlightPollingContext == mPollingContext
+                && mPollingContext[0] > 0
+                && SystemClock.elapsedRealtime() - mPollStartTimeMillis
+                        < POLL_STATE_IN_FLIGHT_TIMEOUT_MILLIS;
+    }
+
+    /** @return The counters of the polls. */
+    @VisibleForTesting
+    public PollStateStats getPollStateStats() {
+        return mPollStateStats;
     }
 
     /**
@@ -5260,6 +5373,8 @@ public class ServiceStateTracker extends Handler {
         pw.println(" mVoiceCapable=" + mVoiceCapable);
         pw.println(" mRestrictedState=" + mRestrictedState);
         pw.println(" mPollingContext=" + Arrays.toString(mPollingContext));
+        pw.println(" mHasPendingPoll=" + mHasPendingPoll);
+        mPollStateStats.dump(pw);
         pw.println(" mDesiredPowerState=" + mDesiredPowerState);
         pw.println(" mRestrictedState=" + mRestrictedState);
         pw.println(" mPendingRadioPowerOffAfterDataOff=" + mPendingRadioPowerOffAfterDataOff);
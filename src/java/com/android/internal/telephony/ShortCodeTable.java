@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.SmsManager;
+import android.util.LruCache;
+
+import com.android.internal.telephony.util.XmlUtils;
+import com.android.telephony.Rlog;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * SMS short code patterns of all countries, parsed once from the short code XML.
+ * <p/>
+ * The patterns of a country are compiled the first time a destination in that country is
+ * checked, and the category of recently checked destinations is cached, so devices moving
+ * between countries don't reparse the XML or recompile the patterns. The table is immutable
+ * once loaded apart from these caches, which are thread safe, so it can be shared by concurrent
+ * callers without locking.
+ */
+class ShortCodeTable {
+    private static final String TAG = "ShortCodeTable";
+    private static final boolean VDBG = false;
+
+    /** XML tag for root element. */
+    private static final String TAG_SHORTCODES = "shortcodes";
+
+    /** XML tag for short code patterns for a specific country. */
+    private static final String TAG_SHORTCODE = "shortcode";
+
+    /** XML attribute for the country code. */
+    private static final String ATTR_COUNTRY = "country";
+
+    /** XML attribute for the short code regex pattern. */
+    private static final String ATTR_PATTERN = "pattern";
+
+    /** XML attribute for the premium short code regex pattern. */
+    private static final String ATTR_PREMIUM = "premium";
+
+    /** XML attribute for the free short code regex pattern. */
+    private static final String ATTR_FREE = "free";
+
+    /** XML attribute for the standard rate short code regex pattern. */
+    private static final String ATTR_STANDARD = "standard";
+
+    /** Number of recently checked destinations to remember the category of. */
+    private static final int CATEGORY_CACHE_SIZE = 64;
+
+    /** Regexes of a country, as found in the XML. */
+    private static final class CountryPatterns {
+        final String mShortCode;
+        final String mPremium;
+        final String mFree;
+        final String mStandard;
+
+        CountryPatterns(String shortCode, String premium, String free, String standard) {
+            mShortCode = shortCode;
+            mPremium = premium;
+            mFree = free;
+            mStandard = standard;
+        }
+    }
+
+    /**
+     * SMS short code regex pattern matcher for a specific country.
+     */
+    private static final class ShortCodePatternMatcher {
+        private final Pattern mShortCodePattern;
+        private final Pattern mPremiumShortCodePattern;
+        private final Pattern mFreeShortCodePattern;
+        private final Pattern mStandardShortCodePattern;
+
+        ShortCodePatternMatcher(CountryPatterns patterns) {
+            mShortCodePattern = compile(patterns.mShortCode);
+            mPremiumShortCodePattern = compile(patterns.mPremium);
+            mFreeShortCodePattern = compile(patterns.mFree);
+            mStandardShortCodePattern = compile(patterns.mStandard);
+        }
+
+        private static Pattern compile(String regex) {
+            return regex != null ? Pattern.compile(regex) : null;
+        }
+
+        int getNumberCategory(String phoneNumber) {
+            if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
+                    .matches()) {
+                return SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
+            }
+            if (mStandardShortCodePattern != null && mStandardShortCodePattern.matcher(phoneNumber)
+                    .matches()) {
+                return SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
+            }
+            if (mPremiumShortCodePattern != null && mPremiumShortCodePattern.matcher(phoneNumber)
+                    .matches()) {
+                return SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
+            }
+            if (mShortCodePattern != null && mShortCodePattern.matcher(phoneNumber).matches()) {
+                return SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+            }
+            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
+    }
+
+    /** Patterns by country ISO. */
+    private final Map<String, CountryPatterns> mPatterns;
+
+    /** Compiled matchers by country ISO, filled on first use. */
+    private final ConcurrentHashMap<String, ShortCodePatternMatcher> mMatchers =
+            new ConcurrentHashMap<>();
+
+    /** Category of recently checked destinations, keyed by country ISO and destination. */
+    private final LruCache<String, Integer> mCategoryCache = new LruCache<>(CATEGORY_CACHE_SIZE);
+
+    /** Last modified time of the pattern file the table was loaded from, 0 for the resource. */
+    private final long mLastModified;
+
+    /** Version of the pattern file the table was loaded from, -1 for the resource. */
+    private final int mVersion;
+
+    private ShortCodeTable(Map<String, CountryPatterns> patterns, long lastModified,
+            int version) {
+        mPatterns = patterns;
+        mLastModified = lastModified;
+        mVersion = version;
+    }
+
+    /**
+     * Parse the patterns of all countries.
+     *
+     * @param parser The parser of the short code XML.
+     * @param lastModified The last modified time of the pattern file, 0 for the resource.
+     * @param version The version of the pattern file, -1 for the resource.
+     * @return The table, empty if the XML cannot be parsed.
+     */
+    static @NonNull ShortCodeTable fromXmlParser(@NonNull XmlPullParser parser,
+            long lastModified, int version) {
+        Map<String, CountryPatterns> patterns = new HashMap<>();
+        try {
+            XmlUtils.beginDocument(parser, TAG_SHORTCODES);
+
+            while (true) {
+                XmlUtils.nextElement(parser);
+                String element = parser.getName();
+                if (element == null) {
+                    break;
+                }
+
+                if (element.equals(TAG_SHORTCODE)) {
+                    String country = parser.getAttributeValue(null, ATTR_COUNTRY);
+                    if (VDBG) Rlog.d(TAG, "Found country " + country);
+                    if (country != null) {
+                        // The first entry of a country wins
+                        patterns.putIfAbsent(country, new CountryPatterns(
+                                parser.getAttributeValue(null, ATTR_PATTERN),
+                                parser.getAttributeValue(null, ATTR_PREMIUM),
+                                parser.getAttributeValue(null, ATTR_FREE),
+                                parser.getAttributeValue(null, ATTR_STANDARD)));
+                    }
+                } else {
+                    Rlog.e(TAG, "Error: skipping unknown XML tag " + element);
+                }
+            }
+        } catch (XmlPullParserException e) {
+            Rlog.e(TAG, "XML parser exception reading short code patterns", e);
+        } catch (IOException e) {
+            Rlog.e(TAG, "I/O exception reading short code patterns", e);
+        }
+        return new ShortCodeTable(Collections.unmodifiableMap(patterns), lastModified, version);
+    }
+
+    /**
+     * @param lastModified The last modified time of the pattern file.
+     * @param version The version of the pattern file.
+     * @return A table without patterns, used when the pattern file cannot be read.
+     */
+    static @NonNull ShortCodeTable empty(long lastModified, int version) {
+        return new ShortCodeTable(Collections.emptyMap(), lastModified, version);
+    }
+
+    /**
+     * @param country The country ISO.
+     * @return Whether the table has patterns for the country.
+     */
+    boolean hasCountry(@NonNull String country) {
+        return mPatterns.containsKey(country);
+    }
+
+    /**
+     * Get the short code category of a destination.
+     *
+     * @param destAddress The destination address, with non-digits stripped.
+     * @param country The country ISO.
+     * @return The category, or {@code null} if the table has no patterns for the country.
+     */
+    @Nullable
+    Integer getNumberCategory(@NonNull String destAddress, @NonNull String country) {
+        CountryPatterns patterns = mPatterns.get(country);
+        if (patterns == null) {
+            return null;
+        }
+        String key = country + ':' + destAddress;
+        Integer category = mCategoryCache.get(key);
+        if (category == null) {
+            category = mMatchers.computeIfAbsent(country, k -> new ShortCodePatternMatcher(
+                    patterns)).getNumberCategory(destAddress);
+            mCategoryCache.put(key, category);
+        }
+        return category;
+    }
+
+    /** @return The last modified time of the pattern file, 0 for the resource. */
+    long getLastModified() {
+        return mLastModified;
+    }
+
+    /** @return The version of the pattern file, -1 for the resource. */
+    int getVersion() {
+        return mVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "ShortCodeTable{countries=" + mPatterns.size() + ", compiled=" + mMatchers.size()
+                + ", cached=" + mCategoryCache.size() + ", version=" + mVersion + "}";
+    }
+}
@@ -954,6 +954,16 @@ public class SmsDispatchersController extends Handler {
         mDomainSelectionResolverProxy = proxy;
     }
 
+    /**
+     * Checks whether the MO SMS parts sent to the modem are scheduled by the dispatchers.
+     *
+     * @return {@code true} if the MO SMS parts are scheduled, {@code false} if they are sent to
+     * the modem right away.
+     */
+    public boolean isSmsSendSchedulerEnabled() {
+        return mFeatureFlags.smsSendScheduler();
+    }
+
     /**
      * Checks whether the SMS domain selection is enabled or not.
      *
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the number of SMS each package can send within a sliding time window.
+ * <p/>
+ * The send times of each package are kept in a fixed size ring buffer of primitive timestamps,
+ * so expiring old sends and recording new ones never allocates or shifts elements. Each package
+ * has its own lock, so apps sending at the same time don't contend with each other. Packages
+ * that did not send anything within the window are pruned at most once per window, rather than
+ * on every check.
+ */
+public class SmsRateLimiter {
+    private final int mMaxAllowed;
+    private final long mPeriodMillis;
+
+    private final ConcurrentHashMap<String, SendWindow> mWindows = new ConcurrentHashMap<>();
+
+    /** Time of the last pruning of idle packages. */
+    private volatile long mLastPruneTimeMillis;
+
+    /** Send times of a package within the window, oldest first. */
+    private static final class SendWindow {
+        private final long[] mTimestamps;
+        private int mHead;
+        private int mSize;
+        /** Set once the window is pruned, a window that is removed must not be updated. */
+        private boolean mRemoved;
+
+        SendWindow(int capacity) {
+            mTimestamps = new long[capacity];
+        }
+
+        void expire(long beginCheckPeriod) {
+            while (mSize > 0 && mTimestamps[mHead] < beginCheckPeriod) {
+                mHead = (mHead + 1) % mTimestamps.length;
+                mSize--;
+            }
+        }
+
+        boolean tryAdd(long nowMillis, int count) {
+            if (mSize + count > mTimestamps.length) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                mTimestamps[(mHead + mSize) % mTimestamps.length] = nowMillis;
+                mSize++;
+            }
+            return true;
+        }
+
+        boolean isIdle(long beginCheckPeriod) {
+            return mSize == 0 || mTimestamps[(mHead + mSize - 1) % mTimestamps.length]
+                    < beginCheckPeriod;
+        }
+    }
+
+    /**
+     * @param maxAllowed The number of SMS a package can send within the window.
+     * @param periodMillis The size of the window.
+     */
+    public SmsRateLimiter(int maxAllowed, long periodMillis) {
+        mMaxAllowed = maxAllowed;
+        mPeriodMillis = periodMillis;
+    }
+
+    /**
+     * Check whether a package can send more SMS, and record them if it can.
+     *
+     * @param packageName The package sending the SMS.
+     * @param smsWaiting The number of SMS the package wants to send.
+     * @param nowMillis The current time.
+     * @return {@code true} if the package is allowed to send {@code smsWaiting} SMS.
+     */
+    public boolean tryAcquire(@NonNull String packageName, int smsWaiting, long nowMillis) {
+        long beginCheckPeriod = nowMillis - mPeriodMillis;
+        pruneIfNeeded(nowMillis);
+        while (true) {
+            SendWindow window = getOrCreateWindow(packageName);
+            synchronized (window) {
+                if (window.mRemoved) {
+                    // Pruned concurrently, retry with a new window.
+                    continue;
+                }
+                window.expire(beginCheckPeriod);
+                return window.tryAdd(nowMillis, smsWaiting);
+            }
+        }
+    }
+
+    /**
+     * Make sure a package is tracked, without recording any send. The package is pruned on the
+     * next pruning if it does not send anything.
+     *
+     * @param packageName The package name.
+     * @param nowMillis The current time.
+     */
+    public void track(@NonNull String packageName, long nowMillis) {
+        pruneIfNeeded(nowMillis);
+        getOrCreateWindow(packageName);
+    }
+
+    /** Stop tracking all packages. */
+    public void clear() {
+        mWindows.clear();
+    }
+
+    /** @return The number of packages being tracked. */
+    @VisibleForTesting
+    public int getTrackedPackageCount() {
+        return mWindows.size();
+    }
+
+    private SendWindow getOrCreateWindow(String packageName) {
+        SendWindow window = mWindows.get(packageName);
+        if (window == null) {
+            window = mWindows.computeIfAbsent(packageName,
+                    k -> new SendWindow(Math.max(mMaxAllowed, 0)));
+        }
+        return window;
+    }
+
+    /**
+     * Remove packages that did not send any SMS within the window. This can happen if an SMS app
+     * is used to send messages and then uninstalled.
+     */
+    private void pruneIfNeeded(long nowMillis) {
+        long last = mLastPruneTimeMillis;
+        if (nowMillis - last < mPeriodMillis && nowMillis >= last) {
+            return;
+        }
+        mLastPruneTimeMillis = nowMillis;
+        long beginCheckPeriod = nowMillis - mPeriodMillis;
+        mWindows.values().removeIf(window -> {
+            synchronized (window) {
+                if (window.isIdle(beginCheckPeriod)) {
+                    window.mRemoved = true;
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schedules the MO SMS parts sent to the modem by a {@link SMSDispatcher}.
+ * <p/>
+ * At most a window of parts are sent to the modem at a time, the other parts are queued. Queued
+ * messages are sent one at a time per app, in turn between the apps, so a bulk sender doesn't
+ * delay the messages of the other apps. When the next part to send is for the same SMSC, the
+ * part is sent with {@link SmsTracker#mExpectMore} so the modem keeps the link up. The next part
+ * may belong to another message, so the flag is cleared once the send completes, and a retry of
+ * the part is only sent with it if the part itself expects more.
+ */
+final class SmsSendScheduler {
+    /** Sends a part to the modem. */
+    interface Sender {
+        /**
+         * Send the part. {@link SmsSendScheduler#onSendComplete(SmsTracker)} must be called when
+         * the modem responded, or when the part failed without being sent to the modem.
+         *
+         * @param tracker The part to send.
+         */
+        void sendSms(@NonNull SmsTracker tracker);
+    }
+
+    /** A message whose parts are waiting to be sent. */
+    private static final class PendingMessage {
+        @NonNull
+        final SmsTracker[] trackers;
+        final long queuedTimeMillis;
+        int nextPart;
+
+        PendingMessage(@NonNull SmsTracker[] trackers, long queuedTimeMillis) {
+            this.trackers = trackers;
+            this.queuedTimeMillis = queuedTimeMillis;
+        }
+    }
+
+    /** A part sent to the modem. */
+    private static final class SentPart {
+        final long queuedTimeMillis;
+        final long sentTimeMillis;
+        final int part;
+        /** {@code true} if the scheduler set {@link SmsTracker#mExpectMore} for this send. */
+        final boolean expectMoreForced;
+
+        SentPart(long queuedTimeMillis, long sentTimeMillis, int part, boolean expectMoreForced) {
+            this.queuedTimeMillis = queuedTimeMillis;
+            this.sentTimeMillis = sentTimeMillis;
+            this.part = part;
+            this.expectMoreForced = expectMoreForced;
+        }
+    }
+
+    @NonNull
+    private final Sender mSender;
+    private final int mWindow;
+
+    /** Messages waiting to be sent by app, in the order the apps take turns. */
+    @GuardedBy("this")
+    @NonNull
+    private final LinkedHashMap<String, ArrayDeque<PendingMessage>> mQueues =
+            new LinkedHashMap<>();
+
+    /** Parts sent to the modem and waiting for the response. */
+    @GuardedBy("this")
+    @NonNull
+    private final IdentityHashMap<SmsTracker, SentPart> mSentParts = new IdentityHashMap<>();
+
+    /** {@code true} while a thread sends the parts that fit in the window. */
+    @GuardedBy("this")
+    private boolean mSending;
+
+    @GuardedBy("this")
+    private long mCompletedCount;
+    @GuardedBy("this")
+    private long mExpectMoreCount;
+    @GuardedBy("this")
+    private long mTotalQueueMillis;
+    @GuardedBy("this")
+    private long mMaxQueueMillis;
+    @GuardedBy("this")
+    private long mTotalSendMillis;
+    @GuardedBy("this")
+    private long mMaxSendMillis;
+
+    private final LocalLog mLocalLog = new LocalLog(32);
+
+    /**
+     * @param sender Sends the parts to the modem.
+     * @param window The maximum number of parts sent to the modem at a time.
+     */
+    SmsSendScheduler(@NonNull Sender sender, int window) {
+        mSender = sender;
+        mWindow = window;
+    }
+
+    /**
+     * Queue the parts of a message, and send the parts which fit in the window.
+     *
+     * @param trackers The parts of the message.
+     */
+    void schedule(@NonNull SmsTracker[] trackers) {
+        if (trackers.length == 0) return;
+        synchronized (this) {
+            String appPackage = trackers[0].getAppPackageName();
+            mQueues.computeIfAbsent(appPackage == null ? "" : appPackage,
+                    k -> new ArrayDeque<>())
+                    .add(new PendingMessage(trackers, SystemClock.elapsedRealtime()));
+        }
+        sendParts();
+    }
+
+    /**
+     * Called when the modem responded to a part, successfully or not, or when the part failed
+     * without being sent to the modem. Parts which were not sent by the scheduler are ignored.
+     *
+     * @param tracker The part.
+     */
+    void onSendComplete(@NonNull SmsTracker tracker) {
+        synchronized (this) {
+            SentPart sentPart = mSentParts.remove(tracker);
+            if (sentPart == null) return;
+            if (sentPart.expectMoreForced) {
+                tracker.mExpectMore = false;
+            }
+            long now = SystemClock.elapsedRealtime();
+            long queueMillis = sentPart.sentTimeMillis - sentPart.queuedTimeMillis;
+            long sendMillis = now - sentPart.sentTimeMillis;
+            mCompletedCount++;
+            mTotalQueueMillis += queueMillis;
+            mMaxQueueMillis = Math.max(mMaxQueueMillis, queueMillis);
+            mTotalSendMillis += sendMillis;
+            mMaxSendMillis = Math.max(mMaxSendMillis, sendMillis);
+            mLocalLog.log("onSendComplete: "
+                    + SmsController.formatCrossStackMessageId(tracker.mMessageId)
+                    + " part=" + sentPart.part + " queued=" + queueMillis + "ms, sent="
+                    + sendMillis + "ms");
+        }
+        sendParts();
+    }
+
+    /** @return The number of parts waiting to be sent. */
+    synchronized int getQueuedCount() {
+        int count = 0;
+        for (ArrayDeque<PendingMessage> queue : mQueues.values()) {
+            for (PendingMessage message : queue) {
+                count += message.trackers.length - message.nextPart;
+            }
+        }
+        return count;
+    }
+
+    /** @return The number of parts sent to the modem and waiting for the response. */
+    synchronized int getSentCount() {
+        return mSentParts.size();
+    }
+
+    /**
+     * Send the parts which fit in the window. Only one thread sends at a time, the others leave
+     * their parts to it, so the parts are sent in order.
+     */
+    private void sendParts() {
+        synchronized (this) {
+            if (mSending) return;
+            mSending = true;
+        }
+        while (true) {
+            List<SmsTracker> parts;
+            synchronized (this) {
+                parts = takeParts();
+                if (parts.isEmpty()) {
+                    mSending = false;
+                    return;
+                }
+            }
+            for (SmsTracker part : parts) {
+                mSender.sendSms(part);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    @NonNull
+    private List<SmsTracker> takeParts() {
+        List<SmsTracker> parts = new ArrayList<>();
+        long now = SystemClock.elapsedRealtime();
+        while (mSentParts.size() < mWindow && !mQueues.isEmpty()) {
+            Iterator<Map.Entry<String, ArrayDeque<PendingMessage>>> it =
+                    mQueues.entrySet().iterator();
+            Map.Entry<String, ArrayDeque<PendingMessage>> entry = it.next();
+            ArrayDeque<PendingMessage> queue = entry.getValue();
+            PendingMessage message = queue.peek();
+            int part = message.nextPart++;
+            SmsTracker tracker = message.trackers[part];
+            if (message.nextPart == message.trackers.length) {
+                // The message is sent, it's the turn of the next app.
+                queue.poll();
+                it.remove();
+                if (!queue.isEmpty()) {
+                    mQueues.put(entry.getKey(), queue);
+                }
+            }
+
+            SmsTracker next = peekPart();
+            boolean expectMoreForced =
+                    !tracker.mExpectMore && next != null && isSameSmsc(tracker, next);
+            if (expectMoreForced) {
+                tracker.mExpectMore = true;
+                mExpectMoreCount++;
+            }
+            mSentParts.put(tracker,
+                    new SentPart(message.queuedTimeMillis, now, part, expectMoreForced));
+            parts.add(tracker);
+        }
+        return parts;
+    }
+
+    /** @return The next part to send. */
+    @GuardedBy("this")
+    @Nullable
+    private SmsTracker peekPart() {
+        if (mQueues.isEmpty()) return null;
+        PendingMessage message = mQueues.values().iterator().next().peek();
+        return message.trackers[message.nextPart];
+    }
+
+    private static boolean isSameSmsc(@NonNull SmsTracker tracker, @NonNull SmsTracker other) {
+        return Arrays.equals((byte[]) tracker.getData().get(SMSDispatcher.MAP_KEY_SMSC),
+                (byte[]) other.getData().get(SMSDispatcher.MAP_KEY_SMSC));
+    }
+
+    /**
+     * Dump the state of the scheduler.
+     *
+     * @param pw The print writer.
+     */
+    void dump(@NonNull IndentingPrintWriter pw) {
+        synchronized (this) {
+            pw.println("SmsSendScheduler: window=" + mWindow + ", sent=" + mSentParts.size()
+                    + ", queued=" + getQueuedCount() + ", apps=" + mQueues.size());
+            pw.increaseIndent();
+            pw.println("completed=" + mCompletedCount + ", expectMore=" + mExpectMoreCount
+                    + ", avgQueueMs=" + (mCompletedCount == 0 ? 0
+                            : mTotalQueueMillis / mCompletedCount)
+                    + ", maxQueueMs=" + mMaxQueueMillis
+                    + ", avgSendMs=" + (mCompletedCount == 0 ? 0
+                            : mTotalSendMillis / mCompletedCount)
+                    + ", maxSendMs=" + mMaxSendMillis);
+            pw.decreaseIndent();
+        }
+        pw.increaseIndent();
+        mLocalLog.dump(pw);
+        pw.decreaseIndent();
+    }
+}
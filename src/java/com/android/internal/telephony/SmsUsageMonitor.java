@@ -51,13 +51,10 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Pattern;
 
 /**
  * Implement the per-application based SMS control, which limits the number of
@@ -107,17 +104,17 @@ public class SmsUsageMonitor {
     private final int mCheckPeriod;
     private final int mMaxAllowed;
 
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /** Send times of each app within the checking period. */
+    private final SmsRateLimiter mSmsStamp;
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
 
-    /** Country code for the cached short code pattern matcher. */
-    private String mCurrentCountry;
+    /** Country code of the last destination check. */
+    private volatile String mCurrentCountry;
 
-    /** Cached short code pattern matcher for {@link #mCurrentCountry}. */
-    private ShortCodePatternMatcher mCurrentPatternMatcher;
+    /** Short code patterns of all countries, loaded on first use. */
+    private volatile ShortCodeTable mShortCodeTable;
 
     /** Notice when the enabled setting changes - can be changed through gservices */
     private final AtomicBoolean mCheckEnabled = new AtomicBoolean(true);
@@ -128,11 +125,6 @@ public class SmsUsageMonitor {
     /** File holding the patterns */
     private final File mPatternFile = new File(SHORT_CODE_PATH);
 
-    /** Last modified time for pattern file */
-    private long mPatternFileLastModified = 0;
-
-    private int mPatternFileVersion = -1;
-
     private RoleManager mRoleManager;
 
     /** Directory for per-app SMS permission XML file. */
@@ -141,27 +133,6 @@ public class SmsUsageMonitor {
     /** Per-app SMS permission XML filename. */
     private static final String SMS_POLICY_FILE_NAME = "premium_sms_policy.xml";
 
-    /** XML tag for root element. */
-    private static final String TAG_SHORTCODES = "shortcodes";
-
-    /** XML tag for short code patterns for a specific country. */
-    private static final String TAG_SHORTCODE = "shortcode";
-
-    /** XML attribute for the country code. */
-    private static final String ATTR_COUNTRY = "country";
-
-    /** XML attribute for the short code regex pattern. */
-    private static final String ATTR_PATTERN = "pattern";
-
-    /** XML attribute for the premium short code regex pattern. */
-    private static final String ATTR_PREMIUM = "premium";
-
-    /** XML attribute for the free short code regex pattern. */
-    private static final String ATTR_FREE = "free";
-
-    /** XML attribute for the standard rate short code regex pattern. */
-    private static final String ATTR_STANDARD = "standard";
-
     /** Stored copy of premium SMS package permissions. */
     private AtomicFile mPolicyFile;
 
@@ -180,46 +151,6 @@ public class SmsUsageMonitor {
     /** XML attribute for the package's premium SMS permission (integer type). */
     private static final String ATTR_PACKAGE_SMS_POLICY = "sms-policy";
 
-    /**
-     * SMS short code regex pattern matcher for a specific country.
-     */
-    private static final class ShortCodePatternMatcher {
-        private final Pattern mShortCodePattern;
-        private final Pattern mPremiumShortCodePattern;
-        private final Pattern mFreeShortCodePattern;
-        private final Pattern mStandardShortCodePattern;
-
-        ShortCodePatternMatcher(String shortCodeRegex, String premiumShortCodeRegex,
-                String freeShortCodeRegex, String standardShortCodeRegex) {
-            mShortCodePattern = (shortCodeRegex != null ? Pattern.compile(shortCodeRegex) : null);
-            mPremiumShortCodePattern = (premiumShortCodeRegex != null ?
-                    Pattern.compile(premiumShortCodeRegex) : null);
-            mFreeShortCodePattern = (freeShortCodeRegex != null ?
-                    Pattern.compile(freeShortCodeRegex) : null);
-            mStandardShortCodePattern = (standardShortCodeRegex != null ?
-                    Pattern.compile(standardShortCodeRegex) : null);
-        }
-
-        int getNumberCategory(String phoneNumber) {
-            if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
-            }
-            if (mStandardShortCodePattern != null && mStandardShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
-            }
-            if (mPremiumShortCodePattern != null && mPremiumShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
-            }
-            if (mShortCodePattern != null && mShortCodePattern.matcher(phoneNumber).matches()) {
-                return SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
-            }
-            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
-        }
-    }
-
     /**
      * Observe the secure setting for enable flag
      */
@@ -268,86 +199,66 @@ public class SmsUsageMonitor {
                 Settings.Global.SMS_OUTGOING_CHECK_INTERVAL_MS,
                 DEFAULT_SMS_CHECK_PERIOD);
 
+        mSmsStamp = new SmsRateLimiter(mMaxAllowed, mCheckPeriod);
+
         mSettingsObserverHandler = new SettingsObserverHandler(mContext, mCheckEnabled);
 
         loadPremiumSmsPolicyDb();
     }
 
     /**
-     * Return a pattern matcher object for the specified country.
-     * @param country the country to search for
-     * @return a {@link ShortCodePatternMatcher} for the specified country, or null if not found
+     * Return the short code patterns of all countries, reloading them if the pattern file was
+     * updated. The patterns are loaded from the pattern file if it exists, or from the resource.
      */
-    private ShortCodePatternMatcher getPatternMatcherFromFile(String country) {
-        FileReader patternReader = null;
-        XmlPullParser parser = null;
-        try {
-            patternReader = new FileReader(mPatternFile);
-            parser = Xml.newPullParser();
+    private ShortCodeTable getShortCodeTable() {
+        long lastModified = mPatternFile.lastModified();
+        ShortCodeTable table = mShortCodeTable;
+        if (table != null && table.getLastModified() == lastModified) {
+            return table;
+        }
+        synchronized (mSettingsObserverHandler) {
+            table = mShortCodeTable;
+            if (table == null || table.getLastModified() != lastModified) {
+                if (lastModified != 0) {
+                    if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
+                    table = getShortCodeTableFromFile(lastModified);
+                } else {
+                    if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
+                    table = getShortCodeTableFromResource();
+                }
+                mShortCodeTable = table;
+            }
+            return table;
+        }
+    }
+
+    private ShortCodeTable getShortCodeTableFromFile(long lastModified) {
+        int version = getPatternFileVersionFromFile();
+        try (FileReader patternReader = new FileReader(mPatternFile)) {
+            XmlPullParser parser = Xml.newPullParser();
             parser.setInput(patternReader);
-            return getPatternMatcherFromXmlParser(parser, country);
+            return ShortCodeTable.fromXmlParser(parser, lastModified, version);
         } catch (FileNotFoundException e) {
             Rlog.e(TAG, "Short Code Pattern File not found");
         } catch (XmlPullParserException e) {
             Rlog.e(TAG, "XML parser exception reading short code pattern file", e);
-        } finally {
-            mPatternFileLastModified = mPatternFile.lastModified();
-            if (patternReader != null) {
-                try {
-                    patternReader.close();
-                } catch (IOException e) {}
-            }
+        } catch (IOException e) {
+            Rlog.e(TAG, "I/O exception reading short code pattern file", e);
         }
-        return null;
+        return ShortCodeTable.empty(lastModified, version);
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromResource(String country) {
+    private ShortCodeTable getShortCodeTableFromResource() {
         int id = com.android.internal.R.xml.sms_short_codes;
         XmlResourceParser parser = null;
         try {
             parser = mContext.getResources().getXml(id);
-            return getPatternMatcherFromXmlParser(parser, country);
+            return ShortCodeTable.fromXmlParser(parser, 0, -1);
         } finally {
             if (parser != null) parser.close();
         }
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromXmlParser(XmlPullParser parser,
-            String country) {
-        try {
-            XmlUtils.beginDocument(parser, TAG_SHORTCODES);
-
-            while (true) {
-                XmlUtils.nextElement(parser);
-                String element = parser.getName();
-                if (element == null) {
-                    Rlog.e(TAG, "Parsing pattern data found null");
-                    break;
-                }
-
-                if (element.equals(TAG_SHORTCODE)) {
-                    String currentCountry = parser.getAttributeValue(null, ATTR_COUNTRY);
-                    if (VDBG) Rlog.d(TAG, "Found country " + currentCountry);
-                    if (country.equals(currentCountry)) {
-                        String pattern = parser.getAttributeValue(null, ATTR_PATTERN);
-                        String premium = parser.getAttributeValue(null, ATTR_PREMIUM);
-                        String free = parser.getAttributeValue(null, ATTR_FREE);
-                        String standard = parser.getAttributeValue(null, ATTR_STANDARD);
-                        return new ShortCodePatternMatcher(pattern, premium, free, standard);
-                    }
-                } else {
-                    Rlog.e(TAG, "Error: skipping unknown XML tag " + element);
-                }
-            }
-        } catch (XmlPullParserException e) {
-            Rlog.e(TAG, "XML parser exception reading short code patterns", e);
-        } catch (IOException e) {
-            Rlog.e(TAG, "I/O exception reading short code patterns", e);
-        }
-        if (DBG) Rlog.d(TAG, "Country (" + country + ") not found");
-        return null;    // country not found
-    }
-
     /** Clear the SMS application list for disposal. */
     void dispose() {
         mSmsStamp.clear();
@@ -365,22 +276,15 @@ public class SmsUsageMonitor {
      */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
-
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
-            }
-
-            List<String> defaultApp = mRoleManager.getRoleHolders(RoleManager.ROLE_SMS);
-            if (defaultApp.contains(appName)) {
-                return true;
-            } else {
-                return isUnderLimit(sentList, smsWaiting);
-            }
+        long ct = System.currentTimeMillis();
+        List<String> defaultApp = mRoleManager.getRoleHolders(RoleManager.ROLE_SMS);
+        if (defaultApp.contains(appName)) {
+            mSmsStamp.track(appName, ct);
+            return true;
         }
+
+        if (VDBG) log("SMS send app=" + appName + " count=" + smsWaiting + " time=" + ct);
+        return mSmsStamp.tryAcquire(appName, smsWaiting, ct);
     }
 
     /**
@@ -401,45 +305,35 @@ public class SmsUsageMonitor {
      *  {@link SmsManager#SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE}
      */
     public int checkDestination(String destAddress, String countryIso) {
-        synchronized (mSettingsObserverHandler) {
-            TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
-            // always allow emergency numbers
-            if (tm.isEmergencyNumber(destAddress)) {
-                if (DBG) Rlog.d(TAG, "isEmergencyNumber");
-                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
-            }
-            // always allow if the feature is disabled
-            if (!mCheckEnabled.get()) {
-                if (DBG) Rlog.e(TAG, "check disabled");
-                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
-            }
+        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+        // always allow emergency numbers
+        if (tm.isEmergencyNumber(destAddress)) {
+            if (DBG) Rlog.d(TAG, "isEmergencyNumber");
+            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
+        // always allow if the feature is disabled
+        if (!mCheckEnabled.get()) {
+            if (DBG) Rlog.e(TAG, "check disabled");
+            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
 
-            if (countryIso != null) {
-                if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
-                        mPatternFileVersion = getPatternFileVersionFromFile();
-                    } else {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
-                        mPatternFileVersion = -1;
-                    }
-                    mCurrentCountry = countryIso;
-                }
-            }
+        // Without a country, fall back to the country of the last check
+        String country = countryIso != null ? countryIso : mCurrentCountry;
+        if (countryIso != null) {
+            mCurrentCountry = countryIso;
+        }
 
-            if (mCurrentPatternMatcher != null) {
-                return mCurrentPatternMatcher.getNumberCategory(destAddress);
+        Integer category = country != null
+                ? getShortCodeTable().getNumberCategory(destAddress, country) : null;
+        if (category != null) {
+            return category;
+        } else {
+            // Generic rule: numbers of 5 digits or less are considered potential short codes
+            Rlog.e(TAG, "No patterns for \"" + country + "\": using generic short code rule");
+            if (destAddress.length() <= 5) {
+                return SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
             } else {
-                // Generic rule: numbers of 5 digits or less are considered potential short codes
-                Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
-                if (destAddress.length() <= 5) {
-                    return SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
-                } else {
-                    return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
-                }
+                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
             }
         }
     }
@@ -624,44 +518,6 @@ public class SmsUsageMonitor {
         throw new SecurityException("Disallowed call for uid " + uid);
     }
 
-    /**
-     * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
-     */
-    private void removeExpiredTimestamps() {
-        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
-
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
-                    iter.remove();
-                }
-            }
-        }
-    }
-
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
-        long beginCheckPeriod = ct - mCheckPeriod;
-
-        if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
-
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
-
-        if ((sent.size() + smsWaiting) <= mMaxAllowed) {
-            for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
-            }
-            return true;
-        }
-        return false;
-    }
-
     private int getPatternFileVersionFromFile() {
         File versionFile = new File(SHORT_CODE_VERSION_PATH);
         if (versionFile.exists()) {
@@ -690,7 +546,8 @@ public class SmsUsageMonitor {
     }
 
     public int getShortCodeXmlFileVersion() {
-        return mPatternFileVersion;
+        ShortCodeTable table = mShortCodeTable;
+        return table != null ? table.getVersion() : -1;
     }
 
     private static void log(String msg) {
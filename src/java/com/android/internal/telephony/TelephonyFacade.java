@@ -16,9 +16,14 @@
 
 package com.android.internal.telephony;
 
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
 import android.net.TrafficStats;
 import android.os.SystemClock;
 
+import java.io.File;
+
 /**
  * This class is a wrapper of various static methods to simplify unit tests with static methods
  */
@@ -45,4 +50,12 @@ public class TelephonyFacade {
     public long getMobileRxBytes() {
         return TrafficStats.getMobileRxBytes();
     }
+
+    /**
+     * Wrapper for {@link Context#getFilesDir}.
+     */
+    @Nullable
+    public File getFilesDir(@NonNull Context context) {
+        return context.getFilesDir();
+    }
 }
@@ -19,9 +19,11 @@ package com.android.internal.telephony.analytics;
 import static android.os.Build.VERSION.INCREMENTAL;
 
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
+import static com.android.internal.telephony.analytics.TelephonyAnalyticsUtil.emptyIfNull;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.CallAnalyticsTable;
@@ -67,35 +69,108 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
                     + " INTEGER DEFAULT 1 "
                     + ");";
 
-    private static final String[] CALL_INSERTION_PROJECTION = {
-        CallAnalyticsTable._ID, CallAnalyticsTable.COUNT
+    private static final String CALL_SUCCESS_INDEX_SELECTION =
+            CallAnalyticsTable.CALL_STATUS + " = '" + CallStatus.SUCCESS.value + "'";
+
+    private static final String CALL_FAILED_INDEX_SELECTION =
+            CallAnalyticsTable.CALL_STATUS + " != '" + CallStatus.SUCCESS.value + "'";
+
+    /** Key of the successful calls, which are counted regardless of RAT and failure reason. */
+    private static final String[] CALL_SUCCESS_KEY = {
+        CallAnalyticsTable.CALL_TYPE,
+        CallAnalyticsTable.LOG_DATE,
+        CallAnalyticsTable.CALL_STATUS,
+        CallAnalyticsTable.SLOT_ID
     };
 
-    private static final String CALL_SUCCESS_INSERTION_SELECTION =
-            CallAnalyticsTable.CALL_TYPE
-                    + " = ? AND "
-                    + CallAnalyticsTable.LOG_DATE
-                    + " = ? AND "
-                    + CallAnalyticsTable.CALL_STATUS
-                    + " = ? AND "
-                    + CallAnalyticsTable.SLOT_ID
-                    + " = ? ";
+    private static final String CALL_SUCCESS_KEY_COLUMNS = String.join(", ", CALL_SUCCESS_KEY);
 
-    private static final String CALL_FAILED_INSERTION_SELECTION =
-            CallAnalyticsTable.LOG_DATE
-                    + " = ? AND "
-                    + CallAnalyticsTable.CALL_STATUS
-                    + " = ? AND "
+    private static final String[] CALL_FAILED_KEY = {
+        CallAnalyticsTable.LOG_DATE,
+        CallAnalyticsTable.CALL_STATUS,
+        CallAnalyticsTable.CALL_TYPE,
+        CallAnalyticsTable.SLOT_ID,
+        CallAnalyticsTable.RAT,
+        CallAnalyticsTable.FAILURE_REASON,
+        CallAnalyticsTable.RELEASE_VERSION
+    };
+
+    private static final String CALL_FAILED_KEY_COLUMNS = String.join(", ", CALL_FAILED_KEY);
+
+    private static final String CREATE_CALL_SUCCESS_INDEX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + CallAnalyticsTable.TABLE_NAME
+                    + "SuccessKey ON "
+                    + CallAnalyticsTable.TABLE_NAME
+                    + "("
+                    + CALL_SUCCESS_KEY_COLUMNS
+                    + ") WHERE "
+                    + CALL_SUCCESS_INDEX_SELECTION
+                    + ";";
+
+    private static final String CREATE_CALL_FAILED_INDEX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + CallAnalyticsTable.TABLE_NAME
+                    + "FailedKey ON "
+                    + CallAnalyticsTable.TABLE_NAME
+                    + "("
+                    + CALL_FAILED_KEY_COLUMNS
+                    + ") WHERE "
+                    + CALL_FAILED_INDEX_SELECTION
+                    + ";";
+
+    private static final String CALL_INSERTION =
+            "INSERT INTO "
+                    + CallAnalyticsTable.TABLE_NAME
+                    + "("
+                    + CallAnalyticsTable.LOG_DATE
+                    + ", "
                     + CallAnalyticsTable.CALL_TYPE
-                    + " = ? AND "
+                    + ", "
+                    + CallAnalyticsTable.CALL_STATUS
+                    + ", "
                     + CallAnalyticsTable.SLOT_ID
-                    + " = ? AND "
+                    + ", "
+                    + CallAnalyticsTable.RAT
+                    + ", "
+                    + CallAnalyticsTable.FAILURE_REASON
+                    + ", "
+                    + CallAnalyticsTable.RELEASE_VERSION
+                    + ") VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT (";
+
+    /** Counts a successful call, keeping the RAT and version of the last one like before. */
+    private static final String CALL_SUCCESS_UPSERT =
+            CALL_INSERTION
+                    + CALL_SUCCESS_KEY_COLUMNS
+                    + ") WHERE "
+                    + CALL_SUCCESS_INDEX_SELECTION
+                    + " DO UPDATE SET "
+                    + CallAnalyticsTable.COUNT
+                    + " = "
+                    + CallAnalyticsTable.COUNT
+                    + " + 1, "
                     + CallAnalyticsTable.RAT
-                    + " = ? AND "
+                    + " = excluded."
+                    + CallAnalyticsTable.RAT
+                    + ", "
+                    + CallAnalyticsTable.FAILURE_REASON
+                    + " = excluded."
                     + CallAnalyticsTable.FAILURE_REASON
-                    + " = ? AND "
+                    + ", "
                     + CallAnalyticsTable.RELEASE_VERSION
-                    + " = ? ";
+                    + " = excluded."
+                    + CallAnalyticsTable.RELEASE_VERSION;
+
+    private static final String CALL_FAILED_UPSERT =
+            CALL_INSERTION
+                    + CALL_FAILED_KEY_COLUMNS
+                    + ") WHERE "
+                    + CALL_FAILED_INDEX_SELECTION
+                    + " DO UPDATE SET "
+                    + CallAnalyticsTable.COUNT
+                    + " = "
+                    + CallAnalyticsTable.COUNT
+                    + " + 1";
 
     private static final String CALL_OLD_DATA_DELETION_SELECTION =
             CallAnalyticsTable.LOG_DATE + " < ? ";
@@ -132,6 +207,8 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
     }
 
     private final int mSlotIndex;
+    /** Whether the unique indexes of the upserts exist, otherwise events are looked up. */
+    private final boolean mUpsertSupported;
 
     /**
      * Initializes the CallAnalyticsProvider object and creates a table in the DB to log the
@@ -144,46 +221,27 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
         mTelephonyAnalyticsUtil = telephonyAnalyticsUtil;
         mSlotIndex = slotIndex;
         mTelephonyAnalyticsUtil.createTable(CREATE_CALL_ANALYTICS_TABLE);
+        mUpsertSupported = mTelephonyAnalyticsUtil.createIndex(CREATE_CALL_SUCCESS_INDEX)
+                && mTelephonyAnalyticsUtil.createIndex(CREATE_CALL_FAILED_INDEX);
+        mTelephonyAnalyticsUtil.addRetentionTask(this::deleteOldAndOverflowData);
     }
 
-    private ContentValues getContentValues(
-            String callType, String callStatus, int slotId, String rat, String failureReason) {
-        ContentValues values = new ContentValues();
-        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
-        values.put(CallAnalyticsTable.LOG_DATE, dateToday);
-        values.put(CallAnalyticsTable.CALL_TYPE, callType);
-        values.put(CallAnalyticsTable.CALL_STATUS, callStatus);
-        values.put(CallAnalyticsTable.SLOT_ID, slotId);
-        values.put(CallAnalyticsTable.RAT, rat);
-        values.put(CallAnalyticsTable.FAILURE_REASON, failureReason);
-        values.put(CallAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
-        return values;
-    }
-
-    private String[] getSuccessfulCallSelectionArgs(ContentValues values) {
-        return new String[] {
-            values.getAsString(CallAnalyticsTable.CALL_TYPE),
-            values.getAsString(CallAnalyticsTable.LOG_DATE),
-            CallStatus.SUCCESS.value,
-            values.getAsString(CallAnalyticsTable.SLOT_ID)
-        };
-    }
-
-    private String[] getFailedCallSelectionArgs(ContentValues values) {
-
-        return new String[] {
-            values.getAsString(CallAnalyticsTable.LOG_DATE),
-            values.getAsString(CallAnalyticsTable.CALL_STATUS),
-            values.getAsString(CallAnalyticsTable.CALL_TYPE),
-            values.getAsString(CallAnalyticsTable.SLOT_ID),
-            values.getAsString(CallAnalyticsTable.RAT),
-            values.getAsString(CallAnalyticsTable.FAILURE_REASON),
-            values.getAsString(CallAnalyticsTable.RELEASE_VERSION)
-        };
+    /**
+     * Merges the rows sharing a key of the unique indexes, which would fail their creation. NULL
+     * keys are stored as empty strings first, like the upserts write them.
+     */
+    static void mergeDuplicateRows(SQLiteDatabase db) {
+        TelephonyAnalyticsUtil.replaceNullWithEmpty(db, CallAnalyticsTable.TABLE_NAME,
+                new String[] {CallAnalyticsTable.CALL_TYPE, CallAnalyticsTable.CALL_STATUS,
+                        CallAnalyticsTable.RAT, CallAnalyticsTable.FAILURE_REASON});
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, CallAnalyticsTable.TABLE_NAME,
+                CALL_SUCCESS_KEY, CALL_SUCCESS_INDEX_SELECTION, CallAnalyticsTable.COUNT);
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, CallAnalyticsTable.TABLE_NAME,
+                CALL_FAILED_KEY, CALL_FAILED_INDEX_SELECTION, CallAnalyticsTable.COUNT);
     }
 
     /**
-     * Receives data, processes it and sends for insertion to db.
+     * Receives data, processes it and queues it for insertion to db.
      *
      * @param callType : Type of the Call , i.e. Normal or Sos
      * @param callStatus : Defines call was success or failure
@@ -193,73 +251,36 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
      */
     public void insertDataToDb(
             String callType, String callStatus, int slotId, String rat, String failureReason) {
-        ContentValues values = getContentValues(callType, callStatus, slotId, rat, failureReason);
-        Cursor cursor = null;
-        try {
-            if (values.getAsString(CallAnalyticsTable.CALL_STATUS)
-                    .equals(CallStatus.SUCCESS.value)) {
-                Rlog.d(TAG, "Insertion for Success Call");
-                String[] selectionArgs = getSuccessfulCallSelectionArgs(values);
-                cursor =
-                        mTelephonyAnalyticsUtil.getCursor(
-                                CallAnalyticsTable.TABLE_NAME,
-                                CALL_INSERTION_PROJECTION,
-                                CALL_SUCCESS_INSERTION_SELECTION,
-                                selectionArgs,
-                                null,
-                                null,
-                                null,
-                                null);
-            } else {
-
-                String[] selectionArgs = getFailedCallSelectionArgs(values);
-                cursor =
-                        mTelephonyAnalyticsUtil.getCursor(
-                                CallAnalyticsTable.TABLE_NAME,
-                                CALL_INSERTION_PROJECTION,
-                                CALL_FAILED_INSERTION_SELECTION,
-                                selectionArgs,
-                                null,
-                                null,
-                                null,
-                                null);
-            }
-            updateEntryIfExistsOrInsert(cursor, values);
-            deleteOldAndOverflowData();
-        } catch (Exception e) {
-            Rlog.e(TAG, "Error caught in insertDataToDb while insertion.");
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
+        Object[] bindArgs = {
+            dateToday,
+            emptyIfNull(callType),
+            emptyIfNull(callStatus),
+            slotId,
+            emptyIfNull(rat),
+            emptyIfNull(failureReason),
+            INCREMENTAL
+        };
+        boolean success = CallStatus.SUCCESS.value.equals(callStatus);
+        if (success) {
+            Rlog.d(TAG, "Insertion for Success Call");
         }
-    }
-
-    private void updateEntryIfExistsOrInsert(Cursor cursor, ContentValues values) {
-        if (cursor != null && cursor.moveToFirst()) {
-            int idColumnIndex = cursor.getColumnIndex(CallAnalyticsTable._ID);
-            int countColumnIndex = cursor.getColumnIndex(CallAnalyticsTable.COUNT);
-            if (idColumnIndex != -1 && countColumnIndex != -1) {
-                int id = cursor.getInt(idColumnIndex);
-                int count = cursor.getInt(countColumnIndex);
-                int newCount = count + 1;
-
-                values.put(CallAnalyticsTable.COUNT, newCount);
-
-                String updateSelection = CallAnalyticsTable._ID + " = ? ";
-                String[] updateSelectionArgs = {String.valueOf(id)};
-                Rlog.d(TAG, "Updated Count = " + values.getAsString(CallAnalyticsTable.COUNT));
-
-                mTelephonyAnalyticsUtil.update(
-                        CallAnalyticsTable.TABLE_NAME,
-                        values,
-                        updateSelection,
-                        updateSelectionArgs);
-            }
-        } else {
-            Rlog.d(TAG, "Simple Insertion");
-            mTelephonyAnalyticsUtil.insert(CallAnalyticsTable.TABLE_NAME, values);
+        if (mUpsertSupported) {
+            mTelephonyAnalyticsUtil.queueUpsert(
+                    success ? CALL_SUCCESS_UPSERT : CALL_FAILED_UPSERT, bindArgs);
+            return;
         }
+        ContentValues values = new ContentValues();
+        values.put(CallAnalyticsTable.LOG_DATE, dateToday);
+        values.put(CallAnalyticsTable.CALL_TYPE, emptyIfNull(callType));
+        values.put(CallAnalyticsTable.CALL_STATUS, emptyIfNull(callStatus));
+        values.put(CallAnalyticsTable.SLOT_ID, slotId);
+        values.put(CallAnalyticsTable.RAT, emptyIfNull(rat));
+        values.put(CallAnalyticsTable.FAILURE_REASON, emptyIfNull(failureReason));
+        values.put(CallAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
+        mTelephonyAnalyticsUtil.updateOrInsert(CallAnalyticsTable.TABLE_NAME, values,
+                success ? CALL_SUCCESS_KEY : CALL_FAILED_KEY, CallAnalyticsTable.COUNT);
+        deleteOldAndOverflowData();
     }
 
     /** Gets the count stored in the cursor object. */
@@ -19,9 +19,11 @@ package com.android.internal.telephony.analytics;
 import static android.os.Build.VERSION.INCREMENTAL;
 
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
+import static com.android.internal.telephony.analytics.TelephonyAnalyticsUtil.emptyIfNull;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.analytics.TelephonyAnalytics.ServiceStateAnalytics.TimeStampedServiceState;
@@ -61,23 +63,43 @@ public class ServiceStateAnalyticsProvider implements TelephonyAnalyticsProvider
                     + " TEXT "
                     + ");";
 
-    private static final String[] SERVICE_STATE_INSERTION_COLUMNS = {
-        ServiceStateAnalyticsTable._ID, ServiceStateAnalyticsTable.TIME_DURATION
+    private String mDateOfDeletedRecordsServiceStateTable;
+
+    private static final String[] SERVICE_STATE_KEY = {
+        ServiceStateAnalyticsTable.LOG_DATE,
+        ServiceStateAnalyticsTable.SLOT_ID,
+        ServiceStateAnalyticsTable.RAT,
+        ServiceStateAnalyticsTable.DEVICE_STATUS,
+        ServiceStateAnalyticsTable.RELEASE_VERSION
     };
 
-    private String mDateOfDeletedRecordsServiceStateTable;
+    private static final String SERVICE_STATE_KEY_COLUMNS = String.join(", ", SERVICE_STATE_KEY);
 
-    private static final String SERVICE_STATE_INSERTION_SELECTION =
-            ServiceStateAnalyticsTable.LOG_DATE
-                    + " = ? AND "
-                    + ServiceStateAnalyticsTable.SLOT_ID
-                    + " = ? AND "
-                    + ServiceStateAnalyticsTable.RAT
-                    + " = ? AND "
-                    + ServiceStateAnalyticsTable.DEVICE_STATUS
-                    + " = ? AND "
-                    + ServiceStateAnalyticsTable.RELEASE_VERSION
-                    + " = ? ";
+    private static final String CREATE_SERVICE_STATE_INDEX_QUERY =
+            "CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + ServiceStateAnalyticsTable.TABLE_NAME
+                    + "Key ON "
+                    + ServiceStateAnalyticsTable.TABLE_NAME
+                    + "("
+                    + SERVICE_STATE_KEY_COLUMNS
+                    + ");";
+
+    /** Adds the duration of a state to the duration of the same state on the same day. */
+    private static final String SERVICE_STATE_UPSERT =
+            "INSERT INTO "
+                    + ServiceStateAnalyticsTable.TABLE_NAME
+                    + "("
+                    + SERVICE_STATE_KEY_COLUMNS
+                    + ", "
+                    + ServiceStateAnalyticsTable.TIME_DURATION
+                    + ") VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT ("
+                    + SERVICE_STATE_KEY_COLUMNS
+                    + ") DO UPDATE SET "
+                    + ServiceStateAnalyticsTable.TIME_DURATION
+                    + " = "
+                    + ServiceStateAnalyticsTable.TIME_DURATION
+                    + " + excluded."
+                    + ServiceStateAnalyticsTable.TIME_DURATION;
 
     private static final String SERVICE_STATE_OVERFLOW_DATA_DELETION_SELECTION =
             ServiceStateAnalyticsTable._ID
@@ -96,6 +118,8 @@ public class ServiceStateAnalyticsProvider implements TelephonyAnalyticsProvider
     private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("0.00");
 
     private final int mSlotIndex;
+    /** Whether the unique index of the upsert exists, otherwise states are looked up. */
+    private final boolean mUpsertSupported;
 
     /**
      * Instantiates the ServiceStateAnalyticsProvider Object. Creates a table in the db for Storing
@@ -105,82 +129,50 @@ public class ServiceStateAnalyticsProvider implements TelephonyAnalyticsProvider
         mTelephonyAnalyticsUtil = databaseUtil;
         mSlotIndex = slotIndex;
         mTelephonyAnalyticsUtil.createTable(CREATE_SERVICE_STATE_TABLE_QUERY);
+        mUpsertSupported = mTelephonyAnalyticsUtil.createIndex(CREATE_SERVICE_STATE_INDEX_QUERY);
+        mTelephonyAnalyticsUtil.addRetentionTask(this::deleteOldAndOverflowData);
     }
 
-    private ContentValues getContentValues(
-            TelephonyAnalytics.ServiceStateAnalytics.TimeStampedServiceState lastState,
-            long endTimeStamp) {
-        ContentValues values = new ContentValues();
-        long timeInterval = endTimeStamp - lastState.mTimestampStart;
-        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
-        values.put(ServiceStateAnalyticsTable.LOG_DATE, dateToday);
-        values.put(ServiceStateAnalyticsTable.TIME_DURATION, timeInterval);
-        values.put(ServiceStateAnalyticsTable.SLOT_ID, lastState.mSlotIndex);
-        values.put(ServiceStateAnalyticsTable.RAT, lastState.mRAT);
-        values.put(ServiceStateAnalyticsTable.DEVICE_STATUS, lastState.mDeviceStatus);
-        values.put(ServiceStateAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
-
-        return values;
+    /**
+     * Merges the rows sharing the key of the unique index, which would fail its creation. NULL
+     * keys are stored as empty strings first, like the upserts write them.
+     */
+    static void mergeDuplicateRows(SQLiteDatabase db) {
+        TelephonyAnalyticsUtil.replaceNullWithEmpty(db, ServiceStateAnalyticsTable.TABLE_NAME,
+                new String[] {ServiceStateAnalyticsTable.RAT,
+                        ServiceStateAnalyticsTable.DEVICE_STATUS});
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, ServiceStateAnalyticsTable.TABLE_NAME,
+                SERVICE_STATE_KEY, null, ServiceStateAnalyticsTable.TIME_DURATION);
     }
 
-    /** Receives the data, processes it and sends it for insertion to db. */
+    /** Receives the data, processes it and queues it for insertion to db. */
     @VisibleForTesting
     public void insertDataToDb(TimeStampedServiceState lastState, long endTimeStamp) {
-        ContentValues values = getContentValues(lastState, endTimeStamp);
-        Rlog.d(TAG, "  " + values.toString() + "Time = " + System.currentTimeMillis());
-        String[] selectionArgs = {
-            values.getAsString(ServiceStateAnalyticsTable.LOG_DATE),
-            values.getAsString(ServiceStateAnalyticsTable.SLOT_ID),
-            values.getAsString(ServiceStateAnalyticsTable.RAT),
-            values.getAsString(ServiceStateAnalyticsTable.DEVICE_STATUS),
-            values.getAsString(ServiceStateAnalyticsTable.RELEASE_VERSION)
+        long timeInterval = endTimeStamp - lastState.mTimestampStart;
+        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
+        Object[] bindArgs = {
+            dateToday,
+            lastState.mSlotIndex,
+            emptyIfNull(lastState.mRAT),
+            emptyIfNull(lastState.mDeviceStatus),
+            INCREMENTAL,
+            timeInterval
         };
-        Cursor cursor = null;
-        try {
-            cursor =
-                    mTelephonyAnalyticsUtil.getCursor(
-                            ServiceStateAnalyticsTable.TABLE_NAME,
-                            SERVICE_STATE_INSERTION_COLUMNS,
-                            SERVICE_STATE_INSERTION_SELECTION,
-                            selectionArgs,
-                            null,
-                            null,
-                            null,
-                            null);
-            updateIfEntryExistsOtherwiseInsert(cursor, values);
-            deleteOldAndOverflowData();
-
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
-
-    private void updateIfEntryExistsOtherwiseInsert(Cursor cursor, ContentValues values) {
-        if (cursor != null && cursor.moveToFirst()) {
-            int idIndex = cursor.getColumnIndex(ServiceStateAnalyticsTable._ID);
-            int timeDurationIndex = cursor.getColumnIndex(ServiceStateAnalyticsTable.TIME_DURATION);
-            if (idIndex != -1 && timeDurationIndex != -1) {
-                int id = cursor.getInt(idIndex);
-                int oldTimeDuration = cursor.getInt(timeDurationIndex);
-                int updatedTimeDuration =
-                        oldTimeDuration
-                                + Integer.parseInt(
-                                        values.getAsString(
-                                                ServiceStateAnalyticsTable.TIME_DURATION));
-                String updateSelection = ServiceStateAnalyticsTable._ID + " = ? ";
-                String[] updateSelectionArgs = {Integer.toString(id)};
-                values.put(ServiceStateAnalyticsTable.TIME_DURATION, updatedTimeDuration);
-                mTelephonyAnalyticsUtil.update(
-                        ServiceStateAnalyticsTable.TABLE_NAME,
-                        values,
-                        updateSelection,
-                        updateSelectionArgs);
-            }
-        } else {
-            mTelephonyAnalyticsUtil.insert(ServiceStateAnalyticsTable.TABLE_NAME, values);
+        Rlog.d(TAG, "  " + lastState + " Duration = " + timeInterval);
+        if (mUpsertSupported) {
+            mTelephonyAnalyticsUtil.queueUpsert(SERVICE_STATE_UPSERT, bindArgs);
+            return;
         }
+        ContentValues values = new ContentValues();
+        values.put(ServiceStateAnalyticsTable.LOG_DATE, dateToday);
+        values.put(ServiceStateAnalyticsTable.SLOT_ID, lastState.mSlotIndex);
+        values.put(ServiceStateAnalyticsTable.RAT, emptyIfNull(lastState.mRAT));
+        values.put(ServiceStateAnalyticsTable.DEVICE_STATUS, emptyIfNull(lastState.mDeviceStatus));
+        values.put(ServiceStateAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
+        values.put(ServiceStateAnalyticsTable.TIME_DURATION, timeInterval);
+        mTelephonyAnalyticsUtil.updateOrInsert(ServiceStateAnalyticsTable.TABLE_NAME, values,
+                SERVICE_STATE_KEY, ServiceStateAnalyticsTable.TIME_DURATION);
+        deleteOldAndOverflowData();
     }
 
     private long getTotalUpTime() {
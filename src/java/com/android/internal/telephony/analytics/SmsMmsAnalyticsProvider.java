@@ -19,9 +19,11 @@ package com.android.internal.telephony.analytics;
 import static android.os.Build.VERSION.INCREMENTAL;
 
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
+import static com.android.internal.telephony.analytics.TelephonyAnalyticsUtil.emptyIfNull;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable;
@@ -103,59 +105,140 @@ public class SmsMmsAnalyticsProvider implements TelephonyAnalyticsProvider {
     }
 
     private final int mSlotIndex;
+    /** Whether the unique indexes of the upserts exist, otherwise events are looked up. */
+    private final boolean mUpsertSupported;
 
     public SmsMmsAnalyticsProvider(TelephonyAnalyticsUtil databaseUtil, int slotIndex) {
         mTelephonyAnalyticsUtil = databaseUtil;
         mSlotIndex = slotIndex;
         mTelephonyAnalyticsUtil.createTable(CREATE_SMS_MMS_ANALYTICS_TABLE);
+        mUpsertSupported = mTelephonyAnalyticsUtil.createIndex(CREATE_SMS_MMS_SUCCESS_INDEX)
+                && mTelephonyAnalyticsUtil.createIndex(CREATE_SMS_MMS_FAILURE_INDEX);
+        mTelephonyAnalyticsUtil.addRetentionTask(this::deleteOldAndOverflowData);
     }
 
-    private static final String[] SMS_MMS_INSERTION_PROJECTION = {
-            SmsMmsAnalyticsTable._ID, SmsMmsAnalyticsTable.COUNT
+    private static final String SMS_MMS_SUCCESS_INDEX_SELECTION =
+            SmsMmsAnalyticsTable.SMS_MMS_STATUS + " = '" + SmsMmsStatus.SUCCESS.value + "'";
+
+    private static final String SMS_MMS_FAILURE_INDEX_SELECTION =
+            SmsMmsAnalyticsTable.SMS_MMS_STATUS + " != '" + SmsMmsStatus.SUCCESS.value + "'";
+
+    /** Key of the successful Sms/Mms, which are counted regardless of RAT and failure reason. */
+    private static final String[] SMS_MMS_SUCCESS_KEY = {
+        SmsMmsAnalyticsTable.LOG_DATE,
+        SmsMmsAnalyticsTable.SMS_MMS_TYPE,
+        SmsMmsAnalyticsTable.SMS_MMS_STATUS,
+        SmsMmsAnalyticsTable.SLOT_ID
     };
 
-    private static final String SMS_MMS_INSERTION_SUCCESS_SELECTION =
-            SmsMmsAnalyticsTable.LOG_DATE
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SMS_MMS_TYPE
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SMS_MMS_STATUS
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SLOT_ID
-                    + " = ? ";
+    private static final String SMS_MMS_SUCCESS_KEY_COLUMNS =
+            String.join(", ", SMS_MMS_SUCCESS_KEY);
+
+    private static final String[] SMS_MMS_FAILURE_KEY = {
+        SmsMmsAnalyticsTable.LOG_DATE,
+        SmsMmsAnalyticsTable.SMS_MMS_STATUS,
+        SmsMmsAnalyticsTable.SMS_MMS_TYPE,
+        SmsMmsAnalyticsTable.RAT,
+        SmsMmsAnalyticsTable.SLOT_ID,
+        SmsMmsAnalyticsTable.FAILURE_REASON,
+        SmsMmsAnalyticsTable.RELEASE_VERSION
+    };
+
+    private static final String SMS_MMS_FAILURE_KEY_COLUMNS =
+            String.join(", ", SMS_MMS_FAILURE_KEY);
+
+    private static final String CREATE_SMS_MMS_SUCCESS_INDEX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + SmsMmsAnalyticsTable.TABLE_NAME
+                    + "SuccessKey ON "
+                    + SmsMmsAnalyticsTable.TABLE_NAME
+                    + "("
+                    + SMS_MMS_SUCCESS_KEY_COLUMNS
+                    + ") WHERE "
+                    + SMS_MMS_SUCCESS_INDEX_SELECTION
+                    + ";";
+
+    private static final String CREATE_SMS_MMS_FAILURE_INDEX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + SmsMmsAnalyticsTable.TABLE_NAME
+                    + "FailureKey ON "
+                    + SmsMmsAnalyticsTable.TABLE_NAME
+                    + "("
+                    + SMS_MMS_FAILURE_KEY_COLUMNS
+                    + ") WHERE "
+                    + SMS_MMS_FAILURE_INDEX_SELECTION
+                    + ";";
 
-    private static final String SMS_MMS_INSERTION_FAILURE_SELECTION =
-            SmsMmsAnalyticsTable.LOG_DATE
-                    + " = ? AND "
+    private static final String SMS_MMS_INSERTION =
+            "INSERT INTO "
+                    + SmsMmsAnalyticsTable.TABLE_NAME
+                    + "("
+                    + SmsMmsAnalyticsTable.LOG_DATE
+                    + ", "
                     + SmsMmsAnalyticsTable.SMS_MMS_STATUS
-                    + " = ? AND "
+                    + ", "
                     + SmsMmsAnalyticsTable.SMS_MMS_TYPE
-                    + " = ? AND "
+                    + ", "
                     + SmsMmsAnalyticsTable.RAT
-                    + " = ? AND "
+                    + ", "
                     + SmsMmsAnalyticsTable.SLOT_ID
-                    + " = ? AND "
+                    + ", "
+                    + SmsMmsAnalyticsTable.FAILURE_REASON
+                    + ", "
+                    + SmsMmsAnalyticsTable.RELEASE_VERSION
+                    + ") VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT (";
+
+    /** Counts a successful Sms/Mms, keeping the RAT and version of the last one like before. */
+    private static final String SMS_MMS_SUCCESS_UPSERT =
+            SMS_MMS_INSERTION
+                    + SMS_MMS_SUCCESS_KEY_COLUMNS
+                    + ") WHERE "
+                    + SMS_MMS_SUCCESS_INDEX_SELECTION
+                    + " DO UPDATE SET "
+                    + SmsMmsAnalyticsTable.COUNT
+                    + " = "
+                    + SmsMmsAnalyticsTable.COUNT
+                    + " + 1, "
+                    + SmsMmsAnalyticsTable.RAT
+                    + " = excluded."
+                    + SmsMmsAnalyticsTable.RAT
+                    + ", "
+                    + SmsMmsAnalyticsTable.FAILURE_REASON
+                    + " = excluded."
                     + SmsMmsAnalyticsTable.FAILURE_REASON
-                    + " = ? AND "
+                    + ", "
                     + SmsMmsAnalyticsTable.RELEASE_VERSION
-                    + " = ? ";
+                    + " = excluded."
+                    + SmsMmsAnalyticsTable.RELEASE_VERSION;
+
+    private static final String SMS_MMS_FAILURE_UPSERT =
+            SMS_MMS_INSERTION
+                    + SMS_MMS_FAILURE_KEY_COLUMNS
+                    + ") WHERE "
+                    + SMS_MMS_FAILURE_INDEX_SELECTION
+                    + " DO UPDATE SET "
+                    + SmsMmsAnalyticsTable.COUNT
+                    + " = "
+                    + SmsMmsAnalyticsTable.COUNT
+                    + " + 1";
 
-    private ContentValues getContentValues(
-            String status, String smsMmsType, String rat, String failureReason) {
-        ContentValues values = new ContentValues();
-        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
-        values.put(SmsMmsAnalyticsTable.LOG_DATE, dateToday);
-        values.put(SmsMmsAnalyticsTable.SMS_MMS_STATUS, status);
-        values.put(SmsMmsAnalyticsTable.SMS_MMS_TYPE, smsMmsType);
-        values.put(SmsMmsAnalyticsTable.RAT, rat);
-        values.put(SmsMmsAnalyticsTable.SLOT_ID, mSlotIndex);
-        values.put(SmsMmsAnalyticsTable.FAILURE_REASON, failureReason);
-        values.put(SmsMmsAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
-        return values;
+    /**
+     * Merges the rows sharing a key of the unique indexes, which would fail their creation. NULL
+     * keys are stored as empty strings first, like the upserts write them.
+     */
+    static void mergeDuplicateRows(SQLiteDatabase db) {
+        TelephonyAnalyticsUtil.replaceNullWithEmpty(db, SmsMmsAnalyticsTable.TABLE_NAME,
+                new String[] {SmsMmsAnalyticsTable.SMS_MMS_STATUS,
+                        SmsMmsAnalyticsTable.SMS_MMS_TYPE, SmsMmsAnalyticsTable.RAT,
+                        SmsMmsAnalyticsTable.FAILURE_REASON});
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, SmsMmsAnalyticsTable.TABLE_NAME,
+                SMS_MMS_SUCCESS_KEY, SMS_MMS_SUCCESS_INDEX_SELECTION, SmsMmsAnalyticsTable.COUNT);
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, SmsMmsAnalyticsTable.TABLE_NAME,
+                SMS_MMS_FAILURE_KEY, SMS_MMS_FAILURE_INDEX_SELECTION, SmsMmsAnalyticsTable.COUNT);
     }
 
     /**
-     * Processes the received data for insertion to the database.
+     * Processes the received data and queues it for insertion to the database.
      *
      * @param status : SMS Status ,i.e. Success or Failure
      * @param smsMmsType : Type ,i.e. outgoing/incoming
@@ -164,95 +247,36 @@ public class SmsMmsAnalyticsProvider implements TelephonyAnalyticsProvider {
      */
     @VisibleForTesting
     public void insertDataToDb(String status, String smsMmsType, String rat, String failureReason) {
-        ContentValues values = getContentValues(status, smsMmsType, rat, failureReason);
-        Rlog.d(TAG, values.toString());
-        Cursor cursor = null;
-        String[] selectionArgs;
-        try {
-            if (values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_STATUS)
-                    .equals(SmsMmsStatus.SUCCESS.value)) {
-                Rlog.d(TAG, "Success Entry Data for Sms/Mms: " + values.toString());
-                selectionArgs =
-                        new String[] {
-                                values.getAsString(SmsMmsAnalyticsTable.LOG_DATE),
-                                values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_TYPE),
-                                values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_STATUS),
-                                values.getAsString(SmsMmsAnalyticsTable.SLOT_ID)
-                        };
-                cursor =
-                        mTelephonyAnalyticsUtil.getCursor(
-                                SmsMmsAnalyticsTable.TABLE_NAME,
-                                SMS_MMS_INSERTION_PROJECTION,
-                                SMS_MMS_INSERTION_SUCCESS_SELECTION,
-                                selectionArgs,
-                                null,
-                                null,
-                                null,
-                                null);
-
-            } else {
-                selectionArgs =
-                        new String[] {
-                                values.getAsString(SmsMmsAnalyticsTable.LOG_DATE),
-                                values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_STATUS),
-                                values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_TYPE),
-                                values.getAsString(SmsMmsAnalyticsTable.RAT),
-                                values.getAsString(SmsMmsAnalyticsTable.SLOT_ID),
-                                values.getAsString(SmsMmsAnalyticsTable.FAILURE_REASON),
-                                values.getAsString(SmsMmsAnalyticsTable.RELEASE_VERSION)
-                        };
-                cursor =
-                        mTelephonyAnalyticsUtil.getCursor(
-                                SmsMmsAnalyticsTable.TABLE_NAME,
-                                SMS_MMS_INSERTION_PROJECTION,
-                                SMS_MMS_INSERTION_FAILURE_SELECTION,
-                                selectionArgs,
-                                null,
-                                null,
-                                null,
-                                null);
-            }
-            updateIfEntryExistsOtherwiseInsert(cursor, values);
-            deleteOldAndOverflowData();
-        } catch (Exception e) {
-            Rlog.e(TAG, "Exception during Sms/Mms Insertion [insertDataToDb()] " + e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
+        Object[] bindArgs = {
+            dateToday,
+            emptyIfNull(status),
+            emptyIfNull(smsMmsType),
+            emptyIfNull(rat),
+            mSlotIndex,
+            emptyIfNull(failureReason),
+            INCREMENTAL
+        };
+        boolean success = SmsMmsStatus.SUCCESS.value.equals(status);
+        if (success) {
+            Rlog.d(TAG, "Success Entry Data for Sms/Mms: " + smsMmsType);
         }
-
-    }
-
-    /**
-     * Checks if a similar entry exists and updates the existing entry. Otherwise, inserts a new
-     * entry.
-     */
-    @VisibleForTesting
-    public void updateIfEntryExistsOtherwiseInsert(Cursor cursor, ContentValues values) {
-        if (cursor != null && cursor.moveToFirst()) {
-            int idColumnIndex = cursor.getColumnIndex(SmsMmsAnalyticsTable._ID);
-            int countColumnIndex = cursor.getColumnIndex(SmsMmsAnalyticsTable.COUNT);
-            if (idColumnIndex != -1 && countColumnIndex != -1) {
-                int id = cursor.getInt(idColumnIndex);
-                int count = cursor.getInt(countColumnIndex);
-                int newCount = count + 1;
-
-                values.put(SmsMmsAnalyticsTable.COUNT, newCount);
-
-                String updateSelection = SmsMmsAnalyticsTable._ID + " = ? ";
-                String[] updateSelectionArgs = {String.valueOf(id)};
-                Rlog.d(TAG, "Updated Count = " + values.getAsString(SmsMmsAnalyticsTable.COUNT));
-
-                mTelephonyAnalyticsUtil.update(
-                        SmsMmsAnalyticsTable.TABLE_NAME,
-                        values,
-                        updateSelection,
-                        updateSelectionArgs);
-            }
-        } else {
-            mTelephonyAnalyticsUtil.insert(SmsMmsAnalyticsTable.TABLE_NAME, values);
+        if (mUpsertSupported) {
+            mTelephonyAnalyticsUtil.queueUpsert(
+                    success ? SMS_MMS_SUCCESS_UPSERT : SMS_MMS_FAILURE_UPSERT, bindArgs);
+            return;
         }
+        ContentValues values = new ContentValues();
+        values.put(SmsMmsAnalyticsTable.LOG_DATE, dateToday);
+        values.put(SmsMmsAnalyticsTable.SMS_MMS_STATUS, emptyIfNull(status));
+        values.put(SmsMmsAnalyticsTable.SMS_MMS_TYPE, emptyIfNull(smsMmsType));
+        values.put(SmsMmsAnalyticsTable.RAT, emptyIfNull(rat));
+        values.put(SmsMmsAnalyticsTable.SLOT_ID, mSlotIndex);
+        values.put(SmsMmsAnalyticsTable.FAILURE_REASON, emptyIfNull(failureReason));
+        values.put(SmsMmsAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
+        mTelephonyAnalyticsUtil.updateOrInsert(SmsMmsAnalyticsTable.TABLE_NAME, values,
+                success ? SMS_MMS_SUCCESS_KEY : SMS_MMS_FAILURE_KEY, SmsMmsAnalyticsTable.COUNT);
+        deleteOldAndOverflowData();
     }
 
     /** Gets the count from the cursor */
@@ -18,33 +18,81 @@ package com.android.internal.telephony.analytics;
 
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
 
+import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.provider.BaseColumns;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.telephony.Rlog;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Singleton Utility class to support TelephonyAnalytics Extends SQLiteOpenHelper class. Supports db
  * related operations which includes creating tables,insertion,updation,deletion. Supports some
  * generic functionality like getting the Cursor resulting from a query.
+ * <p/>
+ * Events are written with upserts queued by {@link #queueUpsert}, which are committed together in
+ * one transaction when {@link #FLUSH_INTERVAL_MILLIS} elapsed after the first queued upsert, when
+ * {@link #MAX_PENDING_UPSERTS} are queued, or before any query. The retention tasks added by
+ * {@link #addRetentionTask} run after each flush instead of after each event. Providers whose
+ * unique index can't be created fall back to {@link #updateOrInsert}.
  */
 public class TelephonyAnalyticsUtil extends SQLiteOpenHelper {
     private static TelephonyAnalyticsUtil sTelephonyAnalyticsUtil;
     private static final String DATABASE_NAME = "telephony_analytics.db";
-    private static final int DATABASE_VERSION = 10;
+    private static final int DATABASE_VERSION = 11;
     private static final String TAG = TelephonyAnalyticsUtil.class.getSimpleName();
     private static final int MAX_ENTRIES_LIMIT = 1000;
     private static final int CUTOFF_MONTHS = 2;
+    @VisibleForTesting
+    static final long FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    @VisibleForTesting
+    static final int MAX_PENDING_UPSERTS = 64;
+
+    /** An upsert waiting for the next flush. */
+    private static final class PendingUpsert {
+        final String mSql;
+        final Object[] mBindArgs;
+
+        PendingUpsert(String sql, Object[] bindArgs) {
+            mSql = sql;
+            mBindArgs = bindArgs;
+        }
+    }
+
+    private final Handler mHandler;
+    private final List<PendingUpsert> mPendingUpserts = new ArrayList<>();
+    private final List<Runnable> mRetentionTasks = new ArrayList<>();
+    private final Runnable mFlushRunnable = this::flush;
 
     private TelephonyAnalyticsUtil(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, startHandlerThread());
+    }
+
+    @VisibleForTesting
+    TelephonyAnalyticsUtil(Context context, String databaseName, Looper looper) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        mHandler = new Handler(looper);
+    }
+
+    private static Looper startHandlerThread() {
+        HandlerThread handlerThread = new HandlerThread(TAG);
+        handlerThread.start();
+        return handlerThread.getLooper();
     }
 
     /**
@@ -64,7 +112,75 @@ public class TelephonyAnalyticsUtil extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {}
 
     @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 11) {
+            // Rows logged before version 11 may repeat a key of the unique indexes the upserts
+            // rely on, which would fail the index creation, and may have NULL keys, which the
+            // upserts write as empty strings.
+            CallAnalyticsProvider.mergeDuplicateRows(db);
+            SmsMmsAnalyticsProvider.mergeDuplicateRows(db);
+            ServiceStateAnalyticsProvider.mergeDuplicateRows(db);
+        }
+    }
+
+    /**
+     * Replaces NULL with an empty string in text columns, as written by the upserts through
+     * {@link #emptyIfNull}, so that rows logged before version 11 match the upserts of the same
+     * key and are merged by {@link #mergeDuplicateRows}.
+     *
+     * @param db : The database being upgraded.
+     * @param tableName : The table to update, skipped if it doesn't exist yet.
+     * @param columns : The text columns of the unique indexes.
+     */
+    @VisibleForTesting
+    public static void replaceNullWithEmpty(@NonNull SQLiteDatabase db, @NonNull String tableName,
+            @NonNull String[] columns) {
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?",
+                new String[] {tableName}) == 0) {
+            return;
+        }
+        for (String column : columns) {
+            db.execSQL("UPDATE " + tableName + " SET " + column + " = '' WHERE " + column
+                    + " IS NULL");
+        }
+    }
+
+    /**
+     * Merges the rows of a table sharing the same key into the first of them, summing their
+     * {@code sumColumn}.
+     *
+     * @param db : The database being upgraded.
+     * @param tableName : The table to merge, skipped if it doesn't exist yet.
+     * @param keyColumns : The columns of the unique index.
+     * @param selection : The condition of a partial unique index, or null.
+     * @param sumColumn : The column summed into the kept row.
+     */
+    @VisibleForTesting
+    public static void mergeDuplicateRows(@NonNull SQLiteDatabase db, @NonNull String tableName,
+            @NonNull String[] keyColumns, @Nullable String selection, @NonNull String sumColumn) {
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?",
+                new String[] {tableName}) == 0) {
+            return;
+        }
+        String where = selection != null ? selection : "1";
+        String keptRows = "SELECT MIN(" + BaseColumns._ID + ") FROM " + tableName
+                + " WHERE " + where + " GROUP BY " + String.join(", ", keyColumns);
+        StringBuilder sameKey = new StringBuilder();
+        for (String column : keyColumns) {
+            sameKey.append(" AND duplicate.").append(column).append(" IS ").append(tableName)
+                    .append('.').append(column);
+        }
+        db.execSQL("UPDATE " + tableName + " SET " + sumColumn + " = (SELECT SUM(duplicate."
+                + sumColumn + ") FROM " + tableName + " AS duplicate WHERE " + where + sameKey
+                + ") WHERE " + BaseColumns._ID + " IN (" + keptRows + ")");
+        db.execSQL("DELETE FROM " + tableName + " WHERE " + where + " AND " + BaseColumns._ID
+                + " NOT IN (" + keptRows + ")");
+    }
+
+    /** @return The given value, or an empty string for null, which never matches a key. */
+    public static String emptyIfNull(String value) {
+        return value != null ? value : "";
+    }
 
     /**
      * Uses Util class functionality to create CallTable in db
@@ -81,6 +197,118 @@ public class TelephonyAnalyticsUtil extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Creates an index, e.g. the unique index an upsert uses as its conflict target.
+     *
+     * @param createIndexQuery : Index Schema
+     * @return Whether the index exists, otherwise upserts on it would fail.
+     */
+    public synchronized boolean createIndex(String createIndexQuery) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.execSQL(createIndexQuery);
+            return true;
+        } catch (Exception e) {
+            Rlog.e(TAG, "Error during index creation : " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Queues an upsert, i.e. an {@code INSERT ... ON CONFLICT DO UPDATE} statement, to be
+     * committed with the other queued upserts at the next flush.
+     *
+     * @param sql : The upsert statement.
+     * @param bindArgs : The values of the statement parameters.
+     */
+    public synchronized void queueUpsert(String sql, Object[] bindArgs) {
+        mPendingUpserts.add(new PendingUpsert(sql, bindArgs));
+        if (mPendingUpserts.size() >= MAX_PENDING_UPSERTS) {
+            flush();
+        } else if (mPendingUpserts.size() == 1) {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Adds a task run after each flush, to delete old and overflow data periodically rather than
+     * after each event.
+     */
+    public synchronized void addRetentionTask(Runnable task) {
+        mRetentionTasks.add(task);
+    }
+
+    /** Commits the queued upserts in one transaction, then runs the retention tasks. */
+    @VisibleForTesting
+    public synchronized void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mPendingUpserts.isEmpty()) return;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (PendingUpsert upsert : mPendingUpserts) {
+                    db.execSQL(upsert.mSql, upsert.mBindArgs);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Rlog.e(TAG, "Error during flush of " + mPendingUpserts.size() + " upserts " + e);
+        } finally {
+            mPendingUpserts.clear();
+        }
+        for (Runnable task : mRetentionTasks) {
+            task.run();
+        }
+    }
+
+    /** @return The number of queued upserts. */
+    @VisibleForTesting
+    public synchronized int getPendingUpsertCount() {
+        return mPendingUpserts.size();
+    }
+
+    /**
+     * Adds an event to the row with the same key, or inserts it, without relying on a unique
+     * index. Used when the index of the upserts couldn't be created.
+     *
+     * @param tableName : The table to write.
+     * @param values : The values of the event, including the key columns.
+     * @param keyColumns : The columns identifying the row of the event.
+     * @param sumColumn : The column the event adds to, by its value in {@code values} or by 1.
+     */
+    public synchronized void updateOrInsert(String tableName, ContentValues values,
+            String[] keyColumns, String sumColumn) {
+        String[] keyValues = new String[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyValues[i] = values.getAsString(keyColumns[i]);
+        }
+        long amount = values.containsKey(sumColumn) ? values.getAsLong(sumColumn) : 1;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            cursor = db.query(tableName, new String[] {BaseColumns._ID, sumColumn},
+                    String.join(" = ? AND ", keyColumns) + " = ?", keyValues,
+                    null, null, null, "1");
+            if (cursor.moveToFirst()) {
+                values.put(sumColumn, cursor.getLong(1) + amount);
+                db.update(tableName, values, BaseColumns._ID + " = ?",
+                        new String[] {cursor.getString(0)});
+            } else {
+                values.put(sumColumn, amount);
+                db.insert(tableName, null, values);
+            }
+        } catch (SQLException e) {
+            Rlog.e(TAG, "Error during update or insertion " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /** Utility function that performs insertion on the given database table */
     @VisibleForTesting
     public synchronized void insert(String tableName, ContentValues values) {
@@ -122,6 +350,8 @@ public class TelephonyAnalyticsUtil extends SQLiteOpenHelper {
             String limit) {
 
         Cursor cursor = null;
+        // Queries see the queued events
+        flush();
         try {
             SQLiteDatabase db = getReadableDatabase();
             cursor =
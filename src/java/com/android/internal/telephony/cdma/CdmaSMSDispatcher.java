@@ -71,6 +71,11 @@ public class CdmaSMSDispatcher extends SMSDispatcher {
         }
     }
 
+    @Override
+    protected boolean isSendSchedulerSupported() {
+        return true;
+    }
+
     @Override
     protected boolean shouldBlockSmsForEcbm() {
         // We only block outgoing SMS during ECBM when using CDMA.
@@ -130,6 +135,7 @@ public class CdmaSMSDispatcher extends SMSDispatcher {
         if (!isIms() && ss != ServiceState.STATE_IN_SERVICE) {
             tracker.onFailed(mContext, getNotInServiceError(ss), NO_ERROR_CODE);
             notifySmsSentFailedToEmergencyStateTracker(tracker, false);
+            onSmsNotSentToModem(tracker);
             return;
         }
 
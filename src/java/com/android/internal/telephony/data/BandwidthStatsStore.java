@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.data;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.SharedPreferences;
+import android.util.AtomicFile;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.telephony.Rlog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory store of the accumulated link bandwidth stats of each network, persisted to a binary
+ * file.
+ *
+ * <p>The stats are updated in memory for every bandwidth sample, and the owner decides when to
+ * write them out with {@link #flush()}, so that traffic polling does not cause disk I/O. The
+ * store keeps the most recently used networks only, so it does not grow without bound as the
+ * device moves across cells.
+ *
+ * <p>The stats used to be kept in the default shared preferences, with one value and one count
+ * key per network, link direction and signal level. When there is no file yet, those keys are
+ * imported, and deleted once the imported stats were written to the file.
+ *
+ * <p>The stats are learned on all SIMs, so one store is shared by the {@link
+ * LinkBandwidthEstimator} of every phone, and its methods are synchronized.
+ */
+public class BandwidthStatsStore {
+    private static final String TAG = BandwidthStatsStore.class.getSimpleName();
+
+    /** Version of the file format. */
+    private static final int FILE_VERSION = 1;
+
+    /** Key of a legacy stat, e.g. "Plmn310260RatLTETac1Link0Level2Data". */
+    private static final Pattern LEGACY_KEY_PATTERN =
+            Pattern.compile("(Plmn.+)Link(\\d)Level(\\d)(Data|Count)");
+
+    /** Stats of one network, indexed by link direction and signal level. */
+    private static final class Stats {
+        final long[] mValues =
+                new long[LinkBandwidthEstimator.NUM_LINK_DIRECTION
+                        * LinkBandwidthEstimator.NUM_SIGNAL_LEVEL];
+        final int[] mCounts = new int[mValues.length];
+    }
+
+    @Nullable private final File mFile;
+    @Nullable private final SharedPreferences mLegacyPrefs;
+    private final int mMaxNetworks;
+
+    /** Stats by network key, in access order. */
+    private final LinkedHashMap<String, Stats> mStats;
+
+    /** Legacy preference keys imported into the store, deleted after the next write. */
+    @Nullable private List<String> mLegacyKeys;
+
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    /**
+     * @param file The file to persist the stats to, {@code null} to keep them in memory only.
+     * @param maxNetworks The maximum number of networks to keep stats for.
+     */
+    public BandwidthStatsStore(@Nullable File file, int maxNetworks) {
+        this(file, null, maxNetworks);
+    }
+
+    /**
+     * @param file The file to persist the stats to, {@code null} to keep them in memory only.
+     * @param legacyPrefs The shared preferences the stats used to be kept in, imported if there
+     * is no file yet.
+     * @param maxNetworks The maximum number of networks to keep stats for.
+     */
+    public BandwidthStatsStore(@Nullable File file, @Nullable SharedPreferences legacyPrefs,
+            int maxNetworks) {
+        mFile = file;
+        mLegacyPrefs = legacyPrefs;
+        mMaxNetworks = maxNetworks;
+        mStats = new LinkedHashMap<>(16, 0.75f, true /* accessOrder */) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stats> eldest) {
+                return size() > mMaxNetworks;
+            }
+        };
+    }
+
+    /**
+     * Add a bandwidth sample to the stats of a network.
+     *
+     * @param key The key of the network.
+     * @param link The link direction.
+     * @param level The signal level.
+     * @param value The bandwidth in kbps.
+     */
+    public synchronized void add(@NonNull String key, int link, int level, long value) {
+        loadIfNeeded();
+        Stats stats = mStats.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(key, stats);
+        }
+        int index = getIndex(link, level);
+        stats.mValues[index] += value;
+        stats.mCounts[index]++;
+        mDirty = true;
+    }
+
+    /**
+     * @return The accumulated bandwidth of a network.
+     */
+    public synchronized long getValue(@NonNull String key, int link, int level) {
+        loadIfNeeded();
+        Stats stats = mStats.get(key);
+        return stats != null ? stats.mValues[getIndex(link, level)] : 0;
+    }
+
+    /**
+     * @return The number of bandwidth samples of a network.
+     */
+    public synchronized int getCount(@NonNull String key, int link, int level) {
+        loadIfNeeded();
+        Stats stats = mStats.get(key);
+        return stats != null ? stats.mCounts[getIndex(link, level)] : 0;
+    }
+
+    /**
+     * @return {@code true} if there are changes not written to the file yet.
+     */
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * @return The number of networks in the store.
+     */
+    @VisibleForTesting
+    public synchronized int size() {
+        loadIfNeeded();
+        return mStats.size();
+    }
+
+    /**
+     * Write the stats to the file if they changed since the last flush.
+     */
+    public synchronized void flush() {
+        if (!mDirty) return;
+        mDirty = false;
+        if (mFile == null) return;
+
+        AtomicFile file = new AtomicFile(mFile);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mStats.size());
+            // Least recently used first, so that loading preserves the order.
+            for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+                out.writeUTF(entry.getKey());
+                Stats stats = entry.getValue();
+                for (int i = 0; i < stats.mValues.length; i++) {
+                    out.writeLong(stats.mValues[i]);
+                    out.writeInt(stats.mCounts[i]);
+                }
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Rlog.e(TAG, "Failed to write bandwidth stats", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+            return;
+        }
+        deleteLegacyKeys();
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) return;
+        mLoaded = true;
+        if (mFile == null) return;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new AtomicFile(mFile).openRead()))) {
+            if (in.readInt() != FILE_VERSION) {
+                Rlog.w(TAG, "Unknown bandwidth stats version, ignored");
+                return;
+            }
+            int size = in.readInt();
+            for (int n = 0; n < size; n++) {
+                String key = in.readUTF();
+                Stats stats = new Stats();
+                for (int i = 0; i < stats.mValues.length; i++) {
+                    stats.mValues[i] = in.readLong();
+                    stats.mCounts[i] = in.readInt();
+                }
+                mStats.put(key, stats);
+            }
+        } catch (FileNotFoundException e) {
+            // No stats saved yet
+            importLegacyPrefs();
+        } catch (IOException e) {
+            Rlog.e(TAG, "Failed to read bandwidth stats", e);
+            mStats.clear();
+        }
+    }
+
+    /**
+     * Import the stats kept in the legacy shared preferences. The keys are only deleted once the
+     * stats were written to the file, so that a failed write does not lose them.
+     */
+    private void importLegacyPrefs() {
+        if (mLegacyPrefs == null) return;
+
+        List<String> legacyKeys = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : mLegacyPrefs.getAll().entrySet()) {
+            Matcher matcher = LEGACY_KEY_PATTERN.matcher(entry.getKey());
+            if (!matcher.matches() || !(entry.getValue() instanceof Number)) continue;
+            int link = Integer.parseInt(matcher.group(2));
+            int level = Integer.parseInt(matcher.group(3));
+            if (link >= LinkBandwidthEstimator.NUM_LINK_DIRECTION
+                    || level >= LinkBandwidthEstimator.NUM_SIGNAL_LEVEL) {
+                continue;
+            }
+            Stats stats = mStats.get(matcher.group(1));
+            if (stats == null) {
+                stats = new Stats();
+                mStats.put(matcher.group(1), stats);
+            }
+            Number value = (Number) entry.getValue();
+            if (matcher.group(4).equals("Data")) {
+                stats.mValues[getIndex(link, level)] = value.longValue();
+            } else {
+                stats.mCounts[getIndex(link, level)] = value.intValue();
+            }
+            legacyKeys.add(entry.getKey());
+        }
+        if (!legacyKeys.isEmpty()) {
+            Rlog.d(TAG, "Imported " + legacyKeys.size() + " legacy bandwidth stats");
+            mLegacyKeys = legacyKeys;
+            mDirty = true;
+        }
+    }
+
+    private void deleteLegacyKeys() {
+        if (mLegacyKeys == null) return;
+
+        SharedPreferences.Editor editor = mLegacyPrefs.edit();
+        for (String key : mLegacyKeys) {
+            editor.remove(key);
+        }
+        editor.apply();
+        mLegacyKeys = null;
+    }
+
+    private static int getIndex(int link, int level) {
+        return link * LinkBandwidthEstimator.NUM_SIGNAL_LEVEL + level;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BandwidthStatsStore{networks=" + mStats.size() + ", dirty=" + mDirty + "}";
+    }
+}
@@ -25,9 +25,7 @@ import android.telephony.data.DataProfile;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 /**
  * The class to describe a data evaluation for whether allowing or disallowing certain operations
@@ -38,8 +36,27 @@ public class DataEvaluation {
     /** The reason for this evaluation */
     private final @NonNull DataEvaluationReason mDataEvaluationReason;
 
-    /** Data disallowed reasons. There could be multiple reasons for not allowing data. */
-    private final @NonNull Set<DataDisallowedReason> mDataDisallowedReasons = new HashSet<>();
+    /** All the disallowed reasons. */
+    private static final DataDisallowedReason[] DATA_DISALLOWED_REASONS =
+            DataDisallowedReason.values();
+
+    /** Bitmask of the hard disallowed reasons. */
+    private static final long HARD_DATA_DISALLOWED_REASONS;
+
+    static {
+        long hardReasons = 0;
+        for (DataDisallowedReason reason : DATA_DISALLOWED_REASONS) {
+            if (reason.isHardReason()) hardReasons |= reason.getBit();
+        }
+        HARD_DATA_DISALLOWED_REASONS = hardReasons;
+    }
+
+    /**
+     * Bitmask of data disallowed reasons. There could be multiple reasons for not allowing data.
+     *
+     * @see DataDisallowedReason#getBit()
+     */
+    private long mDataDisallowedReasons;
 
     /** Data allowed reason. It is intended to only have one allowed reason. */
     private @NonNull DataAllowedReason mDataAllowedReason = DataAllowedReason.NONE;
@@ -65,8 +82,19 @@ public class DataEvaluation {
      * @param reason Disallowed reason.
      */
     public void addDataDisallowedReason(DataDisallowedReason reason) {
+        addDataDisallowedReasons(reason.getBit());
+    }
+
+    /**
+     * Add data disallowed reasons. Note that adding disallowed reasons will clean up the
+     * allowed reason because they are mutual exclusive.
+     *
+     * @param reasons Bitmask of disallowed reasons. Nothing is added if it's 0.
+     */
+    public void addDataDisallowedReasons(long reasons) {
+        if (reasons == 0) return;
         mDataAllowedReason = DataAllowedReason.NONE;
-        mDataDisallowedReasons.add(reason);
+        mDataDisallowedReasons |= reasons;
         mEvaluatedTime = System.currentTimeMillis();
     }
 
@@ -76,7 +104,7 @@ public class DataEvaluation {
      * @param reason Disallowed reason.
      */
     public void removeDataDisallowedReason(DataDisallowedReason reason) {
-        mDataDisallowedReasons.remove(reason);
+        mDataDisallowedReasons &= ~reason.getBit();
         mEvaluatedTime = System.currentTimeMillis();
     }
 
@@ -87,7 +115,7 @@ public class DataEvaluation {
      * @param reason Allowed reason.
      */
     public void addDataAllowedReason(DataAllowedReason reason) {
-        mDataDisallowedReasons.clear();
+        mDataDisallowedReasons = 0;
 
         // Only higher priority allowed reason can overwrite the old one. See
         // DataAllowedReason for the oder.
@@ -98,10 +126,24 @@ public class DataEvaluation {
     }
 
     /**
-     * @return List of data disallowed reasons.
+     * @return List of data disallowed reasons, in the order of {@link DataDisallowedReason}.
      */
     public @NonNull List<DataDisallowedReason> getDataDisallowedReasons() {
-        return new ArrayList<>(mDataDisallowedReasons);
+        List<DataDisallowedReason> reasons = new ArrayList<>(
+                Long.bitCount(mDataDisallowedReasons));
+        for (DataDisallowedReason reason : DATA_DISALLOWED_REASONS) {
+            if (contains(reason)) reasons.add(reason);
+        }
+        return reasons;
+    }
+
+    /**
+     * @return Bitmask of data disallowed reasons.
+     *
+     * @see DataDisallowedReason#getBit()
+     */
+    public long getDataDisallowedReasonsBitmask() {
+        return mDataDisallowedReasons;
     }
 
     /**
@@ -131,7 +173,7 @@ public class DataEvaluation {
      * @return {@code true} if the evaluation contains disallowed reasons.
      */
     public boolean containsDisallowedReasons() {
-        return mDataDisallowedReasons.size() != 0;
+        return mDataDisallowedReasons != 0;
     }
 
     /**
@@ -141,7 +183,7 @@ public class DataEvaluation {
      * @return {@code true} if the provided reason matches one of the disallowed reasons.
      */
     public boolean contains(DataDisallowedReason reason) {
-        return mDataDisallowedReasons.contains(reason);
+        return (mDataDisallowedReasons & reason.getBit()) != 0;
     }
 
     /**
@@ -151,7 +193,7 @@ public class DataEvaluation {
      * @return {@code true} if the given reason is the only one that prevents data connection
      */
     public boolean containsOnly(DataDisallowedReason reason) {
-        return mDataDisallowedReasons.size() == 1 && contains(reason);
+        return mDataDisallowedReasons == reason.getBit();
     }
 
     /**
@@ -162,11 +204,7 @@ public class DataEvaluation {
      * reasons.
      */
     public boolean isSubsetOf(DataDisallowedReason... reasons) {
-        int matched = 0;
-        for (DataDisallowedReason requestedReason : reasons) {
-            if (mDataDisallowedReasons.contains(requestedReason)) matched++;
-        }
-        return matched == mDataDisallowedReasons.size();
+        return (mDataDisallowedReasons & ~toBitmask(reasons)) == 0;
     }
 
     /**
@@ -176,10 +214,7 @@ public class DataEvaluation {
      * @return {@code true} if any of the given reasons matches one of the disallowed reasons.
      */
     public boolean containsAny(DataDisallowedReason... reasons) {
-        for (DataDisallowedReason reason : reasons) {
-            if (mDataDisallowedReasons.contains(reason)) return true;
-        }
-        return false;
+        return (mDataDisallowedReasons & toBitmask(reasons)) != 0;
     }
 
     /**
@@ -196,12 +231,27 @@ public class DataEvaluation {
      * @return {@code true} if the disallowed reasons contains hard reasons.
      */
     public boolean containsHardDisallowedReasons() {
-        for (DataDisallowedReason reason : mDataDisallowedReasons) {
-            if (reason.isHardReason()) {
-                return true;
-            }
+        return (mDataDisallowedReasons & HARD_DATA_DISALLOWED_REASONS) != 0;
+    }
+
+    /**
+     * @param reasons Bitmask of disallowed reasons.
+     * @return Bitmask of the hard reasons among the reasons.
+     */
+    public static long getHardDisallowedReasons(long reasons) {
+        return reasons & HARD_DATA_DISALLOWED_REASONS;
+    }
+
+    /**
+     * @param reasons Disallowed reasons.
+     * @return Bitmask of the reasons.
+     */
+    public static long toBitmask(DataDisallowedReason... reasons) {
+        long bitmask = 0;
+        for (DataDisallowedReason reason : reasons) {
+            bitmask |= reason.getBit();
         }
-        return false;
+        return bitmask;
     }
 
     /**
@@ -357,6 +407,13 @@ public class DataEvaluation {
             return mIsHardReason;
         }
 
+        /**
+         * @return The bit of the disallowed reason in a bitmask of disallowed reasons.
+         */
+        public long getBit() {
+            return 1L << ordinal();
+        }
+
         /**
          * Constructor
          *
@@ -416,9 +473,9 @@ public class DataEvaluation {
     public String toString() {
         StringBuilder evaluationStr = new StringBuilder();
         evaluationStr.append("Data evaluation: evaluation reason:" + mDataEvaluationReason + ", ");
-        if (mDataDisallowedReasons.size() > 0) {
+        if (containsDisallowedReasons()) {
             evaluationStr.append("Data disallowed reasons:");
-            for (DataDisallowedReason reason : mDataDisallowedReasons) {
+            for (DataDisallowedReason reason : getDataDisallowedReasons()) {
                 evaluationStr.append(" ").append(reason);
             }
         } else {
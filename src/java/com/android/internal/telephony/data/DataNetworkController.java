@@ -85,6 +85,8 @@ import android.util.IndentingPrintWriter;
 import android.util.LocalLog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.Phone;
@@ -123,9 +125,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -136,6 +138,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -407,6 +410,15 @@ public class DataNetworkController extends Handler {
     /** True after try to release an IMS network; False after try to request an IMS network. */
     private boolean mLastImsOperationIsRelease;
 
+    /** Number of network request and data network evaluations performed. */
+    private long mPerformedEvaluationCount;
+
+    /**
+     * Number of network request evaluations skipped because the device conditions which
+     * disallowed the last evaluation still exist.
+     */
+    private long mSkippedEvaluationCount;
+
     private final @NonNull FeatureFlags mFeatureFlags;
 
     /** The broadcast receiver. */
@@ -437,10 +449,22 @@ public class DataNetworkController extends Handler {
      * The sorted network request list by priority. The highest priority network request stays at
      * the head of the list. The highest priority is 100, the lowest is 0.
      *
+     * The list is backed by an array, so the insertion point of a new request is found with a
+     * binary search on the priority. A hash index of the requests rejects duplicates and answers
+     * {@link #contains} without scanning, and the number of requests having each capability lets
+     * {@link #get(int[])} return early when no request can match.
+     *
      * Note this list is not thread-safe. Do not access the list from different threads.
      */
     @VisibleForTesting
-    public static class NetworkRequestList extends LinkedList<TelephonyNetworkRequest> {
+    public static class NetworkRequestList extends ArrayList<TelephonyNetworkRequest> {
+        /** The requests in the list, mapped to themselves so the stored instance can be found. */
+        private final Map<TelephonyNetworkRequest, TelephonyNetworkRequest> mRequestIndex =
+                new HashMap<>();
+
+        /** The number of requests in the list having each network capability. */
+        private final SparseIntArray mCapabilityCounts = new SparseIntArray();
+
         /**
          * Constructor
          */
@@ -453,7 +477,9 @@ public class DataNetworkController extends Handler {
          * @param requestList The network request list.
          */
         public NetworkRequestList(@NonNull NetworkRequestList requestList) {
-            addAll(requestList);
+            // Already sorted and de-duplicated.
+            super(requestList);
+            rebuildIndex();
         }
 
         /**
@@ -484,18 +510,22 @@ public class DataNetworkController extends Handler {
          */
         @Override
         public boolean add(@NonNull TelephonyNetworkRequest newRequest) {
-            int index = 0;
-            while (index < size()) {
-                TelephonyNetworkRequest networkRequest = get(index);
-                if (networkRequest.equals(newRequest)) {
-                    return false;   // Do not allow duplicate
-                }
-                if (newRequest.getPriority() > networkRequest.getPriority()) {
-                    break;
+            if (mRequestIndex.containsKey(newRequest)) {
+                return false;   // Do not allow duplicate
+            }
+            // Insert after all the requests with the same or higher priority.
+            int low = 0;
+            int high = size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (newRequest.getPriority() > get(mid).getPriority()) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
                 }
-                index++;
             }
-            super.add(index, newRequest);
+            super.add(low, newRequest);
+            onRequestAdded(newRequest);
             return true;
         }
 
@@ -504,6 +534,11 @@ public class DataNetworkController extends Handler {
             throw new UnsupportedOperationException("Insertion to certain position is illegal.");
         }
 
+        @Override
+        public TelephonyNetworkRequest set(int index, @NonNull TelephonyNetworkRequest request) {
+            throw new UnsupportedOperationException("Replacement at certain position is illegal.");
+        }
+
         @Override
         public boolean addAll(Collection<? extends TelephonyNetworkRequest> requests) {
             for (TelephonyNetworkRequest networkRequest : requests) {
@@ -512,6 +547,92 @@ public class DataNetworkController extends Handler {
             return true;
         }
 
+        @Override
+        public boolean addAll(int index, Collection<? extends TelephonyNetworkRequest> requests) {
+            throw new UnsupportedOperationException("Insertion to certain position is illegal.");
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return mRequestIndex.containsKey(o);
+        }
+
+        @Override
+        public TelephonyNetworkRequest remove(int index) {
+            TelephonyNetworkRequest removed = super.remove(index);
+            onRequestRemoved(removed);
+            return removed;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            TelephonyNetworkRequest existing = mRequestIndex.get(o);
+            if (existing == null || !super.remove(existing)) {
+                return false;
+            }
+            onRequestRemoved(existing);
+            return true;
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super TelephonyNetworkRequest> filter) {
+            if (super.removeIf(filter)) {
+                rebuildIndex();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            if (super.removeAll(c)) {
+                rebuildIndex();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            if (super.retainAll(c)) {
+                rebuildIndex();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            super.removeRange(fromIndex, toIndex);
+            rebuildIndex();
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            mRequestIndex.clear();
+            mCapabilityCounts.clear();
+        }
+
+        /**
+         * Get the network request in the list that equals to the provided one. The request in the
+         * list can carry more information than the provided one, e.g. the attached data network.
+         *
+         * @param request The network request.
+         * @return The network request in the list, or {@code null} if not found.
+         */
+        public @Nullable TelephonyNetworkRequest find(@NonNull TelephonyNetworkRequest request) {
+            return mRequestIndex.get(request);
+        }
+
+        /**
+         * Re-sort the list after the priorities of the requests were updated.
+         */
+        public void sortByPriority() {
+            // Stable sort, so requests with the same priority keep their order.
+            super.sort(Comparator.comparingInt(TelephonyNetworkRequest::getPriority).reversed());
+        }
+
         /**
          * Get the first network request that contains all the provided network capabilities.
          *
@@ -520,22 +641,58 @@ public class DataNetworkController extends Handler {
          * capabilities.
          */
         public @Nullable TelephonyNetworkRequest get(@NonNull @NetCapability int[] netCaps) {
-            int index = 0;
-            while (index < size()) {
+            for (int netCap : netCaps) {
+                if (mCapabilityCounts.get(netCap) == 0) {
+                    return null;
+                }
+            }
+            for (int index = 0; index < size(); index++) {
                 TelephonyNetworkRequest networkRequest = get(index);
                 // Check if any network requests contains all the provided capabilities.
-                if (Arrays.stream(networkRequest.getCapabilities())
-                        .boxed()
-                        .collect(Collectors.toSet())
-                        .containsAll(Arrays.stream(netCaps).boxed()
-                                .collect(Collectors.toList()))) {
+                if (hasAllCapabilities(networkRequest, netCaps)) {
                     return networkRequest;
                 }
-                index++;
             }
             return null;
         }
 
+        private static boolean hasAllCapabilities(@NonNull TelephonyNetworkRequest request,
+                @NonNull @NetCapability int[] netCaps) {
+            for (int netCap : netCaps) {
+                if (!request.hasCapability(netCap)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void onRequestAdded(@NonNull TelephonyNetworkRequest request) {
+            mRequestIndex.put(request, request);
+            for (int netCap : request.getCapabilities()) {
+                mCapabilityCounts.put(netCap, mCapabilityCounts.get(netCap) + 1);
+            }
+        }
+
+        private void onRequestRemoved(@NonNull TelephonyNetworkRequest request) {
+            mRequestIndex.remove(request);
+            for (int netCap : request.getCapabilities()) {
+                int count = mCapabilityCounts.get(netCap) - 1;
+                if (count > 0) {
+                    mCapabilityCounts.put(netCap, count);
+                } else {
+                    mCapabilityCounts.delete(netCap);
+                }
+            }
+        }
+
+        private void rebuildIndex() {
+            mRequestIndex.clear();
+            mCapabilityCounts.clear();
+            for (int index = 0; index < size(); index++) {
+                onRequestAdded(get(index));
+            }
+        }
+
         /**
          * Check if any network request is requested by the specified package.
          *
@@ -1363,14 +1520,14 @@ public class DataNetworkController extends Handler {
 
             // If WLAN preferred, see whether a more suitable data profile shall be used to satisfy
             // a short-lived request that doesn't perform handover.
-            int capability = requestList.getFirst().getApnTypeNetworkCapability();
+            int capability = requestList.get(0).getApnTypeNetworkCapability();
             int preferredTransport = mAccessNetworksManager
                     .getPreferredTransportByNetworkCapability(capability);
             if (capability == NetworkCapabilities.NET_CAPABILITY_MMS
                     && preferredTransport != dataNetwork.getTransport()
                     && preferredTransport == AccessNetworkConstants.TRANSPORT_TYPE_WLAN) {
                 DataProfile candidate = mDataProfileManager
-                        .getDataProfileForNetworkRequest(requestList.getFirst(),
+                        .getDataProfileForNetworkRequest(requestList.get(0),
                                 TelephonyManager.NETWORK_TYPE_IWLAN,
                                 mServiceState.isUsingNonTerrestrialNetwork(),
                                 isEsimBootStrapProvisioningActivated(),
@@ -1523,6 +1680,126 @@ public class DataNetworkController extends Handler {
         return evaluation.getDataDisallowedReasons();
     }
 
+    /**
+     * Device-wide conditions of data evaluation. They are queried once when created and shared by
+     * the evaluations of all the network requests or data networks in one evaluation pass, instead
+     * of being queried again for each of them.
+     */
+    private class DataEvaluationConditions {
+        /**
+         * Disallowed reasons of network requests which don't depend on the transport, computed
+         * when needed.
+         */
+        private @Nullable Long mRequestDisallowedReasons;
+        /** Disallowed reasons of network requests on each transport, computed when needed. */
+        private final @NonNull SparseLongArray mTransportDisallowedReasons =
+                new SparseLongArray();
+        private final boolean mSimLoaded;
+        private final boolean mInCdmaEcm;
+        private final boolean mDataRoamingDisallowed;
+        private final boolean mDataInitialized;
+        private final boolean mDataEnabled;
+        /** Whether in emergency call or ECM, queried when needed. */
+        private @Nullable Boolean mInEmergency;
+
+        DataEvaluationConditions() {
+            mSimLoaded = mSimState == TelephonyManager.SIM_STATE_LOADED;
+            mInCdmaEcm = mPhone.isInCdmaEcm();
+            mDataRoamingDisallowed = mServiceState.getDataRoaming()
+                    && !mDataSettingsManager.isDataRoamingEnabled();
+            mDataInitialized = mDataSettingsManager.isDataInitialized();
+            mDataEnabled = mDataSettingsManager.isDataEnabled();
+        }
+
+        /**
+         * @return Bitmask of the device-level disallowed reasons of network requests which don't
+         * depend on the transport.
+         */
+        private long getRequestDisallowedReasons() {
+            if (mRequestDisallowedReasons != null) return mRequestDisallowedReasons;
+
+            long reasons = 0;
+            if (!mSimLoaded) {
+                reasons |= DataDisallowedReason.SIM_NOT_READY.getBit();
+            }
+            // Check if carrier specific config is loaded or not.
+            if (!mDataConfigManager.isConfigCarrierSpecific()) {
+                reasons |= DataDisallowedReason.DATA_CONFIG_NOT_READY.getBit();
+            }
+            // Check CS call state and see if concurrent voice/data is allowed.
+            if (hasCalling() && mPhone.getCallTracker().getState() != PhoneConstants.State.IDLE
+                    && !mPhone.getServiceStateTracker().isConcurrentVoiceAndDataAllowed()) {
+                reasons |= DataDisallowedReason.CONCURRENT_VOICE_DATA_NOT_ALLOWED.getBit();
+            }
+            // Check if default data is selected.
+            if (!SubscriptionManager.isValidSubscriptionId(
+                    SubscriptionManager.getDefaultDataSubscriptionId())) {
+                reasons |= DataDisallowedReason.DEFAULT_DATA_UNSELECTED.getBit();
+            }
+            if (mDataRoamingDisallowed) {
+                reasons |= DataDisallowedReason.ROAMING_DISABLED.getBit();
+            }
+            // Check if there are pending tear down all networks request.
+            if (mPendingTearDownAllNetworks) {
+                reasons |= DataDisallowedReason.PENDING_TEAR_DOWN_ALL.getBit();
+            }
+            // Check if radio is/will be turned off by carrier.
+            if (!mPhone.getServiceStateTracker().getPowerStateFromCarrier()) {
+                reasons |= DataDisallowedReason.RADIO_DISABLED_BY_CARRIER.getBit();
+            }
+            if (mInCdmaEcm) {
+                reasons |= DataDisallowedReason.CDMA_EMERGENCY_CALLBACK_MODE.getBit();
+            }
+            if (!mDataInitialized) {
+                reasons |= DataDisallowedReason.DATA_SETTINGS_NOT_READY.getBit();
+            }
+            mRequestDisallowedReasons = reasons;
+            return reasons;
+        }
+
+        /**
+         * @param transport The transport of the network request.
+         * @return Bitmask of the device-level disallowed reasons of network requests on the
+         * transport.
+         */
+        long getRequestDisallowedReasons(@TransportType int transport) {
+            int index = mTransportDisallowedReasons.indexOfKey(transport);
+            if (index >= 0) return mTransportDisallowedReasons.valueAt(index);
+
+            long reasons = getRequestDisallowedReasons();
+            if (!serviceStateAllowsPSAttach(mServiceState, transport)) {
+                reasons |= DataDisallowedReason.NOT_IN_SERVICE.getBit();
+            }
+            if (transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN) {
+                // Check if data is restricted by the cellular network.
+                if (mPsRestricted) {
+                    reasons |= DataDisallowedReason.DATA_RESTRICTED_BY_NETWORK.getBit();
+                }
+                // Check if the request is preferred on cellular and radio is/will be turned off.
+                // We are using getDesiredPowerState() instead of isRadioOn() because we also
+                // don't want to setup data network when radio power is about to be turned off.
+                if (!mPhone.getServiceStateTracker().getDesiredPowerState()
+                        || mPhone.mCi.getRadioState() != TelephonyManager.RADIO_POWER_ON) {
+                    reasons |= DataDisallowedReason.RADIO_POWER_OFF.getBit();
+                }
+            }
+            // Check if the underlying data service is bound.
+            if (!mDataServiceBound.get(transport)) {
+                reasons |= DataDisallowedReason.DATA_SERVICE_NOT_READY.getBit();
+            }
+            mTransportDisallowedReasons.put(transport, reasons);
+            return reasons;
+        }
+
+        /** @return {@code true} if in emergency call or in ECM. */
+        boolean isInEmergency() {
+            if (mInEmergency == null) {
+                mInEmergency = mTelecomManager.isInEmergencyCall() || mPhone.isInEcm();
+            }
+            return mInEmergency;
+        }
+    }
+
     /**
      * Evaluate a network request. The goal is to find a suitable {@link DataProfile} that can be
      * used to setup the data network.
@@ -1533,6 +1810,21 @@ public class DataNetworkController extends Handler {
      */
     private @NonNull DataEvaluation evaluateNetworkRequest(
             @NonNull TelephonyNetworkRequest networkRequest, DataEvaluationReason reason) {
+        return evaluateNetworkRequest(networkRequest, reason, new DataEvaluationConditions());
+    }
+
+    /**
+     * Evaluate a network request with the device conditions of the current evaluation pass.
+     *
+     * @param networkRequest The network request to evaluate.
+     * @param reason The reason for evaluation.
+     * @param conditions The device conditions.
+     * @return The data evaluation result.
+     */
+    private @NonNull DataEvaluation evaluateNetworkRequest(
+            @NonNull TelephonyNetworkRequest networkRequest, DataEvaluationReason reason,
+            @NonNull DataEvaluationConditions conditions) {
+        mPerformedEvaluationCount++;
         DataEvaluation evaluation = new DataEvaluation(reason);
         int transport = mAccessNetworksManager.getPreferredTransportByNetworkCapability(
                 networkRequest.getApnTypeNetworkCapability());
@@ -1565,26 +1857,9 @@ public class DataNetworkController extends Handler {
             return evaluation;
         }
 
-        if (!serviceStateAllowsPSAttach(mServiceState, transport)) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.NOT_IN_SERVICE);
-        }
-
-        // Check SIM state
-        if (mSimState != TelephonyManager.SIM_STATE_LOADED) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.SIM_NOT_READY);
-        }
-
-        // Check if carrier specific config is loaded or not.
-        if (!mDataConfigManager.isConfigCarrierSpecific()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_CONFIG_NOT_READY);
-        }
-
-        // Check CS call state and see if concurrent voice/data is allowed.
-        if (hasCalling() && mPhone.getCallTracker().getState() != PhoneConstants.State.IDLE
-                && !mPhone.getServiceStateTracker().isConcurrentVoiceAndDataAllowed()) {
-            evaluation.addDataDisallowedReason(
-                    DataDisallowedReason.CONCURRENT_VOICE_DATA_NOT_ALLOWED);
-        }
+        // Service, SIM, config, call, default data, roaming, radio power, data service, ECBM and
+        // data settings conditions.
+        evaluation.addDataDisallowedReasons(conditions.getRequestDisallowedReasons(transport));
 
         // Check VoPS support
         if (transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN
@@ -1602,51 +1877,6 @@ public class DataNetworkController extends Handler {
             }
         }
 
-        // Check if default data is selected.
-        if (!SubscriptionManager.isValidSubscriptionId(
-                SubscriptionManager.getDefaultDataSubscriptionId())) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DEFAULT_DATA_UNSELECTED);
-        }
-
-        // Check if data roaming is disabled.
-        if (mServiceState.getDataRoaming() && !mDataSettingsManager.isDataRoamingEnabled()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.ROAMING_DISABLED);
-        }
-
-        // Check if data is restricted by the cellular network.
-        if (mPsRestricted && transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_RESTRICTED_BY_NETWORK);
-        }
-
-        // Check if there are pending tear down all networks request.
-        if (mPendingTearDownAllNetworks) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.PENDING_TEAR_DOWN_ALL);
-        }
-
-        // Check if the request is preferred on cellular and radio is/will be turned off.
-        // We are using getDesiredPowerState() instead of isRadioOn() because we also don't want
-        // to setup data network when radio power is about to be turned off.
-        if (transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN
-                && (!mPhone.getServiceStateTracker().getDesiredPowerState()
-                || mPhone.mCi.getRadioState() != TelephonyManager.RADIO_POWER_ON)) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.RADIO_POWER_OFF);
-        }
-
-        // Check if radio is/will be turned off by carrier.
-        if (!mPhone.getServiceStateTracker().getPowerStateFromCarrier()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.RADIO_DISABLED_BY_CARRIER);
-        }
-
-        // Check if the underlying data service is bound.
-        if (!mDataServiceBound.get(transport)) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_SERVICE_NOT_READY);
-        }
-
-        // Check if device is in CDMA ECBM
-        if (mPhone.isInCdmaEcm()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.CDMA_EMERGENCY_CALLBACK_MODE);
-        }
-
         // Check whether data is disallowed while using satellite
         if (isDataDisallowedDueToSatellite(networkRequest.getCapabilities())) {
             evaluation.addDataDisallowedReason(DataDisallowedReason.SERVICE_OPTION_NOT_SUPPORTED);
@@ -1664,20 +1894,17 @@ public class DataNetworkController extends Handler {
             }
         }
 
-        if (mDataSettingsManager.isDataInitialized()) {
-            if (!mDataSettingsManager.isDataEnabled(DataUtils.networkCapabilityToApnType(
-                    networkRequest.getApnTypeNetworkCapability()))) {
-                evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_DISABLED);
-            }
-        } else {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_SETTINGS_NOT_READY);
+        if (conditions.mDataInitialized
+                && !mDataSettingsManager.isDataEnabled(DataUtils.networkCapabilityToApnType(
+                        networkRequest.getApnTypeNetworkCapability()))) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_DISABLED);
         }
 
         // Check whether to allow data in certain situations if data is disallowed for soft reasons
         if (!evaluation.containsDisallowedReasons()) {
             evaluation.addDataAllowedReason(DataAllowedReason.NORMAL);
 
-            if (!mDataSettingsManager.isDataEnabled()
+            if (!conditions.mDataEnabled
                     && networkRequest.hasCapability(NetworkCapabilities.NET_CAPABILITY_MMS)
                     && mDataSettingsManager.isMobileDataPolicyEnabled(TelephonyManager
                     .MOBILE_DATA_POLICY_MMS_ALWAYS_ALLOWED)) {
@@ -1687,7 +1914,7 @@ public class DataNetworkController extends Handler {
                 evaluation.addDataAllowedReason(DataAllowedReason.MMS_REQUEST);
             }
         } else if (!evaluation.containsHardDisallowedReasons()) {
-            if ((mTelecomManager.isInEmergencyCall() || mPhone.isInEcm())
+            if (conditions.isInEmergency()
                     && networkRequest.hasCapability(NetworkCapabilities.NET_CAPABILITY_SUPL)) {
                 // Check if it's SUPL during emergency call.
                 evaluation.addDataAllowedReason(DataAllowedReason.EMERGENCY_SUPL);
@@ -1843,15 +2070,26 @@ public class DataNetworkController extends Handler {
                 .collect(Collectors.joining(", ")) + " due to " + reason);
 
         // Second, see if any existing network can satisfy those network requests.
+        DataEvaluationConditions conditions = new DataEvaluationConditions();
+        int skipped = 0;
         for (NetworkRequestList requestList : networkRequestLists) {
             if (findCompatibleDataNetworkAndAttach(requestList)) {
                 continue;
             }
 
+            // If the device conditions which disallowed the last evaluation still exist, the
+            // evaluation would still disallow data, no matter what else has changed.
+            if (isLastEvaluationStillDisallowed(requestList.get(0), conditions)) {
+                mSkippedEvaluationCount++;
+                skipped++;
+                continue;
+            }
+
             // If no data network can satisfy the requests, then start the evaluation process. Since
             // all the requests in the list have the same capabilities, we can only evaluate one
             // of them.
-            DataEvaluation evaluation = evaluateNetworkRequest(requestList.get(0), reason);
+            DataEvaluation evaluation = evaluateNetworkRequest(requestList.get(0), reason,
+                    conditions);
             if (!evaluation.containsDisallowedReasons()) {
                 DataProfile dataProfile = evaluation.getCandidateDataProfile();
                 if (dataProfile != null) {
@@ -1860,6 +2098,35 @@ public class DataNetworkController extends Handler {
                 }
             }
         }
+        if (skipped > 0) {
+            log("Skipped re-evaluating " + skipped + " groups still disallowed by device "
+                    + "conditions.");
+        }
+    }
+
+    /**
+     * Check if the last evaluation of a network request was disallowed by hard device-level
+     * reasons which still exist. The network request would then be disallowed again, so it does
+     * not need to be evaluated.
+     *
+     * @param networkRequest The network request.
+     * @param conditions The device conditions of the current evaluation pass.
+     * @return {@code true} if the network request is still disallowed.
+     */
+    private boolean isLastEvaluationStillDisallowed(
+            @NonNull TelephonyNetworkRequest networkRequest,
+            @NonNull DataEvaluationConditions conditions) {
+        DataEvaluation lastEvaluation = networkRequest.getEvaluation();
+        // Emergency network requests bypass the device conditions.
+        if (lastEvaluation == null
+                || networkRequest.hasCapability(NetworkCapabilities.NET_CAPABILITY_EIMS)) {
+            return false;
+        }
+        int transport = mAccessNetworksManager.getPreferredTransportByNetworkCapability(
+                networkRequest.getApnTypeNetworkCapability());
+        return DataEvaluation.getHardDisallowedReasons(
+                lastEvaluation.getDataDisallowedReasonsBitmask()
+                        & conditions.getRequestDisallowedReasons(transport)) != 0;
     }
 
     /**
@@ -1874,6 +2141,22 @@ public class DataNetworkController extends Handler {
      */
     private @NonNull DataEvaluation evaluateDataNetwork(@NonNull DataNetwork dataNetwork,
             @NonNull DataEvaluationReason reason) {
+        return evaluateDataNetwork(dataNetwork, reason, new DataEvaluationConditions());
+    }
+
+    /**
+     * Evaluate an existing data network with the device conditions of the current evaluation
+     * pass.
+     *
+     * @param dataNetwork The data network to evaluate.
+     * @param reason The reason for evaluation.
+     * @param conditions The device conditions.
+     *
+     * @return The data evaluation result.
+     */
+    private @NonNull DataEvaluation evaluateDataNetwork(@NonNull DataNetwork dataNetwork,
+            @NonNull DataEvaluationReason reason, @NonNull DataEvaluationConditions conditions) {
+        mPerformedEvaluationCount++;
         DataEvaluation evaluation = new DataEvaluation(reason);
         // Bypass all checks for emergency data network.
         if (dataNetwork.getNetworkCapabilities().hasCapability(
@@ -1884,12 +2167,12 @@ public class DataNetworkController extends Handler {
         }
 
         // Check SIM state
-        if (mSimState != TelephonyManager.SIM_STATE_LOADED) {
+        if (!conditions.mSimLoaded) {
             evaluation.addDataDisallowedReason(DataDisallowedReason.SIM_NOT_READY);
         }
 
         // Check if device is in CDMA ECBM
-        if (mPhone.isInCdmaEcm()) {
+        if (conditions.mInCdmaEcm) {
             evaluation.addDataDisallowedReason(DataDisallowedReason.CDMA_EMERGENCY_CALLBACK_MODE);
         }
 
@@ -1925,13 +2208,14 @@ public class DataNetworkController extends Handler {
                         dataNetwork.getNetworkCapabilities().getCapabilities())) {
             // If there is network request that has higher priority than this data network, then
             // tear down the network, regardless that network request is satisfied or not.
+            // The list is sorted by priority, so only the head of it needs to be checked.
             if (mAllNetworkRequestList.stream()
-                    .filter(request -> dataNetwork.getTransport()
-                            == mAccessNetworksManager.getPreferredTransportByNetworkCapability(
-                                    request.getApnTypeNetworkCapability()))
+                    .takeWhile(request -> request.getPriority() > dataNetwork.getPriority())
                     .filter(request
                             -> !hasCapabilityExemptsFromSinglePdnRule(request.getCapabilities()))
-                    .anyMatch(request -> request.getPriority() > dataNetwork.getPriority())) {
+                    .anyMatch(request -> dataNetwork.getTransport()
+                            == mAccessNetworksManager.getPreferredTransportByNetworkCapability(
+                                    request.getApnTypeNetworkCapability()))) {
                 evaluation.addDataDisallowedReason(
                         DataDisallowedReason.ONLY_ALLOWED_SINGLE_NETWORK);
             } else {
@@ -1984,10 +2268,10 @@ public class DataNetworkController extends Handler {
         }
 
         // Check if data is disabled
-        boolean dataDisabled = !mDataSettingsManager.isDataEnabled();
+        boolean dataDisabled = !conditions.mDataEnabled;
 
         // Check if data roaming is disabled
-        if (mServiceState.getDataRoaming() && !mDataSettingsManager.isDataRoamingEnabled()) {
+        if (conditions.mDataRoamingDisallowed) {
             evaluation.addDataDisallowedReason(DataDisallowedReason.ROAMING_DISABLED);
         }
 
@@ -2046,8 +2330,7 @@ public class DataNetworkController extends Handler {
             // If there are reasons we should tear down the network, check if those are hard reasons
             // or soft reasons. In some scenarios, we can make exceptions if they are soft
             // disallowed reasons.
-            if ((mTelecomManager.isInEmergencyCall() || mPhone.isInEcm())
-                    && dataNetwork.isEmergencySupl()) {
+            if (conditions.isInEmergency() && dataNetwork.isEmergencySupl()) {
                 // Check if it's SUPL during emergency call.
                 evaluation.addDataAllowedReason(DataAllowedReason.EMERGENCY_SUPL);
             } else if (!dataNetwork.getNetworkCapabilities().hasCapability(
@@ -2107,9 +2390,11 @@ public class DataNetworkController extends Handler {
         }
         log("Re-evaluating " + mDataNetworkList.size() + " existing data networks due to "
                 + reason);
+        DataEvaluationConditions conditions = new DataEvaluationConditions();
         for (DataNetwork dataNetwork : mDataNetworkList) {
             if (dataNetwork.isConnecting() || dataNetwork.isConnected()) {
-                DataEvaluation dataEvaluation = evaluateDataNetwork(dataNetwork, reason);
+                DataEvaluation dataEvaluation = evaluateDataNetwork(dataNetwork, reason,
+                        conditions);
                 if (dataEvaluation.containsDisallowedReasons()) {
                     tearDownGracefully(dataNetwork, getTearDownReason(dataEvaluation));
                 }
@@ -2370,10 +2655,7 @@ public class DataNetworkController extends Handler {
         // The request generated from telephony network factory does not contain the information
         // the original request has, for example, attached data network. We need to find the
         // original one.
-        TelephonyNetworkRequest networkRequest = mAllNetworkRequestList.stream()
-                .filter(r -> r.equals(request))
-                .findFirst()
-                .orElse(null);
+        TelephonyNetworkRequest networkRequest = mAllNetworkRequestList.find(request);
         if (networkRequest == null || !mAllNetworkRequestList.remove(networkRequest)) {
             loge("onRemoveNetworkRequest: Network request does not exist. " + networkRequest);
             return;
@@ -2622,6 +2904,7 @@ public class DataNetworkController extends Handler {
         for (TelephonyNetworkRequest networkRequest : mAllNetworkRequestList) {
             networkRequest.updatePriority();
         }
+        mAllNetworkRequestList.sortByPriority();
     }
 
     /**
@@ -3819,6 +4102,23 @@ public class DataNetworkController extends Handler {
         return mUnmeteredOverrideNetworkTypes;
     }
 
+    /**
+     * @return The number of network request and data network evaluations performed.
+     */
+    @VisibleForTesting
+    public long getPerformedEvaluationCount() {
+        return mPerformedEvaluationCount;
+    }
+
+    /**
+     * @return The number of network request evaluations skipped because the device conditions
+     * which disallowed the last evaluation still exist.
+     */
+    @VisibleForTesting
+    public long getSkippedEvaluationCount() {
+        return mSkippedEvaluationCount;
+    }
+
     /**
      * @return The set of network types a congested override applies to
      */
@@ -4200,6 +4500,8 @@ public class DataNetworkController extends Handler {
         pw.println("mImsThrottleCounter=" + mImsThrottleCounter);
         pw.println("mNetworkUnwantedCounter=" + mNetworkUnwantedCounter);
         pw.println("mBootStrapSimTotalDataUsageBytes=" + mBootStrapSimTotalDataUsageBytes);
+        pw.println("Data evaluations: performed=" + mPerformedEvaluationCount + ", skipped="
+                + mSkippedEvaluationCount);
         pw.println("Local logs:");
         pw.increaseIndent();
         mLocalLog.dump(fd, pw, args);
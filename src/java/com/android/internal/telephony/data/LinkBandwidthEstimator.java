@@ -22,7 +22,6 @@ import android.annotation.CallbackExecutor;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.hardware.display.DisplayManager;
 import android.net.ConnectivityManager;
 import android.net.Network;
@@ -64,8 +63,10 @@ import com.android.internal.telephony.nano.TelephonyProto.NrMode;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.telephony.Rlog;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -96,6 +97,8 @@ public class LinkBandwidthEstimator extends Handler {
     static final int MSG_ACTIVE_PHONE_CHANGED = 8;
     @VisibleForTesting
     static final int MSG_DATA_REG_STATE_OR_RAT_CHANGED = 9;
+    @VisibleForTesting
+    static final int MSG_FLUSH_BANDWIDTH_STATS = 10;
 
     @VisibleForTesting
     static final int UNKNOWN_TAC = CellInfo.UNAVAILABLE;
@@ -108,6 +111,11 @@ public class LinkBandwidthEstimator extends Handler {
     private static final int BYTE_DELTA_ACC_THRESHOLD_MAX_KB = 8_000;
     private static final int MODEM_POLL_TIME_DELTA_MAX_MS = 10_000;
     private static final int FILTER_UPDATE_MAX_INTERVAL_MS = 5_100;
+    // Delay of writing the bandwidth stats to disk after the first update since the last write
+    private static final int BANDWIDTH_STATS_FLUSH_DELAY_MS = 300_000;
+    // Maximum number of networks to keep the bandwidth stats for
+    @VisibleForTesting
+    static final int MAX_NETWORKS = 256;
     // BW samples with Tx or Rx time below the following value is ignored.
     private static final int TX_RX_TIME_MIN_MS = 200;
     // The large time constant used in BW filter
@@ -167,6 +175,9 @@ public class LinkBandwidthEstimator extends Handler {
     private final TelephonyManager mTelephonyManager;
     private final ConnectivityManager mConnectivityManager;
     private final LocalLog mLocalLog = new LocalLog(512);
+    private final BandwidthStatsStore mBandwidthStatsStore;
+    // Bandwidth stats learned on all SIMs, shared by the estimators of all phones
+    private static BandwidthStatsStore sBandwidthStatsStore;
     private boolean mScreenOn = false;
     private boolean mIsOnDefaultRoute = false;
     private boolean mIsOnActiveData = false;
@@ -303,6 +314,8 @@ public class LinkBandwidthEstimator extends Handler {
                 .getSystemService(TelephonyManager.class)
                 .createForSubscriptionId(phone.getSubId());
         mConnectivityManager = phone.getContext().getSystemService(ConnectivityManager.class);
+        mBandwidthStatsStore = getBandwidthStatsStore(
+                mTelephonyFacade.getFilesDir(phone.getContext()), phone.getContext());
         DisplayManager dm = (DisplayManager) phone.getContext().getSystemService(
                 Context.DISPLAY_SERVICE);
         dm.registerDisplayListener(mDisplayListener, null);
@@ -328,6 +341,9 @@ public class LinkBandwidthEstimator extends Handler {
             case MSG_TRAFFIC_STATS_POLL:
                 handleTrafficStatsPoll();
                 break;
+            case MSG_FLUSH_BANDWIDTH_STATS:
+                mBandwidthStatsStore.flush();
+                break;
             case MSG_MODEM_ACTIVITY_RETURNED:
                 handleModemActivityReturned((ModemActivityInfo) msg.obj);
                 break;
@@ -403,9 +419,35 @@ public class LinkBandwidthEstimator extends Handler {
             return;
         }
         mScreenOn = screenOn;
+        if (!screenOn) {
+            flushBandwidthStats();
+        }
         handleTrafficStatsPollConditionChanged();
     }
 
+    /**
+     * @return The device-wide bandwidth stats store, or a store kept in memory only for this
+     * estimator if there is no files dir.
+     */
+    private static synchronized BandwidthStatsStore getBandwidthStatsStore(
+            @Nullable File filesDir, @NonNull Context context) {
+        if (filesDir == null) {
+            return new BandwidthStatsStore(null, MAX_NETWORKS);
+        }
+        if (sBandwidthStatsStore == null) {
+            sBandwidthStatsStore = new BandwidthStatsStore(
+                    new File(filesDir, "link_bandwidth_stats"),
+                    PreferenceManager.getDefaultSharedPreferences(context), MAX_NETWORKS);
+        }
+        return sBandwidthStatsStore;
+    }
+
+    /** Write the pending bandwidth stats to disk now */
+    private void flushBandwidthStats() {
+        removeMessages(MSG_FLUSH_BANDWIDTH_STATS);
+        mBandwidthStatsStore.flush();
+    }
+
     private void handleDefaultNetworkChanged(NetworkCapabilities networkCapabilities) {
         mNetworkCapabilities = networkCapabilities;
         boolean isOnDefaultRoute;
@@ -1118,7 +1160,14 @@ public class LinkBandwidthEstimator extends Handler {
     // Map with NetworkKey as the key and NetworkBandwidth as the value.
     // NetworkKey is specified by the PLMN, data RAT and TAC of network.
     // NetworkBandwidth represents the bandwidth related stats of each network.
-    private final Map<NetworkKey, NetworkBandwidth> mNetworkMap = new ArrayMap<>();
+    // Only the most recently used networks are kept, the same as the persisted stats.
+    private final Map<NetworkKey, NetworkBandwidth> mNetworkMap =
+            new LinkedHashMap<>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<NetworkKey, NetworkBandwidth> e) {
+                    return size() > MAX_NETWORKS;
+                }
+            };
 
     private static class NetworkKey {
 
@@ -1195,48 +1244,21 @@ public class LinkBandwidthEstimator extends Handler {
 
         /** Update link bandwidth stats */
         public void update(long value, int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String valueKey = getValueKey(link, level);
-            String countKey = getCountKey(link, level);
-            SharedPreferences.Editor editor = sp.edit();
-            long currValue = sp.getLong(valueKey, 0);
-            int currCount = sp.getInt(countKey, 0);
-            editor.putLong(valueKey, currValue + value);
-            editor.putInt(countKey, currCount + 1);
-            editor.apply();
-        }
-
-        private String getValueKey(int link, int level) {
-            return getDataKey(link, level) + "Data";
-        }
-
-        private String getCountKey(int link, int level) {
-            return getDataKey(link, level) + "Count";
-        }
-
-        private String getDataKey(int link, int level) {
-            StringBuilder sb = new StringBuilder();
-            return sb.append(mKey)
-                    .append("Link").append(link)
-                    .append("Level").append(level)
-                    .toString();
+            mBandwidthStatsStore.add(mKey, link, level, value);
+            if (!hasMessages(MSG_FLUSH_BANDWIDTH_STATS)) {
+                sendEmptyMessageDelayed(MSG_FLUSH_BANDWIDTH_STATS,
+                        BANDWIDTH_STATS_FLUSH_DELAY_MS);
+            }
         }
 
         /** Get the accumulated bandwidth value */
         public long getValue(int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String valueKey = getValueKey(link, level);
-            return sp.getLong(valueKey, 0);
+            return mBandwidthStatsStore.getValue(mKey, link, level);
         }
 
         /** Get the accumulated bandwidth count */
         public int getCount(int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String countKey = getCountKey(link, level);
-            return sp.getInt(countKey, 0);
+            return mBandwidthStatsStore.getCount(mKey, link, level);
         }
 
         @Override
@@ -1270,7 +1292,8 @@ public class LinkBandwidthEstimator extends Handler {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, " ");
         pw.increaseIndent();
         pw.println("current PLMN " + mPlmn + " TAC " + mTac + " RAT " + getDataRatName(mDataRat));
-        pw.println("all networks visited since device boot");
+        pw.println("bandwidth stats " + mBandwidthStatsStore);
+        pw.println("recent networks visited since device boot");
         for (NetworkBandwidth network : mNetworkMap.values()) {
             pw.println(network.toString());
         }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.AtomicFile;
+
+import com.android.phone.ecc.nano.ProtobufEccData;
+import com.android.phone.ecc.nano.ProtobufEccData.CountryInfo;
+import com.android.telephony.Rlog;
+
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Per-country index of a gzipped emergency number database.
+ * <p/>
+ * The database has the entries of every country, while {@link EmergencyNumberTracker} only needs
+ * the entries of the current country. The first time a database is seen, it's inflated and parsed
+ * once, and every country is written as its own serialized {@link CountryInfo} to an index file,
+ * which is memory-mapped afterwards. Loading a country then only parses that country.
+ * <p/>
+ * The index file records a fingerprint of the compressed database, which is its length and its
+ * gzip trailer (CRC-32 and size of the inflated data), so a new database is detected without
+ * inflating it and the index is rebuilt only when the database or the index format changes.
+ * <p/>
+ * Without an index file, the database is parsed in memory as before.
+ */
+final class EccDatabaseIndex {
+    private static final String TAG = EccDatabaseIndex.class.getSimpleName();
+
+    /** "ECCI". */
+    private static final int MAGIC = 0x45434349;
+    private static final int FORMAT_VERSION = 1;
+    /** Magic, format version and header length. */
+    private static final int PREAMBLE_SIZE = 3 * Integer.BYTES;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /** Serializes building the index files shared by the emergency number trackers. */
+    private static final Object sLock = new Object();
+
+    /** Opens the gzipped database. */
+    interface Source {
+        /** @return A new stream of the compressed database. */
+        @NonNull
+        InputStream open() throws IOException;
+    }
+
+    private final int mRevision;
+    /** Country ISO to position and length of the country in {@link #mBuffer}. */
+    @NonNull
+    private final Map<String, int[]> mCountryRanges;
+    /** Mapped index file, {@code null} when the database was parsed in memory. */
+    @Nullable
+    private final ByteBuffer mBuffer;
+    /** Parsed countries, {@code null} when the index file is mapped. */
+    @Nullable
+    private final Map<String, CountryInfo> mCountries;
+
+    private EccDatabaseIndex(int revision, @NonNull Map<String, int[]> countryRanges,
+            @NonNull ByteBuffer buffer) {
+        mRevision = revision;
+        mCountryRanges = countryRanges;
+        mBuffer = buffer;
+        mCountries = null;
+    }
+
+    private EccDatabaseIndex(int revision, @NonNull Map<String, CountryInfo> countries) {
+        mRevision = revision;
+        mCountryRanges = new HashMap<>();
+        mBuffer = null;
+        mCountries = countries;
+    }
+
+    /**
+     * Open the index of a database, building the index file if it's missing or stale.
+     *
+     * @param indexFile The index file, or {@code null} to parse the database in memory.
+     * @param source The gzipped database.
+     * @return The index.
+     * @throws IOException If the database can't be read.
+     */
+    @NonNull
+    static EccDatabaseIndex open(@Nullable File indexFile, @NonNull Source source)
+            throws IOException {
+        int[] revision = new int[1];
+        if (indexFile == null) {
+            Map<String, CountryInfo> countries = parse(source, revision);
+            return new EccDatabaseIndex(revision[0], countries);
+        }
+        synchronized (sLock) {
+            String fingerprint = getFingerprint(source);
+            EccDatabaseIndex index = map(indexFile, fingerprint);
+            if (index != null) return index;
+
+            Map<String, CountryInfo> countries = parse(source, revision);
+            try {
+                write(indexFile, fingerprint, revision[0], countries);
+                index = map(indexFile, fingerprint);
+            } catch (IOException e) {
+                Rlog.w(TAG, "Failed to write " + indexFile + ": " + e);
+            }
+            return index != null ? index : new EccDatabaseIndex(revision[0], countries);
+        }
+    }
+
+    /** @return The revision of the database. */
+    int getRevision() {
+        return mRevision;
+    }
+
+    /**
+     * @param countryIso The country ISO, in any case.
+     * @return The entries of the country, {@code null} if the database has none.
+     * @throws IOException If the entries can't be parsed.
+     */
+    @Nullable
+    CountryInfo getCountry(@NonNull String countryIso) throws IOException {
+        String iso = countryIso.toUpperCase(Locale.ROOT);
+        if (mCountries != null) return mCountries.get(iso);
+
+        int[] range = mCountryRanges.get(iso);
+        if (range == null) return null;
+        byte[] bytes = new byte[range[1]];
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(range[0]);
+        buffer.get(bytes);
+        return CountryInfo.parseFrom(bytes);
+    }
+
+    /** @return The number of countries in the database. */
+    int getCountryCount() {
+        return mCountries != null ? mCountries.size() : mCountryRanges.size();
+    }
+
+    /**
+     * Inflate and parse the database, merging the entries of the same country.
+     *
+     * @param revision Receives the revision of the database.
+     */
+    @NonNull
+    private static Map<String, CountryInfo> parse(@NonNull Source source,
+            @NonNull int[] revision) throws IOException {
+        ProtobufEccData.AllInfo allInfo;
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(source.open()))) {
+            allInfo = ProtobufEccData.AllInfo.parseFrom(readFully(in));
+        }
+        revision[0] = allInfo.revision;
+
+        Map<String, CountryInfo> countries = new LinkedHashMap<>();
+        for (CountryInfo country : allInfo.countries) {
+            String iso = country.isoCode.toUpperCase(Locale.ROOT);
+            CountryInfo merged = countries.get(iso);
+            if (merged == null) {
+                countries.put(iso, country);
+            } else {
+                ProtobufEccData.EccInfo[] eccs = Arrays.copyOf(merged.eccs,
+                        merged.eccs.length + country.eccs.length);
+                System.arraycopy(country.eccs, 0, eccs, merged.eccs.length, country.eccs.length);
+                merged.eccs = eccs;
+            }
+        }
+        return countries;
+    }
+
+    /** @return The length and gzip trailer of the compressed database. */
+    @NonNull
+    private static String getFingerprint(@NonNull Source source) throws IOException {
+        byte[] tail = new byte[GZIP_TRAILER_SIZE];
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long length = 0;
+        try (InputStream in = source.open()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                // Keep the last GZIP_TRAILER_SIZE bytes read so far.
+                if (read >= GZIP_TRAILER_SIZE) {
+                    System.arraycopy(buffer, read - GZIP_TRAILER_SIZE, tail, 0, GZIP_TRAILER_SIZE);
+                } else {
+                    System.arraycopy(tail, read, tail, 0, GZIP_TRAILER_SIZE - read);
+                    System.arraycopy(buffer, 0, tail, GZIP_TRAILER_SIZE - read, read);
+                }
+                length += read;
+            }
+        }
+        StringBuilder sb = new StringBuilder().append(length).append('/');
+        for (byte b : tail) {
+            sb.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static void write(@NonNull File indexFile, @NonNull String fingerprint, int revision,
+            @NonNull Map<String, CountryInfo> countries) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeUTF(fingerprint);
+        headerOut.writeInt(revision);
+        headerOut.writeInt(countries.size());
+        for (Map.Entry<String, CountryInfo> entry : countries.entrySet()) {
+            byte[] bytes = MessageNano.toByteArray(entry.getValue());
+            headerOut.writeUTF(entry.getKey());
+            headerOut.writeInt(data.size());
+            headerOut.writeInt(bytes.length);
+            data.write(bytes);
+        }
+        headerOut.flush();
+
+        File dir = indexFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        AtomicFile atomicFile = new AtomicFile(indexFile);
+        FileOutputStream fos = atomicFile.startWrite();
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(header.size());
+            header.writeTo(out);
+            data.writeTo(out);
+            out.flush();
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            atomicFile.failWrite(fos);
+            throw e;
+        }
+    }
+
+    /** @return The mapped index file, {@code null} if it's missing, stale or corrupted. */
+    @Nullable
+    private static EccDatabaseIndex map(@NonNull File indexFile, @NonNull String fingerprint) {
+        if (!indexFile.isFile()) return null;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) return null;
+            byte[] header = new byte[buffer.getInt()];
+            buffer.get(header);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+            if (!fingerprint.equals(in.readUTF())) return null;
+
+            int revision = in.readInt();
+            int count = in.readInt();
+            int dataStart = PREAMBLE_SIZE + header.length;
+            Map<String, int[]> ranges = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String iso = in.readUTF();
+                int offset = in.readInt();
+                int length = in.readInt();
+                if (offset < 0 || length < 0
+                        || (long) dataStart + offset + length > buffer.capacity()) {
+                    return null;
+                }
+                ranges.put(iso, new int[] {dataStart + offset, length});
+            }
+            return new EccDatabaseIndex(revision, ranges, buffer);
+        } catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+            Rlog.w(TAG, "Invalid index " + indexFile + ": " + e);
+            return null;
+        }
+    }
+
+    @NonNull
+    private static byte[] readFully(@NonNull InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable index of the emergency numbers known by {@link EmergencyNumberTracker}, to check
+ * whether a number is an emergency number without scanning the emergency number lists.
+ * <p/>
+ * Each number is mapped to the bitmask of the lists it's in. Numbers with the emergency number
+ * prefixes of the carrier are indexed as numbers of their own, so a lookup is a single hash map
+ * access. A new index is built every time a list changes, so it can be read from any thread.
+ */
+final class EmergencyNumberIndex {
+    /** Merged emergency number list, used when the radio reports emergency numbers. */
+    static final int LIST_MERGED = 1 << 0;
+    /** Default emergency numbers when a SIM is present. */
+    static final int LIST_ECC_SIM_PRESENT = 1 << 1;
+    /** Default emergency numbers when no SIM is present. */
+    static final int LIST_ECC_SIM_ABSENT = 1 << 2;
+    /** Emergency number database. */
+    static final int LIST_DATABASE = 1 << 3;
+    /** Emergency numbers added for test. */
+    static final int LIST_TEST_MODE = 1 << 4;
+
+    /** An index without numbers. */
+    static final EmergencyNumberIndex EMPTY = new Builder(false).build();
+
+    private final boolean mFromRadio;
+    private final Map<String, Integer> mLists;
+
+    private EmergencyNumberIndex(boolean fromRadio, Map<String, Integer> lists) {
+        mFromRadio = fromRadio;
+        mLists = lists;
+    }
+
+    /** @return {@code true} if the radio reported emergency numbers when the index was built. */
+    boolean isFromRadio() {
+        return mFromRadio;
+    }
+
+    /**
+     * @param number The number, without separators.
+     * @return The bitmask of the lists the number is in, 0 if none.
+     */
+    int getLists(@Nullable String number) {
+        if (number == null) return 0;
+        Integer lists = mLists.get(number);
+        return lists != null ? lists : 0;
+    }
+
+    /** @return The number of indexed numbers. */
+    int size() {
+        return mLists.size();
+    }
+
+    /** Builder of {@link EmergencyNumberIndex}. */
+    static final class Builder {
+        private final boolean mFromRadio;
+        private final Map<String, Integer> mLists = new HashMap<>();
+
+        /**
+         * @param fromRadio Whether the radio reported emergency numbers.
+         */
+        Builder(boolean fromRadio) {
+            mFromRadio = fromRadio;
+        }
+
+        /**
+         * Add a number to the index.
+         *
+         * @param list The list the number is in.
+         * @param number The number.
+         * @return This builder.
+         */
+        @NonNull
+        Builder add(int list, @Nullable String number) {
+            if (number != null) {
+                mLists.merge(number, list, (a, b) -> a | b);
+            }
+            return this;
+        }
+
+        /**
+         * Add a number with and without each prefix.
+         *
+         * @param list The list the number is in.
+         * @param number The number.
+         * @param prefixes The prefixes.
+         * @return This builder.
+         */
+        @NonNull
+        Builder addWithPrefixes(int list, @NonNull String number, @NonNull String[] prefixes) {
+            add(list, number);
+            for (String prefix : prefixes) {
+                add(list, prefix + number);
+            }
+            return this;
+        }
+
+        /** @return The index. */
+        @NonNull
+        EmergencyNumberIndex build() {
+            return new EmergencyNumberIndex(mFromRadio, new HashMap<>(mLists));
+        }
+    }
+}
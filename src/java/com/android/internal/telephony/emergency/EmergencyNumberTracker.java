@@ -17,6 +17,7 @@
 package com.android.internal.telephony.emergency;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -62,13 +63,10 @@ import com.android.telephony.Rlog;
 
 import com.google.i18n.phonenumbers.ShortNumberInfo;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -77,7 +75,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Emergency Number Tracker that handles update of emergency number list from RIL and emergency
@@ -90,6 +87,10 @@ public class EmergencyNumberTracker extends Handler {
     private static final String EMERGENCY_NUMBER_DB_OTA_FILE_NAME = "emergency_number_db";
     private static final String EMERGENCY_NUMBER_DB_OTA_FILE_PATH =
             "misc/emergencynumberdb/" + EMERGENCY_NUMBER_DB_OTA_FILE_NAME;
+    /** Directory of the per-country indexes of the emergency number databases. */
+    private static final String ECC_DATABASE_INDEX_DIR = "ecc_database_index";
+    private static final String ECC_DATABASE_INDEX_ASSET_FILE_NAME = "asset";
+    private static final String ECC_DATABASE_INDEX_OTA_FILE_NAME = "ota";
 
     /** Used for storing overrided (non-default) OTA database file path */
     private ParcelFileDescriptor mOverridedOtaDbParcelFileDescriptor = null;
@@ -127,11 +128,19 @@ public class EmergencyNumberTracker extends Handler {
 
     private static final String EMERGENCY_NUMBER_DB_ASSETS_FILE = "eccdata";
 
+    // According spec 3GPP TS22.101, the following numbers should be ECC numbers when SIM/USIM is
+    // not present.
+    private static final String[] ECC_NUMBERS_SIM_PRESENT = {"112", "911"};
+    private static final String[] ECC_NUMBERS_SIM_ABSENT =
+            {"112", "911", "000", "08", "110", "118", "119", "999"};
+
     private List<EmergencyNumber> mEmergencyNumberListFromDatabase = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListFromRadio = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListWithPrefix = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListFromTestMode = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberList = new ArrayList<>();
+    // Index of the lists above used by isEmergencyNumber(), rebuilt whenever they change
+    private volatile EmergencyNumberIndex mEmergencyNumberIndex = EmergencyNumberIndex.EMPTY;
 
     private final LocalLog mEmergencyNumberListDatabaseLocalLog = new LocalLog(16);
     private final LocalLog mEmergencyNumberListRadioLocalLog = new LocalLog(16);
@@ -327,6 +336,7 @@ public class EmergencyNumberTracker extends Handler {
             }
             cacheEmergencyDatabaseByCountry(countryForDatabaseCache);
         }
+        rebuildEmergencyNumberIndex();
     }
 
     /**
@@ -545,26 +555,23 @@ public class EmergencyNumberTracker extends Handler {
 
         // Read the Asset emergency number database
         List<EmergencyNumber> updatedAssetEmergencyNumberList = new ArrayList<>();
-        // try-with-resource. The 2 streams are auto closeable.
-        try (BufferedInputStream inputStream = new BufferedInputStream(
-                mPhone.getContext().getAssets().open(EMERGENCY_NUMBER_DB_ASSETS_FILE));
-             GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream)) {
-            ProtobufEccData.AllInfo allEccMessages = ProtobufEccData.AllInfo.parseFrom(
-                    readInputStreamToByteArray(gzipInputStream));
-            assetsDatabaseVersion = allEccMessages.revision;
+        try {
+            EccDatabaseIndex database = EccDatabaseIndex.open(
+                    getEccDatabaseIndexFile(ECC_DATABASE_INDEX_ASSET_FILE_NAME),
+                    () -> mPhone.getContext().getAssets().open(EMERGENCY_NUMBER_DB_ASSETS_FILE));
+            assetsDatabaseVersion = database.getRevision();
             logd(countryIso + " asset emergency database is loaded. Ver: " + assetsDatabaseVersion
                     + " Phone Id: " + mPhone.getPhoneId() + " countryIso: " + countryIso);
-            for (ProtobufEccData.CountryInfo countryEccInfo : allEccMessages.countries) {
-                if (countryEccInfo.isoCode.equals(countryIso.toUpperCase(Locale.ROOT))) {
-                    for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
-                        int emergencyCallRouting = EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
-                        if (!shouldEmergencyNumberRoutingFromDbBeIgnored()) {
-                            emergencyCallRouting = getRoutingInfoFromDB(eccInfo,
-                                    assetNormalRoutedNumbers);
-                        }
-                        updatedAssetEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
-                                eccInfo, countryIso, emergencyCallRouting));
+            ProtobufEccData.CountryInfo countryEccInfo = database.getCountry(countryIso);
+            if (countryEccInfo != null) {
+                for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
+                    int emergencyCallRouting = EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
+                    if (!shouldEmergencyNumberRoutingFromDbBeIgnored()) {
+                        emergencyCallRouting = getRoutingInfoFromDB(eccInfo,
+                                assetNormalRoutedNumbers);
                     }
+                    updatedAssetEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
+                            eccInfo, countryIso, emergencyCallRouting));
                 }
             }
             EmergencyNumber.mergeSameNumbersInEmergencyNumberList(updatedAssetEmergencyNumberList);
@@ -592,14 +599,13 @@ public class EmergencyNumberTracker extends Handler {
     }
 
     private int cacheOtaEmergencyNumberDatabase() {
-        ProtobufEccData.AllInfo allEccMessages = null;
         int otaDatabaseVersion = INVALID_DATABASE_VERSION;
         Map<String, Set<String>> otaNormalRoutedNumbers = new ArrayMap<>();
 
         // Read the OTA emergency number database
         List<EmergencyNumber> updatedOtaEmergencyNumberList = new ArrayList<>();
 
-        File file;
+        final File file;
         // If OTA File partition is not available, try to reload the default one.
         if (mOverridedOtaDbParcelFileDescriptor == null) {
             file = new File(Environment.getDataDirectory(), EMERGENCY_NUMBER_DB_OTA_FILE_PATH);
@@ -613,26 +619,23 @@ public class EmergencyNumberTracker extends Handler {
             }
         }
 
-        // try-with-resource. Those 3 streams are all auto closeable.
-        try (FileInputStream fileInputStream = new FileInputStream(file);
-             BufferedInputStream inputStream = new BufferedInputStream(fileInputStream);
-             GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream)) {
-            allEccMessages = ProtobufEccData.AllInfo.parseFrom(
-                    readInputStreamToByteArray(gzipInputStream));
+        try {
+            EccDatabaseIndex database = EccDatabaseIndex.open(
+                    getEccDatabaseIndexFile(ECC_DATABASE_INDEX_OTA_FILE_NAME),
+                    () -> new FileInputStream(file));
             String countryIso = getLastKnownEmergencyCountryIso();
+            otaDatabaseVersion = database.getRevision();
             logd(countryIso + " ota emergency database is loaded. Ver: " + otaDatabaseVersion);
-            otaDatabaseVersion = allEccMessages.revision;
-            for (ProtobufEccData.CountryInfo countryEccInfo : allEccMessages.countries) {
-                if (countryEccInfo.isoCode.equals(countryIso.toUpperCase(Locale.ROOT))) {
-                    for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
-                        int emergencyCallRouting = EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
-                        if (!shouldEmergencyNumberRoutingFromDbBeIgnored()) {
-                            emergencyCallRouting = getRoutingInfoFromDB(eccInfo,
-                                    otaNormalRoutedNumbers);
-                        }
-                        updatedOtaEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
-                                eccInfo, countryIso, emergencyCallRouting));
+            ProtobufEccData.CountryInfo countryEccInfo = database.getCountry(countryIso);
+            if (countryEccInfo != null) {
+                for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
+                    int emergencyCallRouting = EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
+                    if (!shouldEmergencyNumberRoutingFromDbBeIgnored()) {
+                        emergencyCallRouting = getRoutingInfoFromDB(eccInfo,
+                                otaNormalRoutedNumbers);
                     }
+                    updatedOtaEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
+                            eccInfo, countryIso, emergencyCallRouting));
                 }
             }
             EmergencyNumber.mergeSameNumbersInEmergencyNumberList(updatedOtaEmergencyNumberList);
@@ -653,18 +656,14 @@ public class EmergencyNumberTracker extends Handler {
     }
 
     /**
-     * Util function to convert inputStream to byte array before parsing proto data.
+     * @param name The name of the index file.
+     * @return The index file of an emergency number database, {@code null} if the files dir is
+     * not available, in which case the database is parsed in memory.
      */
-    private static byte[] readInputStreamToByteArray(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        int size = 16 * 1024; // Read 16k chunks
-        byte[] data = new byte[size];
-        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
-        }
-        buffer.flush();
-        return buffer.toByteArray();
+    private @Nullable File getEccDatabaseIndexFile(String name) {
+        File filesDir = mPhone.getContext().getFilesDir();
+        if (filesDir == null) return null;
+        return new File(new File(filesDir, ECC_DATABASE_INDEX_DIR), name);
     }
 
     private void updateRadioEmergencyNumberListAndNotify(
@@ -799,6 +798,38 @@ public class EmergencyNumberTracker extends Handler {
             EmergencyNumber.mergeSameNumbersInEmergencyNumberList(mergedEmergencyNumberList, true);
         }
         mEmergencyNumberList = mergedEmergencyNumberList;
+        rebuildEmergencyNumberIndex();
+    }
+
+    /**
+     * Rebuild the index used by {@link #isEmergencyNumber}, from all the emergency number lists.
+     * Numbers with prefix are indexed the same way {@link #isEmergencyNumber} used to match them.
+     */
+    private void rebuildEmergencyNumberIndex() {
+        EmergencyNumberIndex.Builder builder =
+                new EmergencyNumberIndex.Builder(!mEmergencyNumberListFromRadio.isEmpty());
+        for (EmergencyNumber num : mEmergencyNumberList) {
+            builder.add(EmergencyNumberIndex.LIST_MERGED, num.getNumber());
+        }
+        for (String num : ECC_NUMBERS_SIM_PRESENT) {
+            builder.addWithPrefixes(EmergencyNumberIndex.LIST_ECC_SIM_PRESENT, num,
+                    mEmergencyNumberPrefix);
+        }
+        for (String num : ECC_NUMBERS_SIM_ABSENT) {
+            builder.addWithPrefixes(EmergencyNumberIndex.LIST_ECC_SIM_ABSENT, num,
+                    mEmergencyNumberPrefix);
+        }
+        for (EmergencyNumber num : mEmergencyNumberListFromDatabase) {
+            builder.add(EmergencyNumberIndex.LIST_DATABASE, num.getNumber());
+        }
+        for (EmergencyNumber num : getEmergencyNumberListWithPrefix(
+                mEmergencyNumberListFromDatabase)) {
+            builder.add(EmergencyNumberIndex.LIST_DATABASE, num.getNumber());
+        }
+        for (EmergencyNumber num : mEmergencyNumberListFromTestMode) {
+            builder.add(EmergencyNumberIndex.LIST_TEST_MODE, num.getNumber());
+        }
+        mEmergencyNumberIndex = builder.build();
     }
 
     /**
@@ -913,23 +944,19 @@ public class EmergencyNumberTracker extends Handler {
         // to the list.
         number = PhoneNumberUtils.extractNetworkPortionAlt(number);
 
-        if (!mEmergencyNumberListFromRadio.isEmpty()) {
-            for (EmergencyNumber num : mEmergencyNumberList) {
-                if (num.getNumber().equals(number)) {
-                    logd("Found in mEmergencyNumberList");
-                    return true;
-                }
-            }
-            return false;
-        } else {
-            boolean inEccList = isEmergencyNumberFromEccList(number);
-            boolean inEmergencyNumberDb = isEmergencyNumberFromDatabase(number);
-            boolean inEmergencyNumberTestList = isEmergencyNumberForTest(number);
-            logd("Search results - inRilEccList:" + inEccList
-                    + " inEmergencyNumberDb:" + inEmergencyNumberDb + " inEmergencyNumberTestList: "
-                    + inEmergencyNumberTestList);
-            return inEccList || inEmergencyNumberDb || inEmergencyNumberTestList;
+        EmergencyNumberIndex index = mEmergencyNumberIndex;
+        int lists = index.getLists(number);
+        if (index.isFromRadio()) {
+            return (lists & EmergencyNumberIndex.LIST_MERGED) != 0;
         }
+        boolean simAbsent = isSimAbsent();
+        int eccList = simAbsent ? EmergencyNumberIndex.LIST_ECC_SIM_ABSENT
+                : EmergencyNumberIndex.LIST_ECC_SIM_PRESENT;
+        if ((lists & (eccList | EmergencyNumberIndex.LIST_DATABASE
+                | EmergencyNumberIndex.LIST_TEST_MODE)) != 0) {
+            return true;
+        }
+        return simAbsent && isEmergencyNumberFromShortNumberInfo(number);
     }
 
     /**
@@ -1049,8 +1076,9 @@ public class EmergencyNumberTracker extends Handler {
     private List<EmergencyNumber> getEmergencyNumberListFromEccList() {
         List<EmergencyNumber> emergencyNumberList = new ArrayList<>();
 
-        String emergencyNumbers = ((isSimAbsent()) ? "112,911,000,08,110,118,119,999" : "112,911");
-        for (String emergencyNum : emergencyNumbers.split(",")) {
+        String[] emergencyNumbers = isSimAbsent() ? ECC_NUMBERS_SIM_ABSENT
+                : ECC_NUMBERS_SIM_PRESENT;
+        for (String emergencyNum : emergencyNumbers) {
             emergencyNumberList.add(getLabeledEmergencyNumberForEcclist(emergencyNum));
         }
         if (mEmergencyNumberPrefix.length != 0) {
@@ -1080,36 +1108,6 @@ public class EmergencyNumberTracker extends Handler {
         return emergencyNumberListWithPrefix;
     }
 
-    private boolean isEmergencyNumberForTest(String number) {
-        number = PhoneNumberUtils.stripSeparators(number);
-        for (EmergencyNumber num : mEmergencyNumberListFromTestMode) {
-            if (num.getNumber().equals(number)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean isEmergencyNumberFromDatabase(String number) {
-        if (mEmergencyNumberListFromDatabase.isEmpty()) {
-            return false;
-        }
-        number = PhoneNumberUtils.stripSeparators(number);
-        for (EmergencyNumber num : mEmergencyNumberListFromDatabase) {
-            if (num.getNumber().equals(number)) {
-                return true;
-            }
-        }
-        List<EmergencyNumber> emergencyNumberListFromDatabaseWithPrefix =
-                getEmergencyNumberListWithPrefix(mEmergencyNumberListFromDatabase);
-        for (EmergencyNumber num : emergencyNumberListFromDatabaseWithPrefix) {
-            if (num.getNumber().equals(number)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private EmergencyNumber getLabeledEmergencyNumberForEcclist(String number) {
         number = PhoneNumberUtils.stripSeparators(number);
         for (EmergencyNumber num : mEmergencyNumberListFromDatabase) {
@@ -1128,72 +1126,23 @@ public class EmergencyNumberTracker extends Handler {
 
     /**
      * Back-up old logics for {@link PhoneNumberUtils#isEmergencyNumberInternal} for legacy
-     * and deprecate purpose.
+     * and deprecate purpose, used when no SIM is present. The default ECC numbers are checked
+     * through {@link #mEmergencyNumberIndex}.
      */
-    private boolean isEmergencyNumberFromEccList(String number) {
-        // If the number passed in is null, just return false:
-        if (number == null) return false;
-
-        /// M: preprocess number for emergency check @{
-        // Move following logic to isEmergencyNumber()
-
-        // If the number passed in is a SIP address, return false, since the
-        // concept of "emergency numbers" is only meaningful for calls placed
-        // over the cell network.
-        // (Be sure to do this check *before* calling extractNetworkPortionAlt(),
-        // since the whole point of extractNetworkPortionAlt() is to filter out
-        // any non-dialable characters (which would turn 'abc911def@example.com'
-        // into '911', for example.))
-        //if (PhoneNumberUtils.isUriNumber(number)) {
-        //    return false;
-        //}
-
-        // Strip the separators from the number before comparing it
-        // to the list.
-        //number = PhoneNumberUtils.extractNetworkPortionAlt(number);
-        /// @}
-
-        String emergencyNumbers = "";
+    private boolean isEmergencyNumberFromShortNumberInfo(String number) {
         String countryIso = getLastKnownEmergencyCountryIso();
-        logd("country:" + countryIso);
-
-        logd("System property doesn't provide any emergency numbers."
-                + " Use embedded logic for determining ones.");
-
-        // According spec 3GPP TS22.101, the following numbers should be
-        // ECC numbers when SIM/USIM is not present.
-        emergencyNumbers = ((isSimAbsent()) ? "112,911,000,08,110,118,119,999" : "112,911");
-
-        for (String emergencyNum : emergencyNumbers.split(",")) {
-            if (number.equals(emergencyNum)) {
-                return true;
-            } else {
-                for (String prefix : mEmergencyNumberPrefix) {
-                    if (number.equals(prefix + emergencyNum)) {
-                        return true;
-                    }
-                }
-            }
+        if (countryIso == null) {
+            return false;
         }
-
-        if (isSimAbsent()) {
-            // No ecclist system property, so use our own list.
-            if (countryIso != null) {
-                ShortNumberInfo info = ShortNumberInfo.getInstance();
-                if (info.isEmergencyNumber(number, countryIso.toUpperCase(Locale.ROOT))) {
-                    return true;
-                } else {
-                    for (String prefix : mEmergencyNumberPrefix) {
-                        if (info.isEmergencyNumber(prefix + number,
-                                countryIso.toUpperCase(Locale.ROOT))) {
-                            return true;
-                        }
-                    }
-                }
-                return false;
+        ShortNumberInfo info = ShortNumberInfo.getInstance();
+        if (info.isEmergencyNumber(number, countryIso.toUpperCase(Locale.ROOT))) {
+            return true;
+        }
+        for (String prefix : mEmergencyNumberPrefix) {
+            if (info.isEmergencyNumber(prefix + number, countryIso.toUpperCase(Locale.ROOT))) {
+                return true;
             }
         }
-
         return false;
     }
 
@@ -98,6 +98,11 @@ public final class GsmSMSDispatcher extends SMSDispatcher {
         }
     }
 
+    @Override
+    protected boolean isSendSchedulerSupported() {
+        return true;
+    }
+
     @Override
     protected boolean shouldBlockSmsForEcbm() {
         // There is no such thing as ECBM for GSM. This only applies to CDMA.
@@ -172,6 +177,7 @@ public final class GsmSMSDispatcher extends SMSDispatcher {
                     != ServiceState.RIL_RADIO_TECHNOLOGY_NR) {
                 tracker.onFailed(mContext, getNotInServiceError(ss), NO_ERROR_CODE);
                 notifySmsSentFailedToEmergencyStateTracker(tracker, false);
+                onSmsNotSentToModem(tracker);
                 return;
             }
         }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import android.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiPredicate;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Growable storage of one kind of aggregated atoms, indexed by their dimensions.
+ *
+ * <p>{@link PersistAtomsStorage} updates the counters of an existing atom for most events, and
+ * only inserts a new atom when a new combination of dimensions shows up. The index lets it find
+ * the atom to update without scanning, and is updated in place when atoms are added or replaced.
+ * The atoms are only copied to an array of {@link
+ * com.android.internal.telephony.nano.PersistAtomsProto.PersistAtoms} when it is saved or pulled.
+ *
+ * <p>The index is an open addressing hash table of positions. The hash and the comparison of the
+ * dimensions work on the fields of the atoms directly, so lookups don't allocate. Counters can be
+ * updated in place, but the dimensions of an atom must not change while it is stored.
+ *
+ * @param <T> The type of the atom.
+ */
+final class AtomIndex<T> {
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private final IntFunction<T[]> mArrayFactory;
+    private final ToIntFunction<T> mHashFunction;
+    private final BiPredicate<T, T> mSameDimensions;
+
+    private final ArrayList<T> mAtoms = new ArrayList<>();
+
+    /**
+     * Position of an atom plus one in each slot, or 0 if the slot is empty. The size is a power of
+     * two and at least twice the number of atoms.
+     */
+    private int[] mTable = new int[MIN_TABLE_SIZE];
+
+    /**
+     * @param arrayFactory Creates an array of atoms with the given length.
+     * @param hashFunction Returns the hash code of the dimensions of an atom.
+     * @param sameDimensions Returns whether two atoms have the same dimensions.
+     */
+    AtomIndex(IntFunction<T[]> arrayFactory, ToIntFunction<T> hashFunction,
+            BiPredicate<T, T> sameDimensions) {
+        mArrayFactory = arrayFactory;
+        mHashFunction = hashFunction;
+        mSameDimensions = sameDimensions;
+    }
+
+    /** Returns the stored atom that has the same dimensions as {@code key}, or {@code null}. */
+    @Nullable
+    T find(T key) {
+        int mask = mTable.length - 1;
+        for (int slot = homeSlot(key, mask); mTable[slot] != 0; slot = (slot + 1) & mask) {
+            T atom = mAtoms.get(mTable[slot] - 1);
+            if (mSameDimensions.test(atom, key)) {
+                return atom;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the number of stored atoms. */
+    int size() {
+        return mAtoms.size();
+    }
+
+    /** Returns the atom at {@code position}. */
+    T get(int position) {
+        return mAtoms.get(position);
+    }
+
+    /** Appends an atom. */
+    void add(T atom) {
+        mAtoms.add(atom);
+        if (mAtoms.size() * 2 > mTable.length) {
+            rehash();
+        } else {
+            insertSlot(mAtoms.size() - 1);
+        }
+    }
+
+    /** Replaces the atom at {@code position}. */
+    void set(int position, T atom) {
+        removeSlot(position);
+        mAtoms.set(position, atom);
+        insertSlot(position);
+    }
+
+    /** Replaces all atoms, e.g. with the ones loaded from the file. */
+    void load(T[] atoms) {
+        mAtoms.clear();
+        mAtoms.addAll(Arrays.asList(atoms));
+        rehash();
+    }
+
+    /** Removes all atoms. */
+    void clear() {
+        mAtoms.clear();
+        mTable = new int[MIN_TABLE_SIZE];
+    }
+
+    /** Returns a new array with the stored atoms. */
+    T[] toArray() {
+        return mAtoms.toArray(mArrayFactory.apply(mAtoms.size()));
+    }
+
+    private int homeSlot(T atom, int mask) {
+        int hash = mHashFunction.applyAsInt(atom);
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private void insertSlot(int position) {
+        int mask = mTable.length - 1;
+        int slot = homeSlot(mAtoms.get(position), mask);
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mTable[slot] = position + 1;
+    }
+
+    private void removeSlot(int position) {
+        int mask = mTable.length - 1;
+        int hole = homeSlot(mAtoms.get(position), mask);
+        while (mTable[hole] != position + 1) {
+            hole = (hole + 1) & mask;
+        }
+        // Shift back the following entries of the probe sequence that can fill the hole, so that
+        // lookups never stop at an empty slot before reaching their entry.
+        for (int slot = (hole + 1) & mask; mTable[slot] != 0; slot = (slot + 1) & mask) {
+            int home = homeSlot(mAtoms.get(mTable[slot] - 1), mask);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                mTable[hole] = mTable[slot];
+                hole = slot;
+            }
+        }
+        mTable[hole] = 0;
+    }
+
+    private void rehash() {
+        int size = MIN_TABLE_SIZE;
+        while (size < mAtoms.size() * 2) {
+            size <<= 1;
+        }
+        mTable = new int[size];
+        for (int i = 0; i < mAtoms.size(); i++) {
+            insertSlot(i);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import android.annotation.Nullable;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.telephony.Rlog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the atoms added to {@link PersistAtomsStorage} since its last snapshot.
+ *
+ * <p>The journal starts with a header holding the CRC32 of the snapshot file it extends, followed
+ * by records of {@code [type][length][payload][crc]}. On load, the journal is only replayed if its
+ * header matches the snapshot that was read, so records already folded into a newer snapshot are
+ * never applied twice. Replay stops at the first incomplete or corrupted record, which is where a
+ * crash interrupted the last append.
+ *
+ * <p>Records are queued in memory by {@link #enqueue(int, byte[])} and written in batches by
+ * {@link #flush()}, which syncs the file so that flushed records survive a power loss. Queueing
+ * never waits for a flush in progress.
+ */
+class PersistAtomsJournal {
+    private static final String TAG = PersistAtomsJournal.class.getSimpleName();
+
+    /** Marks the start of a journal file. */
+    private static final int MAGIC = 0x50414a31; // "PAJ1"
+
+    /** Size of the header: magic and snapshot checksum. */
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    /** Size of a record without its payload: type, length and checksum. */
+    private static final int RECORD_OVERHEAD = 3 * Integer.BYTES;
+
+    /** Records larger than this are treated as corrupted. */
+    private static final int MAX_RECORD_PAYLOAD_SIZE = 64 * 1024;
+
+    /** Receives the records read from the journal. */
+    interface Replayer {
+        /**
+         * @param type The record type passed to {@link #append(int, byte[])}.
+         * @param payload The record payload.
+         */
+        void replay(int type, byte[] payload) throws IOException;
+    }
+
+    private final File mFile;
+
+    /** Stream appending to the journal, {@code null} if the journal is not usable. */
+    @Nullable private FileOutputStream mStream;
+
+    /** Current size of the journal file in bytes. */
+    private long mSizeBytes;
+
+    private final Object mPendingLock = new Object();
+
+    /** Records queued since the last flush. */
+    @GuardedBy("mPendingLock")
+    private final ByteArrayOutputStream mPendingRecords = new ByteArrayOutputStream();
+
+    PersistAtomsJournal(File file) {
+        mFile = file;
+    }
+
+    /** Returns the CRC32 of the given snapshot bytes. */
+    static long checksum(byte[] snapshot) {
+        CRC32 crc = new CRC32();
+        crc.update(snapshot);
+        return crc.getValue();
+    }
+
+    /**
+     * Replays the records of the journal that extends the given snapshot, and opens the journal
+     * for appending.
+     *
+     * <p>A journal written for another snapshot is discarded. A corrupted tail is truncated so
+     * that new records are appended right after the last valid one.
+     *
+     * @param snapshotChecksum The checksum of the snapshot that was loaded.
+     * @param replayer Receives the valid records in the order they were appended.
+     * @return The number of records replayed.
+     */
+    synchronized int replay(long snapshotChecksum, Replayer replayer) {
+        int count = 0;
+        long validSize = 0;
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readLong() != snapshotChecksum) {
+                Rlog.d(TAG, "Journal does not match snapshot");
+                reset(snapshotChecksum);
+                return 0;
+            }
+            validSize = HEADER_SIZE;
+            while (true) {
+                int type = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_PAYLOAD_SIZE) {
+                    Rlog.w(TAG, "Invalid record length " + length);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if ((int) recordChecksum(type, payload) != in.readInt()) {
+                    Rlog.w(TAG, "Invalid record checksum");
+                    break;
+                }
+                replayer.replay(type, payload);
+                validSize += RECORD_OVERHEAD + length;
+                count++;
+            }
+        } catch (FileNotFoundException e) {
+            reset(snapshotChecksum);
+            return 0;
+        } catch (EOFException e) {
+            // End of the journal, or a record torn by a crash while appending
+        } catch (IOException e) {
+            Rlog.e(TAG, "cannot replay journal", e);
+        }
+
+        if (validSize == 0) {
+            reset(snapshotChecksum);
+            return 0;
+        }
+        open(validSize);
+        return count;
+    }
+
+    /**
+     * Starts a new, empty journal extending the snapshot with the given checksum. Queued records
+     * are dropped, as they are part of that snapshot.
+     *
+     * @param snapshotChecksum The checksum of the snapshot that was just saved.
+     */
+    synchronized void reset(long snapshotChecksum) {
+        synchronized (mPendingLock) {
+            mPendingRecords.reset();
+        }
+        close();
+        try (FileOutputStream stream = new FileOutputStream(mFile, false)) {
+            stream.write(ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putLong(snapshotChecksum)
+                    .array());
+        } catch (IOException e) {
+            Rlog.e(TAG, "cannot reset journal", e);
+            return;
+        }
+        open(HEADER_SIZE);
+    }
+
+    /**
+     * Queues a record to be appended to the journal by the next {@link #flush()}.
+     *
+     * @param type The type of the record.
+     * @param payload The payload of the record.
+     * @return {@code true} if the record was queued, {@code false} if it is too large and the
+     * caller should fall back to saving a snapshot.
+     */
+    boolean enqueue(int type, byte[] payload) {
+        if (payload.length > MAX_RECORD_PAYLOAD_SIZE) {
+            return false;
+        }
+        byte[] record = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length)
+                .putInt(type)
+                .putInt(payload.length)
+                .put(payload)
+                .putInt((int) recordChecksum(type, payload))
+                .array();
+        synchronized (mPendingLock) {
+            mPendingRecords.write(record, 0, record.length);
+        }
+        return true;
+    }
+
+    /**
+     * Appends the queued records to the journal and syncs it to the disk.
+     *
+     * @return {@code true} if the records were written, {@code false} if the journal is not usable
+     * and the caller should fall back to saving a snapshot.
+     */
+    synchronized boolean flush() {
+        byte[] records;
+        synchronized (mPendingLock) {
+            records = mPendingRecords.toByteArray();
+            mPendingRecords.reset();
+        }
+        if (records.length == 0) {
+            return mStream != null;
+        }
+        if (mStream == null) {
+            return false;
+        }
+        // Write all records at once to keep the window for a torn record small
+        try {
+            mStream.write(records);
+            mStream.getFD().sync();
+        } catch (IOException e) {
+            Rlog.e(TAG, "cannot append to journal", e);
+            close();
+            return false;
+        }
+        mSizeBytes += records.length;
+        return true;
+    }
+
+    /**
+     * Closes and deletes the journal. Appends fail until the next {@link #reset(long)}, e.g. when
+     * there is no snapshot on disk that the journal could extend.
+     */
+    synchronized void discard() {
+        synchronized (mPendingLock) {
+            mPendingRecords.reset();
+        }
+        close();
+        if (mFile.exists() && !mFile.delete()) {
+            Rlog.w(TAG, "cannot delete journal");
+        }
+    }
+
+    /** Returns the size of the journal file in bytes. */
+    synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    /** Returns whether records can be appended to the journal. */
+    synchronized boolean isOpen() {
+        return mStream != null;
+    }
+
+    private void open(long validSize) {
+        try {
+            mStream = new FileOutputStream(mFile, true);
+            if (mStream.getChannel().size() > validSize) {
+                mStream.getChannel().truncate(validSize);
+            }
+            mSizeBytes = validSize;
+        } catch (IOException e) {
+            Rlog.e(TAG, "cannot open journal", e);
+            close();
+        }
+    }
+
+    private void close() {
+        if (mStream != null) {
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                Rlog.e(TAG, "cannot close journal", e);
+            }
+            mStream = null;
+        }
+        mSizeBytes = 0;
+    }
+
+    private static long recordChecksum(int type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Integer.BYTES).putInt(type).array());
+        crc.update(payload);
+        return crc.getValue();
+    }
+}
@@ -62,6 +62,7 @@ import com.android.internal.telephony.nano.PersistAtomsProto.UceEventStats;
 import com.android.internal.telephony.nano.PersistAtomsProto.UnmeteredNetworks;
 import com.android.internal.telephony.nano.PersistAtomsProto.VoiceCallRatUsage;
 import com.android.internal.telephony.nano.PersistAtomsProto.VoiceCallSession;
+import com.android.internal.telephony.protobuf.nano.MessageNano;
 import com.android.internal.util.ArrayUtils;
 import com.android.telephony.Rlog;
 
@@ -72,6 +73,8 @@ import java.nio.file.NoSuchFileException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Objects;
+import java.util.function.ToLongFunction;
 import java.util.stream.IntStream;
 
 /**
@@ -86,6 +89,27 @@ public class PersistAtomsStorage {
     /** Name of the file where cached statistics are saved to. */
     private static final String FILENAME = "persist_atoms.pb";
 
+    /** Name of the file where atoms added since the last save are journaled. */
+    private static final String JOURNAL_FILENAME = "persist_atoms.journal";
+
+    /** Size of the journal that triggers compaction into {@link #FILENAME}. */
+    private static final int MAX_JOURNAL_SIZE_BYTES = 32 * 1024;
+
+    /**
+     * Delay to flush queued atoms to the journal, bundling the atoms added in a burst into a
+     * single write and sync.
+     */
+    private static final int JOURNAL_FLUSH_DELAY_MILLIS = 1000;
+
+    /** Journal record types. */
+    private static final int JOURNAL_RECORD_VOICE_CALL_SESSION = 1;
+    private static final int JOURNAL_RECORD_INCOMING_SMS = 2;
+    private static final int JOURNAL_RECORD_OUTGOING_SMS = 3;
+    private static final int JOURNAL_RECORD_DATA_CALL_SESSION = 4;
+
+    /** Checksum used when there is no valid snapshot on disk. */
+    private static final long NO_SNAPSHOT_CHECKSUM = -1L;
+
     /** Delay to store atoms to persistent storage to bundle multiple operations together. */
     private static final int SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS = 30000;
 
@@ -182,6 +206,38 @@ public class PersistAtomsStorage {
     /** Whether atoms should be saved immediately, skipping the delay. */
     @VisibleForTesting protected boolean mSaveImmediately;
 
+    /**
+     * Journal of the session atoms added since the last save, {@code null} if journaling is
+     * disabled.
+     *
+     * <p>Call sessions and SMS are added one by one and would otherwise each rewrite the whole
+     * file. Instead, they are appended to the journal and folded into the file on the next save.
+     */
+    @Nullable private final PersistAtomsJournal mJournal;
+
+    /** Checksum of the snapshot loaded from the file, used to validate the journal. */
+    private long mLoadedSnapshotChecksum = NO_SNAPSHOT_CHECKSUM;
+
+    /**
+     * The aggregated atoms that are updated most frequently, indexed by dimensions. They are the
+     * up-to-date copy of their arrays in {@link #mAtoms}, which are only written when saved.
+     */
+    private final AtomIndex<CellularServiceState> mCellularServiceStates =
+            new AtomIndex<>(CellularServiceState[]::new, PersistAtomsStorage::hashDimensions,
+                    PersistAtomsStorage::sameDimensions);
+    private final AtomIndex<CellularDataServiceSwitch> mCellularDataServiceSwitches =
+            new AtomIndex<>(CellularDataServiceSwitch[]::new, PersistAtomsStorage::hashDimensions,
+                    PersistAtomsStorage::sameDimensions);
+    private final AtomIndex<ImsRegistrationStats> mImsRegistrationStats =
+            new AtomIndex<>(ImsRegistrationStats[]::new, PersistAtomsStorage::hashDimensions,
+                    PersistAtomsStorage::sameDimensions);
+    private final AtomIndex<ImsRegistrationTermination> mImsRegistrationTerminations =
+            new AtomIndex<>(ImsRegistrationTermination[]::new,
+                    PersistAtomsStorage::hashDimensions, PersistAtomsStorage::sameDimensions);
+    private final AtomIndex<NetworkRequestsV2> mNetworkRequestsV2 =
+            new AtomIndex<>(NetworkRequestsV2[]::new, PersistAtomsStorage::hashDimensions,
+                    PersistAtomsStorage::sameDimensions);
+
     private final Context mContext;
     private final Handler mHandler;
     private final HandlerThread mHandlerThread;
@@ -195,7 +251,14 @@ public class PersistAtomsStorage {
                 }
             };
 
+    private final Runnable mFlushJournalRunnable = this::flushJournal;
+
     public PersistAtomsStorage(Context context) {
+        this(context, true);
+    }
+
+    @VisibleForTesting
+    protected PersistAtomsStorage(Context context, boolean journalEnabled) {
         mContext = context;
 
         if (mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_RAM_LOW)) {
@@ -250,6 +313,10 @@ public class PersistAtomsStorage {
         }
 
         mAtoms = loadAtomsFromFile();
+        loadIndexedAtoms();
+        mJournal = journalEnabled
+                ? new PersistAtomsJournal(mContext.getFileStreamPath(JOURNAL_FILENAME)) : null;
+        replayJournal();
         mVoiceCallRatTracker = VoiceCallRatTracker.fromProto(mAtoms.voiceCallRatUsage);
 
         mHandlerThread = new HandlerThread("PersistAtomsThread");
@@ -260,9 +327,9 @@ public class PersistAtomsStorage {
 
     /** Adds a call to the storage. */
     public synchronized void addVoiceCallSession(VoiceCallSession call) {
-        mAtoms.voiceCallSession =
-                insertAtRandomPlace(mAtoms.voiceCallSession, call, mMaxNumVoiceCallSessions);
-        saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
+        byte[] record = toJournalRecord(call);
+        insertVoiceCallSession(call);
+        appendToJournalOrSave(JOURNAL_RECORD_VOICE_CALL_SESSION, record);
 
         Rlog.d(TAG, "Add new voice call session: " + call.toString());
     }
@@ -276,9 +343,9 @@ public class PersistAtomsStorage {
 
     /** Adds an incoming SMS to the storage. */
     public synchronized void addIncomingSms(IncomingSms sms) {
-        sms.hashCode = SmsStats.getSmsHashCode(sms);
-        mAtoms.incomingSms = insertAtRandomPlace(mAtoms.incomingSms, sms, mMaxNumSms);
-        saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
+        byte[] record = toJournalRecord(sms);
+        insertIncomingSms(sms);
+        appendToJournalOrSave(JOURNAL_RECORD_INCOMING_SMS, record);
 
         // To be removed
         Rlog.d(TAG, "Add new incoming SMS atom: " + sms.toString());
@@ -286,18 +353,9 @@ public class PersistAtomsStorage {
 
     /** Adds an outgoing SMS to the storage. */
     public synchronized void addOutgoingSms(OutgoingSms sms) {
-        sms.hashCode = SmsStats.getSmsHashCode(sms);
-        // Update the retry id, if needed, so that it's unique and larger than all
-        // previous ones. (this algorithm ignores the fact that some SMS atoms might
-        // be dropped due to limit in size of the array).
-        for (OutgoingSms storedSms : mAtoms.outgoingSms) {
-            if (storedSms.messageId == sms.messageId && storedSms.retryId >= sms.retryId) {
-                sms.retryId = storedSms.retryId + 1;
-            }
-        }
-
-        mAtoms.outgoingSms = insertAtRandomPlace(mAtoms.outgoingSms, sms, mMaxNumSms);
-        saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
+        byte[] record = toJournalRecord(sms);
+        insertOutgoingSms(sms);
+        appendToJournalOrSave(JOURNAL_RECORD_OUTGOING_SMS, record);
 
         // To be removed
         Rlog.d(TAG, "Add new outgoing SMS atom: " + sms.toString());
@@ -312,9 +370,8 @@ public class PersistAtomsStorage {
             existingState.lastUsedMillis = getWallTimeMillis();
         } else {
             state.lastUsedMillis = getWallTimeMillis();
-            mAtoms.cellularServiceState =
-                    insertAtRandomPlace(
-                            mAtoms.cellularServiceState, state, mMaxNumCellularServiceStates);
+            insertAtRandomPlace(mCellularServiceStates, state, mMaxNumCellularServiceStates,
+                    item -> item.lastUsedMillis);
         }
 
         if (serviceSwitch != null) {
@@ -324,11 +381,8 @@ public class PersistAtomsStorage {
                 existingSwitch.lastUsedMillis = getWallTimeMillis();
             } else {
                 serviceSwitch.lastUsedMillis = getWallTimeMillis();
-                mAtoms.cellularDataServiceSwitch =
-                        insertAtRandomPlace(
-                                mAtoms.cellularDataServiceSwitch,
-                                serviceSwitch,
-                                mMaxNumCellularDataSwitches);
+                insertAtRandomPlace(mCellularDataServiceSwitches, serviceSwitch,
+                        mMaxNumCellularDataSwitches, item -> item.lastUsedMillis);
             }
         }
 
@@ -337,6 +391,37 @@ public class PersistAtomsStorage {
 
     /** Adds a data call session to the storage. */
     public synchronized void addDataCallSession(DataCallSession dataCall) {
+        // Journal the session before it is merged, replay runs the same merge
+        byte[] record = toJournalRecord(dataCall);
+        insertDataCallSession(dataCall);
+        appendToJournalOrSave(JOURNAL_RECORD_DATA_CALL_SESSION, record);
+    }
+
+    private void insertVoiceCallSession(VoiceCallSession call) {
+        mAtoms.voiceCallSession =
+                insertAtRandomPlace(mAtoms.voiceCallSession, call, mMaxNumVoiceCallSessions);
+    }
+
+    private void insertIncomingSms(IncomingSms sms) {
+        sms.hashCode = SmsStats.getSmsHashCode(sms);
+        mAtoms.incomingSms = insertAtRandomPlace(mAtoms.incomingSms, sms, mMaxNumSms);
+    }
+
+    private void insertOutgoingSms(OutgoingSms sms) {
+        sms.hashCode = SmsStats.getSmsHashCode(sms);
+        // Update the retry id, if needed, so that it's unique and larger than all
+        // previous ones. (this algorithm ignores the fact that some SMS atoms might
+        // be dropped due to limit in size of the array).
+        for (OutgoingSms storedSms : mAtoms.outgoingSms) {
+            if (storedSms.messageId == sms.messageId && storedSms.retryId >= sms.retryId) {
+                sms.retryId = storedSms.retryId + 1;
+            }
+        }
+
+        mAtoms.outgoingSms = insertAtRandomPlace(mAtoms.outgoingSms, sms, mMaxNumSms);
+    }
+
+    private void insertDataCallSession(DataCallSession dataCall) {
         int index = findIndex(dataCall);
         if (index >= 0) {
             DataCallSession existingCall = mAtoms.dataCallSession[index];
@@ -357,8 +442,6 @@ public class PersistAtomsStorage {
             mAtoms.dataCallSession =
                     insertAtRandomPlace(mAtoms.dataCallSession, dataCall, mMaxNumDataCallSessions);
         }
-
-        saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
     }
 
     /**
@@ -413,9 +496,8 @@ public class PersistAtomsStorage {
             existingStats.lastUsedMillis = getWallTimeMillis();
         } else {
             stats.lastUsedMillis = getWallTimeMillis();
-            mAtoms.imsRegistrationStats =
-                    insertAtRandomPlace(
-                            mAtoms.imsRegistrationStats, stats, mMaxNumImsRegistrationStats);
+            insertAtRandomPlace(mImsRegistrationStats, stats, mMaxNumImsRegistrationStats,
+                    item -> item.lastUsedMillis);
         }
         saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
     }
@@ -428,11 +510,8 @@ public class PersistAtomsStorage {
             existingTermination.lastUsedMillis = getWallTimeMillis();
         } else {
             termination.lastUsedMillis = getWallTimeMillis();
-            mAtoms.imsRegistrationTermination =
-                    insertAtRandomPlace(
-                            mAtoms.imsRegistrationTermination,
-                            termination,
-                            mMaxNumImsRegistrationTerminations);
+            insertAtRandomPlace(mImsRegistrationTerminations, termination,
+                    mMaxNumImsRegistrationTerminations, item -> item.lastUsedMillis);
         }
         saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
     }
@@ -470,9 +549,7 @@ public class PersistAtomsStorage {
             newMetrics.capability = networkRequests.capability;
             newMetrics.carrierId = networkRequests.carrierId;
             newMetrics.requestCount = networkRequests.requestCount;
-            mAtoms.networkRequestsV2 =
-                    ArrayUtils.appendElement(
-                            NetworkRequestsV2.class, mAtoms.networkRequestsV2, newMetrics, true);
+            mNetworkRequestsV2.add(newMetrics);
         }
         saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
     }
@@ -912,9 +989,9 @@ public class PersistAtomsStorage {
         if (getWallTimeMillis() - mAtoms.cellularServiceStatePullTimestampMillis
                 > minIntervalMillis) {
             mAtoms.cellularServiceStatePullTimestampMillis = getWallTimeMillis();
-            CellularServiceState[] previousStates = mAtoms.cellularServiceState;
+            CellularServiceState[] previousStates = mCellularServiceStates.toArray();
             Arrays.stream(previousStates).forEach(state -> state.lastUsedMillis = 0L);
-            mAtoms.cellularServiceState = new CellularServiceState[0];
+            mCellularServiceStates.clear();
             saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_GET_MILLIS);
             return previousStates;
         } else {
@@ -932,10 +1009,10 @@ public class PersistAtomsStorage {
         if (getWallTimeMillis() - mAtoms.cellularDataServiceSwitchPullTimestampMillis
                 > minIntervalMillis) {
             mAtoms.cellularDataServiceSwitchPullTimestampMillis = getWallTimeMillis();
-            CellularDataServiceSwitch[] previousSwitches = mAtoms.cellularDataServiceSwitch;
+            CellularDataServiceSwitch[] previousSwitches = mCellularDataServiceSwitches.toArray();
             Arrays.stream(previousSwitches)
                     .forEach(serviceSwitch -> serviceSwitch.lastUsedMillis = 0L);
-            mAtoms.cellularDataServiceSwitch = new CellularDataServiceSwitch[0];
+            mCellularDataServiceSwitches.clear();
             saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_GET_MILLIS);
             return previousSwitches;
         } else {
@@ -953,9 +1030,9 @@ public class PersistAtomsStorage {
                 getWallTimeMillis() - mAtoms.imsRegistrationStatsPullTimestampMillis;
         if (intervalMillis > minIntervalMillis) {
             mAtoms.imsRegistrationStatsPullTimestampMillis = getWallTimeMillis();
-            ImsRegistrationStats[] previousStats = mAtoms.imsRegistrationStats;
+            ImsRegistrationStats[] previousStats = mImsRegistrationStats.toArray();
             Arrays.stream(previousStats).forEach(stats -> stats.lastUsedMillis = 0L);
-            mAtoms.imsRegistrationStats = new ImsRegistrationStats[0];
+            mImsRegistrationStats.clear();
             saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_GET_MILLIS);
             return normalizeData(previousStats, intervalMillis);
         } else {
@@ -973,10 +1050,11 @@ public class PersistAtomsStorage {
         if (getWallTimeMillis() - mAtoms.imsRegistrationTerminationPullTimestampMillis
                 > minIntervalMillis) {
             mAtoms.imsRegistrationTerminationPullTimestampMillis = getWallTimeMillis();
-            ImsRegistrationTermination[] previousTerminations = mAtoms.imsRegistrationTermination;
+            ImsRegistrationTermination[] previousTerminations =
+                    mImsRegistrationTerminations.toArray();
             Arrays.stream(previousTerminations)
                     .forEach(termination -> termination.lastUsedMillis = 0L);
-            mAtoms.imsRegistrationTermination = new ImsRegistrationTermination[0];
+            mImsRegistrationTerminations.clear();
             saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_GET_MILLIS);
             return previousTerminations;
         } else {
@@ -992,8 +1070,8 @@ public class PersistAtomsStorage {
     public synchronized NetworkRequestsV2[] getNetworkRequestsV2(long minIntervalMillis) {
         if (getWallTimeMillis() - mAtoms.networkRequestsV2PullTimestampMillis > minIntervalMillis) {
             mAtoms.networkRequestsV2PullTimestampMillis = getWallTimeMillis();
-            NetworkRequestsV2[] previousNetworkRequests = mAtoms.networkRequestsV2;
-            mAtoms.networkRequestsV2 = new NetworkRequestsV2[0];
+            NetworkRequestsV2[] previousNetworkRequests = mNetworkRequestsV2.toArray();
+            mNetworkRequestsV2.clear();
             saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_GET_MILLIS);
             return previousNetworkRequests;
         } else {
@@ -1457,15 +1535,24 @@ public class PersistAtomsStorage {
     /** Clears atoms for testing purpose. */
     public synchronized void clearAtoms() {
         mAtoms = makeNewPersistAtoms();
+        loadIndexedAtoms();
         saveAtomsToFile(0);
     }
 
+    /** Moves the atoms kept in an {@link AtomIndex} from {@link #mAtoms} to their index. */
+    private void loadIndexedAtoms() {
+        mCellularServiceStates.load(mAtoms.cellularServiceState);
+        mCellularDataServiceSwitches.load(mAtoms.cellularDataServiceSwitch);
+        mImsRegistrationStats.load(mAtoms.imsRegistrationStats);
+        mImsRegistrationTerminations.load(mAtoms.imsRegistrationTermination);
+        mNetworkRequestsV2.load(mAtoms.networkRequestsV2);
+    }
+
     /** Loads {@link PersistAtoms} from a file in private storage. */
     private PersistAtoms loadAtomsFromFile() {
         try {
-            PersistAtoms atoms =
-                    PersistAtoms.parseFrom(
-                            Files.readAllBytes(mContext.getFileStreamPath(FILENAME).toPath()));
+            byte[] bytes = Files.readAllBytes(mContext.getFileStreamPath(FILENAME).toPath());
+            PersistAtoms atoms = PersistAtoms.parseFrom(bytes);
             // Start from scratch if build changes, since mixing atoms from different builds could
             // produce strange results
             if (!Build.FINGERPRINT.equals(atoms.buildFingerprint)) {
@@ -1661,6 +1748,7 @@ public class PersistAtomsStorage {
                     sanitizeTimestamp(atoms.satelliteProvisionPullTimestampMillis);
             atoms.satelliteSosMessageRecommenderPullTimestampMillis =
                     sanitizeTimestamp(atoms.satelliteSosMessageRecommenderPullTimestampMillis);
+            mLoadedSnapshotChecksum = PersistAtomsJournal.checksum(bytes);
             return atoms;
         } catch (NoSuchFileException e) {
             Rlog.d(TAG, "PersistAtoms file not found");
@@ -1687,12 +1775,101 @@ public class PersistAtomsStorage {
         saveAtomsToFileNow();
     }
 
-    /** Saves a copy of {@link PersistAtoms} to a file in private storage. */
+    /**
+     * Saves a copy of {@link PersistAtoms} to a file in private storage, and starts a new journal
+     * since all the journaled atoms are now part of the file.
+     */
     private synchronized void saveAtomsToFileNow() {
+        mAtoms.cellularServiceState = mCellularServiceStates.toArray();
+        mAtoms.cellularDataServiceSwitch = mCellularDataServiceSwitches.toArray();
+        mAtoms.imsRegistrationStats = mImsRegistrationStats.toArray();
+        mAtoms.imsRegistrationTermination = mImsRegistrationTerminations.toArray();
+        mAtoms.networkRequestsV2 = mNetworkRequestsV2.toArray();
+        byte[] bytes = PersistAtoms.toByteArray(mAtoms);
         try (FileOutputStream stream = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE)) {
-            stream.write(PersistAtoms.toByteArray(mAtoms));
+            stream.write(bytes);
         } catch (IOException e) {
             Rlog.e(TAG, "cannot save PersistAtoms", e);
+            return;
+        }
+        if (mJournal != null) {
+            mJournal.reset(PersistAtomsJournal.checksum(bytes));
+        }
+    }
+
+    /** Returns the serialized atom to journal, or {@code null} if journaling is disabled. */
+    private @Nullable byte[] toJournalRecord(MessageNano atom) {
+        return mJournal != null ? MessageNano.toByteArray(atom) : null;
+    }
+
+    /**
+     * Queues an added atom for the journal and schedules a flush, or schedules a save if it cannot
+     * be journaled.
+     *
+     * <p>The journal is written on {@link #mHandler} so that callers never wait for the disk.
+     */
+    private void appendToJournalOrSave(int type, @Nullable byte[] record) {
+        if (record == null || !mJournal.enqueue(type, record)) {
+            saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
+            return;
+        }
+        if (mSaveImmediately) {
+            flushJournal();
+        } else if (!mHandler.hasCallbacks(mFlushJournalRunnable)
+                && !mHandler.postDelayed(mFlushJournalRunnable, JOURNAL_FLUSH_DELAY_MILLIS)) {
+            flushJournal();
+        }
+    }
+
+    /**
+     * Writes the queued atoms to the journal, or schedules a save if the journal is not usable.
+     *
+     * <p>The journal is compacted into the file once it grows beyond {@link
+     * #MAX_JOURNAL_SIZE_BYTES}. Pulls also save the file, which compacts the journal as well.
+     *
+     * <p>On {@link #mHandler}, this does not hold the storage lock while writing, so atoms can be
+     * added meanwhile. A save drops the queued atoms instead, since they are part of the file.
+     */
+    private void flushJournal() {
+        if (!mJournal.flush()) {
+            saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS);
+        } else if (mJournal.getSizeBytes() > MAX_JOURNAL_SIZE_BYTES) {
+            saveAtomsToFile(SAVE_TO_FILE_DELAY_FOR_GET_MILLIS);
+        }
+    }
+
+    /** Applies the atoms journaled since the snapshot loaded from the file was saved. */
+    private void replayJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        if (mLoadedSnapshotChecksum == NO_SNAPSHOT_CHECKSUM) {
+            // The journal can only extend a snapshot that is on disk
+            mJournal.discard();
+            return;
+        }
+        int count = mJournal.replay(mLoadedSnapshotChecksum, this::applyJournalRecord);
+        if (count > 0) {
+            Rlog.d(TAG, "Replayed " + count + " journaled atoms");
+        }
+    }
+
+    private void applyJournalRecord(int type, byte[] payload) throws IOException {
+        switch (type) {
+            case JOURNAL_RECORD_VOICE_CALL_SESSION:
+                insertVoiceCallSession(VoiceCallSession.parseFrom(payload));
+                break;
+            case JOURNAL_RECORD_INCOMING_SMS:
+                insertIncomingSms(IncomingSms.parseFrom(payload));
+                break;
+            case JOURNAL_RECORD_OUTGOING_SMS:
+                insertOutgoingSms(OutgoingSms.parseFrom(payload));
+                break;
+            case JOURNAL_RECORD_DATA_CALL_SESSION:
+                insertDataCallSession(DataCallSession.parseFrom(payload));
+                break;
+            default:
+                Rlog.w(TAG, "Unknown journal record type " + type);
         }
     }
 
@@ -1701,25 +1878,7 @@ public class PersistAtomsStorage {
      * null} if it does not exist.
      */
     private @Nullable CellularServiceState find(CellularServiceState key) {
-        for (CellularServiceState state : mAtoms.cellularServiceState) {
-            if (state.voiceRat == key.voiceRat
-                    && state.dataRat == key.dataRat
-                    && state.voiceRoamingType == key.voiceRoamingType
-                    && state.dataRoamingType == key.dataRoamingType
-                    && state.isEndc == key.isEndc
-                    && state.simSlotIndex == key.simSlotIndex
-                    && state.isMultiSim == key.isMultiSim
-                    && state.carrierId == key.carrierId
-                    && state.isEmergencyOnly == key.isEmergencyOnly
-                    && state.isInternetPdnUp == key.isInternetPdnUp
-                    && state.foldState == key.foldState
-                    && state.overrideVoiceService == key.overrideVoiceService
-                    && state.isDataEnabled == key.isDataEnabled
-                    && state.isIwlanCrossSim == key.isIwlanCrossSim) {
-                return state;
-            }
-        }
-        return null;
+        return mCellularServiceStates.find(key);
     }
 
     /**
@@ -1727,16 +1886,7 @@ public class PersistAtomsStorage {
      * {@code null} if it does not exist.
      */
     private @Nullable CellularDataServiceSwitch find(CellularDataServiceSwitch key) {
-        for (CellularDataServiceSwitch serviceSwitch : mAtoms.cellularDataServiceSwitch) {
-            if (serviceSwitch.ratFrom == key.ratFrom
-                    && serviceSwitch.ratTo == key.ratTo
-                    && serviceSwitch.simSlotIndex == key.simSlotIndex
-                    && serviceSwitch.isMultiSim == key.isMultiSim
-                    && serviceSwitch.carrierId == key.carrierId) {
-                return serviceSwitch;
-            }
-        }
-        return null;
+        return mCellularDataServiceSwitches.find(key);
     }
 
     /**
@@ -1760,15 +1910,7 @@ public class PersistAtomsStorage {
      * {@code null} if it does not exist.
      */
     private @Nullable ImsRegistrationStats find(ImsRegistrationStats key) {
-        for (ImsRegistrationStats stats : mAtoms.imsRegistrationStats) {
-            if (stats.carrierId == key.carrierId
-                    && stats.simSlotIndex == key.simSlotIndex
-                    && stats.rat == key.rat
-                    && stats.isIwlanCrossSim == key.isIwlanCrossSim) {
-                return stats;
-            }
-        }
-        return null;
+        return mImsRegistrationStats.find(key);
     }
 
     /**
@@ -1776,19 +1918,7 @@ public class PersistAtomsStorage {
      * one, or {@code null} if it does not exist.
      */
     private @Nullable ImsRegistrationTermination find(ImsRegistrationTermination key) {
-        for (ImsRegistrationTermination termination : mAtoms.imsRegistrationTermination) {
-            if (termination.carrierId == key.carrierId
-                    && termination.isMultiSim == key.isMultiSim
-                    && termination.ratAtEnd == key.ratAtEnd
-                    && termination.isIwlanCrossSim == key.isIwlanCrossSim
-                    && termination.setupFailed == key.setupFailed
-                    && termination.reasonCode == key.reasonCode
-                    && termination.extraCode == key.extraCode
-                    && termination.extraMessage.equals(key.extraMessage)) {
-                return termination;
-            }
-        }
-        return null;
+        return mImsRegistrationTerminations.find(key);
     }
 
     /**
@@ -1796,12 +1926,103 @@ public class PersistAtomsStorage {
      * one, or {@code null} if it does not exist.
      */
     private @Nullable NetworkRequestsV2 find(NetworkRequestsV2 key) {
-        for (NetworkRequestsV2 item : mAtoms.networkRequestsV2) {
-            if (item.carrierId == key.carrierId && item.capability == key.capability) {
-                return item;
-            }
-        }
-        return null;
+        return mNetworkRequestsV2.find(key);
+    }
+
+    private static int hashDimensions(CellularServiceState state) {
+        int hash = state.voiceRat;
+        hash = 31 * hash + state.dataRat;
+        hash = 31 * hash + state.voiceRoamingType;
+        hash = 31 * hash + state.dataRoamingType;
+        hash = 31 * hash + Boolean.hashCode(state.isEndc);
+        hash = 31 * hash + state.simSlotIndex;
+        hash = 31 * hash + Boolean.hashCode(state.isMultiSim);
+        hash = 31 * hash + state.carrierId;
+        hash = 31 * hash + Boolean.hashCode(state.isEmergencyOnly);
+        hash = 31 * hash + Boolean.hashCode(state.isInternetPdnUp);
+        hash = 31 * hash + state.foldState;
+        hash = 31 * hash + Boolean.hashCode(state.overrideVoiceService);
+        hash = 31 * hash + Boolean.hashCode(state.isDataEnabled);
+        return 31 * hash + Boolean.hashCode(state.isIwlanCrossSim);
+    }
+
+    private static boolean sameDimensions(CellularServiceState a, CellularServiceState b) {
+        return a.voiceRat == b.voiceRat
+                && a.dataRat == b.dataRat
+                && a.voiceRoamingType == b.voiceRoamingType
+                && a.dataRoamingType == b.dataRoamingType
+                && a.isEndc == b.isEndc
+                && a.simSlotIndex == b.simSlotIndex
+                && a.isMultiSim == b.isMultiSim
+                && a.carrierId == b.carrierId
+                && a.isEmergencyOnly == b.isEmergencyOnly
+                && a.isInternetPdnUp == b.isInternetPdnUp
+                && a.foldState == b.foldState
+                && a.overrideVoiceService == b.overrideVoiceService
+                && a.isDataEnabled == b.isDataEnabled
+                && a.isIwlanCrossSim == b.isIwlanCrossSim;
+    }
+
+    private static int hashDimensions(CellularDataServiceSwitch serviceSwitch) {
+        int hash = serviceSwitch.ratFrom;
+        hash = 31 * hash + serviceSwitch.ratTo;
+        hash = 31 * hash + serviceSwitch.simSlotIndex;
+        hash = 31 * hash + Boolean.hashCode(serviceSwitch.isMultiSim);
+        return 31 * hash + serviceSwitch.carrierId;
+    }
+
+    private static boolean sameDimensions(CellularDataServiceSwitch a,
+            CellularDataServiceSwitch b) {
+        return a.ratFrom == b.ratFrom
+                && a.ratTo == b.ratTo
+                && a.simSlotIndex == b.simSlotIndex
+                && a.isMultiSim == b.isMultiSim
+                && a.carrierId == b.carrierId;
+    }
+
+    private static int hashDimensions(ImsRegistrationStats stats) {
+        int hash = stats.carrierId;
+        hash = 31 * hash + stats.simSlotIndex;
+        hash = 31 * hash + stats.rat;
+        return 31 * hash + Boolean.hashCode(stats.isIwlanCrossSim);
+    }
+
+    private static boolean sameDimensions(ImsRegistrationStats a, ImsRegistrationStats b) {
+        return a.carrierId == b.carrierId
+                && a.simSlotIndex == b.simSlotIndex
+                && a.rat == b.rat
+                && a.isIwlanCrossSim == b.isIwlanCrossSim;
+    }
+
+    private static int hashDimensions(ImsRegistrationTermination termination) {
+        int hash = termination.carrierId;
+        hash = 31 * hash + Boolean.hashCode(termination.isMultiSim);
+        hash = 31 * hash + termination.ratAtEnd;
+        hash = 31 * hash + Boolean.hashCode(termination.isIwlanCrossSim);
+        hash = 31 * hash + Boolean.hashCode(termination.setupFailed);
+        hash = 31 * hash + termination.reasonCode;
+        hash = 31 * hash + termination.extraCode;
+        return 31 * hash + Objects.hashCode(termination.extraMessage);
+    }
+
+    private static boolean sameDimensions(ImsRegistrationTermination a,
+            ImsRegistrationTermination b) {
+        return a.carrierId == b.carrierId
+                && a.isMultiSim == b.isMultiSim
+                && a.ratAtEnd == b.ratAtEnd
+                && a.isIwlanCrossSim == b.isIwlanCrossSim
+                && a.setupFailed == b.setupFailed
+                && a.reasonCode == b.reasonCode
+                && a.extraCode == b.extraCode
+                && Objects.equals(a.extraMessage, b.extraMessage);
+    }
+
+    private static int hashDimensions(NetworkRequestsV2 item) {
+        return 31 * item.carrierId + item.capability;
+    }
+
+    private static boolean sameDimensions(NetworkRequestsV2 a, NetworkRequestsV2 b) {
+        return a.carrierId == b.carrierId && a.capability == b.capability;
     }
 
     /**
@@ -2083,6 +2304,36 @@ public class PersistAtomsStorage {
         return null;
     }
 
+    /**
+     * Inserts a new atom in a random position of an {@link AtomIndex} with a maximum size.
+     *
+     * <p>If the index is full, replaces the atom that was used least recently.
+     */
+    private static <T> void insertAtRandomPlace(AtomIndex<T> atoms, T instance, int maxLength,
+            ToLongFunction<T> lastUsedMillis) {
+        int size = atoms.size();
+        if (size >= maxLength) {
+            int evictAt = 0;
+            for (int i = 1; i < size; i++) {
+                if (lastUsedMillis.applyAsLong(atoms.get(i))
+                        <= lastUsedMillis.applyAsLong(atoms.get(evictAt))) {
+                    evictAt = i;
+                }
+            }
+            atoms.set(evictAt, instance);
+            return;
+        }
+        // insert at random place (by moving the item at the random place to the end)
+        int insertAt = sRandom.nextInt(size + 1);
+        if (insertAt == size) {
+            atoms.add(instance);
+        } else {
+            T moved = atoms.get(insertAt);
+            atoms.set(insertAt, instance);
+            atoms.add(moved);
+        }
+    }
+
     /**
      * Inserts a new element in a random position in an array with a maximum size.
      *
@@ -2195,38 +2446,6 @@ public class PersistAtomsStorage {
 
     /** Returns index of the item suitable for eviction when the array is full. */
     private static <T> int findItemToEvict(T[] array) {
-        if (array instanceof CellularServiceState[]) {
-            // Evict the item that was used least recently
-            CellularServiceState[] arr = (CellularServiceState[]) array;
-            return IntStream.range(0, arr.length)
-                    .reduce((i, j) -> arr[i].lastUsedMillis < arr[j].lastUsedMillis ? i : j)
-                    .getAsInt();
-        }
-
-        if (array instanceof CellularDataServiceSwitch[]) {
-            // Evict the item that was used least recently
-            CellularDataServiceSwitch[] arr = (CellularDataServiceSwitch[]) array;
-            return IntStream.range(0, arr.length)
-                    .reduce((i, j) -> arr[i].lastUsedMillis < arr[j].lastUsedMillis ? i : j)
-                    .getAsInt();
-        }
-
-        if (array instanceof ImsRegistrationStats[]) {
-            // Evict the item that was used least recently
-            ImsRegistrationStats[] arr = (ImsRegistrationStats[]) array;
-            return IntStream.range(0, arr.length)
-                    .reduce((i, j) -> arr[i].lastUsedMillis < arr[j].lastUsedMillis ? i : j)
-                    .getAsInt();
-        }
-
-        if (array instanceof ImsRegistrationTermination[]) {
-            // Evict the item that was used least recently
-            ImsRegistrationTermination[] arr = (ImsRegistrationTermination[]) array;
-            return IntStream.range(0, arr.length)
-                    .reduce((i, j) -> arr[i].lastUsedMillis < arr[j].lastUsedMillis ? i : j)
-                    .getAsInt();
-        }
-
         if (array instanceof VoiceCallSession[]) {
             // For voice calls, try to keep emergency calls over regular calls.
             VoiceCallSession[] arr = (VoiceCallSession[]) array;
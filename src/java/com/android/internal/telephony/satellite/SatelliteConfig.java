@@ -32,6 +32,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -47,11 +48,13 @@ public class SatelliteConfig {
     private static final String TAG = "SatelliteConfig";
     private static final String SATELLITE_DIR_NAME = "satellite";
     private static final String S2_CELL_FILE_NAME = "s2_cell_file";
+    private static final String S2_CELL_INDEX_FILE_NAME = "s2_cell_index";
     private int mVersion;
     private Map<Integer, Map<String, Set<Integer>>> mSupportedServicesPerCarrier;
     private List<String> mSatelliteRegionCountryCodes;
     private Boolean mIsSatelliteRegionAllowed;
     private Path mSatS2FilePath;
+    private SatelliteS2CellIndex mSatS2CellIndex;
     private SatelliteConfigData.SatelliteConfigProto mConfigData;
 
     public SatelliteConfig(SatelliteConfigData.SatelliteConfigProto configData) {
@@ -188,6 +191,39 @@ public class SatelliteConfig {
         return null;
     }
 
+    /**
+     * @param context the Context
+     * @return memory-mapped index of the satellite s2 cells, {@code null} if the s2_cell_file of
+     * the config isn't in the {@link SatelliteS2CellIndex} format
+     */
+    @Nullable
+    public synchronized SatelliteS2CellIndex getSatelliteS2CellIndex(@Nullable Context context) {
+        if (context == null) {
+            Log.d(TAG, "getSatelliteS2CellIndex : context is null");
+            return null;
+        }
+
+        if (mSatS2CellIndex != null) {
+            return mSatS2CellIndex;
+        }
+
+        if (mConfigData == null || mConfigData.deviceSatelliteRegion == null
+                || !SatelliteS2CellIndex.isIndex(mConfigData.deviceSatelliteRegion.s2CellFile)) {
+            Log.d(TAG, "getSatelliteS2CellIndex : no s2 cell index in mConfigData");
+            return null;
+        }
+
+        File satS2FileDir = context.getDir(SATELLITE_DIR_NAME, Context.MODE_PRIVATE);
+        if (!satS2FileDir.exists()) {
+            satS2FileDir.mkdirs();
+        }
+        // The index file is only rewritten when a new config has different cells.
+        mSatS2CellIndex = SatelliteS2CellIndex.open(
+                new File(satS2FileDir, S2_CELL_INDEX_FILE_NAME),
+                mConfigData.deviceSatelliteRegion.s2CellFile);
+        return mSatS2CellIndex;
+    }
+
     /**
      * @param context       the Context
      * @param byteArrayFile byte array type of protobuffer config data
@@ -209,6 +245,10 @@ public class SatelliteConfig {
         }
 
         Path targetSatS2FilePath = satS2FileDir.toPath().resolve(S2_CELL_FILE_NAME);
+        if (isSameContent(targetSatS2FilePath, byteArrayFile)) {
+            Log.d(TAG, "copySatS2FileToPhoneDirectory: " + S2_CELL_FILE_NAME + " is unchanged");
+            return targetSatS2FilePath;
+        }
         try {
             InputStream inputStream = new ByteArrayInputStream(byteArrayFile);
             if (inputStream == null) {
@@ -230,4 +270,16 @@ public class SatelliteConfig {
     public boolean isFileExist(Path filePath) {
         return Files.exists(filePath);
     }
+
+    /**
+     * @return {@code true} if the file has the content, without reading it when the size differs.
+     */
+    private static boolean isSameContent(@NonNull Path filePath, @NonNull byte[] content) {
+        try {
+            return Files.isRegularFile(filePath) && Files.size(filePath) == content.length
+                    && Arrays.equals(Files.readAllBytes(filePath), content);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
 }
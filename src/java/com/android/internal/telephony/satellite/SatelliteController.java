@@ -516,6 +516,44 @@ public class SatelliteController extends Handler {
         return (SatelliteConfig) getSatelliteConfigParser().getConfig();
     }
 
+    /**
+     * Check whether satellite is allowed at a location, with the S2 cell index of the satellite
+     * region in the config data.
+     *
+     * @param latDegrees The latitude in degrees.
+     * @param lngDegrees The longitude in degrees.
+     * @return {@code true} if satellite is allowed at the location, {@code false} if not,
+     * {@code null} if the config data has no S2 cell index.
+     */
+    @Nullable
+    public Boolean isSatelliteAllowedAtLocation(double latDegrees, double lngDegrees) {
+        return isSatelliteAllowedInS2Cell(
+                SatelliteS2CellIndex.getLeafCellId(latDegrees, lngDegrees));
+    }
+
+    /**
+     * Check whether satellite is allowed in an S2 cell, with the S2 cell index of the satellite
+     * region in the config data.
+     *
+     * @param cellId The S2 cell id, of any level.
+     * @return {@code true} if satellite is allowed in the whole cell, {@code false} if not,
+     * {@code null} if the config data has no S2 cell index.
+     */
+    @Nullable
+    public Boolean isSatelliteAllowedInS2Cell(long cellId) {
+        SatelliteConfig satelliteConfig = getSatelliteConfig();
+        if (satelliteConfig == null) {
+            return null;
+        }
+        SatelliteS2CellIndex index = satelliteConfig.getSatelliteS2CellIndex(mContext);
+        Boolean isAllowedRegion = satelliteConfig.isSatelliteDataForAllowedRegion();
+        if (index == null || isAllowedRegion == null) {
+            return null;
+        }
+        // The cells are either the allowed or the disallowed region.
+        return index.contains(cellId) == isAllowedRegion;
+    }
+
     /**
      * Get SatelliteConfigParser from TelephonyConfigUpdateInstallReceiver
      */
@@ -1366,6 +1404,11 @@ public class SatelliteController extends Handler {
     }
 
     private void handleEventConfigDataUpdated() {
+        SatelliteConfig satelliteConfig = getSatelliteConfig();
+        if (satelliteConfig != null) {
+            // Write and map the S2 cell index of the new config before the first lookup
+            satelliteConfig.getSatelliteS2CellIndex(mContext);
+        }
         updateSupportedSatelliteServicesForActiveSubscriptions();
         int[] activeSubIds = mSubscriptionManagerService.getActiveSubIdList(true);
         if (activeSubIds != null) {
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.satellite;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped index of S2 cells, to check whether a location is in the satellite region.
+ * <p/>
+ * The index is a sorted list of disjoint ranges of S2 leaf cell ids, so a cell of any level is a
+ * single range and a lookup is a binary search over the mapped file, without reading the whole
+ * file into the heap. The file format is:
+ * <pre>
+ *     int magic, int format version, int range count, int CRC-32 of the ranges,
+ *     range count * (long first leaf cell id, long last leaf cell id)
+ * </pre>
+ * Cell ids are compared as unsigned values. The CRC-32 identifies the content, so a new config
+ * with the same cells doesn't rewrite the file.
+ */
+public final class SatelliteS2CellIndex {
+    private static final String TAG = "SatelliteS2CellIndex";
+
+    /** Level of the S2 leaf cells. */
+    public static final int MAX_LEVEL = 30;
+
+    /** "S2CI". */
+    private static final int MAGIC = 0x53324349;
+    private static final int FORMAT_VERSION = 1;
+    /** Magic, format version, range count and CRC-32. */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    private static final int RANGE_SIZE = 2 * Long.BYTES;
+
+    private static final int FACE_BITS = 3;
+    private static final int POS_BITS = 2 * MAX_LEVEL + 1;
+    private static final int MAX_SIZE = 1 << MAX_LEVEL;
+
+    private static final int LOOKUP_BITS = 4;
+    private static final int SWAP_MASK = 0x01;
+    private static final int INVERT_MASK = 0x02;
+    /** Position of each (i, j) sub-cell, for each orientation of the Hilbert curve. */
+    private static final int[][] POS_TO_IJ = {{0, 1, 3, 2}, {0, 2, 3, 1}, {3, 2, 0, 1},
+            {3, 1, 0, 2}};
+    private static final int[] POS_TO_ORIENTATION = {SWAP_MASK, 0, 0, INVERT_MASK | SWAP_MASK};
+    /** (i, j, orientation) of {@link #LOOKUP_BITS} bits to (position, orientation). */
+    private static final int[] LOOKUP_POS = new int[1 << (2 * LOOKUP_BITS + 2)];
+
+    static {
+        initLookupCell(0, 0, 0, 0, 0, 0);
+        initLookupCell(0, 0, 0, SWAP_MASK, 0, SWAP_MASK);
+        initLookupCell(0, 0, 0, INVERT_MASK, 0, INVERT_MASK);
+        initLookupCell(0, 0, 0, SWAP_MASK | INVERT_MASK, 0, SWAP_MASK | INVERT_MASK);
+    }
+
+    /** First and last leaf cell id of each range. */
+    @NonNull
+    private final LongBuffer mRanges;
+    private final int mRangeCount;
+
+    private SatelliteS2CellIndex(@NonNull LongBuffer ranges, int rangeCount) {
+        mRanges = ranges;
+        mRangeCount = rangeCount;
+    }
+
+    /**
+     * Write the index to a file if the file doesn't have the same index yet, and map it.
+     *
+     * @param file The index file.
+     * @param data The index, as built by {@link Builder#build()}.
+     * @return The mapped index, {@code null} if {@code data} isn't an index or can't be written.
+     */
+    @Nullable
+    public static SatelliteS2CellIndex open(@NonNull File file, @NonNull byte[] data) {
+        if (!isIndex(data)) {
+            Log.d(TAG, "open: not an S2 cell index");
+            return null;
+        }
+        if (!Arrays.equals(readHeader(file), Arrays.copyOf(data, HEADER_SIZE))) {
+            AtomicFile atomicFile = new AtomicFile(file);
+            FileOutputStream fos = null;
+            try {
+                fos = atomicFile.startWrite();
+                fos.write(data);
+                atomicFile.finishWrite(fos);
+            } catch (IOException e) {
+                Log.e(TAG, "open: failed to write " + file + ", e=" + e);
+                atomicFile.failWrite(fos);
+                return null;
+            }
+        }
+        return map(file);
+    }
+
+    /**
+     * @param file The index file.
+     * @return The mapped index, {@code null} if the file is missing or isn't an index.
+     */
+    @Nullable
+    public static SatelliteS2CellIndex map(@NonNull File file) {
+        if (!file.isFile()) return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT_VERSION) {
+                Log.w(TAG, "map: invalid header in " + file);
+                return null;
+            }
+            int rangeCount = buffer.getInt();
+            if (rangeCount < 0
+                    || buffer.capacity() != HEADER_SIZE + (long) rangeCount * RANGE_SIZE) {
+                Log.w(TAG, "map: invalid size of " + file);
+                return null;
+            }
+            buffer.position(HEADER_SIZE);
+            return new SatelliteS2CellIndex(buffer.slice().asLongBuffer(), rangeCount);
+        } catch (IOException e) {
+            Log.e(TAG, "map: failed to map " + file + ", e=" + e);
+            return null;
+        }
+    }
+
+    /**
+     * @param data The content of a file.
+     * @return {@code true} if the content is an index of this format.
+     */
+    public static boolean isIndex(@Nullable byte[] data) {
+        if (data == null || data.length < HEADER_SIZE) return false;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) return false;
+        int rangeCount = buffer.getInt();
+        return rangeCount >= 0 && data.length == HEADER_SIZE + (long) rangeCount * RANGE_SIZE;
+    }
+
+    /** @return The header of an index file, {@code null} if it can't be read. */
+    @Nullable
+    private static byte[] readHeader(@NonNull File file) {
+        if (!file.isFile()) return null;
+        byte[] header = new byte[HEADER_SIZE];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(header);
+            return header;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** @return The number of ranges of leaf cells in the index. */
+    public int getRangeCount() {
+        return mRangeCount;
+    }
+
+    /**
+     * @param cellId An S2 cell id of any level.
+     * @return {@code true} if the whole cell is in the index.
+     */
+    public boolean contains(long cellId) {
+        long lsb = cellId & -cellId;
+        long first = cellId - (lsb - 1);
+        long last = cellId + (lsb - 1);
+
+        // Last range starting at or before the first leaf cell.
+        int low = 0;
+        int high = mRangeCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(mRanges.get(2 * mid), first) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found >= 0 && Long.compareUnsigned(last, mRanges.get(2 * found + 1)) <= 0;
+    }
+
+    /**
+     * @param latDegrees The latitude in degrees.
+     * @param lngDegrees The longitude in degrees.
+     * @return {@code true} if the location is in the index.
+     */
+    public boolean contains(double latDegrees, double lngDegrees) {
+        return contains(getLeafCellId(latDegrees, lngDegrees));
+    }
+
+    /**
+     * @param latDegrees The latitude in degrees.
+     * @param lngDegrees The longitude in degrees.
+     * @return The S2 leaf cell id of the location.
+     */
+    public static long getLeafCellId(double latDegrees, double lngDegrees) {
+        double lat = Math.toRadians(latDegrees);
+        double lng = Math.toRadians(lngDegrees);
+        double x = Math.cos(lat) * Math.cos(lng);
+        double y = Math.cos(lat) * Math.sin(lng);
+        double z = Math.sin(lat);
+
+        // Project on the face of the cube with the largest component, then to (u, v) on the face.
+        int face;
+        double u;
+        double v;
+        double absX = Math.abs(x);
+        double absY = Math.abs(y);
+        double absZ = Math.abs(z);
+        if (absX >= absY && absX >= absZ) {
+            face = x < 0 ? 3 : 0;
+        } else if (absY >= absZ) {
+            face = y < 0 ? 4 : 1;
+        } else {
+            face = z < 0 ? 5 : 2;
+        }
+        switch (face) {
+            case 0: u = y / x; v = z / x; break;
+            case 1: u = -x / y; v = z / y; break;
+            case 2: u = -x / z; v = -y / z; break;
+            case 3: u = z / x; v = y / x; break;
+            case 4: u = z / y; v = -x / y; break;
+            default: u = -y / z; v = -x / z; break;
+        }
+        return fromFaceIj(face, stToIj(uvToSt(u)), stToIj(uvToSt(v)));
+    }
+
+    /**
+     * @param cellId An S2 cell id.
+     * @param level The level of the parent, at most the level of the cell.
+     * @return The id of the parent of the cell at the level.
+     */
+    public static long getParent(long cellId, int level) {
+        long lsb = 1L << (2 * (MAX_LEVEL - level));
+        return (cellId & -lsb) | lsb;
+    }
+
+    /** Quadratic projection of S2, from the cube face to the cell space. */
+    private static double uvToSt(double u) {
+        if (u >= 0) {
+            return 0.5 * Math.sqrt(1 + 3 * u);
+        }
+        return 1 - 0.5 * Math.sqrt(1 - 3 * u);
+    }
+
+    private static int stToIj(double s) {
+        return Math.max(0, Math.min(MAX_SIZE - 1, (int) Math.floor(MAX_SIZE * s)));
+    }
+
+    /** @return The id of the leaf cell at (i, j) of the face, along the Hilbert curve. */
+    private static long fromFaceIj(int face, int i, int j) {
+        long n = ((long) face) << (POS_BITS - 1);
+        int bits = face & SWAP_MASK;
+        int mask = (1 << LOOKUP_BITS) - 1;
+        for (int k = 7; k >= 0; k--) {
+            bits += ((i >> (k * LOOKUP_BITS)) & mask) << (LOOKUP_BITS + 2);
+            bits += ((j >> (k * LOOKUP_BITS)) & mask) << 2;
+            bits = LOOKUP_POS[bits];
+            n |= ((long) (bits >> 2)) << (k * 2 * LOOKUP_BITS);
+            bits &= (SWAP_MASK | INVERT_MASK);
+        }
+        return (n << 1) + 1;
+    }
+
+    private static void initLookupCell(int level, int i, int j, int origOrientation, int pos,
+            int orientation) {
+        if (level == LOOKUP_BITS) {
+            int ij = (i << LOOKUP_BITS) + j;
+            LOOKUP_POS[(ij << 2) + origOrientation] = (pos << 2) + orientation;
+            return;
+        }
+        int[] posToIj = POS_TO_IJ[orientation];
+        for (int index = 0; index < 4; index++) {
+            initLookupCell(level + 1, (i << 1) + (posToIj[index] >>> 1),
+                    (j << 1) + (posToIj[index] & 1), origOrientation, (pos << 2) + index,
+                    orientation ^ POS_TO_ORIENTATION[index]);
+        }
+    }
+
+    /** Builder of the content of an index file. */
+    public static final class Builder {
+        private final List<long[]> mRanges = new ArrayList<>();
+
+        /**
+         * Add a cell to the index.
+         *
+         * @param cellId An S2 cell id of any level.
+         * @return This builder.
+         */
+        @NonNull
+        public Builder addCell(long cellId) {
+            long lsb = cellId & -cellId;
+            return addRange(cellId - (lsb - 1), cellId + (lsb - 1));
+        }
+
+        /**
+         * Add a range of leaf cells to the index.
+         *
+         * @param first The first leaf cell id.
+         * @param last The last leaf cell id, inclusive.
+         * @return This builder.
+         */
+        @NonNull
+        public Builder addRange(long first, long last) {
+            if (Long.compareUnsigned(first, last) > 0) {
+                throw new IllegalArgumentException("Invalid range " + Long.toHexString(first)
+                        + "-" + Long.toHexString(last));
+            }
+            mRanges.add(new long[] {first, last});
+            return this;
+        }
+
+        /** @return The content of the index file, with the overlapping ranges merged. */
+        @NonNull
+        public byte[] build() {
+            List<long[]> ranges = new ArrayList<>(mRanges);
+            ranges.sort((a, b) -> Long.compareUnsigned(a[0], b[0]));
+            List<long[]> merged = new ArrayList<>();
+            for (long[] range : ranges) {
+                long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                // Leaf cell ids are odd, so adjacent leaf cells are 2 apart.
+                if (previous != null && Long.compareUnsigned(previous[1], -3L) < 0
+                        && Long.compareUnsigned(range[0], previous[1] + 2) <= 0) {
+                    if (Long.compareUnsigned(range[1], previous[1]) > 0) {
+                        previous[1] = range[1];
+                    }
+                } else {
+                    merged.add(new long[] {range[0], range[1]});
+                }
+            }
+
+            ByteBuffer data = ByteBuffer.allocate(merged.size() * RANGE_SIZE);
+            for (long[] range : merged) {
+                data.putLong(range[0]).putLong(range[1]);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data.array());
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.capacity());
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(merged.size())
+                    .putInt((int) crc.getValue()).put(data.array());
+            return buffer.array();
+        }
+    }
+}
@@ -27,6 +27,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Message;
 import android.os.ParcelUuid;
 import android.provider.Telephony;
 import android.provider.Telephony.SimInfo;
@@ -59,6 +60,9 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -90,6 +94,16 @@ public class SubscriptionDatabaseManager extends Handler {
     /** Invalid database row index. */
     private static final int INVALID_ROW_INDEX = -1;
 
+    /** Event to write the pending asynchronous updates into the database. */
+    private static final int EVENT_FLUSH_PENDING_UPDATES = 1;
+
+    /**
+     * The maximum time in milliseconds a batch update can stay in memory before written into the
+     * database in async mode. Batches committed within this window are coalesced into one database
+     * update per subscription.
+     */
+    private static final long BATCH_FLUSH_DELAY_MS = 500;
+
     /** The mapping from {@link SimInfo} table to {@link SubscriptionInfoInternal} get methods. */
     private static final Map<String, Function<SubscriptionInfoInternal, ?>>
             SUBSCRIPTION_GET_METHOD_MAP = Map.ofEntries(
@@ -607,10 +621,58 @@ public class SubscriptionDatabaseManager extends Handler {
     private final Map<Integer, SubscriptionInfoInternal> mAllSubscriptionInfoInternalCache =
             new HashMap<>(16);
 
+    /**
+     * The immutable snapshot of {@link #mAllSubscriptionInfoInternalCache}. Republished every time
+     * the cache changes, so the readers can access the subscriptions without holding the lock.
+     */
+    @NonNull
+    private volatile SubscriptionInfoSnapshot mSnapshot = SubscriptionInfoSnapshot.EMPTY;
+
     /** Whether database has been initialized after boot up. */
     @GuardedBy("this")
     private boolean mDatabaseInitialized = false;
 
+    /**
+     * The database updates waiting to be written in async mode. The key is the subscription id.
+     * Values written to the same subscription are merged, so the latest value of each column wins.
+     */
+    @GuardedBy("mPendingUpdates")
+    @NonNull
+    private final Map<Integer, ContentValues> mPendingUpdates = new LinkedHashMap<>();
+
+    /** Lock to serialize writing the pending updates into the database. */
+    @NonNull
+    private final Object mFlushLock = new Object();
+
+    /** The batch update started by the current thread. {@code null} if not in a batch update. */
+    @NonNull
+    private final ThreadLocal<BatchUpdate> mBatchUpdate = new ThreadLocal<>();
+
+    /** The number of committed batch updates. */
+    @GuardedBy("mPendingUpdates")
+    private int mBatchUpdateCount = 0;
+
+    /** The number of individual field updates coalesced by batch updates. */
+    @GuardedBy("mPendingUpdates")
+    private int mCoalescedUpdateCount = 0;
+
+    /**
+     * The state of a batch update. Collects the modified columns and the subscriptions to notify
+     * while the batch is running. Only accessed by the thread running the batch.
+     */
+    private static class BatchUpdate {
+        /** The modified columns. The key is the subscription id. */
+        @NonNull
+        final Map<Integer, Set<String>> mModifiedColumns = new LinkedHashMap<>();
+
+        /** The subscriptions to notify when the batch is committed. */
+        @NonNull
+        final Set<Integer> mChangedSubIds = new LinkedHashSet<>();
+
+        /** The number of individual field updates made in this batch. */
+        int mUpdateCount;
+    }
+
     /**
      * This is the callback used for listening events from {@link SubscriptionDatabaseManager}.
      */
@@ -679,6 +741,150 @@ public class SubscriptionDatabaseManager extends Handler {
         initializeDatabase();
     }
 
+    @Override
+    public void handleMessage(@NonNull Message msg) {
+        switch (msg.what) {
+            case EVENT_FLUSH_PENDING_UPDATES:
+                flushPendingUpdates();
+                break;
+            default:
+                loge("Unexpected message " + msg.what);
+        }
+    }
+
+    /**
+     * Run several subscription updates as one batch. The cache is updated immediately as usual,
+     * but the changed fields of each subscription are written into the database with one single
+     * update, and {@link SubscriptionDatabaseManagerCallback#onSubscriptionChanged(int)} is only
+     * invoked once per subscription after all updates are done. In async mode, the database write
+     * can be deferred for up to {@link #BATCH_FLUSH_DELAY_MS} so that consecutive batches are
+     * coalesced as well.
+     *
+     * The batch only applies to the updates performed by the calling thread. Nested calls join
+     * the outer batch.
+     *
+     * @param updates The updates to run. Usually a sequence of setXxx() calls.
+     */
+    public void runBatchUpdate(@NonNull Runnable updates) {
+        Objects.requireNonNull(updates);
+        if (mBatchUpdate.get() != null) {
+            updates.run();
+            return;
+        }
+
+        BatchUpdate batch = new BatchUpdate();
+        mBatchUpdate.set(batch);
+        try {
+            updates.run();
+        } finally {
+            mBatchUpdate.remove();
+            commitBatchUpdate(batch);
+        }
+    }
+
+    /**
+     * Write the modified columns of a batch update into the database and notify the changed
+     * subscriptions.
+     *
+     * @param batch The batch update to commit.
+     */
+    private void commitBatchUpdate(@NonNull BatchUpdate batch) {
+        mReadWriteLock.writeLock().lock();
+        try {
+            batch.mModifiedColumns.forEach((subId, columns) -> {
+                // Always write the latest value from the cache, in case other threads updated the
+                // same columns while the batch was running.
+                SubscriptionInfoInternal subInfo = mAllSubscriptionInfoInternalCache.get(subId);
+                if (subInfo == null) return;
+                ContentValues contentValues = new ContentValues();
+                for (String column : columns) {
+                    contentValues.putObject(column,
+                            getSubscriptionInfoFieldByColumnName(subInfo, column));
+                }
+                updateDatabase(subId, contentValues, true);
+            });
+        } finally {
+            mReadWriteLock.writeLock().unlock();
+        }
+
+        synchronized (mPendingUpdates) {
+            mBatchUpdateCount++;
+            mCoalescedUpdateCount += batch.mUpdateCount;
+        }
+        logv("commitBatchUpdate: " + batch.mUpdateCount + " updates on subs "
+                + batch.mChangedSubIds);
+        for (int subId : batch.mChangedSubIds) {
+            mCallback.invokeFromExecutor(() -> mCallback.onSubscriptionChanged(subId));
+        }
+    }
+
+    /**
+     * Notify the subscription changed, or defer it to the end of the batch update if the calling
+     * thread is running one.
+     *
+     * @param subId The subscription id.
+     */
+    private void notifySubscriptionChanged(int subId) {
+        BatchUpdate batch = mBatchUpdate.get();
+        if (batch != null) {
+            batch.mChangedSubIds.add(subId);
+        } else {
+            mCallback.invokeFromExecutor(() -> mCallback.onSubscriptionChanged(subId));
+        }
+    }
+
+    /**
+     * Update a subscription in the database, or record the modified columns if the calling thread
+     * is running a batch update.
+     *
+     * @param subId The subscription id of the subscription to be updated.
+     * @param contentValues The fields to be update.
+     *
+     * @return The number of rows updated. Note if the database is configured as asynchronously
+     * update or the update is deferred to the end of the batch, then this will be always 1.
+     */
+    private int updateDatabaseOrDefer(int subId, @NonNull ContentValues contentValues) {
+        BatchUpdate batch = mBatchUpdate.get();
+        if (batch == null) {
+            return updateDatabase(subId, contentValues, false);
+        }
+
+        synchronized (this) {
+            if (!mDatabaseInitialized) {
+                logel("updateDatabaseOrDefer: Database has not been initialized. Can't update "
+                        + "database at this point. contentValues=" + contentValues);
+                return 0;
+            }
+        }
+        batch.mModifiedColumns.computeIfAbsent(subId, k -> new HashSet<>())
+                .addAll(contentValues.keySet());
+        batch.mUpdateCount++;
+        return 1;
+    }
+
+    /**
+     * Write all the pending asynchronous updates into the database.
+     */
+    private void flushPendingUpdates() {
+        // Serialize the flushes so an older snapshot never overwrites a newer one.
+        synchronized (mFlushLock) {
+            Map<Integer, ContentValues> updates;
+            synchronized (mPendingUpdates) {
+                removeMessages(EVENT_FLUSH_PENDING_UPDATES);
+                if (mPendingUpdates.isEmpty()) return;
+                updates = new LinkedHashMap<>(mPendingUpdates);
+                mPendingUpdates.clear();
+            }
+
+            updates.forEach((subId, contentValues) -> {
+                mContext.getContentResolver().update(Uri.withAppendedPath(
+                        SimInfo.CONTENT_URI, String.valueOf(subId)), contentValues, null, null);
+                logv("flushPendingUpdates: async updated subscription in the database."
+                        + " subId=" + subId + ", contentValues= " + contentValues.getValues());
+            });
+        }
+    }
+
     /**
      * Helper method to get specific field from {@link SubscriptionInfoInternal} by the database
      * column name. {@link SubscriptionInfoInternal} represent one single record in the
@@ -876,6 +1082,7 @@ public class SubscriptionDatabaseManager extends Handler {
                 mAllSubscriptionInfoInternalCache.put(subId, new SubscriptionInfoInternal
                         .Builder(subInfo)
                         .setId(subId).build());
+                publishSnapshotLocked();
             } else {
                 logel("insertSubscriptionInfo: Failed to insert a new subscription. subInfo="
                         + subInfo);
@@ -896,16 +1103,20 @@ public class SubscriptionDatabaseManager extends Handler {
      * @throws IllegalArgumentException If {@code subId} is invalid.
      */
     public void removeSubscriptionInfo(int subId) {
-        if (!mAllSubscriptionInfoInternalCache.containsKey(subId)) {
+        if (mSnapshot.getSubscription(subId) == null) {
             throw new IllegalArgumentException("subId " + subId + " is invalid.");
         }
 
         mReadWriteLock.writeLock().lock();
         try {
+            synchronized (mPendingUpdates) {
+                mPendingUpdates.remove(subId);
+            }
             if (mContext.getContentResolver().delete(SimInfo.CONTENT_URI,
                     SimInfo.COLUMN_UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
                     new String[]{Integer.toString(subId)}) > 0) {
                 mAllSubscriptionInfoInternalCache.remove(subId);
+                publishSnapshotLocked();
             } else {
                 logel("Failed to remove subscription with subId=" + subId);
             }
@@ -921,11 +1132,14 @@ public class SubscriptionDatabaseManager extends Handler {
      *
      * @param subId The subscription id of the subscription to be updated.
      * @param contentValues The fields to be update.
+     * @param coalesce {@code true} to allow the update to stay in memory for up to
+     * {@link #BATCH_FLUSH_DELAY_MS} in async mode, so it can be merged with later updates.
      *
      * @return The number of rows updated. Note if the database is configured as asynchronously
      * update, then this will be always 1.
      */
-    private int updateDatabase(int subId, @NonNull ContentValues contentValues) {
+    private int updateDatabase(int subId, @NonNull ContentValues contentValues,
+            boolean coalesce) {
         logv("updateDatabase: prepare to update sub " + subId);
 
         synchronized (this) {
@@ -937,13 +1151,22 @@ public class SubscriptionDatabaseManager extends Handler {
         }
 
         if (mAsyncMode) {
-            // Perform the update in the handler thread asynchronously.
-            post(() -> {
-                mContext.getContentResolver().update(Uri.withAppendedPath(
-                        SimInfo.CONTENT_URI, String.valueOf(subId)), contentValues, null, null);
-                logv("updateDatabase: async updated subscription in the database."
-                            + " subId=" + subId + ", contentValues= " + contentValues.getValues());
-            });
+            // Perform the update in the handler thread asynchronously. Updates to the same
+            // subscription that have not been written yet are merged into one.
+            synchronized (mPendingUpdates) {
+                ContentValues pending = mPendingUpdates.get(subId);
+                if (pending == null) {
+                    mPendingUpdates.put(subId, new ContentValues(contentValues));
+                } else {
+                    pending.putAll(contentValues);
+                }
+            }
+            if (!coalesce) {
+                removeMessages(EVENT_FLUSH_PENDING_UPDATES);
+                sendEmptyMessage(EVENT_FLUSH_PENDING_UPDATES);
+            } else if (!hasMessages(EVENT_FLUSH_PENDING_UPDATES)) {
+                sendEmptyMessageDelayed(EVENT_FLUSH_PENDING_UPDATES, BATCH_FLUSH_DELAY_MS);
+            }
             return 1;
         } else {
             logv("updateDatabase: sync updated subscription in the database."
@@ -989,6 +1212,7 @@ public class SubscriptionDatabaseManager extends Handler {
             // Check if writing this field should automatically write to the rest of subscriptions
             // in the same group.
             final boolean syncToGroup = GROUP_SHARING_COLUMNS.contains(columnName);
+            final List<Integer> changedSubIds = new ArrayList<>();
 
             mAllSubscriptionInfoInternalCache.forEach((id, subInfo) -> {
                 if (id == subId || (syncToGroup && !oldSubInfo.getGroupUuid().isEmpty()
@@ -1010,15 +1234,21 @@ public class SubscriptionDatabaseManager extends Handler {
 
                         // Prepare the content value for update.
                         contentValues.putObject(columnName, newValue);
-                        if (updateDatabase(id, contentValues) > 0) {
+                        if (updateDatabaseOrDefer(id, contentValues) > 0) {
                             // Update the subscription database cache.
                             mAllSubscriptionInfoInternalCache.put(id, builder.build());
-                            mCallback.invokeFromExecutor(()
-                                    -> mCallback.onSubscriptionChanged(subId));
+                            changedSubIds.add(id);
                         }
                     }
                 }
             });
+            if (!changedSubIds.isEmpty()) {
+                // Publish the snapshot before notifying, so the callbacks read the new values.
+                publishSnapshotLocked();
+                // Notify the written subscription once per updated subscription, as the group
+                // members were updated on its behalf.
+                changedSubIds.forEach(id -> notifySubscriptionChanged(subId));
+            }
         } finally {
             mReadWriteLock.writeLock().unlock();
         }
@@ -1046,9 +1276,11 @@ public class SubscriptionDatabaseManager extends Handler {
             }
             if (oldSubInfo.equals(newSubInfo)) return;
 
-            if (updateDatabase(subId, createDeltaContentValues(oldSubInfo, newSubInfo)) > 0) {
+            if (updateDatabaseOrDefer(subId, createDeltaContentValues(oldSubInfo, newSubInfo))
+                    > 0) {
                 mAllSubscriptionInfoInternalCache.put(subId, newSubInfo);
-                mCallback.invokeFromExecutor(() -> mCallback.onSubscriptionChanged(subId));
+                publishSnapshotLocked();
+                notifySubscriptionChanged(subId);
             }
         } finally {
             mReadWriteLock.writeLock().unlock();
@@ -1323,6 +1555,7 @@ public class SubscriptionDatabaseManager extends Handler {
             mAllSubscriptionInfoInternalCache.put(subId,
                     new SubscriptionInfoInternal.Builder(subInfoCache)
                             .setCardId(cardId).build());
+            publishSnapshotLocked();
         } finally {
             mReadWriteLock.writeLock().unlock();
         }
@@ -2093,13 +2326,14 @@ public class SubscriptionDatabaseManager extends Handler {
             mAllSubscriptionInfoInternalCache.put(subId,
                     new SubscriptionInfoInternal.Builder(subInfoCache)
                             .setGroupDisabled(isGroupDisabled).build());
+            publishSnapshotLocked();
         } finally {
             mReadWriteLock.writeLock().unlock();
         }
 
         if (isChanged) {
             log("setGroupDisabled value changed, firing the callback");
-            mCallback.invokeFromExecutor(() -> mCallback.onSubscriptionChanged(subId));
+            notifySubscriptionChanged(subId);
         }
     }
 
@@ -2168,6 +2402,9 @@ public class SubscriptionDatabaseManager extends Handler {
      */
     public void reloadDatabaseSync() {
         logl("reloadDatabaseSync");
+        // Write the pending updates first, otherwise they will be overwritten by the stale values
+        // in the database.
+        flushPendingUpdates();
         // Synchronously load the database into the cache.
         loadDatabaseInternal();
     }
@@ -2198,6 +2435,7 @@ public class SubscriptionDatabaseManager extends Handler {
                 if (changed) {
                     mAllSubscriptionInfoInternalCache.clear();
                     mAllSubscriptionInfoInternalCache.putAll(newAllSubscriptionInfoInternalCache);
+                    publishSnapshotLocked();
 
                     logl("Loaded " + mAllSubscriptionInfoInternalCache.size()
                             + " records from the subscription database.");
@@ -2421,7 +2659,7 @@ public class SubscriptionDatabaseManager extends Handler {
      * @throws IllegalArgumentException if the subscription does not exist.
      */
     public void syncToGroup(int subId) {
-        if (!mAllSubscriptionInfoInternalCache.containsKey(subId)) {
+        if (mSnapshot.getSubscription(subId) == null) {
             throw new IllegalArgumentException("Invalid subId " + subId);
         }
 
@@ -2441,25 +2679,54 @@ public class SubscriptionDatabaseManager extends Handler {
      */
     @Nullable
     public SubscriptionInfoInternal getSubscriptionInfoInternal(int subId) {
-        mReadWriteLock.readLock().lock();
-        try {
-            return mAllSubscriptionInfoInternalCache.get(subId);
-        } finally {
-            mReadWriteLock.readLock().unlock();
-        }
+        return mSnapshot.getSubscription(subId);
     }
 
     /**
-     * @return All subscription infos in the database.
+     * @return All subscription infos in the database, sorted by subscription id. The list is
+     * immutable.
      */
     @NonNull
     public List<SubscriptionInfoInternal> getAllSubscriptions() {
-        mReadWriteLock.readLock().lock();
-        try {
-            return new ArrayList<>(mAllSubscriptionInfoInternalCache.values());
-        } finally {
-            mReadWriteLock.readLock().unlock();
-        }
+        return mSnapshot.getAllSubscriptions();
+    }
+
+    /**
+     * @return The active subscription infos, sorted by SIM slot index and then subscription id.
+     * The list is immutable.
+     */
+    @NonNull
+    public List<SubscriptionInfoInternal> getActiveSubscriptions() {
+        return mSnapshot.getActiveSubscriptions();
+    }
+
+    /**
+     * @param simSlotIndex The SIM slot index.
+     * @return The active subscription info in the slot. {@code null} if not found.
+     */
+    @Nullable
+    public SubscriptionInfoInternal getActiveSubscriptionBySlot(int simSlotIndex) {
+        return mSnapshot.getActiveSubscriptionBySlot(simSlotIndex);
+    }
+
+    /**
+     * @param groupUuid The group UUID.
+     * @return The subscription infos in the group, sorted by subscription id. The list is
+     * immutable.
+     */
+    @NonNull
+    public List<SubscriptionInfoInternal> getSubscriptionsInGroup(@NonNull String groupUuid) {
+        return mSnapshot.getSubscriptionsInGroup(groupUuid);
+    }
+
+    /**
+     * Publish a new snapshot of {@link #mAllSubscriptionInfoInternalCache}. Must be called with
+     * the write lock held, after the cache is modified.
+     */
+    @GuardedBy("mReadWriteLock")
+    private void publishSnapshotLocked() {
+        mSnapshot = new SubscriptionInfoSnapshot(mSnapshot.getVersion() + 1,
+                mAllSubscriptionInfoInternalCache.values());
     }
 
     /**
@@ -2470,15 +2737,7 @@ public class SubscriptionDatabaseManager extends Handler {
      */
     @Nullable
     public SubscriptionInfoInternal getSubscriptionInfoInternalByIccId(@NonNull String iccId) {
-        mReadWriteLock.readLock().lock();
-        try {
-            return mAllSubscriptionInfoInternalCache.values().stream()
-                    .filter(subInfo -> subInfo.getIccId().equals(iccId))
-                    .findFirst()
-                    .orElse(null);
-        } finally {
-            mReadWriteLock.readLock().unlock();
-        }
+        return mSnapshot.getSubscriptionByIccId(iccId);
     }
 
     /**
@@ -2570,6 +2829,12 @@ public class SubscriptionDatabaseManager extends Handler {
         pw.decreaseIndent();
         pw.println();
         pw.println("mAsyncMode=" + mAsyncMode);
+        pw.println("mSnapshot=" + mSnapshot);
+        synchronized (mPendingUpdates) {
+            pw.println("mPendingUpdates=" + mPendingUpdates.keySet());
+            pw.println("mBatchUpdateCount=" + mBatchUpdateCount);
+            pw.println("mCoalescedUpdateCount=" + mCoalescedUpdateCount);
+        }
         synchronized (this) {
             pw.println("mDatabaseInitialized=" + mDatabaseInitialized);
         }
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.subscription;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, versioned snapshot of all the subscriptions in the subscription database. A new
+ * snapshot is published by {@link SubscriptionDatabaseManager} every time the database cache
+ * changes, so readers can access it without holding any lock. The commonly used views (active
+ * subscriptions, subscriptions by slot, by group, and by ICCID) are computed once when the
+ * snapshot is built, and are shared by all the readers.
+ */
+public final class SubscriptionInfoSnapshot {
+    /** The empty snapshot used before the database is loaded. */
+    public static final SubscriptionInfoSnapshot EMPTY =
+            new SubscriptionInfoSnapshot(0, Collections.emptyList());
+
+    /** Sort by SIM slot index, then subscription id. */
+    private static final Comparator<SubscriptionInfoInternal> SLOT_ORDER =
+            Comparator.comparingInt(SubscriptionInfoInternal::getSimSlotIndex)
+                    .thenComparingInt(SubscriptionInfoInternal::getSubscriptionId);
+
+    /** The version of the snapshot. Increased every time the database cache changes. */
+    private final long mVersion;
+
+    /** All subscriptions by subscription id. */
+    @NonNull
+    private final Map<Integer, SubscriptionInfoInternal> mSubscriptions;
+
+    /** All subscriptions, sorted by subscription id. */
+    @NonNull
+    private final List<SubscriptionInfoInternal> mAllSubscriptions;
+
+    /** Active subscriptions, sorted by SIM slot index and then subscription id. */
+    @NonNull
+    private final List<SubscriptionInfoInternal> mActiveSubscriptions;
+
+    /** Active subscriptions by SIM slot index. */
+    @NonNull
+    private final Map<Integer, SubscriptionInfoInternal> mActiveSubscriptionsBySlot;
+
+    /** Subscriptions by group UUID, each sorted by subscription id. */
+    @NonNull
+    private final Map<String, List<SubscriptionInfoInternal>> mSubscriptionsByGroup;
+
+    /** Subscriptions by ICCID. */
+    @NonNull
+    private final Map<String, SubscriptionInfoInternal> mSubscriptionsByIccId;
+
+    /**
+     * Constructor
+     *
+     * @param version The version of the snapshot.
+     * @param subscriptions All the subscriptions in the database.
+     */
+    public SubscriptionInfoSnapshot(long version,
+            @NonNull Collection<SubscriptionInfoInternal> subscriptions) {
+        mVersion = version;
+
+        List<SubscriptionInfoInternal> all = new ArrayList<>(subscriptions);
+        all.sort(Comparator.comparingInt(SubscriptionInfoInternal::getSubscriptionId));
+
+        Map<Integer, SubscriptionInfoInternal> bySubId = new HashMap<>(all.size());
+        List<SubscriptionInfoInternal> active = new ArrayList<>();
+        Map<Integer, SubscriptionInfoInternal> activeBySlot = new HashMap<>();
+        Map<String, List<SubscriptionInfoInternal>> byGroup = new HashMap<>();
+        Map<String, SubscriptionInfoInternal> byIccId = new HashMap<>(all.size());
+        for (SubscriptionInfoInternal subInfo : all) {
+            bySubId.put(subInfo.getSubscriptionId(), subInfo);
+            if (subInfo.isActive()) {
+                active.add(subInfo);
+                // Remote SIMs are active without a SIM slot.
+                if (subInfo.getSimSlotIndex() >= 0) {
+                    activeBySlot.putIfAbsent(subInfo.getSimSlotIndex(), subInfo);
+                }
+            }
+            if (!subInfo.getGroupUuid().isEmpty()) {
+                byGroup.computeIfAbsent(subInfo.getGroupUuid(), k -> new ArrayList<>())
+                        .add(subInfo);
+            }
+            byIccId.putIfAbsent(subInfo.getIccId(), subInfo);
+        }
+        active.sort(SLOT_ORDER);
+        byGroup.replaceAll((group, list) -> Collections.unmodifiableList(list));
+
+        mSubscriptions = Collections.unmodifiableMap(bySubId);
+        mAllSubscriptions = Collections.unmodifiableList(all);
+        mActiveSubscriptions = Collections.unmodifiableList(active);
+        mActiveSubscriptionsBySlot = Collections.unmodifiableMap(activeBySlot);
+        mSubscriptionsByGroup = Collections.unmodifiableMap(byGroup);
+        mSubscriptionsByIccId = Collections.unmodifiableMap(byIccId);
+    }
+
+    /**
+     * @return The version of the snapshot. Clients can cache results derived from the snapshot
+     * and skip recomputing them if the version is unchanged.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @param subId The subscription id.
+     * @return The subscription info. {@code null} if not found.
+     */
+    @Nullable
+    public SubscriptionInfoInternal getSubscription(int subId) {
+        return mSubscriptions.get(subId);
+    }
+
+    /**
+     * @return All subscriptions, sorted by subscription id. The list is immutable.
+     */
+    @NonNull
+    public List<SubscriptionInfoInternal> getAllSubscriptions() {
+        return mAllSubscriptions;
+    }
+
+    /**
+     * @return The active subscriptions, sorted by SIM slot index and then subscription id. The
+     * list is immutable.
+     */
+    @NonNull
+    public List<SubscriptionInfoInternal> getActiveSubscriptions() {
+        return mActiveSubscriptions;
+    }
+
+    /**
+     * @param simSlotIndex The SIM slot index.
+     * @return The active subscription in the slot. {@code null} if not found.
+     */
+    @Nullable
+    public SubscriptionInfoInternal getActiveSubscriptionBySlot(int simSlotIndex) {
+        return mActiveSubscriptionsBySlot.get(simSlotIndex);
+    }
+
+    /**
+     * @param groupUuid The group UUID.
+     * @return The subscriptions in the group, sorted by subscription id. The list is immutable.
+     */
+    @NonNull
+    public List<SubscriptionInfoInternal> getSubscriptionsInGroup(@NonNull String groupUuid) {
+        return mSubscriptionsByGroup.getOrDefault(groupUuid, Collections.emptyList());
+    }
+
+    /**
+     * @param iccId The ICCID of the SIM card.
+     * @return The subscription info. {@code null} if not found.
+     */
+    @Nullable
+    public SubscriptionInfoInternal getSubscriptionByIccId(@NonNull String iccId) {
+        return mSubscriptionsByIccId.get(iccId);
+    }
+
+    /**
+     * @return The number of subscriptions.
+     */
+    public int size() {
+        return mAllSubscriptions.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionInfoSnapshot{version=" + mVersion + ", size="
+                + mAllSubscriptions.size() + ", active=" + mActiveSubscriptions.size() + "}";
+    }
+}
@@ -645,8 +645,8 @@ public class SubscriptionManagerService extends ISub.Stub {
         List<SubscriptionInfo> infoList;
 
         // Getting all subscriptions in the group.
-        infoList = mSubscriptionDatabaseManager.getAllSubscriptions().stream()
-                .filter(subInfo -> subInfo.getGroupUuid().equals(groupUuid.toString()))
+        infoList = mSubscriptionDatabaseManager.getSubscriptionsInGroup(groupUuid.toString())
+                .stream()
                 .map(SubscriptionInfoInternal::toSubscriptionInfo)
                 .collect(Collectors.toList());
 
@@ -1502,59 +1502,10 @@ public class SubscriptionManagerService extends ISub.Stub {
                 mSubscriptionDatabaseManager.setPortIndex(subId, getPortIndex(iccId));
 
                 if (simState == TelephonyManager.SIM_STATE_LOADED) {
-                    String mccMnc = mTelephonyManager.getSimOperatorNumeric(subId);
-                    if (!TextUtils.isEmpty(mccMnc)) {
-                        if (subId == getDefaultSubId()) {
-                            MccTable.updateMccMncConfiguration(mContext, mccMnc);
-                        }
-                        setMccMnc(subId, mccMnc);
-                    } else {
-                        loge("updateSubscription: mcc/mnc is empty");
-                    }
-
-                    String iso = TelephonyManager.getSimCountryIsoForPhone(phoneId);
-
-                    if (!TextUtils.isEmpty(iso)) {
-                        setCountryIso(subId, iso);
-                    } else {
-                        loge("updateSubscription: sim country iso is null");
-                    }
-
-                    String msisdn = PhoneFactory.getPhone(phoneId).getLine1Number();
-                    if (!TextUtils.isEmpty(msisdn)) {
-                        setDisplayNumber(msisdn, subId);
-                    }
-
-                    String imsi = mTelephonyManager.createForSubscriptionId(
-                            subId).getSubscriberId();
-                    if (imsi != null) {
-                        mSubscriptionDatabaseManager.setImsi(subId, imsi);
-                    }
-
-                    IccCard iccCard = PhoneFactory.getPhone(phoneId).getIccCard();
-                    if (iccCard != null) {
-                        IccRecords records = iccCard.getIccRecords();
-                        if (records != null) {
-                            String[] ehplmns = records.getEhplmns();
-                            if (ehplmns != null) {
-                                mSubscriptionDatabaseManager.setEhplmns(subId, ehplmns);
-                            }
-                            String[] hplmns = records.getPlmnsFromHplmnActRecord();
-                            if (hplmns != null) {
-                                mSubscriptionDatabaseManager.setHplmns(subId, hplmns);
-                            }
-                        } else {
-                            loge("updateSubscription: ICC records are not available.");
-                        }
-                    } else {
-                        loge("updateSubscription: ICC card is not available.");
-                    }
-
-                    if (Flags.clearCachedImsPhoneNumberWhenDeviceLostImsRegistration()) {
-                        // Clear the cached Ims phone number
-                        // before proceeding with Ims Registration
-                        setNumberFromIms(subId, new String(""));
-                    }
+                    // Write all the SIM records into the database at once.
+                    final int loadedSubId = subId;
+                    mSubscriptionDatabaseManager.runBatchUpdate(
+                            () -> updateSubscriptionFromSimRecords(loadedSubId, phoneId));
 
                     // Attempt to restore SIM specific settings when SIM is loaded.
                     Bundle result = mContext.getContentResolver().call(
@@ -1586,6 +1537,68 @@ public class SubscriptionManagerService extends ISub.Stub {
         updateDefaultSubId();
     }
 
+    /**
+     * Update the subscription with the information from the loaded SIM records.
+     *
+     * @param subId The subscription id.
+     * @param phoneId The phone id (i.e. Logical SIM slot index)
+     */
+    private void updateSubscriptionFromSimRecords(int subId, int phoneId) {
+        String mccMnc = mTelephonyManager.getSimOperatorNumeric(subId);
+        if (!TextUtils.isEmpty(mccMnc)) {
+            if (subId == getDefaultSubId()) {
+                MccTable.updateMccMncConfiguration(mContext, mccMnc);
+            }
+            setMccMnc(subId, mccMnc);
+        } else {
+            loge("updateSubscription: mcc/mnc is empty");
+        }
+
+        String iso = TelephonyManager.getSimCountryIsoForPhone(phoneId);
+
+        if (!TextUtils.isEmpty(iso)) {
+            setCountryIso(subId, iso);
+        } else {
+            loge("updateSubscription: sim country iso is null");
+        }
+
+        String msisdn = PhoneFactory.getPhone(phoneId).getLine1Number();
+        if (!TextUtils.isEmpty(msisdn)) {
+            setDisplayNumber(msisdn, subId);
+        }
+
+        String imsi = mTelephonyManager.createForSubscriptionId(
+                subId).getSubscriberId();
+        if (imsi != null) {
+            mSubscriptionDatabaseManager.setImsi(subId, imsi);
+        }
+
+        IccCard iccCard = PhoneFactory.getPhone(phoneId).getIccCard();
+        if (iccCard != null) {
+            IccRecords records = iccCard.getIccRecords();
+            if (records != null) {
+                String[] ehplmns = records.getEhplmns();
+                if (ehplmns != null) {
+                    mSubscriptionDatabaseManager.setEhplmns(subId, ehplmns);
+                }
+                String[] hplmns = records.getPlmnsFromHplmnActRecord();
+                if (hplmns != null) {
+                    mSubscriptionDatabaseManager.setHplmns(subId, hplmns);
+                }
+            } else {
+                loge("updateSubscription: ICC records are not available.");
+            }
+        } else {
+            loge("updateSubscription: ICC card is not available.");
+        }
+
+        if (Flags.clearCachedImsPhoneNumberWhenDeviceLostImsRegistration()) {
+            // Clear the cached Ims phone number
+            // before proceeding with Ims Registration
+            setNumberFromIms(subId, new String(""));
+        }
+    }
+
     /**
      * Calculate the usage setting based on the carrier request.
      *
@@ -2000,16 +2013,15 @@ public class SubscriptionManagerService extends ISub.Stub {
         if (isForAllProfiles) {
             enforcePermissionAccessAllUserProfiles();
         }
-        return getSubscriptionInfoStreamAsUser(isForAllProfiles
-                ? UserHandle.ALL : BINDER_WRAPPER.getCallingUserHandle())
-                .filter(SubscriptionInfoInternal::isActive)
+        // The active subscriptions are already sorted by slot index and then subscription id.
+        return getSubscriptionInfoStreamAsUser(
+                mSubscriptionDatabaseManager.getActiveSubscriptions(), isForAllProfiles
+                        ? UserHandle.ALL : BINDER_WRAPPER.getCallingUserHandle())
                 // Remove the identifier if the caller does not have sufficient permission.
                 // carrier apps will get full subscription info on the subscriptions associated
                 // to them.
                 .map(subInfo -> conditionallyRemoveIdentifiers(subInfo.toSubscriptionInfo(),
                         callingPackage, callingFeatureId, "getActiveSubscriptionInfoList"))
-                .sorted(Comparator.comparing(SubscriptionInfo::getSimSlotIndex)
-                        .thenComparing(SubscriptionInfo::getSubscriptionId))
                 .collect(Collectors.toList());
     }
 
@@ -2882,13 +2894,12 @@ public class SubscriptionManagerService extends ISub.Stub {
 
         enforceTelephonyFeatureWithException(callingPackage, "getSubscriptionsInGroup");
 
-        return mSubscriptionDatabaseManager.getAllSubscriptions().stream()
+        return mSubscriptionDatabaseManager.getSubscriptionsInGroup(groupUuid.toString()).stream()
                 .map(SubscriptionInfoInternal::toSubscriptionInfo)
-                .filter(info -> groupUuid.equals(info.getGroupUuid())
-                        && (mSubscriptionManager.canManageSubscription(info, callingPackage)
+                .filter(info -> mSubscriptionManager.canManageSubscription(info, callingPackage)
                         || TelephonyPermissions.checkCallingOrSelfReadPhoneStateNoThrow(
                                 mContext, info.getSubscriptionId(), callingPackage,
-                        callingFeatureId, "getSubscriptionsInGroup")))
+                        callingFeatureId, "getSubscriptionsInGroup"))
                 .map(subscriptionInfo -> conditionallyRemoveIdentifiers(subscriptionInfo,
                         callingPackage, callingFeatureId, "getSubscriptionsInGroup"))
                 .collect(Collectors.toList());
@@ -3453,11 +3464,10 @@ public class SubscriptionManagerService extends ISub.Stub {
 
         final long identity = Binder.clearCallingIdentity();
         try {
-            return mSubscriptionDatabaseManager.getAllSubscriptions().stream()
-                    .filter(subInfo -> subInfo.isActive() && subInfo.getSimSlotIndex() == slotIndex)
-                    .mapToInt(SubscriptionInfoInternal::getSubscriptionId)
-                    .findFirst()
-                    .orElse(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            SubscriptionInfoInternal subInfo =
+                    mSubscriptionDatabaseManager.getActiveSubscriptionBySlot(slotIndex);
+            return subInfo != null ? subInfo.getSubscriptionId()
+                    : SubscriptionManager.INVALID_SUBSCRIPTION_ID;
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -4122,7 +4132,21 @@ public class SubscriptionManagerService extends ISub.Stub {
     @NonNull
     private Stream<SubscriptionInfoInternal> getSubscriptionInfoStreamAsUser(
             @NonNull final UserHandle user) {
-        return mSubscriptionDatabaseManager.getAllSubscriptions().stream()
+        return getSubscriptionInfoStreamAsUser(mSubscriptionDatabaseManager.getAllSubscriptions(),
+                user);
+    }
+
+    /**
+     * Get subscriptions accessible to the caller user from the given subscriptions.
+     *
+     * @param subInfos The subscriptions to filter.
+     * @param user The user to check.
+     * @return a stream of accessible internal subscriptions.
+     */
+    @NonNull
+    private Stream<SubscriptionInfoInternal> getSubscriptionInfoStreamAsUser(
+            @NonNull List<SubscriptionInfoInternal> subInfos, @NonNull final UserHandle user) {
+        return subInfos.stream()
                 .filter(info -> isSubscriptionAssociatedWithUserInternal(
                         info, user.getIdentifier()));
     }
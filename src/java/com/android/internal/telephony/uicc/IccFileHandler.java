@@ -21,8 +21,10 @@ import android.os.AsyncResult;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemProperties;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.CommandsInterface;
 
 import java.util.ArrayList;
@@ -100,6 +102,22 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     static protected final int EVENT_GET_RECORD_SIZE_IMG_DONE = 11;
     /** Finished retriveing record size of transparent file. */
     protected static final int EVENT_GET_EF_TRANSPARENT_SIZE_DONE = 12;
+    /** A record read sent while others were in flight was not answered in time. */
+    private static final int EVENT_RECORD_READ_TIMEOUT = 13;
+
+    /**
+     * Device property holding the number of record reads kept in flight when loading all records
+     * of an EF, for modems known to support concurrent reads.
+     */
+    private static final String PROPERTY_RECORD_READ_WINDOW = "ro.telephony.sim_record_read_window";
+
+    /** Default number of record reads kept in flight: records are read one at a time. */
+    @VisibleForTesting
+    public static final int DEFAULT_RECORD_READ_WINDOW = 1;
+
+    /** Time after which a record read sent while others were in flight is considered lost. */
+    @VisibleForTesting
+    public static final long RECORD_READ_TIMEOUT_MILLIS = 5000;
 
      // member variables
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
@@ -109,6 +127,13 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     protected final String mAid;
 
+    // Number of record reads kept in flight by loadEFLinearFixedAll()
+    private int mRecordReadWindow = Math.max(
+            SystemProperties.getInt(PROPERTY_RECORD_READ_WINDOW, DEFAULT_RECORD_READ_WINDOW), 1);
+    // Set once the modem failed or did not answer a record read sent while another one was in
+    // flight. Records are then read one at a time.
+    private boolean mSerialRecordReads;
+
     public static class LoadLinearFixedContext {
 
         int mEfid;
@@ -122,6 +147,18 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
         ArrayList<byte[]> results;
 
+        // State of a load of all records, see readNextRecords()
+        byte[][] mRecords;
+        boolean[] mRequested;
+        // Token of the outstanding read of each record, 0 if none
+        int[] mReadTokens;
+        // Whether the outstanding read of each record was sent while others were in flight
+        boolean[] mPipelined;
+        int mNextReadToken = 1;
+        int mInFlight;
+        int mReceived;
+        boolean mFinished;
+
         @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
         LoadLinearFixedContext(int efid, int recordNum, Message onLoaded) {
             mEfid = efid;
@@ -172,6 +209,23 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     public void dispose() {
     }
 
+    /**
+     * Set the number of record reads kept in flight when loading all records of a linear fixed
+     * EF, overriding {@link #PROPERTY_RECORD_READ_WINDOW}. 1 reads the records one at a time.
+     *
+     * @param window The number of record reads in flight.
+     */
+    @VisibleForTesting
+    public void setRecordReadWindow(int window) {
+        mRecordReadWindow = Math.max(window, 1);
+    }
+
+    /** @return {@code true} if records are read one at a time, as the modem rejected pipelining. */
+    @VisibleForTesting
+    public boolean isSerialRecordReads() {
+        return mSerialRecordReads;
+    }
+
     //***** Public Methods
 
     /**
@@ -539,6 +593,16 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
 
                 if (lc.mLoadAll) {
                     lc.results = new ArrayList<byte[]>(lc.mCountRecords);
+                    lc.mRecords = new byte[lc.mCountRecords][];
+                    lc.mRequested = new boolean[lc.mCountRecords];
+                    lc.mReadTokens = new int[lc.mCountRecords];
+                    lc.mPipelined = new boolean[lc.mCountRecords];
+                    if (lc.mCountRecords == 0) {
+                        sendResult(response, lc.results, null);
+                    } else {
+                        readNextRecords(lc);
+                    }
+                    break;
                 }
 
                 if (path == null) {
@@ -593,32 +657,17 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 response = lc.mOnLoaded;
                 path = lc.mPath;
 
-                if (processException(response, (AsyncResult) msg.obj)) {
+                if (lc.mLoadAll) {
+                    onRecordRead(lc, msg.arg1, msg.arg2, ar);
                     break;
                 }
 
-                if (!lc.mLoadAll) {
-                    sendResult(response, result.payload, null);
-                } else {
-                    lc.results.add(result.payload);
-
-                    lc.mRecordNum++;
-
-                    if (lc.mRecordNum > lc.mCountRecords) {
-                        sendResult(response, lc.results, null);
-                    } else {
-                        if (path == null) {
-                            path = getEFPath(lc.mEfid);
-                        }
-
-                        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
-                                    lc.mRecordNum,
-                                    READ_RECORD_MODE_ABSOLUTE,
-                                    lc.mRecordSize, null, null, mAid,
-                                    obtainMessage(EVENT_READ_RECORD_DONE, lc));
-                    }
+                if (processException(response, (AsyncResult) msg.obj)) {
+                    break;
                 }
 
+                sendResult(response, result.payload, null);
+
             break;
 
             case EVENT_READ_BINARY_DONE:
@@ -634,6 +683,10 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 sendResult(response, result.payload, null);
             break;
 
+            case EVENT_RECORD_READ_TIMEOUT:
+                onRecordReadTimeout((LoadLinearFixedContext) msg.obj, msg.arg1, msg.arg2);
+                break;
+
             case EVENT_GET_EF_TRANSPARENT_SIZE_DONE:
                 ar = (AsyncResult) msg.obj;
                 response = (Message) ar.userObj;
@@ -668,6 +721,113 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         }
     }
 
+    /**
+     * Send the reads of the next records not requested yet, keeping up to
+     * {@link #mRecordReadWindow} reads in flight. The record number is sent in arg1 of the
+     * response, and the token of the read in arg2. Reads pipelined with others time out after
+     * {@link #RECORD_READ_TIMEOUT_MILLIS}.
+     */
+    private void readNextRecords(LoadLinearFixedContext lc) {
+        String path = lc.mPath != null ? lc.mPath : getEFPath(lc.mEfid);
+        int window = mSerialRecordReads ? 1 : mRecordReadWindow;
+        boolean pipelined = window > 1 && lc.mCountRecords > 1;
+        while (lc.mInFlight < window) {
+            while (lc.mRecordNum <= lc.mCountRecords && lc.mRequested[lc.mRecordNum - 1]) {
+                lc.mRecordNum++;
+            }
+            if (lc.mRecordNum > lc.mCountRecords) {
+                return;
+            }
+            int recordNum = lc.mRecordNum;
+            int token = lc.mNextReadToken++;
+            lc.mRequested[recordNum - 1] = true;
+            lc.mReadTokens[recordNum - 1] = token;
+            lc.mPipelined[recordNum - 1] = pipelined;
+            mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path, recordNum,
+                    READ_RECORD_MODE_ABSOLUTE, lc.mRecordSize, null, null, mAid,
+                    obtainMessage(EVENT_READ_RECORD_DONE, recordNum, token, lc));
+            if (pipelined) {
+                sendMessageDelayed(obtainMessage(EVENT_RECORD_READ_TIMEOUT, recordNum, token, lc),
+                        RECORD_READ_TIMEOUT_MILLIS);
+            }
+            lc.mInFlight++;
+        }
+    }
+
+    /**
+     * Handle the response of a record read sent by {@link #readNextRecords}. Responses may arrive
+     * out of order, the records are reassembled in order once all are read.
+     */
+    private void onRecordRead(LoadLinearFixedContext lc, int recordNum, int token,
+            AsyncResult ar) {
+        if (lc.mReadTokens[recordNum - 1] != token) {
+            // The read timed out and was already accounted for
+            return;
+        }
+        lc.mReadTokens[recordNum - 1] = 0;
+        lc.mInFlight--;
+        if (lc.mFinished) {
+            // The load already failed
+            return;
+        }
+
+        IccIoResult result = (IccIoResult) ar.result;
+        Throwable ex = ar.exception;
+        if (ex == null && result != null) {
+            ex = result.getException();
+        }
+        if (ex instanceof CommandException && lc.mPipelined[recordNum - 1]) {
+            // The modem may not support concurrent reads
+            fallBackToSerialReads(lc, recordNum, ex.toString());
+        } else if (ex != null) {
+            lc.mFinished = true;
+            sendResult(lc.mOnLoaded, null, ex);
+            return;
+        } else {
+            lc.mRecords[recordNum - 1] = result.payload;
+            lc.mReceived++;
+        }
+
+        if (lc.mReceived == lc.mCountRecords) {
+            lc.mFinished = true;
+            removeMessages(EVENT_RECORD_READ_TIMEOUT, lc);
+            for (byte[] record : lc.mRecords) {
+                lc.results.add(record);
+            }
+            sendResult(lc.mOnLoaded, lc.results, null);
+        } else {
+            readNextRecords(lc);
+        }
+    }
+
+    /**
+     * Handle a record read pipelined with others that was not answered in time. The modem may
+     * drop concurrent reads, so the record is read again and the response of this read ignored.
+     */
+    private void onRecordReadTimeout(LoadLinearFixedContext lc, int recordNum, int token) {
+        if (lc.mFinished || lc.mReadTokens[recordNum - 1] != token) {
+            // The read was answered
+            return;
+        }
+        lc.mReadTokens[recordNum - 1] = 0;
+        lc.mInFlight--;
+        fallBackToSerialReads(lc, recordNum, "timeout");
+        readNextRecords(lc);
+    }
+
+    /**
+     * Read the given record again once the reads in flight are done, and the following records one
+     * at a time.
+     */
+    private void fallBackToSerialReads(LoadLinearFixedContext lc, int recordNum, String reason) {
+        if (!mSerialRecordReads) {
+            loge("Record read failed while pipelined, reading records one at a time: " + reason);
+            mSerialRecordReads = true;
+        }
+        lc.mRequested[recordNum - 1] = false;
+        lc.mRecordNum = Math.min(lc.mRecordNum, recordNum);
+    }
+
     /**
      * Returns the root path of the EF file.
      * i.e returns MainFile + DFfile as a string.
@@ -19,6 +19,8 @@ package com.android.internal.telephony.uicc;
 import static android.telephony.SmsManager.STATUS_ON_ICC_READ;
 import static android.telephony.SmsManager.STATUS_ON_ICC_UNREAD;
 
+import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.content.Context;
 import android.content.res.Resources;
@@ -26,6 +28,7 @@ import android.os.AsyncResult;
 import android.os.Build;
 import android.os.Message;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsMessage;
@@ -34,15 +37,19 @@ import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.MccTable;
 import com.android.internal.telephony.SmsConstants;
+import com.android.internal.telephony.flags.FeatureFlags;
+import com.android.internal.telephony.flags.FeatureFlagsImpl;
 import com.android.internal.telephony.gsm.SimTlv;
 import com.android.internal.telephony.uicc.IccCardApplicationStatus.AppType;
 import com.android.telephony.Rlog;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -191,12 +198,53 @@ public class SIMRecords extends IccRecords {
     private static final int EVENT_SET_FPLMN_DONE = 43 + SIM_RECORD_EVENT_BASE;
     protected static final int EVENT_GET_SMSS_RECORD_DONE = 46 + SIM_RECORD_EVENT_BASE;
     protected static final int EVENT_GET_PSISMSC_DONE = 47 + SIM_RECORD_EVENT_BASE;
+    private static final int EVENT_CACHEABLE_EF_LOADED = 48 + SIM_RECORD_EVENT_BASE;
+    private static final int EVENT_REVALIDATE_EF_DONE = 49 + SIM_RECORD_EVENT_BASE;
+
+    /** Directory of the EF cache files, in the files dir. */
+    private static final String EF_CACHE_DIR = "sim_ef_cache";
+
+    // EF cache, see loadCacheableEFTransparent(). Only holds EFs that don't identify the
+    // subscriber, the ones that do (IMSI, MSISDN...) are always read from the SIM.
+    @Nullable
+    private SimEfCache mEfCache;
+    // Whether EF_ICCID matched the card of the EF cache in this fetch, so cached EFs are served
+    private boolean mEfCacheIccIdMatched;
+    // Cached EFs of this fetch being read from the SIM, by EF id
+    private final SparseArray<CachedEf> mCachedEfsInFetch = new SparseArray<>();
+    // Incremented on every fetch, so that revalidations of a previous fetch are ignored
+    private int mFetchGeneration;
+    // Whether a changed cached EF is being handled, which is not a record load response
+    private boolean mHandlingEfUpdate;
+    // Whether a cached EF changed on the SIM after the records loaded event was notified
+    private boolean mEfChangedAfterRecordsLoaded;
+    private long mFetchStartTimeMillis;
+    private int mEfCacheHitsInFetch;
+    // Time to records loaded, for fetches served partly from the EF cache and for the others
+    private int mCachedFetchCount;
+    private long mCachedFetchTotalMillis;
+    private int mUncachedFetchCount;
+    private long mUncachedFetchTotalMillis;
+    private long mLastFetchMillis;
+    // EFs found unchanged and changed on the SIM when revalidating the EF cache
+    private int mEfCacheRevalidatedCount;
+    private int mEfCacheStaleCount;
+
+    @NonNull
+    private final FeatureFlags mFeatureFlags;
 
     // ***** Constructor
 
     public SIMRecords(UiccCardApplication app, Context c, CommandsInterface ci) {
+        this(app, c, ci, new FeatureFlagsImpl());
+    }
+
+    public SIMRecords(UiccCardApplication app, Context c, CommandsInterface ci,
+            @NonNull FeatureFlags featureFlags) {
         super(app, c, ci);
 
+        mFeatureFlags = featureFlags;
+
         mAdnCache = new AdnRecordCache(mFh);
 
         mVmConfig = new VoiceMailConstants();
@@ -229,6 +277,12 @@ public class SIMRecords extends IccRecords {
     }
 
     protected void resetRecords() {
+        // Drop the revalidations still in flight, the records they would update are gone
+        mFetchGeneration++;
+        mFetchStartTimeMillis = 0;
+        mEfCacheIccIdMatched = false;
+        mEfChangedAfterRecordsLoaded = false;
+        mCachedEfsInFetch.clear();
         mImsi = null;
         mMsisdn = null;
         mVoiceMailNum = null;
@@ -614,6 +668,15 @@ public class SIMRecords extends IccRecords {
      */
     @Override
     public void onRefresh(boolean fileChanged, int[] fileList) {
+        if (fileChanged && mEfCache != null) {
+            if (fileList != null) {
+                for (int efid : fileList) {
+                    mEfCache.invalidate(efid);
+                }
+            } else {
+                mEfCache.invalidateAll();
+            }
+        }
         if (fileChanged) {
             // A future optimization would be to inspect fileList and
             // only reload those files that we care about.  For now,
@@ -845,6 +908,23 @@ public class SIMRecords extends IccRecords {
                     mEfCPHS_MWI = data;
                     break;
 
+                case EVENT_CACHEABLE_EF_LOADED: {
+                    // Not a record load response itself, the response is forwarded to the
+                    // message the EF was loaded for.
+                    ar = (AsyncResult) msg.obj;
+                    Message onLoaded = (Message) ar.userObj;
+                    if (ar.exception == null && mEfCache != null && msg.arg2 == mFetchGeneration) {
+                        putEfCache(msg.arg1, ar.result);
+                    }
+                    AsyncResult.forMessage(onLoaded, ar.result, ar.exception);
+                    onLoaded.sendToTarget();
+                    break;
+                }
+
+                case EVENT_REVALIDATE_EF_DONE:
+                    onRevalidateEfDone(msg.arg1, msg.arg2, (AsyncResult) msg.obj);
+                    break;
+
                 case EVENT_GET_ICCID_DONE:
                     isRecordLoadResponse = true;
 
@@ -857,6 +937,17 @@ public class SIMRecords extends IccRecords {
 
                     mIccId = IccUtils.bcdToString(data, 0, data.length);
                     mFullIccId = IccUtils.bchToString(data, 0, data.length);
+                    if (mEfCache != null && !IccUtils.stripTrailingFs(mFullIccId)
+                            .equalsIgnoreCase(IccUtils.stripTrailingFs(mEfCache.getIccId()))) {
+                        // The card reported by the modem is not the one read, don't trust
+                        // the cache anymore. The EFs are served once read from the SIM.
+                        loge("EF_ICCID does not match the card ICCID, EF cache dropped");
+                        mEfCache.invalidateAll();
+                        mEfCache = null;
+                    } else if (mEfCache != null) {
+                        mEfCacheIccIdMatched = true;
+                        deliverCachedEfs();
+                    }
 
                     log("iccid: " + SubscriptionInfo.getPrintableId(mFullIccId));
                     break;
@@ -1367,7 +1458,7 @@ public class SIMRecords extends IccRecords {
             logw("Exception parsing SIM record", exc);
         } finally {
             // Count up record load responses even if they are fails
-            if (isRecordLoadResponse) {
+            if (isRecordLoadResponse && !mHandlingEfUpdate) {
                 onRecordLoaded();
             }
         }
@@ -1395,6 +1486,21 @@ public class SIMRecords extends IccRecords {
         }
     }
 
+    @Override
+    protected void handleRefresh(IccRefreshResponse refreshResponse) {
+        if (refreshResponse != null && mEfCache != null
+                && (TextUtils.isEmpty(refreshResponse.aid)
+                        || refreshResponse.aid.equals(mParentApp.getAid()))) {
+            if (refreshResponse.refreshResult == IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE) {
+                mEfCache.invalidate(refreshResponse.efId);
+            } else {
+                // The SIM was re-initialized or reset, its files may have changed
+                mEfCache.invalidateAll();
+            }
+        }
+        super.handleRefresh(refreshResponse);
+    }
+
     @Override
     protected void handleFileUpdate(int efid) {
         switch(efid) {
@@ -1556,6 +1662,23 @@ public class SIMRecords extends IccRecords {
     protected void onAllRecordsLoaded() {
         if (DBG) log("record load complete");
 
+        if (mFetchStartTimeMillis != 0) {
+            mLastFetchMillis = SystemClock.elapsedRealtime() - mFetchStartTimeMillis;
+            mFetchStartTimeMillis = 0;
+            if (mEfCacheHitsInFetch > 0) {
+                mCachedFetchCount++;
+                mCachedFetchTotalMillis += mLastFetchMillis;
+            } else {
+                mUncachedFetchCount++;
+                mUncachedFetchTotalMillis += mLastFetchMillis;
+            }
+            log("records loaded in " + mLastFetchMillis + "ms, EF cache hits="
+                    + mEfCacheHitsInFetch);
+        }
+        if (mEfCache != null) {
+            mEfCache.flush();
+        }
+
         setSimLanguageFromEF();
         setVoiceCallForwardingFlagFromSimRecords();
 
@@ -1665,6 +1788,13 @@ public class SIMRecords extends IccRecords {
 
         if (DBG) log("fetchSimRecords " + mRecordsToLoad);
 
+        mFetchGeneration++;
+        mFetchStartTimeMillis = SystemClock.elapsedRealtime();
+        mEfCacheHitsInFetch = 0;
+        mEfCacheIccIdMatched = false;
+        mCachedEfsInFetch.clear();
+        openEfCache();
+
         mCi.getIMSIForApp(mParentApp.getAid(), obtainMessage(EVENT_GET_IMSI_DONE));
         mRecordsToLoad++;
 
@@ -1681,7 +1811,7 @@ public class SIMRecords extends IccRecords {
         mFh.loadEFLinearFixed(EF_MBI, 1, obtainMessage(EVENT_GET_MBI_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_AD, obtainMessage(EVENT_GET_AD_DONE));
+        loadCacheableEFTransparent(EF_AD, obtainMessage(EVENT_GET_AD_DONE));
         mRecordsToLoad++;
 
         // Record number is subscriber profile
@@ -1704,40 +1834,40 @@ public class SIMRecords extends IccRecords {
 
         getSpnFsm(true, null);
 
-        mFh.loadEFTransparent(EF_SPDI, obtainMessage(EVENT_GET_SPDI_DONE));
+        loadCacheableEFTransparent(EF_SPDI, obtainMessage(EVENT_GET_SPDI_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFLinearFixedAll(EF_PNN, obtainMessage(EVENT_GET_PNN_DONE));
+        loadCacheableEFLinearFixedAll(EF_PNN, obtainMessage(EVENT_GET_PNN_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFLinearFixedAll(EF_OPL, obtainMessage(EVENT_GET_OPL_DONE));
+        loadCacheableEFLinearFixedAll(EF_OPL, obtainMessage(EVENT_GET_OPL_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_SST, obtainMessage(EVENT_GET_SST_DONE));
+        loadCacheableEFTransparent(EF_SST, obtainMessage(EVENT_GET_SST_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_INFO_CPHS, obtainMessage(EVENT_GET_INFO_CPHS_DONE));
+        loadCacheableEFTransparent(EF_INFO_CPHS, obtainMessage(EVENT_GET_INFO_CPHS_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_CSP_CPHS,obtainMessage(EVENT_GET_CSP_CPHS_DONE));
+        loadCacheableEFTransparent(EF_CSP_CPHS, obtainMessage(EVENT_GET_CSP_CPHS_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_GID1, obtainMessage(EVENT_GET_GID1_DONE));
+        loadCacheableEFTransparent(EF_GID1, obtainMessage(EVENT_GET_GID1_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_GID2, obtainMessage(EVENT_GET_GID2_DONE));
+        loadCacheableEFTransparent(EF_GID2, obtainMessage(EVENT_GET_GID2_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_PLMN_W_ACT, obtainMessage(EVENT_GET_PLMN_W_ACT_DONE));
+        loadCacheableEFTransparent(EF_PLMN_W_ACT, obtainMessage(EVENT_GET_PLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_OPLMN_W_ACT, obtainMessage(EVENT_GET_OPLMN_W_ACT_DONE));
+        loadCacheableEFTransparent(EF_OPLMN_W_ACT, obtainMessage(EVENT_GET_OPLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_HPLMN_W_ACT, obtainMessage(EVENT_GET_HPLMN_W_ACT_DONE));
+        loadCacheableEFTransparent(EF_HPLMN_W_ACT, obtainMessage(EVENT_GET_HPLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_EHPLMN, obtainMessage(EVENT_GET_EHPLMN_DONE));
+        loadCacheableEFTransparent(EF_EHPLMN, obtainMessage(EVENT_GET_EHPLMN_DONE));
         mRecordsToLoad++;
 
         mFh.loadEFTransparent(EF_FPLMN, obtainMessage(
@@ -1775,6 +1905,170 @@ public class SIMRecords extends IccRecords {
         if (DBG) log("fetchSimRecords " + mRecordsToLoad + " requested: " + mRecordsRequested);
     }
 
+    /**
+     * Open the EF cache of the card, keyed by the ICCID the modem reported in the card status.
+     */
+    private void openEfCache() {
+        UiccPort port = UiccController.getInstance().getUiccPort(mParentApp.getPhoneId());
+        String iccId = port != null ? port.getIccId() : null;
+        if (!mFeatureFlags.cacheSimElementaryFiles() || TextUtils.isEmpty(iccId)) {
+            mEfCache = null;
+        } else if (mEfCache == null || !mEfCache.getIccId().equals(iccId)) {
+            mEfCache = new SimEfCache(new File(mContext.getFilesDir(), EF_CACHE_DIR), iccId);
+        }
+    }
+
+    /** A cached EF of the current fetch, being read from the SIM. */
+    private static final class CachedEf {
+        final Object mContent;
+        // The record load response, or a copy of it once the cached content was delivered
+        Message mOnLoaded;
+        boolean mDelivered;
+
+        CachedEf(Object content, Message onLoaded) {
+            mContent = content;
+            mOnLoaded = onLoaded;
+        }
+    }
+
+    /**
+     * Load a transparent EF that can be served from the EF cache. A cached EF is delivered to
+     * {@code onLoaded} once EF_ICCID matched the card of the cache, and read from the SIM in the
+     * background. If it changed, the content read from the SIM is handled as an update of the EF,
+     * and the records loaded event is notified again if it already was. If EF_ICCID didn't match, the content read from the SIM is delivered to {@code onLoaded}.
+     */
+    private void loadCacheableEFTransparent(int efid, Message onLoaded) {
+        byte[] cached = mEfCache != null ? mEfCache.getTransparent(efid) : null;
+        if (mEfCache == null) {
+            mFh.loadEFTransparent(efid, onLoaded);
+        } else if (cached == null) {
+            mFh.loadEFTransparent(efid, obtainMessage(EVENT_CACHEABLE_EF_LOADED, efid,
+                    mFetchGeneration, onLoaded));
+        } else {
+            addCachedEf(efid, cached, onLoaded);
+            mFh.loadEFTransparent(efid, obtainMessage(EVENT_REVALIDATE_EF_DONE, efid,
+                    mFetchGeneration));
+        }
+    }
+
+    /**
+     * Load all records of a linear fixed EF that can be served from the EF cache, see
+     * {@link #loadCacheableEFTransparent}.
+     */
+    private void loadCacheableEFLinearFixedAll(int efid, Message onLoaded) {
+        ArrayList<byte[]> cached = mEfCache != null ? mEfCache.getLinearFixedAll(efid) : null;
+        if (mEfCache == null) {
+            mFh.loadEFLinearFixedAll(efid, onLoaded);
+        } else if (cached == null) {
+            mFh.loadEFLinearFixedAll(efid, obtainMessage(EVENT_CACHEABLE_EF_LOADED, efid,
+                    mFetchGeneration, onLoaded));
+        } else {
+            addCachedEf(efid, cached, onLoaded);
+            mFh.loadEFLinearFixedAll(efid, obtainMessage(EVENT_REVALIDATE_EF_DONE, efid,
+                    mFetchGeneration));
+        }
+    }
+
+    private void addCachedEf(int efid, Object cached, Message onLoaded) {
+        CachedEf cachedEf = new CachedEf(cached, onLoaded);
+        mCachedEfsInFetch.put(efid, cachedEf);
+        if (mEfCacheIccIdMatched) {
+            deliverCachedEf(cachedEf);
+        }
+    }
+
+    /** Deliver the cached EFs of the fetch, once EF_ICCID matched the card of the cache. */
+    private void deliverCachedEfs() {
+        for (int i = 0; i < mCachedEfsInFetch.size(); i++) {
+            CachedEf cachedEf = mCachedEfsInFetch.valueAt(i);
+            if (!cachedEf.mDelivered) {
+                deliverCachedEf(cachedEf);
+            }
+        }
+    }
+
+    /** Deliver a cached EF content, keeping a copy of the message for an update of the EF. */
+    private void deliverCachedEf(CachedEf cachedEf) {
+        Message onLoaded = cachedEf.mOnLoaded;
+        cachedEf.mOnLoaded = Message.obtain(onLoaded);
+        cachedEf.mDelivered = true;
+        AsyncResult.forMessage(onLoaded, cachedEf.mContent, null);
+        onLoaded.sendToTarget();
+        mEfCacheHitsInFetch++;
+    }
+
+    /** Handle the content of a cached EF read from the SIM. */
+    private void onRevalidateEfDone(int efid, int generation, AsyncResult ar) {
+        CachedEf cachedEf = generation == mFetchGeneration ? mCachedEfsInFetch.get(efid) : null;
+        if (cachedEf == null) {
+            return;
+        }
+        mCachedEfsInFetch.remove(efid);
+        if (!cachedEf.mDelivered) {
+            // EF_ICCID didn't match the card (yet), so the cached content wasn't served. The
+            // content read from the SIM is the record load response.
+            if (ar.exception == null && mEfCache != null) {
+                putEfCache(efid, ar.result);
+            }
+            AsyncResult.forMessage(cachedEf.mOnLoaded, ar.result, ar.exception);
+            cachedEf.mOnLoaded.sendToTarget();
+        } else if (mEfCache == null) {
+            cachedEf.mOnLoaded.recycle();
+        } else if (ar.exception != null) {
+            // Keep the cached content for now, but don't serve it next time
+            loge("Failed to revalidate cached EF " + Integer.toHexString(efid) + ": "
+                    + ar.exception);
+            mEfCache.invalidate(efid);
+            cachedEf.mOnLoaded.recycle();
+        } else if (!putEfCache(efid, ar.result)) {
+            mEfCacheRevalidatedCount++;
+            cachedEf.mOnLoaded.recycle();
+        } else {
+            // The EF changed since it was cached. Its record load was already counted, so handle
+            // the content read from the SIM as an update of the EF.
+            log("Cached EF " + Integer.toHexString(efid) + " changed on the SIM");
+            mEfCacheStaleCount++;
+            handleEfUpdate(cachedEf.mOnLoaded, ar.result);
+        }
+
+        if (mCachedEfsInFetch.size() == 0 && mEfChangedAfterRecordsLoaded) {
+            // The listeners were notified with the stale content. Notify them again once all the
+            // cached EFs are revalidated, as for the records read again after a SIM refresh.
+            mEfChangedAfterRecordsLoaded = false;
+            log("Cached EFs changed after records loaded, notify records loaded again");
+            onAllRecordsLoaded();
+        }
+    }
+
+    /**
+     * Handle the new content of an EF whose record load response was already handled, through
+     * the handling of the EF without counting a record load.
+     */
+    private void handleEfUpdate(Message onLoaded, Object result) {
+        AsyncResult.forMessage(onLoaded, result, null);
+        mHandlingEfUpdate = true;
+        try {
+            handleMessage(onLoaded);
+        } finally {
+            mHandlingEfUpdate = false;
+            onLoaded.recycle();
+        }
+        if (mLoaded.get()) {
+            mEfChangedAfterRecordsLoaded = true;
+        }
+    }
+
+    /** @return {@code true} if the content differs from the cached one. */
+    @SuppressWarnings("unchecked")
+    private boolean putEfCache(int efid, Object result) {
+        if (result instanceof byte[]) {
+            return mEfCache.putTransparent(efid, (byte[]) result);
+        } else if (result instanceof ArrayList) {
+            return mEfCache.putLinearFixedAll(efid, (ArrayList<byte[]>) result);
+        }
+        return false;
+    }
+
     @Override
     @CarrierNameDisplayConditionBitmask
     public int getCarrierNameDisplayCondition() {
@@ -2225,6 +2519,14 @@ public class SIMRecords extends IccRecords {
         pw.println(" mEhplmns[]=" + Arrays.toString(mEhplmns));
         pw.println(" mPsismsc=" + mPsiSmsc);
         pw.println(" TPMR=" + getSmssTpmrValue());
+        pw.println(" mEfCache=" + mEfCache);
+        pw.println(" records load time: last=" + mLastFetchMillis + "ms"
+                + " withCacheHits=" + mCachedFetchCount + "/"
+                + (mCachedFetchCount == 0 ? 0 : mCachedFetchTotalMillis / mCachedFetchCount)
+                + "ms avg withoutCacheHits=" + mUncachedFetchCount + "/"
+                + (mUncachedFetchCount == 0 ? 0 : mUncachedFetchTotalMillis / mUncachedFetchCount)
+                + "ms avg revalidated=" + mEfCacheRevalidatedCount
+                + " stale=" + mEfCacheStaleCount);
         pw.flush();
     }
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.AtomicFile;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.telephony.Rlog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of the contents of SIM elementary files, for one card.
+ * <p/>
+ * The cache of a card is stored in its own file, named after a hash of the ICCID salted with a
+ * random value of the device, so that the ICCID is not exposed in the file system and can't be
+ * found from the file name by hashing candidate ICCIDs. Only files whose content doesn't identify the
+ * subscriber should be cached. The caller is responsible for revalidating the cached contents
+ * against the SIM, and for invalidating them on SIM refresh.
+ * <p/>
+ * Note this class is not thread-safe, it's expected to be used from the handler thread of the
+ * SIM records.
+ */
+public class SimEfCache {
+    private static final String TAG = "SimEfCache";
+
+    /** Version of the file format. */
+    private static final int FILE_VERSION = 1;
+
+    /** Number of cards to keep the cache for, the least recently written ones are deleted. */
+    @VisibleForTesting
+    public static final int MAX_CARDS = 8;
+
+    /** Name of the file holding the salt of the file names, in the cache directory. */
+    private static final String SALT_FILE_NAME = "salt";
+
+    private static final int SALT_LENGTH = 32;
+
+    /** Upper bound of the size of one EF record, to detect a corrupted file. */
+    private static final int MAX_RECORD_SIZE = 4096;
+
+    @NonNull private final File mDir;
+    @NonNull private final String mIccId;
+    @NonNull private final File mFile;
+
+    private final Map<Integer, byte[]> mTransparentEfs = new HashMap<>();
+    private final Map<Integer, ArrayList<byte[]>> mLinearFixedEfs = new HashMap<>();
+    private boolean mDirty;
+
+    /**
+     * Open the cache of a card, loading the cached contents if any.
+     *
+     * @param dir The directory of the cache files.
+     * @param iccId The ICCID of the card.
+     */
+    public SimEfCache(@NonNull File dir, @NonNull String iccId) {
+        mDir = dir;
+        mIccId = iccId;
+        mFile = new File(dir, hashIccId(getOrCreateSalt(dir), iccId));
+        load();
+    }
+
+    /** @return The ICCID of the card. */
+    @NonNull
+    public String getIccId() {
+        return mIccId;
+    }
+
+    /**
+     * @param efid The EF id.
+     * @return A copy of the cached content of a transparent EF, or {@code null} if not cached.
+     */
+    @Nullable
+    public byte[] getTransparent(int efid) {
+        byte[] data = mTransparentEfs.get(efid);
+        return data != null ? data.clone() : null;
+    }
+
+    /**
+     * @param efid The EF id.
+     * @return A copy of the cached records of a linear fixed EF, or {@code null} if not cached.
+     */
+    @Nullable
+    public ArrayList<byte[]> getLinearFixedAll(int efid) {
+        ArrayList<byte[]> records = mLinearFixedEfs.get(efid);
+        if (records == null) return null;
+        ArrayList<byte[]> copy = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            copy.add(record.clone());
+        }
+        return copy;
+    }
+
+    /**
+     * Cache the content of a transparent EF.
+     *
+     * @param efid The EF id.
+     * @param data The content read from the SIM.
+     * @return {@code true} if the content differs from the cached one.
+     */
+    public boolean putTransparent(int efid, @NonNull byte[] data) {
+        byte[] old = mTransparentEfs.put(efid, data.clone());
+        boolean changed = old == null || !Arrays.equals(old, data);
+        mDirty |= changed;
+        return changed;
+    }
+
+    /**
+     * Cache the records of a linear fixed EF.
+     *
+     * @param efid The EF id.
+     * @param records The records read from the SIM.
+     * @return {@code true} if the records differ from the cached ones.
+     */
+    public boolean putLinearFixedAll(int efid, @NonNull ArrayList<byte[]> records) {
+        ArrayList<byte[]> copy = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            copy.add(record.clone());
+        }
+        ArrayList<byte[]> old = mLinearFixedEfs.put(efid, copy);
+        boolean changed = old == null || !isSameRecords(old, records);
+        mDirty |= changed;
+        return changed;
+    }
+
+    /**
+     * Drop the cached content of an EF.
+     *
+     * @param efid The EF id.
+     */
+    public void invalidate(int efid) {
+        mDirty |= mTransparentEfs.remove(efid) != null;
+        mDirty |= mLinearFixedEfs.remove(efid) != null;
+    }
+
+    /** Drop the cached contents of all EFs. */
+    public void invalidateAll() {
+        mDirty |= !mTransparentEfs.isEmpty() || !mLinearFixedEfs.isEmpty();
+        mTransparentEfs.clear();
+        mLinearFixedEfs.clear();
+    }
+
+    /** @return The number of cached EFs. */
+    public int size() {
+        return mTransparentEfs.size() + mLinearFixedEfs.size();
+    }
+
+    /** Write the cache to its file if it changed since it was loaded or last written. */
+    public void flush() {
+        if (!mDirty) return;
+        mDirty = false;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Rlog.e(TAG, "Failed to create " + mDir);
+            return;
+        }
+
+        AtomicFile file = new AtomicFile(mFile);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mTransparentEfs.size());
+            for (Map.Entry<Integer, byte[]> entry : mTransparentEfs.entrySet()) {
+                out.writeInt(entry.getKey());
+                writeRecord(out, entry.getValue());
+            }
+            out.writeInt(mLinearFixedEfs.size());
+            for (Map.Entry<Integer, ArrayList<byte[]>> entry : mLinearFixedEfs.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (byte[] record : entry.getValue()) {
+                    writeRecord(out, record);
+                }
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Rlog.e(TAG, "Failed to write EF cache", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+        deleteOldCards();
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new AtomicFile(mFile).openRead()))) {
+            if (in.readInt() != FILE_VERSION) {
+                Rlog.w(TAG, "Unknown EF cache version, ignored");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int efid = in.readInt();
+                mTransparentEfs.put(efid, readRecord(in));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int efid = in.readInt();
+                int numRecords = in.readInt();
+                if (numRecords < 0 || numRecords > 255) {
+                    throw new IOException("Invalid number of records " + numRecords);
+                }
+                ArrayList<byte[]> records = new ArrayList<>(numRecords);
+                for (int j = 0; j < numRecords; j++) {
+                    records.add(readRecord(in));
+                }
+                mLinearFixedEfs.put(efid, records);
+            }
+        } catch (FileNotFoundException e) {
+            // Card not cached yet
+        } catch (IOException e) {
+            Rlog.e(TAG, "Failed to read EF cache, discarded", e);
+            mTransparentEfs.clear();
+            mLinearFixedEfs.clear();
+        }
+    }
+
+    /** Keep the files of the {@link #MAX_CARDS} most recently written cards only. */
+    private void deleteOldCards() {
+        File[] files = mDir.listFiles(file -> !file.getName().equals(SALT_FILE_NAME));
+        if (files == null || files.length <= MAX_CARDS) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        for (int i = MAX_CARDS; i < files.length; i++) {
+            if (!files[i].equals(mFile)) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.write(record);
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Invalid record length " + length);
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        return record;
+    }
+
+    private static boolean isSameRecords(ArrayList<byte[]> a, ArrayList<byte[]> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (!Arrays.equals(a.get(i), b.get(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The salt of the file names, created on first use. If it can't be written, a salt
+     * for this cache only is returned, so the cached contents won't be found next time.
+     */
+    private static byte[] getOrCreateSalt(File dir) {
+        AtomicFile file = new AtomicFile(new File(dir, SALT_FILE_NAME));
+        try {
+            byte[] salt = file.readFully();
+            if (salt.length == SALT_LENGTH) {
+                return salt;
+            }
+            Rlog.w(TAG, "Invalid salt, replaced");
+        } catch (FileNotFoundException e) {
+            // First use
+        } catch (IOException e) {
+            Rlog.e(TAG, "Failed to read salt, replaced", e);
+        }
+
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Rlog.e(TAG, "Failed to create " + dir);
+            return salt;
+        }
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            stream.write(salt);
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Rlog.e(TAG, "Failed to write salt", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+        return salt;
+    }
+
+    private static String hashIccId(byte[] salt, String iccId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return IccUtils.bytesToHexString(
+                    digest.digest(iccId.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimEfCache{efs=" + size() + ", dirty=" + mDirty + "}";
+    }
+}
@@ -70,6 +70,9 @@ public class EuiccPort extends UiccPort {
 
     private static final String ISD_R_AID = "A0000005591010FFFFFFFF8900000100";
     private static final int ICCID_LENGTH = 20;
+    // The ISD-R logical channel is kept open for this long after a request, so that the requests
+    // of an LPA flow don't open and close it each time.
+    private static final long APDU_SESSION_IDLE_TIMEOUT_MILLIS = 3000;
 
     // APDU status for SIM refresh
     private static final int APDU_ERROR_SIM_REFRESH = 0x6F00;
@@ -134,6 +137,7 @@ public class EuiccPort extends UiccPort {
         super(c, ci, ics, phoneId, lock, card);
         // TODO: Set supportExtendedApdu based on ATR.
         mApduSender = new ApduSender(ci, ISD_R_AID, false /* supportExtendedApdu */);
+        mApduSender.setSessionIdleTimeoutMillis(APDU_SESSION_IDLE_TIMEOUT_MILLIS);
         if (TextUtils.isEmpty(ics.eid)) {
             loge("no eid given in constructor for phone " + phoneId);
         } else {
@@ -165,6 +169,17 @@ public class EuiccPort extends UiccPort {
             }
             super.update(c, ci, ics, uiccCard);
         }
+        // The card state changed, its logical channels may have been closed. Note this is also
+        // called by the super constructor, before mApduSender is created.
+        if (mApduSender != null) {
+            mApduSender.closeSession();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        mApduSender.closeSession();
+        super.dispose();
     }
 
     /**
@@ -1163,7 +1178,7 @@ public class EuiccPort extends UiccPort {
             Handler handler) {
         sendApdu(requestBuilder, responseHandler,
                 (e) -> callback.onException(new EuiccCardException("Cannot send APDU.", e)),
-                null, callback, handler);
+                null, false /* mayResetCard */, callback, handler);
     }
 
     private <T> void sendApdu(RequestProvider requestBuilder,
@@ -1172,7 +1187,7 @@ public class EuiccPort extends UiccPort {
             AsyncResultCallback<T> callback, Handler handler) {
         sendApdu(requestBuilder, responseHandler,
                 (e) -> callback.onException(new EuiccCardException("Cannot send APDU.", e)),
-                intermediateResultHandler, callback, handler);
+                intermediateResultHandler, false /* mayResetCard */, callback, handler);
     }
 
     /**
@@ -1195,13 +1210,14 @@ public class EuiccPort extends UiccPort {
             } else {
                 callback.onException(new EuiccCardException("Cannot send APDU.", e));
             }
-        }, null, callback, handler);
+        }, null, true /* mayResetCard */, callback, handler);
     }
 
     private <T> void sendApdu(RequestProvider requestBuilder,
             ApduResponseHandler<T> responseHandler,
             ApduExceptionHandler exceptionHandler,
             @Nullable ApduIntermediateResultHandler intermediateResultHandler,
+            boolean mayResetCard,
             AsyncResultCallback<T> callback,
             Handler handler) {
         mApduSender.send(requestBuilder, new ApduSenderResultCallback() {
@@ -1229,7 +1245,7 @@ public class EuiccPort extends UiccPort {
             public void onException(Throwable e) {
                 exceptionHandler.handleException(e);
             }
-        }, handler);
+        }, handler, mayResetCard);
     }
 
     private static void buildProfile(Asn1Node profileNode, EuiccProfileInfo.Builder profileBuilder)
@@ -1431,6 +1447,7 @@ public class EuiccPort extends UiccPort {
         pw.increaseIndent();
         pw.println("mEid=" + mEid);
         pw.println("mSupportedMepMode=" + mSupportedMepMode);
+        mApduSender.dump(pw);
         pw.decreaseIndent();
     }
 }
@@ -16,9 +16,10 @@
 
 package com.android.internal.telephony.uicc.euicc.apdu;
 
+import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.telephony.IccOpenLogicalChannelResponse;
 
 import com.android.internal.telephony.CommandsInterface;
@@ -29,6 +30,8 @@ import com.android.telephony.Rlog;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.List;
 
 /**
@@ -38,6 +41,12 @@ import java.util.List;
  * {@link #STATUS_NO_ERROR}) or causing an exception, an {@link ApduException} will be returned
  * immediately without sending the rest of commands. This class is thread-safe.
  *
+ * <p>Only one request uses the logical channel at any time, the requests sent meanwhile are
+ * queued and executed in order. With a session idle timeout set, the channel is kept open after a
+ * successful request so that the following requests of a burst don't have to open it again. If
+ * the first command of a request fails on a reused channel, e.g. because the card was reset and
+ * the channel is gone, the request is sent again once on a newly opened channel.
+ *
  * @hide
  */
 public class ApduSender {
@@ -50,8 +59,10 @@ public class ApduSender {
     // Status code of APDU response
     private static final int STATUS_NO_ERROR = 0x9000;
     private static final int SW1_NO_ERROR = 0x91;
-
-    private static final int WAIT_TIME_MS = 2000;
+    // Status of a failed transmission, see TransmitApduLogicalChannelInvocation
+    private static final int SW1_TRANSMIT_ERROR = 0x6F;
+    // Status of a command sent to a logical channel which isn't open
+    private static final int STATUS_CHANNEL_NOT_SUPPORTED = 0x6881;
 
     private static void logv(String msg) {
         Rlog.v(LOG_TAG, msg);
@@ -61,16 +72,60 @@ public class ApduSender {
         Rlog.d(LOG_TAG, msg);
     }
 
+    /** A request waiting for or using the logical channel. */
+    private static class Request {
+        final RequestProvider mRequestProvider;
+        final ApduSenderResultCallback mResultCallback;
+        final Handler mHandler;
+        final boolean mMayResetCard;
+        final long mSendTimeMillis;
+        // Whether the request is using the channel kept open by the session
+        boolean mOnSessionChannel;
+
+        Request(RequestProvider requestProvider, ApduSenderResultCallback resultCallback,
+                Handler handler, boolean mayResetCard) {
+            mRequestProvider = requestProvider;
+            mResultCallback = resultCallback;
+            mHandler = handler;
+            mMayResetCard = mayResetCard;
+            mSendTimeMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
     private final String mAid;
     private final boolean mSupportExtendedApdu;
     private final OpenLogicalChannelInvocation mOpenChannel;
     private final CloseLogicalChannelInvocation mCloseChannel;
     private final TransmitApduLogicalChannelInvocation mTransmitApdu;
 
-    // Lock for accessing mChannelOpened. We only allow to open a single logical channel at any
+    // Lock for accessing the fields below. We only allow to open a single logical channel at any
     // time for an AID.
     private final Object mChannelLock = new Object();
-    private boolean mChannelOpened;
+    // Whether a request, or the close of an idle session, is using the channel
+    private boolean mChannelInUse;
+    // Whether a request is using the channel
+    private boolean mRequestInProgress;
+    // Whether the session is closed once the request in progress finishes
+    private boolean mCloseSessionPending;
+    // Requests waiting for the channel, in the order they were sent
+    private final ArrayDeque<Request> mPendingRequests = new ArrayDeque<>();
+    // Channel kept open after the last request, and the response to its selection
+    private int mSessionChannel = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
+    private byte[] mSessionSelectResponse;
+    // Handler the idle session close is posted on, if any
+    @Nullable private Handler mSessionHandler;
+    // 0 to close the channel after each request
+    private long mSessionIdleTimeoutMillis;
+    private final Runnable mCloseIdleSession = this::closeIdleSession;
+
+    // Metrics
+    private long mRequestCount;
+    private long mChannelOpenCount;
+    private long mSessionReuseCount;
+    private long mSessionRetryCount;
+    private long mQueuedRequestCount;
+    private long mTotalQueueWaitMillis;
+    private long mMaxQueueWaitMillis;
 
     /**
      * @param aid The AID that will be used to open a logical channel to.
@@ -83,6 +138,33 @@ public class ApduSender {
         mTransmitApdu = new TransmitApduLogicalChannelInvocation(ci);
     }
 
+    /**
+     * Keep the logical channel open after a successful request, until no request is sent for
+     * {@code timeoutMillis}. The channel is still closed after a failed request.
+     *
+     * @param timeoutMillis The idle timeout, or 0 to close the channel after each request.
+     */
+    public void setSessionIdleTimeoutMillis(long timeoutMillis) {
+        synchronized (mChannelLock) {
+            mSessionIdleTimeoutMillis = Math.max(timeoutMillis, 0);
+        }
+    }
+
+    /**
+     * Close the logical channel kept open by the session once it is idle, i.e. now or when the
+     * request in progress finishes.
+     */
+    public void closeSession() {
+        synchronized (mChannelLock) {
+            if (mSessionHandler != null) {
+                mSessionHandler.removeCallbacks(mCloseIdleSession);
+                mSessionHandler.post(mCloseIdleSession);
+            } else if (mRequestInProgress) {
+                mCloseSessionPending = true;
+            }
+        }
+    }
+
     /**
      * Sends APDU commands.
      *
@@ -99,31 +181,63 @@ public class ApduSender {
             RequestProvider requestProvider,
             ApduSenderResultCallback resultCallback,
             Handler handler) {
+        send(requestProvider, resultCallback, handler, false /* mayResetCard */);
+    }
+
+    /**
+     * Sends APDU commands, see {@link #send(RequestProvider, ApduSenderResultCallback, Handler)}.
+     *
+     * @param mayResetCard Whether the commands may reset the card (e.g. a profile switch), which
+     *     closes its logical channels. The channel is then not kept open for the session.
+     */
+    public void send(
+            RequestProvider requestProvider,
+            ApduSenderResultCallback resultCallback,
+            Handler handler,
+            boolean mayResetCard) {
+        Request request = new Request(requestProvider, resultCallback, handler, mayResetCard);
         synchronized (mChannelLock) {
-            if (mChannelOpened) {
-                if (!Looper.getMainLooper().equals(Looper.myLooper())) {
-                    logd("Logical channel has already been opened. Wait.");
-                    try {
-                        mChannelLock.wait(WAIT_TIME_MS);
-                    } catch (InterruptedException e) {
-                        // nothing to do
-                    }
-                    if (mChannelOpened) {
-                        AsyncResultHelper.throwException(
-                                new ApduException("The logical channel is still in use."),
-                                resultCallback, handler);
-                        return;
-                    }
-                } else {
-                    AsyncResultHelper.throwException(
-                            new ApduException("The logical channel is in use."),
-                            resultCallback, handler);
-                    return;
-                }
+            if (mChannelInUse) {
+                logd("Logical channel is in use. Queue the request.");
+                mPendingRequests.add(request);
+                mQueuedRequestCount++;
+                return;
+            }
+            mChannelInUse = true;
+        }
+        startRequest(request);
+    }
+
+    /** Starts a request, the caller must have marked the channel in use. */
+    private void startRequest(Request request) {
+        int channel;
+        byte[] selectResponse;
+        synchronized (mChannelLock) {
+            long waitMillis = SystemClock.elapsedRealtime() - request.mSendTimeMillis;
+            mRequestCount++;
+            mTotalQueueWaitMillis += waitMillis;
+            mMaxQueueWaitMillis = Math.max(mMaxQueueWaitMillis, waitMillis);
+            mRequestInProgress = true;
+            if (mSessionHandler != null) {
+                mSessionHandler.removeCallbacks(mCloseIdleSession);
+                mSessionHandler = null;
+            }
+            channel = mSessionChannel;
+            selectResponse = mSessionSelectResponse;
+            if (channel != IccOpenLogicalChannelResponse.INVALID_CHANNEL) {
+                mSessionReuseCount++;
+                request.mOnSessionChannel = true;
             }
-            mChannelOpened = true;
         }
 
+        if (channel == IccOpenLogicalChannelResponse.INVALID_CHANNEL) {
+            openChannelAndSend(request);
+        } else {
+            request.mHandler.post(() -> buildAndSend(request, channel, selectResponse));
+        }
+    }
+
+    private void openChannelAndSend(Request request) {
         mOpenChannel.invoke(mAid, new AsyncResultCallback<IccOpenLogicalChannelResponse>() {
             @Override
             public void onResult(IccOpenLogicalChannelResponse openChannelResponse) {
@@ -131,48 +245,52 @@ public class ApduSender {
                 int status = openChannelResponse.getStatus();
                 if (channel == IccOpenLogicalChannelResponse.INVALID_CHANNEL
                         || status != IccOpenLogicalChannelResponse.STATUS_NO_ERROR) {
-                    synchronized (mChannelLock) {
-                        mChannelOpened = false;
-                        mChannelLock.notify();
-                    }
-                    resultCallback.onException(
+                    request.mResultCallback.onException(
                             new ApduException("Failed to open logical channel opened for AID: "
                                     + mAid + ", with status: " + status));
+                    startNextRequest(request.mHandler);
                     return;
                 }
-
-                RequestBuilder builder = new RequestBuilder(channel, mSupportExtendedApdu);
-                Throwable requestException = null;
-                try {
-                    requestProvider.buildRequest(openChannelResponse.getSelectResponse(), builder);
-                } catch (Throwable e) {
-                    requestException = e;
-                }
-                if (builder.getCommands().isEmpty() || requestException != null) {
-                    // Just close the channel if we don't have commands to send or an error
-                    // was encountered.
-                    closeAndReturn(channel, null /* response */, requestException, resultCallback,
-                            handler);
-                    return;
+                synchronized (mChannelLock) {
+                    mChannelOpenCount++;
+                    mSessionSelectResponse = openChannelResponse.getSelectResponse();
                 }
-                sendCommand(builder.getCommands(), 0 /* index */, resultCallback, handler);
+                buildAndSend(request, channel, openChannelResponse.getSelectResponse());
             }
-        }, handler);
+        }, request.mHandler);
+    }
+
+    /** Builds the request on an opened channel and sends its first command. */
+    private void buildAndSend(Request request, int channel, byte[] selectResponse) {
+        RequestBuilder builder = new RequestBuilder(channel, mSupportExtendedApdu);
+        Throwable requestException = null;
+        try {
+            request.mRequestProvider.buildRequest(selectResponse, builder);
+        } catch (Throwable e) {
+            requestException = e;
+        }
+        if (builder.getCommands().isEmpty() || requestException != null) {
+            // Just close the channel if we don't have commands to send or an error
+            // was encountered.
+            finishRequest(request, channel, null /* response */, requestException);
+            return;
+        }
+        sendCommand(request, builder.getCommands(), 0 /* index */);
     }
 
     /**
      * Sends the current command and then continue to send the next one. If this is the last
-     * command or any error happens, {@code resultCallback} will be called.
+     * command or any error happens, the result callback of the request will be called.
      *
      * @param commands All commands to be sent.
      * @param index The current command index.
      */
     private void sendCommand(
+            Request request,
             List<ApduCommand> commands,
-            int index,
-            ApduSenderResultCallback resultCallback,
-            Handler handler) {
+            int index) {
         ApduCommand command = commands.get(index);
+        Handler handler = request.mHandler;
         mTransmitApdu.invoke(command, new AsyncResultCallback<IccIoResult>() {
             @Override
             public void onResult(IccIoResult response) {
@@ -185,22 +303,27 @@ public class ApduSender {
                                 logv("Full APDU response: " + fullResponse);
                                 int status = (fullResponse.sw1 << 8) | fullResponse.sw2;
                                 if (status != STATUS_NO_ERROR && fullResponse.sw1 != SW1_NO_ERROR) {
-                                    closeAndReturn(command.channel, null /* response */,
-                                            new ApduException(status), resultCallback, handler);
+                                    if (index == 0 && request.mOnSessionChannel
+                                            && isChannelError(fullResponse.sw1, status)) {
+                                        retryOnNewChannel(request, command.channel, status);
+                                        return;
+                                    }
+                                    finishRequest(request, command.channel, null /* response */,
+                                            new ApduException(status));
                                     return;
                                 }
 
                                 boolean continueSendCommand = index < commands.size() - 1
                                         // Checks intermediate APDU result except the last one
-                                        && resultCallback.shouldContinueOnIntermediateResult(
-                                                fullResponse);
+                                        && request.mResultCallback
+                                                .shouldContinueOnIntermediateResult(fullResponse);
                                 if (continueSendCommand) {
                                     // Sends the next command
-                                    sendCommand(commands, index + 1, resultCallback, handler);
+                                    sendCommand(request, commands, index + 1);
                                 } else {
                                     // Returns the result of the last command
-                                    closeAndReturn(command.channel, fullResponse.payload,
-                                            null /* exception */, resultCallback, handler);
+                                    finishRequest(request, command.channel, fullResponse.payload,
+                                            null /* exception */);
                                 }
                             }
                         }, handler);
@@ -208,6 +331,33 @@ public class ApduSender {
         }, handler);
     }
 
+    /** Whether a status may be caused by a channel which isn't open anymore. */
+    private static boolean isChannelError(int sw1, int status) {
+        return sw1 == SW1_TRANSMIT_ERROR || status == STATUS_CHANNEL_NOT_SUPPORTED;
+    }
+
+    /**
+     * Sends a request again on a newly opened channel, after its first command failed on the
+     * channel kept open by the session. No command of the request was executed yet.
+     */
+    private void retryOnNewChannel(Request request, int channel, int status) {
+        logd("Command failed on session channel " + channel + " with status "
+                + Integer.toHexString(status) + ", retry on a new channel");
+        request.mOnSessionChannel = false;
+        synchronized (mChannelLock) {
+            mSessionRetryCount++;
+            mSessionChannel = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
+            mSessionSelectResponse = null;
+        }
+        // Close the channel in case it is still open, whatever the result
+        mCloseChannel.invoke(channel, new AsyncResultCallback<Boolean>() {
+            @Override
+            public void onResult(Boolean aBoolean) {
+                openChannelAndSend(request);
+            }
+        }, request.mHandler);
+    }
+
     /**
      * Gets the full response.
      *
@@ -250,33 +400,124 @@ public class ApduSender {
     }
 
     /**
-     * Closes the opened logical channel.
+     * Returns the result of a request, keeping the channel open if a session idle timeout is set
+     * and the request succeeded without resetting the card, or closing it otherwise, e.g. if
+     * {@link #closeSession()} was called meanwhile.
      *
-     * @param response If {@code exception} is null, this will be returned to {@code resultCallback}
-     *     after the channel has been closed.
-     * @param exception If not null, this will be returned to {@code resultCallback} after the
+     * @param response If {@code exception} is null, this will be returned to the result callback.
+     * @param exception If not null, this will be returned to the result callback after the
      *     channel has been closed.
      */
-    private void closeAndReturn(
+    private void finishRequest(
+            Request request,
             int channel,
             @Nullable byte[] response,
-            @Nullable Throwable exception,
-            ApduSenderResultCallback resultCallback,
-            Handler handler) {
+            @Nullable Throwable exception) {
+        boolean keepOpen;
+        synchronized (mChannelLock) {
+            keepOpen = exception == null && !request.mMayResetCard
+                    && mSessionIdleTimeoutMillis > 0 && !mCloseSessionPending;
+            mCloseSessionPending = false;
+            if (keepOpen) {
+                mSessionChannel = channel;
+            } else {
+                mSessionChannel = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
+                mSessionSelectResponse = null;
+            }
+        }
+        if (keepOpen) {
+            returnResult(request, response, exception);
+            return;
+        }
+
         mCloseChannel.invoke(channel, new AsyncResultCallback<Boolean>() {
             @Override
             public void onResult(Boolean aBoolean) {
-                synchronized (mChannelLock) {
-                    mChannelOpened = false;
-                    mChannelLock.notify();
-                }
+                returnResult(request, response, exception);
+            }
+        }, request.mHandler);
+    }
+
+    private void returnResult(Request request, @Nullable byte[] response,
+            @Nullable Throwable exception) {
+        if (exception == null) {
+            request.mResultCallback.onResult(response);
+        } else {
+            request.mResultCallback.onException(exception);
+        }
+        startNextRequest(request.mHandler);
+    }
 
-                if (exception == null) {
-                    resultCallback.onResult(response);
-                } else {
-                    resultCallback.onException(exception);
+    /**
+     * Starts the next queued request, or releases the channel if there is none.
+     *
+     * @param handler The handler of the last request, used to close the session when idle.
+     */
+    private void startNextRequest(@NonNull Handler handler) {
+        Request next;
+        synchronized (mChannelLock) {
+            mRequestInProgress = false;
+            next = mPendingRequests.poll();
+            if (next == null) {
+                mChannelInUse = false;
+                if (mSessionChannel != IccOpenLogicalChannelResponse.INVALID_CHANNEL) {
+                    // The session may have been closed after the result was returned
+                    mSessionHandler = handler;
+                    handler.postDelayed(mCloseIdleSession,
+                            mCloseSessionPending ? 0 : mSessionIdleTimeoutMillis);
                 }
+                mCloseSessionPending = false;
+                return;
+            }
+        }
+        startRequest(next);
+    }
+
+    /** Closes the channel kept open by the session, unless a request is using it. */
+    private void closeIdleSession() {
+        int channel;
+        Handler handler;
+        synchronized (mChannelLock) {
+            if (mChannelInUse || mSessionHandler == null
+                    || mSessionChannel == IccOpenLogicalChannelResponse.INVALID_CHANNEL) {
+                return;
+            }
+            channel = mSessionChannel;
+            handler = mSessionHandler;
+            mSessionChannel = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
+            mSessionSelectResponse = null;
+            mSessionHandler = null;
+            // Requests sent while the channel is closing are queued
+            mChannelInUse = true;
+        }
+        logd("Close idle session channel " + channel);
+        mCloseChannel.invoke(channel, new AsyncResultCallback<Boolean>() {
+            @Override
+            public void onResult(Boolean aBoolean) {
+                startNextRequest(handler);
             }
         }, handler);
     }
+
+    /**
+     * Dump the channel usage metrics.
+     *
+     * @param pw The print writer.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mChannelLock) {
+            pw.println("ApduSender: aid=" + mAid
+                    + " sessionIdleTimeoutMillis=" + mSessionIdleTimeoutMillis
+                    + " sessionChannel=" + mSessionChannel
+                    + " pendingRequests=" + mPendingRequests.size());
+            pw.println("  requests=" + mRequestCount
+                    + " channelOpens=" + mChannelOpenCount
+                    + " sessionReuses=" + mSessionReuseCount
+                    + " sessionRetries=" + mSessionRetryCount
+                    + " queued=" + mQueuedRequestCount
+                    + " avgQueueWaitMillis="
+                    + (mRequestCount == 0 ? 0 : mTotalQueueWaitMillis / mRequestCount)
+                    + " maxQueueWaitMillis=" + mMaxQueueWaitMillis);
+        }
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.telephony.TelephonyManager;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.telephony.CarrierResolver.CarrierMatchingRule;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class CarrierMatchingRuleIndexTest {
+    private static final String MCCMNC = "310260";
+
+    private static CarrierMatchingRule rule(int cid, String mccmnc, String imsiPrefix,
+            String gid1, String spn) {
+        return new CarrierMatchingRule(mccmnc, imsiPrefix, null, gid1, null, null, spn, null,
+                null, cid, null, TelephonyManager.UNKNOWN_CARRIER_ID);
+    }
+
+    private static CarrierMatchingRule subscription(String imsi, String gid1, String spn) {
+        return rule(TelephonyManager.UNKNOWN_CARRIER_ID, MCCMNC, imsi, gid1, spn);
+    }
+
+    private static CarrierMatchingRule[] candidates(CarrierMatchingRuleIndex index,
+            CarrierMatchingRule subscription) {
+        return index.getCandidates(subscription).toArray(new CarrierMatchingRule[0]);
+    }
+
+    @Test
+    @SmallTest
+    public void testCandidates() {
+        CarrierMatchingRule mno = rule(1, MCCMNC, null, null, null);
+        CarrierMatchingRule imsi = rule(2, MCCMNC, "31026097", null, null);
+        CarrierMatchingRule imsiPattern = rule(3, MCCMNC, "310260xx5", null, null);
+        CarrierMatchingRule gid = rule(4, MCCMNC, null, "DDFF", null);
+        CarrierMatchingRule spn = rule(5, MCCMNC, null, null, "Project Fi");
+        CarrierMatchingRule otherMccMnc = rule(6, "310410", null, null, null);
+        List<CarrierMatchingRule> rules =
+                Arrays.asList(mno, imsi, imsiPattern, gid, spn, otherMccMnc);
+        CarrierMatchingRuleIndex index = new CarrierMatchingRuleIndex(MCCMNC, 7, rules);
+
+        assertThat(index.getVersion()).isEqualTo(7);
+        assertThat(index.getRules()).containsExactly(mno, imsi, imsiPattern, gid, spn).inOrder();
+        assertThat(candidates(index, subscription(null, null, null))).asList()
+                .containsExactly(mno);
+        assertThat(candidates(index, subscription("310260975000000", null, null))).asList()
+                .containsExactly(mno, imsi, imsiPattern).inOrder();
+        assertThat(candidates(index, subscription("310260125000000", null, null))).asList()
+                .containsExactly(mno, imsiPattern).inOrder();
+        // gid is matched as a case insensitive prefix, spn ignoring case
+        assertThat(candidates(index, subscription(null, "ddff0000", "PROJECT FI"))).asList()
+                .containsExactly(mno, gid, spn).inOrder();
+        assertThat(candidates(index, subscription(null, "DD", "Project"))).asList()
+                .containsExactly(mno);
+    }
+
+    @Test
+    @SmallTest
+    public void testCandidatesScoredLikeAllRules() {
+        List<CarrierMatchingRule> rules = Arrays.asList(
+                rule(1, MCCMNC, null, null, null),
+                rule(2, MCCMNC, "3102601", "61", null),
+                rule(3, MCCMNC, "310260X", null, "Spn"),
+                rule(4, MCCMNC, "", "", ""),
+                rule(5, MCCMNC, null, "6", null));
+        CarrierMatchingRuleIndex index = new CarrierMatchingRuleIndex(MCCMNC, 1, rules);
+        CarrierMatchingRule[] subscriptions = {
+                subscription("310260100000000", "61ff", "spn"),
+                subscription("310260200000000", "6", ""),
+                subscription(null, null, null),
+                subscription("", "", null),
+        };
+
+        for (CarrierMatchingRule subscription : subscriptions) {
+            List<CarrierMatchingRule> candidates = index.getCandidates(subscription);
+            for (CarrierMatchingRule rule : rules) {
+                rule.match(subscription);
+                boolean matched = !rule.toString().endsWith("score: -1");
+                assertThat(candidates.contains(rule)).isEqualTo(matched);
+            }
+        }
+    }
+}
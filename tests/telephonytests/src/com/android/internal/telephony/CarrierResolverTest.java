@@ -89,8 +89,10 @@ public class CarrierResolverTest extends TelephonyTest {
     private static final int SIM_LOAD_EVENT       = 1;
     private static final int ICC_CHANGED_EVENT    = 2;
     private static final int PREFER_APN_SET_EVENT = 3;
+    private static final int CARRIER_ID_DB_UPDATE_EVENT = 4;
 
     private CarrierResolver mCarrierResolver;
+    private int mMatchingRuleQueryCount;
 
     @Before
     public void setUp() throws Exception {
@@ -270,6 +272,38 @@ public class CarrierResolverTest extends TelephonyTest {
                 IccCardConstants.INTENT_VALUE_ICC_LOADED);
     }
 
+    @Test
+    @SmallTest
+    public void testMatchingRulesKeptAcrossSimLoad() {
+        int phoneId = mPhone.getPhoneId();
+        doReturn(MCCMNC).when(mTelephonyManager).getSimOperatorNumericForPhone(eq(phoneId));
+        mCarrierResolver.sendEmptyMessage(SIM_LOAD_EVENT);
+        processAllMessages();
+        assertEquals(CID_VZW, mCarrierResolver.getCarrierId());
+        assertEquals(1, mMatchingRuleQueryCount);
+
+        // spn change on the same mccmnc is matched without querying the rules again
+        doReturn(SPN_FI).when(mSimRecords).getServiceProviderName();
+        mCarrierResolver.sendEmptyMessage(SIM_LOAD_EVENT);
+        processAllMessages();
+        assertEquals(CID_FI, mCarrierResolver.getCarrierId());
+        assertEquals(1, mMatchingRuleQueryCount);
+
+        doReturn(MCCMNC_VODAFONE).when(mTelephonyManager)
+                .getSimOperatorNumericForPhone(eq(phoneId));
+        doReturn(SPN_VODAFONE).when(mSimRecords).getServiceProviderName();
+        mCarrierResolver.sendEmptyMessage(SIM_LOAD_EVENT);
+        processAllMessages();
+        assertEquals(CID_VODAFONE, mCarrierResolver.getCarrierId());
+        assertEquals(2, mMatchingRuleQueryCount);
+
+        // carrier id table update drops the kept rules
+        mCarrierResolver.sendEmptyMessage(CARRIER_ID_DB_UPDATE_EVENT);
+        processAllMessages();
+        assertEquals(CID_VODAFONE, mCarrierResolver.getCarrierId());
+        assertEquals(3, mMatchingRuleQueryCount);
+    }
+
     private class CarrierIdContentProvider extends MockContentProvider {
         @Override
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
@@ -283,6 +317,9 @@ public class CarrierResolverTest extends TelephonyTest {
 
             if (CarrierId.All.CONTENT_URI.getAuthority().equals(
                     uri.getAuthority())) {
+                if ((CarrierId.All.MCCMNC + "=?").equals(selection)) {
+                    mMatchingRuleQueryCount++;
+                }
                 MatrixCursor mc = new MatrixCursor(
                         new String[]{CarrierId._ID,
                                 CarrierId.All.MCCMNC,
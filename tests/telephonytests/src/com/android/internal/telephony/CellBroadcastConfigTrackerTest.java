@@ -26,6 +26,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -397,6 +398,64 @@ public final class CellBroadcastConfigTrackerTest extends TelephonyTest {
         assertEquals(mPhone.getCellBroadcastIdRanges(), ranges3gpp);
     }
 
+    @Test
+    public void testSetCellBroadcastIdRangesCoalesced() throws Exception {
+        doReturn(true).when(mFeatureFlags).coalesceCellBroadcastConfigRequests();
+        List<Integer> results = new ArrayList<>();
+        List<CellBroadcastIdRange> ranges1 = new ArrayList<>();
+        ranges1.add(new CellBroadcastIdRange(0, 999, SmsCbMessage.MESSAGE_FORMAT_3GPP, true));
+        List<CellBroadcastIdRange> ranges2 = new ArrayList<>();
+        ranges2.add(new CellBroadcastIdRange(0, 1999, SmsCbMessage.MESSAGE_FORMAT_3GPP, true));
+        List<CellBroadcastIdRange> ranges3 = new ArrayList<>();
+        ranges3.add(new CellBroadcastIdRange(0, 2999, SmsCbMessage.MESSAGE_FORMAT_3GPP, true));
+
+        ArgumentCaptor<SmsBroadcastConfigInfo[]> gsmCaptor = ArgumentCaptor.forClass(
+                SmsBroadcastConfigInfo[].class);
+        ArgumentCaptor<Message> msgCaptor = ArgumentCaptor.forClass(Message.class);
+
+        mockCommandInterface();
+
+        mPhone.setCellBroadcastIdRanges(ranges1, results::add);
+        processAllMessages();
+        verify(mSpyCi, times(1)).setGsmBroadcastConfig(any(), msgCaptor.capture());
+
+        // Requested while the modem is being configured, only the latest ranges are configured.
+        mPhone.setCellBroadcastIdRanges(ranges2, results::add);
+        mPhone.setCellBroadcastIdRanges(ranges3, results::add);
+        processAllMessages();
+
+        Message msg = msgCaptor.getValue();
+        AsyncResult.forMessage(msg);
+        msg.sendToTarget();
+        processAllMessages();
+        verify(mSpyCi, times(1)).setGsmBroadcastActivation(eq(true), msgCaptor.capture());
+        msg = msgCaptor.getValue();
+        AsyncResult.forMessage(msg);
+        msg.sendToTarget();
+        processAllMessages();
+        assertEquals(Arrays.asList(TelephonyManager.CELL_BROADCAST_RESULT_SUCCESS), results);
+
+        verify(mSpyCi, times(2)).setGsmBroadcastConfig(gsmCaptor.capture(),
+                msgCaptor.capture());
+        assertEquals(Arrays.asList(new SmsBroadcastConfigInfo(0, 2999, 0, 255, true)),
+                Arrays.asList((SmsBroadcastConfigInfo[]) gsmCaptor.getValue()));
+        msg = msgCaptor.getValue();
+        AsyncResult.forMessage(msg);
+        msg.sendToTarget();
+        processAllMessages();
+        verify(mSpyCi, times(2)).setGsmBroadcastActivation(eq(true), msgCaptor.capture());
+        msg = msgCaptor.getValue();
+        AsyncResult.forMessage(msg);
+        msg.sendToTarget();
+        processAllMessages();
+
+        verify(mSpyCi, times(2)).setGsmBroadcastConfig(any(), any());
+        assertEquals(Arrays.asList(TelephonyManager.CELL_BROADCAST_RESULT_SUCCESS,
+                TelephonyManager.CELL_BROADCAST_RESULT_SUCCESS,
+                TelephonyManager.CELL_BROADCAST_RESULT_SUCCESS), results);
+        assertEquals(mergeRangesAsNeeded(ranges3), mPhone.getCellBroadcastIdRanges());
+    }
+
     @Test
     public void testClearCellBroadcastConfigOnRadioOff() {
         List<CellBroadcastIdRange> ranges = new ArrayList<>();
@@ -21,6 +21,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -30,26 +31,34 @@ import android.telephony.CellInfo;
 import android.telephony.DisconnectCause;
 import android.telephony.PreciseCallState;
 import android.telephony.PreciseDisconnectCause;
+import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
 import android.telephony.ims.ImsCallProfile;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
 import android.util.ArraySet;
 
 import androidx.test.filters.SmallTest;
 
+import com.android.internal.telephony.PhoneNotificationDispatcher.NotificationType;
 import com.android.internal.telephony.flags.FeatureFlags;
 import com.android.internal.telephony.imsphone.ImsPhoneCall;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+@RunWith(AndroidTestingRunner.class)
+@TestableLooper.RunWithLooper
 public class DefaultPhoneNotifierTest extends TelephonyTest {
     private static final int PHONE_ID = 1;
     private static final int SUB_ID = 0;
@@ -392,4 +401,70 @@ public class DefaultPhoneNotifierTest extends TelephonyTest {
         verify(mTelephonyRegistryManager).notifySimultaneousCellularCallingSubscriptionsChanged(
                 eq(subs));
     }
+
+    @Test
+    @SmallTest
+    public void testAsyncNotifyServiceStateCoalesced() {
+        mDefaultPhoneNotifierUT = new DefaultPhoneNotifier(mContext, mFeatureFlags,
+                mTestableLooper.getLooper());
+        ServiceState inService = new ServiceState();
+        inService.setState(ServiceState.STATE_IN_SERVICE);
+        ServiceState outOfService = new ServiceState();
+        outOfService.setStateOutOfService();
+
+        mDefaultPhoneNotifierUT.notifyServiceStateForSubId(mPhone, outOfService, SUB_ID);
+        mDefaultPhoneNotifierUT.notifyServiceStateForSubId(mPhone, inService, SUB_ID);
+        verify(mTelephonyRegistryManager, never()).notifyServiceStateChanged(anyInt(), anyInt(),
+                any());
+
+        processAllMessages();
+        // Only the latest service state is sent.
+        verify(mTelephonyRegistryManager).notifyServiceStateChanged(eq(0), eq(SUB_ID),
+                eq(inService));
+        verify(mTelephonyRegistryManager, never()).notifyServiceStateChanged(anyInt(), anyInt(),
+                eq(outOfService));
+
+        // The same service state is not sent again.
+        mDefaultPhoneNotifierUT.notifyServiceStateForSubId(mPhone, new ServiceState(inService),
+                SUB_ID);
+        processAllMessages();
+        verify(mTelephonyRegistryManager, times(1)).notifyServiceStateChanged(anyInt(), anyInt(),
+                any());
+
+        // But is sent for another subscription.
+        mDefaultPhoneNotifierUT.notifyServiceStateForSubId(mPhone, inService, 1);
+        processAllMessages();
+        verify(mTelephonyRegistryManager).notifyServiceStateChanged(eq(0), eq(1), eq(inService));
+
+        PhoneNotificationDispatcher dispatcher = mDefaultPhoneNotifierUT.getDispatcher(0);
+        assertEquals(2, dispatcher.getSentCount(NotificationType.SERVICE_STATE));
+        assertEquals(2, dispatcher.getSuppressedCount(NotificationType.SERVICE_STATE));
+    }
+
+    @Test
+    @SmallTest
+    public void testAsyncNotifyEventsInOrder() {
+        mDefaultPhoneNotifierUT = new DefaultPhoneNotifier(mContext, mFeatureFlags,
+                mTestableLooper.getLooper());
+        ServiceState serviceState = new ServiceState();
+        serviceState.setState(ServiceState.STATE_IN_SERVICE);
+
+        mDefaultPhoneNotifierUT.notifyDisconnectCause(mPhone, DisconnectCause.LOCAL,
+                PreciseDisconnectCause.NORMAL);
+        mDefaultPhoneNotifierUT.notifyServiceStateForSubId(mPhone, serviceState, SUB_ID);
+        mDefaultPhoneNotifierUT.notifyDisconnectCause(mPhone, DisconnectCause.BUSY,
+                PreciseDisconnectCause.BUSY);
+        mDefaultPhoneNotifierUT.notifyDisconnectCause(mPhone, DisconnectCause.BUSY,
+                PreciseDisconnectCause.BUSY);
+        processAllMessages();
+
+        InOrder inOrder = Mockito.inOrder(mTelephonyRegistryManager);
+        inOrder.verify(mTelephonyRegistryManager).notifyDisconnectCause(0, SUB_ID,
+                DisconnectCause.LOCAL, PreciseDisconnectCause.NORMAL);
+        inOrder.verify(mTelephonyRegistryManager).notifyServiceStateChanged(0, SUB_ID,
+                serviceState);
+        // Events are never dropped, even if they are the same.
+        inOrder.verify(mTelephonyRegistryManager, times(2)).notifyDisconnectCause(0, SUB_ID,
+                DisconnectCause.BUSY, PreciseDisconnectCause.BUSY);
+    }
 }
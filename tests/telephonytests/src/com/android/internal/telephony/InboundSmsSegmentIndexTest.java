@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class InboundSmsSegmentIndexTest {
+    private static final String QUERY = "address=? AND reference_number=? AND count=?";
+
+    private final InboundSmsSegmentIndex mIndex = new InboundSmsSegmentIndex();
+    private int mQueryCount;
+
+    private static InboundSmsTracker tracker(int referenceNumber, int sequenceNumber) {
+        InboundSmsTracker tracker = mock(InboundSmsTracker.class);
+        doReturn(QUERY).when(tracker).getQueryForSegments();
+        doReturn("1234").when(tracker).getAddress();
+        doReturn(referenceNumber).when(tracker).getReferenceNumber();
+        doReturn(sequenceNumber).when(tracker).getSequenceNumber();
+        doReturn(3).when(tracker).getMessageCount();
+        return tracker;
+    }
+
+    private int getSegmentCount(InboundSmsTracker tracker, int[] sequenceNumbers) {
+        return mIndex.getSegmentCount(tracker, () -> {
+            mQueryCount++;
+            return sequenceNumbers;
+        });
+    }
+
+    @Test
+    @SmallTest
+    public void testSegmentsIndexedAfterSeed() {
+        InboundSmsTracker first = tracker(1, 1);
+        assertEquals(1, getSegmentCount(first, new int[] {1}));
+
+        InboundSmsTracker second = tracker(1, 2);
+        mIndex.onSegmentAdded(second);
+        assertEquals(2, getSegmentCount(second, null));
+
+        // A duplicate segment isn't counted twice.
+        mIndex.onSegmentAdded(tracker(1, 2));
+        InboundSmsTracker third = tracker(1, 3);
+        mIndex.onSegmentAdded(third);
+        assertEquals(3, getSegmentCount(third, null));
+        assertEquals(1, mQueryCount);
+
+        mIndex.remove(third, true /* complete */);
+        assertEquals(0, mIndex.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testMessagesIndexedSeparately() {
+        assertEquals(1, getSegmentCount(tracker(1, 1), new int[] {1}));
+        assertEquals(2, getSegmentCount(tracker(2, 2), new int[] {1, 2}));
+        assertEquals(2, mIndex.size());
+        assertEquals(2, mQueryCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testSeededAgainAfterRemove() {
+        InboundSmsTracker tracker = tracker(1, 1);
+        assertEquals(3, getSegmentCount(tracker, new int[] {1, 2, 3}));
+
+        // Segments were missing from the raw table.
+        mIndex.remove(tracker, false /* complete */);
+        // Segments added while the message isn't indexed are read from the raw table.
+        mIndex.onSegmentAdded(tracker(1, 2));
+        assertEquals(2, getSegmentCount(tracker, new int[] {1, 2}));
+        assertEquals(2, mQueryCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testQueryFailureNotIndexed() {
+        InboundSmsTracker tracker = tracker(1, 1);
+        assertEquals(0, getSegmentCount(tracker, null));
+        assertEquals(0, mIndex.size());
+        assertEquals(1, getSegmentCount(tracker, new int[] {1}));
+        assertEquals(2, mQueryCount);
+    }
+}
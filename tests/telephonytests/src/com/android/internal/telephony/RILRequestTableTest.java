@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.WorkSource;
+import android.util.SparseArray;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class RILRequestTableTest {
+    private static RILRequest obtain(int serial) {
+        RILRequest rr = RILRequest.obtain(RILConstants.RIL_REQUEST_GET_SIM_STATUS, null,
+                new WorkSource());
+        rr.mSerial = serial;
+        return rr;
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        RILRequestTable table = new RILRequestTable(4);
+        RILRequest rr = obtain(5);
+        table.put(rr);
+
+        assertEquals(1, table.size());
+        assertSame(rr, table.get(5));
+        assertNull(table.get(1));
+        assertSame(rr, table.remove(5));
+        assertNull(table.remove(5));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testSlotCollisionUsesOverflow() {
+        RILRequestTable table = new RILRequestTable(4);
+        RILRequest first = obtain(1);
+        RILRequest second = obtain(5);
+        table.put(first);
+        table.put(second);
+
+        assertEquals(2, table.size());
+        assertEquals(1, table.getOverflowSize());
+        assertSame(first, table.get(1));
+        assertSame(second, table.get(5));
+
+        assertSame(first, table.remove(1));
+        assertSame(second, table.get(5));
+        assertSame(second, table.remove(5));
+        assertEquals(0, table.size());
+        assertEquals(0, table.getOverflowSize());
+    }
+
+    @Test
+    public void testSnapshotSortedBySerial() {
+        RILRequestTable table = new RILRequestTable(4);
+        table.put(obtain(6));
+        table.put(obtain(2));
+        table.put(obtain(3));
+
+        List<RILRequest> snapshot = table.snapshot();
+        assertEquals(3, snapshot.size());
+        assertEquals(2, snapshot.get(0).mSerial);
+        assertEquals(3, snapshot.get(1).mSerial);
+        assertEquals(6, snapshot.get(2).mSerial);
+    }
+
+    @Test
+    public void testReusedRequestNotMatchedByOldSerial() {
+        RILRequestTable table = new RILRequestTable(4);
+        RILRequest rr = obtain(1);
+        table.put(rr);
+        assertSame(rr, table.remove(1));
+
+        // The request is released and obtained again with a serial that maps to the same slot
+        rr.mSerial = 5;
+        table.put(rr);
+
+        assertNull(table.get(1));
+        assertNull(table.remove(1));
+        assertSame(rr, table.remove(5));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testRemoveAll() {
+        RILRequestTable table = new RILRequestTable(4);
+        RILRequest first = obtain(1);
+        RILRequest second = obtain(5);
+        RILRequest third = obtain(2);
+        table.put(first);
+        table.put(second);
+        table.put(third);
+
+        List<RILRequest> removed = table.removeAll();
+        assertEquals(3, removed.size());
+        assertSame(first, removed.get(0));
+        assertSame(third, removed.get(1));
+        assertSame(second, removed.get(2));
+        assertEquals(0, table.size());
+        assertEquals(0, table.getOverflowSize());
+        assertTrue(table.removeAll().isEmpty());
+    }
+
+    @Test
+    public void testSparseArrayView() {
+        RILRequestTable table = new RILRequestTable(4);
+        SparseArray<RILRequest> view = table.asSparseArray();
+        RILRequest first = obtain(6);
+        RILRequest second = obtain(2);
+        table.put(first);
+        view.put(2, second);
+
+        assertEquals(2, view.size());
+        assertSame(second, table.get(2));
+        assertEquals(2, view.keyAt(0));
+        assertSame(first, view.valueAt(1));
+        assertEquals(1, view.indexOfKey(6));
+        assertTrue(view.indexOfKey(3) < 0);
+        assertSame(first, view.get(6));
+
+        view.remove(6);
+        assertNull(table.get(6));
+        view.clear();
+        assertEquals(0, table.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new RILRequestTable(3);
+    }
+}
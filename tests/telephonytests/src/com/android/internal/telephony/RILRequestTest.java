@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.WorkSource;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RILRequestTest {
+    @Test
+    public void testReleasedRequestIsReused() {
+        RILRequest rr = RILRequest.obtain(RILConstants.RIL_REQUEST_GET_SIM_STATUS, null,
+                new WorkSource(), "arg");
+        rr.release();
+        assertNull(rr.mArguments);
+        assertNull(rr.mWorkSource);
+
+        long hits = RILRequest.getPoolHits();
+        RILRequest reused = RILRequest.obtain(RILConstants.RIL_REQUEST_GET_SIM_STATUS, null,
+                new WorkSource());
+        assertSame(rr, reused);
+        assertEquals(hits + 1, RILRequest.getPoolHits());
+        reused.release();
+    }
+
+    @Test
+    public void testMissCountedWhenPoolEmpty() {
+        long misses = RILRequest.getPoolMisses();
+        RILRequest[] requests = new RILRequest[128];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = RILRequest.obtain(RILConstants.RIL_REQUEST_GET_SIM_STATUS, null,
+                    new WorkSource());
+        }
+        // The pool holds far fewer than 128 instances, so most of these must have allocated.
+        assertTrue(RILRequest.getPoolMisses() - misses >= requests.length / 2);
+        for (RILRequest rr : requests) {
+            rr.release();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.doReturn;
+
+import android.hardware.radio.network.CellIdentityLte;
+import android.hardware.radio.network.CellInfo;
+import android.hardware.radio.network.CellInfoLte;
+import android.hardware.radio.network.CellInfoRatSpecificInfo;
+import android.hardware.radio.network.OperatorInfo;
+import android.hardware.radio.network.PhysicalChannelConfig;
+import android.hardware.radio.network.PhysicalChannelConfigBand;
+import android.hardware.radio.network.SignalStrength;
+import android.os.Handler;
+import android.os.Looper;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidTestingRunner.class)
+@TestableLooper.RunWithLooper
+public class RadioIndicationCoalescerTest extends TelephonyTest {
+    private static final int TYPE = RadioIndicationCoalescer.TYPE_SIGNAL_STRENGTH;
+
+    private RadioIndicationCoalescer mCoalescer;
+    private final List<Integer> mDelivered = new ArrayList<>();
+    private long mNowMillis = 100_000;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        doReturn(true).when(mFeatureFlags).coalesceRadioIndications();
+        mCoalescer = new RadioIndicationCoalescer(new Handler(Looper.myLooper()),
+                () -> mNowMillis, mFeatureFlags);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCoalescer = null;
+        super.tearDown();
+    }
+
+    private void offer(int value) {
+        mCoalescer.offer(TYPE, value, Integer::equals, mDelivered::add);
+    }
+
+    private void advanceTime(long millis) {
+        mNowMillis += millis;
+        moveTimeForward(millis);
+        processAllMessages();
+    }
+
+    @Test
+    @SmallTest
+    public void testDuplicatesDropped() {
+        mCoalescer.setWindowMillis(TYPE, 0);
+        offer(1);
+        offer(1);
+        offer(2);
+        offer(2);
+        assertThat(mDelivered).containsExactly(1, 2).inOrder();
+        assertThat(mCoalescer.getDroppedCount(TYPE)).isEqualTo(2);
+
+        // Unchanged payloads are delivered again after the refresh interval
+        advanceTime(RadioIndicationCoalescer.DUPLICATE_REFRESH_MILLIS);
+        offer(2);
+        assertThat(mDelivered).containsExactly(1, 2, 2).inOrder();
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstCoalescedToLatest() {
+        mCoalescer.setWindowMillis(TYPE, 1000);
+        offer(1);
+        // The first payload is delivered right away
+        assertThat(mDelivered).containsExactly(1);
+
+        offer(2);
+        offer(3);
+        offer(4);
+        assertThat(mDelivered).containsExactly(1);
+
+        advanceTime(1000);
+        assertThat(mDelivered).containsExactly(1, 4).inOrder();
+        assertThat(mCoalescer.getDroppedCount(TYPE)).isEqualTo(2);
+
+        // After a quiet period, the next payload is delivered right away again
+        advanceTime(5000);
+        offer(5);
+        assertThat(mDelivered).containsExactly(1, 4, 5).inOrder();
+    }
+
+    @Test
+    @SmallTest
+    public void testReset() {
+        mCoalescer.setWindowMillis(TYPE, 1000);
+        offer(1);
+        offer(2);
+        mCoalescer.reset();
+        advanceTime(1000);
+        offer(1);
+        assertThat(mDelivered).containsExactly(1, 1).inOrder();
+    }
+
+    @Test
+    @SmallTest
+    public void testFlagDisabled() {
+        doReturn(false).when(mFeatureFlags).coalesceRadioIndications();
+        mCoalescer.setWindowMillis(TYPE, 1000);
+        offer(1);
+        offer(1);
+        offer(2);
+        assertThat(mDelivered).containsExactly(1, 1, 2).inOrder();
+        assertThat(mCoalescer.getDroppedCount(TYPE)).isEqualTo(0);
+    }
+
+    @Test
+    @SmallTest
+    public void testIsSameSignalStrength() {
+        SignalStrength a = makeSignalStrength(-100);
+        SignalStrength b = makeSignalStrength(-100);
+        assertThat(NetworkIndication.isSameSignalStrength(a, b)).isTrue();
+        b.nr.csiCqiReport = new byte[] {1, 3};
+        assertThat(NetworkIndication.isSameSignalStrength(a, b)).isFalse();
+        b = makeSignalStrength(-101);
+        assertThat(NetworkIndication.isSameSignalStrength(a, b)).isFalse();
+    }
+
+    @Test
+    @SmallTest
+    public void testIsSameCellInfos() {
+        CellInfo[] a = {makeLteCellInfo(100, -100)};
+        CellInfo[] b = {makeLteCellInfo(100, -100)};
+        assertThat(NetworkIndication.isSameCellInfos(a, b)).isTrue();
+        b[0].ratSpecificInfo.getLte().signalStrengthLte.rsrp = -101;
+        assertThat(NetworkIndication.isSameCellInfos(a, b)).isFalse();
+        b = new CellInfo[] {makeLteCellInfo(101, -100)};
+        assertThat(NetworkIndication.isSameCellInfos(a, b)).isFalse();
+        assertThat(NetworkIndication.isSameCellInfos(a, new CellInfo[0])).isFalse();
+    }
+
+    @Test
+    @SmallTest
+    public void testIsSamePhysicalChannelConfigs() {
+        PhysicalChannelConfig[] a = {makePhysicalChannelConfig(66)};
+        PhysicalChannelConfig[] b = {makePhysicalChannelConfig(66)};
+        assertThat(NetworkIndication.isSamePhysicalChannelConfigs(a, b)).isTrue();
+        b[0].band = PhysicalChannelConfigBand.eutranBand(2);
+        assertThat(NetworkIndication.isSamePhysicalChannelConfigs(a, b)).isFalse();
+        assertThat(NetworkIndication.isSamePhysicalChannelConfigs(a,
+                new PhysicalChannelConfig[0])).isFalse();
+    }
+
+    private static SignalStrength makeSignalStrength(int rsrp) {
+        SignalStrength ss = new SignalStrength();
+        ss.gsm = new android.hardware.radio.network.GsmSignalStrength();
+        ss.cdma = new android.hardware.radio.network.CdmaSignalStrength();
+        ss.evdo = new android.hardware.radio.network.EvdoSignalStrength();
+        ss.lte = new android.hardware.radio.network.LteSignalStrength();
+        ss.tdscdma = new android.hardware.radio.network.TdscdmaSignalStrength();
+        ss.wcdma = new android.hardware.radio.network.WcdmaSignalStrength();
+        ss.nr = new android.hardware.radio.network.NrSignalStrength();
+        ss.nr.csiCqiReport = new byte[] {1, 2};
+        ss.lte.rsrp = rsrp;
+        return ss;
+    }
+
+    private static CellInfo makeLteCellInfo(int ci, int rsrp) {
+        CellInfoLte lte = new CellInfoLte();
+        lte.cellIdentityLte = new CellIdentityLte();
+        lte.cellIdentityLte.ci = ci;
+        lte.cellIdentityLte.mcc = "310";
+        lte.cellIdentityLte.mnc = "260";
+        lte.cellIdentityLte.bands = new int[] {66};
+        lte.cellIdentityLte.additionalPlmns = new String[0];
+        lte.cellIdentityLte.operatorNames = new OperatorInfo();
+        lte.signalStrengthLte = new android.hardware.radio.network.LteSignalStrength();
+        lte.signalStrengthLte.rsrp = rsrp;
+        CellInfo cellInfo = new CellInfo();
+        cellInfo.registered = true;
+        cellInfo.ratSpecificInfo = CellInfoRatSpecificInfo.lte(lte);
+        return cellInfo;
+    }
+
+    private static PhysicalChannelConfig makePhysicalChannelConfig(int band) {
+        PhysicalChannelConfig config = new PhysicalChannelConfig();
+        config.band = PhysicalChannelConfigBand.eutranBand(band);
+        config.downlinkChannelNumber = 5110;
+        config.physicalCellId = 42;
+        config.contextIds = new int[] {1};
+        return config;
+    }
+}
@@ -2150,6 +2150,49 @@ public class ServiceStateTrackerTest extends TelephonyTest {
         assertEquals(0, sst.mPollingContext[0]);
     }
 
+    @Test
+    public void testPollStateTriggersMergedWhileInFlight() {
+        doReturn(true).when(mFeatureFlags).mergePollStateTriggers();
+        int getOperatorCallCount = mSimulatedCommands.getGetOperatorCallCount();
+        long mergedTriggerCount = sst.getPollStateStats().getMergedTriggerCount();
+        long discardedCount = sst.getPollStateStats().getDiscardedCount();
+
+        // A burst of network state changes, the responses of the first poll are not handled yet
+        sst.post(() -> {
+            for (int i = 0; i < 3; i++) {
+                sst.handleMessage(sst.obtainMessage(
+                        ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED, null));
+            }
+        });
+        waitForLastHandlerAction(mSSTTestHandler.getThreadHandler());
+
+        // One poll plus a single follow-up poll, whose results are the ones used
+        assertEquals(getOperatorCallCount + 2, mSimulatedCommands.getGetOperatorCallCount());
+        assertEquals(mergedTriggerCount + 2, sst.getPollStateStats().getMergedTriggerCount());
+        assertEquals(discardedCount + 1, sst.getPollStateStats().getDiscardedCount());
+        assertEquals(0, sst.mPollingContext[0]);
+        assertEquals(ServiceState.STATE_IN_SERVICE, sst.getServiceState().getState());
+    }
+
+    @Test
+    public void testPollStateTriggersNotMergedWhenFlagDisabled() {
+        int getOperatorCallCount = mSimulatedCommands.getGetOperatorCallCount();
+        long mergedTriggerCount = sst.getPollStateStats().getMergedTriggerCount();
+
+        // Each trigger abandons the in-flight poll and polls again
+        sst.post(() -> {
+            for (int i = 0; i < 3; i++) {
+                sst.handleMessage(sst.obtainMessage(
+                        ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED, null));
+            }
+        });
+        waitForLastHandlerAction(mSSTTestHandler.getThreadHandler());
+
+        assertEquals(getOperatorCallCount + 3, mSimulatedCommands.getGetOperatorCallCount());
+        assertEquals(mergedTriggerCount, sst.getPollStateStats().getMergedTriggerCount());
+        assertEquals(0, sst.mPollingContext[0]);
+    }
+
     @Test
     public void testPollStateExceptionRadioPowerOff() {
         // Turn off radio first.
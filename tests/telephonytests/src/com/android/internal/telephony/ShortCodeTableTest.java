@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Xml;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+@RunWith(AndroidJUnit4.class)
+public class ShortCodeTableTest {
+    private static final String SHORT_CODES_XML = "<shortcodes>"
+            + "<shortcode country=\"al\" pattern=\"\\d{5}\" premium=\"15191|55[56]00\" />"
+            + "<shortcode country=\"am\" pattern=\"\\d{3,4}\" premium=\"11[2456]1|3024\""
+            + " free=\"10[123]\" />"
+            + "<shortcode country=\"al\" pattern=\"\\d{3}\" />"
+            + "</shortcodes>";
+
+    private ShortCodeTable mTable;
+
+    @Before
+    public void setUp() throws Exception {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(new StringReader(SHORT_CODES_XML));
+        mTable = ShortCodeTable.fromXmlParser(parser, 1234L, 5);
+    }
+
+    @Test
+    @SmallTest
+    public void testNumberCategory() {
+        assertEquals(SMS_CATEGORY_PREMIUM_SHORT_CODE,
+                (int) mTable.getNumberCategory("15191", "al"));
+        assertEquals(SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+                (int) mTable.getNumberCategory("54321", "al"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE,
+                (int) mTable.getNumberCategory("654321", "al"));
+        assertEquals(SMS_CATEGORY_FREE_SHORT_CODE,
+                (int) mTable.getNumberCategory("101", "am"));
+        assertEquals(SMS_CATEGORY_PREMIUM_SHORT_CODE,
+                (int) mTable.getNumberCategory("3024", "am"));
+
+        // cached results are the same
+        assertEquals(SMS_CATEGORY_PREMIUM_SHORT_CODE,
+                (int) mTable.getNumberCategory("15191", "al"));
+        assertEquals(SMS_CATEGORY_FREE_SHORT_CODE,
+                (int) mTable.getNumberCategory("101", "am"));
+    }
+
+    @Test
+    @SmallTest
+    public void testFirstEntryOfCountryWins() {
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, (int) mTable.getNumberCategory("123", "al"));
+    }
+
+    @Test
+    @SmallTest
+    public void testUnknownCountry() {
+        assertTrue(mTable.hasCountry("am"));
+        assertFalse(mTable.hasCountry("fr"));
+        assertNull(mTable.getNumberCategory("12345", "fr"));
+    }
+
+    @Test
+    @SmallTest
+    public void testFileMetadata() {
+        assertEquals(1234L, mTable.getLastModified());
+        assertEquals(5, mTable.getVersion());
+        assertNull(ShortCodeTable.empty(0L, -1).getNumberCategory("12345", "al"));
+    }
+}
@@ -82,7 +82,9 @@ import com.android.internal.telephony.uicc.SimPhonebookRecord;
 import com.android.telephony.Rlog;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -169,6 +171,13 @@ public class SimulatedCommands extends BaseCommands
     private IccCardStatus mIccCardStatus;
     private IccSlotStatus mIccSlotStatus;
     private IccIoResult mIccIoResultForApduLogicalChannel;
+    // Simulated linear fixed EFs, by file id
+    private final Map<Integer, byte[][]> mSimulatedLinearFixedEfs = new HashMap<>();
+    private long mIccIoLatencyMillis;
+    private int mMaxConcurrentIccIo = Integer.MAX_VALUE;
+    private int mIccIoInFlight;
+    private int mMaxIccIoInFlight;
+    private int mIccIoCount;
     private int mChannelId = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
 
     private Object mDataRegStateResult;
@@ -1391,7 +1400,97 @@ public class SimulatedCommands extends BaseCommands
     @Override
     public void iccIOForApp (int command, int fileid, String path, int p1, int p2,
                        int p3, String data, String pin2, String aid, Message result) {
-        unimplemented(result);
+        byte[][] records;
+        synchronized (mSimulatedLinearFixedEfs) {
+            records = mSimulatedLinearFixedEfs.get(fileid);
+            if (records == null) {
+                unimplemented(result);
+                return;
+            }
+            mIccIoCount++;
+            if (mIccIoInFlight >= mMaxConcurrentIccIo) {
+                resultFail(result, null, new CommandException(CommandException.Error.SIM_BUSY));
+                return;
+            }
+            mIccIoInFlight++;
+            mMaxIccIoInFlight = Math.max(mMaxIccIoInFlight, mIccIoInFlight);
+        }
+
+        IccIoResult ioResult;
+        if (command == 0xc0 /* GET_RESPONSE */) {
+            int recordSize = records.length > 0 ? records[0].length : 1;
+            int fileSize = recordSize * records.length;
+            byte[] response = new byte[15];
+            response[2] = (byte) (fileSize >> 8);
+            response[3] = (byte) fileSize;
+            response[4] = (byte) (fileid >> 8);
+            response[5] = (byte) fileid;
+            response[6] = 4 /* TYPE_EF */;
+            response[13] = 1 /* EF_TYPE_LINEAR_FIXED */;
+            response[14] = (byte) recordSize;
+            ioResult = new IccIoResult(0x90, 0x00, response);
+        } else if (command == 0xb2 /* READ_RECORD */ && p1 >= 1 && p1 <= records.length) {
+            ioResult = new IccIoResult(0x90, 0x00, records[p1 - 1].clone());
+        } else {
+            // Record not found
+            ioResult = new IccIoResult(0x6a, 0x83, (byte[]) null);
+        }
+
+        Runnable respond = () -> {
+            synchronized (mSimulatedLinearFixedEfs) {
+                mIccIoInFlight--;
+            }
+            resultSuccess(result, ioResult);
+        };
+        if (mIccIoLatencyMillis > 0) {
+            new Handler(mHandlerThread.getLooper()).postDelayed(respond, mIccIoLatencyMillis);
+        } else {
+            respond.run();
+        }
+    }
+
+    /**
+     * Simulate a linear fixed EF, read with {@link #iccIOForApp}. Other EFs are unimplemented.
+     *
+     * @param fileid The EF id.
+     * @param records The records, all of the same size.
+     */
+    public void setSimulatedLinearFixedEf(int fileid, byte[][] records) {
+        synchronized (mSimulatedLinearFixedEfs) {
+            mSimulatedLinearFixedEfs.put(fileid, records);
+        }
+    }
+
+    /**
+     * Set the time taken by the simulated modem to answer an ICC IO request on a simulated EF.
+     * Requests in flight are answered concurrently.
+     */
+    public void setIccIoLatencyMillis(long latencyMillis) {
+        mIccIoLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Set the number of ICC IO requests on simulated EFs the modem accepts at the same time.
+     * Requests above it fail with {@link CommandException.Error#SIM_BUSY}.
+     */
+    public void setMaxConcurrentIccIo(int maxConcurrent) {
+        synchronized (mSimulatedLinearFixedEfs) {
+            mMaxConcurrentIccIo = maxConcurrent;
+        }
+    }
+
+    /** @return The number of ICC IO requests received on simulated EFs. */
+    public int getIccIoCount() {
+        synchronized (mSimulatedLinearFixedEfs) {
+            return mIccIoCount;
+        }
+    }
+
+    /** @return The highest number of ICC IO requests on simulated EFs in flight at once. */
+    public int getMaxIccIoInFlight() {
+        synchronized (mSimulatedLinearFixedEfs) {
+            return mMaxIccIoInFlight;
+        }
     }
 
     /**
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class SmsRateLimiterTest {
+    private static final String TAG = "SmsRateLimiterTest";
+    private static final String PACKAGE = "com.example.sms";
+    private static final int MAX_ALLOWED = 30;
+    private static final long PERIOD_MILLIS = 60000;
+
+    private final SmsRateLimiter mLimiter = new SmsRateLimiter(MAX_ALLOWED, PERIOD_MILLIS);
+
+    @Test
+    @SmallTest
+    public void testLimitWithinPeriod() {
+        for (int i = 0; i < MAX_ALLOWED; i++) {
+            assertTrue(mLimiter.tryAcquire(PACKAGE, 1, 1000 + i));
+        }
+        assertFalse(mLimiter.tryAcquire(PACKAGE, 1, 2000));
+        // other packages have their own limit
+        assertTrue(mLimiter.tryAcquire(PACKAGE + ".other", 1, 2000));
+    }
+
+    @Test
+    @SmallTest
+    public void testSendsExpireAfterPeriod() {
+        assertTrue(mLimiter.tryAcquire(PACKAGE, MAX_ALLOWED - 1, 1000));
+        assertTrue(mLimiter.tryAcquire(PACKAGE, 1, 5000));
+        assertFalse(mLimiter.tryAcquire(PACKAGE, 1, 1000 + PERIOD_MILLIS - 1));
+
+        // the first batch expired, the send at 5000 is still in the window
+        assertTrue(mLimiter.tryAcquire(PACKAGE, MAX_ALLOWED - 1, 1000 + PERIOD_MILLIS + 1));
+        assertFalse(mLimiter.tryAcquire(PACKAGE, 1, 1000 + PERIOD_MILLIS + 2));
+        assertTrue(mLimiter.tryAcquire(PACKAGE, 1, 5000 + PERIOD_MILLIS + 1));
+    }
+
+    @Test
+    @SmallTest
+    public void testRequestLargerThanLimit() {
+        assertFalse(mLimiter.tryAcquire(PACKAGE, MAX_ALLOWED + 1, 1000));
+        assertTrue(mLimiter.tryAcquire(PACKAGE, MAX_ALLOWED, 1000));
+    }
+
+    @Test
+    @SmallTest
+    public void testIdlePackagesPruned() {
+        mLimiter.track(PACKAGE, 1000);
+        assertTrue(mLimiter.tryAcquire(PACKAGE + ".other", 1, 1000));
+        assertEquals(2, mLimiter.getTrackedPackageCount());
+
+        // pruning runs at most once per period
+        mLimiter.track(PACKAGE + ".third", 2000);
+        assertEquals(3, mLimiter.getTrackedPackageCount());
+
+        assertTrue(mLimiter.tryAcquire(PACKAGE + ".third", 1, 1000 + PERIOD_MILLIS + 500));
+        assertEquals(1, mLimiter.getTrackedPackageCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testManyPackages() {
+        final int numPackages = 5000;
+        final int rounds = 10;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < numPackages; i++) {
+                // every package stays at the allowed ceiling
+                mLimiter.tryAcquire(PACKAGE + i, MAX_ALLOWED / rounds, 1000 + round);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        Log.d(TAG, "testManyPackages: " + (numPackages * rounds) + " checks in "
+                + (elapsedNanos / 1000) + "us");
+
+        assertEquals(numPackages, mLimiter.getTrackedPackageCount());
+        for (int i = 0; i < numPackages; i++) {
+            assertFalse(mLimiter.tryAcquire(PACKAGE + i, 1, 2000));
+        }
+        assertTrue(mLimiter.tryAcquire(PACKAGE + 0, MAX_ALLOWED, 1000 + rounds + PERIOD_MILLIS));
+        assertEquals(1, mLimiter.getTrackedPackageCount());
+    }
+}
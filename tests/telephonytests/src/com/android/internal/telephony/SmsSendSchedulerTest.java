@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class SmsSendSchedulerTest {
+    private static final String PACKAGE_A = "com.example.a";
+    private static final String PACKAGE_B = "com.example.b";
+    private static final byte[] SMSC = {0x01, 0x02};
+
+    private final List<SmsTracker> mSent = new ArrayList<>();
+
+    private static SmsTracker tracker(String appPackage, byte[] smsc) {
+        SmsTracker tracker = mock(SmsTracker.class);
+        HashMap<String, Object> data = new HashMap<>();
+        data.put(SMSDispatcher.MAP_KEY_SMSC, smsc);
+        doReturn(data).when(tracker).getData();
+        doReturn(appPackage).when(tracker).getAppPackageName();
+        return tracker;
+    }
+
+    @Test
+    @SmallTest
+    public void testQueueBeyondWindow() {
+        SmsSendScheduler scheduler = new SmsSendScheduler(mSent::add, 2);
+        SmsTracker first = tracker(PACKAGE_A, SMSC);
+        SmsTracker second = tracker(PACKAGE_A, SMSC);
+        SmsTracker third = tracker(PACKAGE_A, SMSC);
+
+        scheduler.schedule(new SmsTracker[] {first});
+        scheduler.schedule(new SmsTracker[] {second});
+        scheduler.schedule(new SmsTracker[] {third});
+        assertEquals(Arrays.asList(first, second), mSent);
+        assertEquals(2, scheduler.getSentCount());
+        assertEquals(1, scheduler.getQueuedCount());
+
+        // A part which wasn't scheduled doesn't free the window.
+        scheduler.onSendComplete(tracker(PACKAGE_A, SMSC));
+        assertEquals(2, mSent.size());
+
+        scheduler.onSendComplete(first);
+        assertEquals(Arrays.asList(first, second, third), mSent);
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testExpectMoreForQueuedParts() {
+        SmsSendScheduler scheduler = new SmsSendScheduler(mSent::add, 1);
+        SmsTracker first = tracker(PACKAGE_A, SMSC);
+        SmsTracker second = tracker(PACKAGE_A, SMSC);
+        SmsTracker third = tracker(PACKAGE_A, SMSC);
+        SmsTracker otherSmsc = tracker(PACKAGE_A, new byte[] {0x03});
+
+        scheduler.schedule(new SmsTracker[] {first});
+        scheduler.schedule(new SmsTracker[] {second});
+        scheduler.schedule(new SmsTracker[] {third});
+        scheduler.schedule(new SmsTracker[] {otherSmsc});
+        // Nothing was queued when the first part was sent.
+        assertFalse(first.mExpectMore);
+
+        scheduler.onSendComplete(first);
+        assertEquals(second, mSent.get(1));
+        assertTrue(second.mExpectMore);
+
+        scheduler.onSendComplete(second);
+        assertEquals(third, mSent.get(2));
+        assertFalse(third.mExpectMore);
+
+        scheduler.onSendComplete(third);
+        assertEquals(otherSmsc, mSent.get(3));
+        assertFalse(otherSmsc.mExpectMore);
+    }
+
+    @Test
+    @SmallTest
+    public void testForcedExpectMoreClearedAfterSend() {
+        SmsSendScheduler scheduler = new SmsSendScheduler(mSent::add, 1);
+        SmsTracker first = tracker(PACKAGE_A, SMSC);
+        SmsTracker second = tracker(PACKAGE_A, SMSC);
+        first.mExpectMore = true;
+
+        scheduler.schedule(new SmsTracker[] {first});
+        scheduler.schedule(new SmsTracker[] {second});
+        SmsTracker next = tracker(PACKAGE_B, SMSC);
+        scheduler.schedule(new SmsTracker[] {next});
+
+        // The part's own flag is kept.
+        scheduler.onSendComplete(first);
+        assertTrue(first.mExpectMore);
+
+        // The flag forced for the next message of another app is cleared once sent, so a
+        // retry of the part doesn't keep the link up for it.
+        assertTrue(second.mExpectMore);
+        scheduler.onSendComplete(second);
+        assertFalse(second.mExpectMore);
+    }
+
+    @Test
+    @SmallTest
+    public void testAppsTakeTurns() {
+        SmsSendScheduler scheduler = new SmsSendScheduler(mSent::add, 1);
+        SmsTracker b0 = tracker(PACKAGE_B, SMSC);
+        SmsTracker a1 = tracker(PACKAGE_A, SMSC);
+        SmsTracker a2 = tracker(PACKAGE_A, SMSC);
+        SmsTracker a3 = tracker(PACKAGE_A, SMSC);
+        SmsTracker b1 = tracker(PACKAGE_B, SMSC);
+
+        scheduler.schedule(new SmsTracker[] {b0});
+        // A multipart message, whose parts are sent one after the other.
+        scheduler.schedule(new SmsTracker[] {a1, a2});
+        scheduler.schedule(new SmsTracker[] {a3});
+        scheduler.schedule(new SmsTracker[] {b1});
+
+        for (int i = 0; i < 5; i++) {
+            scheduler.onSendComplete(mSent.get(i));
+        }
+        assertEquals(Arrays.asList(b0, a1, a2, b1, a3), mSent);
+        assertEquals(0, scheduler.getSentCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testSendFailureWithoutModem() {
+        List<SmsTracker> failed = new ArrayList<>();
+        SmsSendScheduler[] scheduler = new SmsSendScheduler[1];
+        // The parts fail right away, like when out of service.
+        scheduler[0] = new SmsSendScheduler(tracker -> {
+            failed.add(tracker);
+            scheduler[0].onSendComplete(tracker);
+        }, 1);
+
+        for (int i = 0; i < 3; i++) {
+            scheduler[0].schedule(new SmsTracker[] {tracker(PACKAGE_A, SMSC)});
+        }
+        assertEquals(3, failed.size());
+        assertEquals(0, scheduler[0].getSentCount());
+        assertEquals(0, scheduler[0].getQueuedCount());
+    }
+}
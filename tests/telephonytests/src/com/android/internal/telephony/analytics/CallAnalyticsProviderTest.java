@@ -22,13 +22,15 @@ import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabas
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.content.ContentValues;
@@ -37,11 +39,10 @@ import android.database.Cursor;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Calendar;
 
@@ -50,7 +51,6 @@ public class CallAnalyticsProviderTest {
     @Mock TelephonyAnalyticsUtil mTelephonyAnalyticsUtil;
     @Mock Cursor mCursor;
     private CallAnalyticsProvider mCallAnalyticsProvider;
-    private ContentValues mContentValues;
 
     enum CallStatus {
         SUCCESS("Success"),
@@ -72,14 +72,10 @@ public class CallAnalyticsProviderTest {
         }
     }
 
-    final String[] mCallInsertionProjection = {
-        TelephonyAnalyticsDatabase.CallAnalyticsTable._ID,
-        TelephonyAnalyticsDatabase.CallAnalyticsTable.COUNT
-    };
-
     @Before
     public void setup() {
         MockitoAnnotations.initMocks(this);
+        when(mTelephonyAnalyticsUtil.createIndex(anyString())).thenReturn(true);
         final String createCallAnalyticsTable =
                 "CREATE TABLE IF NOT EXISTS "
                         + TelephonyAnalyticsDatabase.CallAnalyticsTable.TABLE_NAME
@@ -105,6 +101,16 @@ public class CallAnalyticsProviderTest {
                         + ");";
         mCallAnalyticsProvider = new CallAnalyticsProvider(mTelephonyAnalyticsUtil, 0);
         verify(mTelephonyAnalyticsUtil).createTable(createCallAnalyticsTable);
+        verify(mTelephonyAnalyticsUtil)
+                .createIndex(
+                        "CREATE UNIQUE INDEX IF NOT EXISTS CallDataLogsSuccessKey ON CallDataLogs("
+                                + "CallType, LogDate, CallStatus, SlotID) "
+                                + "WHERE CallStatus = 'Success';");
+        verify(mTelephonyAnalyticsUtil)
+                .createIndex(
+                        "CREATE UNIQUE INDEX IF NOT EXISTS CallDataLogsFailedKey ON CallDataLogs("
+                                + "LogDate, CallStatus, CallType, SlotID, RAT, FailureReason, "
+                                + "ReleaseVersion) WHERE CallStatus != 'Success';");
     }
 
     @Test
@@ -197,48 +203,13 @@ public class CallAnalyticsProviderTest {
                 "\tMax Call(Normal+SOS) Failures at Version : 1.1.1.1");
     }
 
-    private ContentValues getContentValues(
-            String callType, String callStatus, int slotId, String rat, String failureReason) {
-        ContentValues values = new ContentValues();
-        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
-        values.put(CallAnalyticsTable.LOG_DATE, dateToday);
-        values.put(CallAnalyticsTable.CALL_TYPE, callType);
-        values.put(CallAnalyticsTable.CALL_STATUS, callStatus);
-        values.put(CallAnalyticsTable.SLOT_ID, slotId);
-        values.put(CallAnalyticsTable.RAT, rat);
-        values.put(CallAnalyticsTable.FAILURE_REASON, failureReason);
-        values.put(CallAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
-        return values;
-    }
-
-    private void whenConditionForGetCursor() {
-        when(mTelephonyAnalyticsUtil.getCursor(
-                        anyString(),
-                        any(String[].class),
-                        anyString(),
-                        any(String[].class),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull()))
-                .thenReturn(mCursor);
-    }
-
-    private void verifyForGetCursor(
-            String[] callInsertionProjection,
-            String callSuccessInsertionSelection,
-            String[] selectionArgs) {
-
-        verify(mTelephonyAnalyticsUtil)
-                .getCursor(
-                        eq(TelephonyAnalyticsDatabase.CallAnalyticsTable.TABLE_NAME),
-                        eq(callInsertionProjection),
-                        eq(callSuccessInsertionSelection),
-                        eq(selectionArgs),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull());
+    private void verifyUpsert(String conflictTarget, Object[] bindArgs) {
+        ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mTelephonyAnalyticsUtil).queueUpsert(sqlCaptor.capture(), eq(bindArgs));
+        assertTrue(sqlCaptor.getValue().startsWith("INSERT INTO CallDataLogs("
+                + "LogDate, CallType, CallStatus, SlotID, RAT, FailureReason, ReleaseVersion) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT (" + conflictTarget + " DO UPDATE SET "
+                + "Count = Count + 1"));
     }
 
     @Test
@@ -248,29 +219,15 @@ public class CallAnalyticsProviderTest {
         String callStatus = "Success";
         String rat = "LTE";
         String failureReason = "User Disconnects";
-        int count = 5;
+        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
 
-        final String callSuccessInsertionSelection =
-                TelephonyAnalyticsDatabase.CallAnalyticsTable.CALL_TYPE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.CallAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.CallAnalyticsTable.CALL_STATUS
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.CallAnalyticsTable.SLOT_ID
-                        + " = ? ";
-        ContentValues values = getContentValues(callType, callStatus, slotId, rat, failureReason);
-
-        String[] selectionArgs =
-                new String[] {
-                    values.getAsString(TelephonyAnalyticsDatabase.CallAnalyticsTable.CALL_TYPE),
-                    values.getAsString(TelephonyAnalyticsDatabase.CallAnalyticsTable.LOG_DATE),
-                    callStatus,
-                    values.getAsString(TelephonyAnalyticsDatabase.CallAnalyticsTable.SLOT_ID)
-                };
-        whenConditionForGetCursor();
         mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, rat, failureReason);
-        verifyForGetCursor(mCallInsertionProjection, callSuccessInsertionSelection, selectionArgs);
+
+        verifyUpsert(
+                "CallType, LogDate, CallStatus, SlotID) WHERE CallStatus = 'Success'",
+                new Object[] {
+                    dateToday, callType, callStatus, slotId, rat, failureReason, INCREMENTAL
+                });
     }
 
     @Test
@@ -280,163 +237,75 @@ public class CallAnalyticsProviderTest {
         String callStatus = "Failure";
         String rat = "LTE";
         String failureReason = "Network Detach";
-        int count = 5;
-        final String callFailedInsertionSelection =
-                CallAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + CallAnalyticsTable.CALL_STATUS
-                        + " = ? AND "
-                        + CallAnalyticsTable.CALL_TYPE
-                        + " = ? AND "
-                        + CallAnalyticsTable.SLOT_ID
-                        + " = ? AND "
-                        + CallAnalyticsTable.RAT
-                        + " = ? AND "
-                        + CallAnalyticsTable.FAILURE_REASON
-                        + " = ? AND "
-                        + CallAnalyticsTable.RELEASE_VERSION
-                        + " = ? ";
-        ContentValues values = getContentValues(callType, callStatus, slotId, rat, failureReason);
-        String[] selectionArgs = {
-            values.getAsString(CallAnalyticsTable.LOG_DATE),
-            values.getAsString(CallAnalyticsTable.CALL_STATUS),
-            values.getAsString(CallAnalyticsTable.CALL_TYPE),
-            values.getAsString(CallAnalyticsTable.SLOT_ID),
-            values.getAsString(CallAnalyticsTable.RAT),
-            values.getAsString(CallAnalyticsTable.FAILURE_REASON),
-            values.getAsString(CallAnalyticsTable.RELEASE_VERSION)
-        };
-        whenConditionForGetCursor();
-        mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, rat, failureReason);
-        verifyForGetCursor(mCallInsertionProjection, callFailedInsertionSelection, selectionArgs);
-    }
+        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
 
-    public void setUpTestForUpdateEntryIfExistsOrInsert() throws NoSuchMethodException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-        mContentValues = new ContentValues();
-        mContentValues.put(CallAnalyticsTable.CALL_STATUS, "Success");
-    }
+        mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, rat, failureReason);
 
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenCursorNull()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, null, values);
-        verify(mTelephonyAnalyticsUtil).insert(eq(CallAnalyticsTable.TABLE_NAME), eq(values));
+        verifyUpsert(
+                "LogDate, CallStatus, CallType, SlotID, RAT, FailureReason, ReleaseVersion) "
+                        + "WHERE CallStatus != 'Success'",
+                new Object[] {
+                    dateToday, callType, callStatus, slotId, rat, failureReason, INCREMENTAL
+                });
     }
 
     @Test
-    public void testUpdateEntryIfExistsOrInsertWhenCursorInvalid()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
-        when(mCursor.moveToFirst()).thenReturn(false);
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, mCursor, values);
-        verify(mTelephonyAnalyticsUtil).insert(eq(CallAnalyticsTable.TABLE_NAME), eq(values));
-    }
+    public void testUpdateOrInsertWithoutUniqueIndex() {
+        TelephonyAnalyticsUtil telephonyAnalyticsUtil = mock(TelephonyAnalyticsUtil.class);
+        when(telephonyAnalyticsUtil.createIndex(anyString())).thenReturn(true, false);
+        CallAnalyticsProvider callAnalyticsProvider =
+                new CallAnalyticsProvider(telephonyAnalyticsUtil, 0);
 
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenCursorValidUpdateSuccess()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
+        callAnalyticsProvider.insertDataToDb("Normal Call", "Success", 0, "LTE", null);
 
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(CallAnalyticsTable._ID)).thenReturn(0 /* idColumnIndex */);
-        when(mCursor.getColumnIndex(CallAnalyticsTable.COUNT)).thenReturn(1 /* countColumnIndex */);
-        when(mCursor.getInt(0 /* idColumnIndex */)).thenReturn(100 /* id */);
-        when(mCursor.getInt(1 /* countColumnIndex */)).thenReturn(5 /* count*/);
-
-        String updateSelection = CallAnalyticsTable._ID + " = ? ";
-        String[] updateSelectionArgs = {String.valueOf(100 /* id */)};
-
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, mCursor, values);
-
-        values.put(CallAnalyticsTable.COUNT, 6 /* newCount */);
-        verify(mTelephonyAnalyticsUtil)
-                .update(
+        ArgumentCaptor<ContentValues> valuesCaptor = ArgumentCaptor.forClass(ContentValues.class);
+        verify(telephonyAnalyticsUtil)
+                .updateOrInsert(
                         eq(CallAnalyticsTable.TABLE_NAME),
-                        eq(values),
-                        eq(updateSelection),
-                        eq(updateSelectionArgs));
+                        valuesCaptor.capture(),
+                        eq(new String[] {"CallType", "LogDate", "CallStatus", "SlotID"}),
+                        eq(CallAnalyticsTable.COUNT));
+        ContentValues values = valuesCaptor.getValue();
+        assertEquals("Success", values.getAsString(CallAnalyticsTable.CALL_STATUS));
+        assertEquals("", values.getAsString(CallAnalyticsTable.FAILURE_REASON));
+        verify(telephonyAnalyticsUtil, never()).queueUpsert(anyString(), any());
     }
 
     @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToInvalidIdIndex()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
+    public void testNullValuesStoredAsEmpty() {
+        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
 
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Failure", 0, null, null);
 
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(CallAnalyticsTable._ID)).thenReturn(-1 /* idColumnIndex */);
-        when(mCursor.getColumnIndex(CallAnalyticsTable.COUNT)).thenReturn(1 /* countColumnIndex */);
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+        verify(mTelephonyAnalyticsUtil).queueUpsert(anyString(), eq(new Object[] {
+            dateToday, "Normal Call", "Failure", 0, "", "", INCREMENTAL
+        }));
     }
 
     @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToInvalidCountIndex()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
+    public void testInsertionDoesNotDeleteData() {
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Success", 0, "LTE", "");
 
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(CallAnalyticsTable._ID)).thenReturn(0 /* idColumnIndex */);
-        when(mCursor.getColumnIndex(CallAnalyticsTable.COUNT))
-                .thenReturn(-1 /* countColumnIndex */);
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+        verify(mTelephonyAnalyticsUtil, never())
+                .deleteOverflowAndOldData(anyString(), anyString(), anyString());
     }
 
     @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToInvalidColumnIndex()
-            throws NoSuchMethodException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
+    public void testRetentionTaskDeletesOncePerDay() {
+        ArgumentCaptor<Runnable> taskCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mTelephonyAnalyticsUtil).addRetentionTask(taskCaptor.capture());
 
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
+        taskCaptor.getValue().run();
+        taskCaptor.getValue().run();
 
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(CallAnalyticsTable._ID)).thenReturn(-1 /* idColumnIndex */);
-        when(mCursor.getColumnIndex(CallAnalyticsTable.COUNT))
-                .thenReturn(-1 /* countColumnIndex */);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+        verify(mTelephonyAnalyticsUtil)
+                .deleteOverflowAndOldData(
+                        eq(CallAnalyticsTable.TABLE_NAME), anyString(), anyString());
     }
 
     @After
     public void tearDown() {
         mCallAnalyticsProvider = null;
-        mContentValues = null;
         mTelephonyAnalyticsUtil = null;
         mCursor = null;
     }
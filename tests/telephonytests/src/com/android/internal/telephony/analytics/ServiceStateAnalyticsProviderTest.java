@@ -28,11 +28,10 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 
 import com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.ServiceStateAnalyticsTable;
@@ -40,11 +39,10 @@ import com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.Servi
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
@@ -53,7 +51,6 @@ public class ServiceStateAnalyticsProviderTest {
     @Mock TelephonyAnalyticsUtil mTelephonyAnalyticsUtil;
     @Mock Cursor mCursor;
     @Mock TelephonyAnalytics.ServiceStateAnalytics.TimeStampedServiceState mState;
-    private ContentValues mContentValues;
 
     final int mSlotIndex = 0;
     ServiceStateAnalyticsProvider mServiceStateAnalyticsProvider;
@@ -80,11 +77,15 @@ public class ServiceStateAnalyticsProviderTest {
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        when(mTelephonyAnalyticsUtil.createIndex(anyString())).thenReturn(true);
         assert (mTelephonyAnalyticsUtil != null);
         mServiceStateAnalyticsProvider =
                 new ServiceStateAnalyticsProvider(mTelephonyAnalyticsUtil, mSlotIndex);
         verify(mTelephonyAnalyticsUtil).createTable(mCreateServiceStateTableQuery);
-        mContentValues = getDummyContentValue();
+        verify(mTelephonyAnalyticsUtil)
+                .createIndex(
+                        "CREATE UNIQUE INDEX IF NOT EXISTS ServiceStateLogsKey ON ServiceStateLogs("
+                                + "LogDate, SlotID, RAT, DeviceStatus, ReleaseVersion);");
     }
 
     @Test
@@ -103,156 +104,41 @@ public class ServiceStateAnalyticsProviderTest {
                         "LTE" /*rat*/,
                         "IN_SERVICE" /*deviceStatus*/,
                         233423424 /*timestampStart*/);
-        ContentValues values = new ContentValues();
         long timeInterval = 343443434 /*endTimeStamp*/ - lastState.getTimestampStart();
         String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
-        values.put(ServiceStateAnalyticsTable.LOG_DATE, dateToday);
-        values.put(ServiceStateAnalyticsTable.TIME_DURATION, timeInterval);
-        values.put(ServiceStateAnalyticsTable.SLOT_ID, lastState.getSlotIndex());
-        values.put(ServiceStateAnalyticsTable.RAT, lastState.getRAT());
-        values.put(ServiceStateAnalyticsTable.DEVICE_STATUS, lastState.getDeviceStatus());
-        values.put(ServiceStateAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
-
-        final String[] serviceStateInsertionColumns = {
-            ServiceStateAnalyticsTable._ID, ServiceStateAnalyticsTable.TIME_DURATION
-        };
-        final String serviceStateInsertionSelection =
-                ServiceStateAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + ServiceStateAnalyticsTable.SLOT_ID
-                        + " = ? AND "
-                        + ServiceStateAnalyticsTable.RAT
-                        + " = ? AND "
-                        + ServiceStateAnalyticsTable.DEVICE_STATUS
-                        + " = ? AND "
-                        + ServiceStateAnalyticsTable.RELEASE_VERSION
-                        + " = ? ";
-        final String[] selectionArgs = {
-            values.getAsString(ServiceStateAnalyticsTable.LOG_DATE),
-            values.getAsString(ServiceStateAnalyticsTable.SLOT_ID),
-            values.getAsString(ServiceStateAnalyticsTable.RAT),
-            values.getAsString(ServiceStateAnalyticsTable.DEVICE_STATUS),
-            values.getAsString(ServiceStateAnalyticsTable.RELEASE_VERSION)
+        final String serviceStateUpsert =
+                "INSERT INTO ServiceStateLogs("
+                        + "LogDate, SlotID, RAT, DeviceStatus, ReleaseVersion, TimeDuration) "
+                        + "VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT ("
+                        + "LogDate, SlotID, RAT, DeviceStatus, ReleaseVersion) "
+                        + "DO UPDATE SET TimeDuration = TimeDuration + excluded.TimeDuration";
+        final Object[] bindArgs = {
+            dateToday,
+            lastState.getSlotIndex(),
+            lastState.getRAT(),
+            lastState.getDeviceStatus(),
+            INCREMENTAL,
+            timeInterval
         };
-        when(mTelephonyAnalyticsUtil.getCursor(
-                        anyString(),
-                        any(String[].class),
-                        anyString(),
-                        any(String[].class),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull()))
-                .thenReturn(mCursor);
-        mServiceStateAnalyticsProvider.insertDataToDb(lastState, 343443434 /*endTimeStamp*/);
-
-        verify(mTelephonyAnalyticsUtil)
-                .getCursor(
-                        eq(ServiceStateAnalyticsTable.TABLE_NAME),
-                        eq(serviceStateInsertionColumns),
-                        eq(serviceStateInsertionSelection),
-                        eq(selectionArgs),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull());
-    }
 
-    private Method setReflectionForTestingUpdateEntryIfExistsOrInsert()
-            throws NoSuchMethodException {
-        Method updateEntryIfExistsOrInsert =
-                ServiceStateAnalyticsProvider.class.getDeclaredMethod(
-                        "updateIfEntryExistsOtherwiseInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-        return updateEntryIfExistsOrInsert;
-    }
-
-    private ContentValues getDummyContentValue() {
-        ContentValues values = new ContentValues();
-        values.put(ServiceStateAnalyticsTable.DEVICE_STATUS, "IN_SERVICE" /*DeviceStatus*/);
-        values.put(ServiceStateAnalyticsTable.TIME_DURATION, 423234 /*Time Duration*/);
-        return values;
-    }
+        mServiceStateAnalyticsProvider.insertDataToDb(lastState, 343443434 /*endTimeStamp*/);
 
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenCursorNull()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert = setReflectionForTestingUpdateEntryIfExistsOrInsert();
-        updateEntryIfExistsOrInsert.invoke(mServiceStateAnalyticsProvider, null, mContentValues);
-        verify(mTelephonyAnalyticsUtil)
-                .insert(eq(ServiceStateAnalyticsTable.TABLE_NAME), eq(mContentValues));
+        verify(mTelephonyAnalyticsUtil).queueUpsert(eq(serviceStateUpsert), eq(bindArgs));
+        verify(mTelephonyAnalyticsUtil, never())
+                .deleteOverflowAndOldData(anyString(), anyString(), anyString());
     }
 
     @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWhenEntryNotExist()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert = setReflectionForTestingUpdateEntryIfExistsOrInsert();
-        when(mCursor.moveToFirst()).thenReturn(false);
-        updateEntryIfExistsOrInsert.invoke(mServiceStateAnalyticsProvider, null, mContentValues);
-        verify(mTelephonyAnalyticsUtil)
-                .insert(eq(ServiceStateAnalyticsTable.TABLE_NAME), eq(mContentValues));
-    }
+    public void testRetentionTaskDeletesOncePerDay() {
+        ArgumentCaptor<Runnable> taskCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mTelephonyAnalyticsUtil).addRetentionTask(taskCaptor.capture());
 
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenCursorValidAndUpdateSuccess()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert = setReflectionForTestingUpdateEntryIfExistsOrInsert();
+        taskCaptor.getValue().run();
+        taskCaptor.getValue().run();
 
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(ServiceStateAnalyticsTable._ID)).thenReturn(0 /* idIndex */);
-        when(mCursor.getColumnIndex(ServiceStateAnalyticsTable.TIME_DURATION))
-                .thenReturn(1 /* timeDurationIndex */);
-        when(mCursor.getInt(0 /* idIndex */)).thenReturn(100 /* ID */);
-        when(mCursor.getInt(1 /* timeDurationIndex */)).thenReturn(523535 /* oldTimeDuration */);
-
-        String updateSelection = ServiceStateAnalyticsTable._ID + " = ? ";
-        String[] updateSelectionArgs = {Integer.toString(100 /* ID */)};
-
-        updateEntryIfExistsOrInsert.invoke(mServiceStateAnalyticsProvider, mCursor, mContentValues);
-        mContentValues.put(
-                ServiceStateAnalyticsTable.TIME_DURATION, 946769 /* updatedTimeDuration */);
         verify(mTelephonyAnalyticsUtil)
-                .update(
-                        eq(ServiceStateAnalyticsTable.TABLE_NAME),
-                        eq(mContentValues),
-                        eq(updateSelection),
-                        eq(updateSelectionArgs));
-    }
-
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToInvalidIdIndex()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert = setReflectionForTestingUpdateEntryIfExistsOrInsert();
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(ServiceStateAnalyticsTable._ID)).thenReturn(-1 /* idIndex */);
-        when(mCursor.getColumnIndex(ServiceStateAnalyticsTable.TIME_DURATION))
-                .thenReturn(1 /* timeDurationIndex */);
-        updateEntryIfExistsOrInsert.invoke(mServiceStateAnalyticsProvider, mCursor, mContentValues);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
-    }
-
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToInvalidDurationIndex()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert = setReflectionForTestingUpdateEntryIfExistsOrInsert();
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(ServiceStateAnalyticsTable._ID)).thenReturn(0 /* idIndex */);
-        when(mCursor.getColumnIndex(ServiceStateAnalyticsTable.TIME_DURATION))
-                .thenReturn(-1 /* timeDurationIndex */);
-        updateEntryIfExistsOrInsert.invoke(mServiceStateAnalyticsProvider, mCursor, mContentValues);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
-    }
-
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToAllInvalidIndex()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert = setReflectionForTestingUpdateEntryIfExistsOrInsert();
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(ServiceStateAnalyticsTable._ID)).thenReturn(-1 /* idIndex */);
-        when(mCursor.getColumnIndex(ServiceStateAnalyticsTable.TIME_DURATION))
-                .thenReturn(-1 /* timeDurationIndex */);
-        updateEntryIfExistsOrInsert.invoke(mServiceStateAnalyticsProvider, mCursor, mContentValues);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+                .deleteOverflowAndOldData(
+                        eq(ServiceStateAnalyticsTable.TABLE_NAME), anyString(), anyString());
     }
 
     private void setWhenClauseForGetCursor(
@@ -639,7 +525,6 @@ public class ServiceStateAnalyticsProviderTest {
         mServiceStateAnalyticsProvider = null;
         mCursor = null;
         mTelephonyAnalyticsUtil = null;
-        mContentValues = null;
         mState = null;
     }
 }
@@ -21,22 +21,23 @@ import static android.os.Build.VERSION.INCREMENTAL;
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -49,10 +50,6 @@ public class SmsMmsAnalyticsProviderTest {
 
     SmsMmsAnalyticsProvider mSmsMmsAnalyticsProvider;
     private TelephonyAnalyticsUtil mMockTelephonyAnalyticsUtil;
-    private static final String[] SMS_MMS_INSERTION_PROJECTION = {
-        TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable._ID,
-        TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.COUNT
-    };
 
     @Mock Cursor mCursor;
     final String mCreateTableQuery =
@@ -70,9 +67,20 @@ public class SmsMmsAnalyticsProviderTest {
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        when(mTelephonyAnalyticsUtil.createIndex(anyString())).thenReturn(true);
         mSmsMmsAnalyticsProvider = new SmsMmsAnalyticsProvider(mTelephonyAnalyticsUtil, 0);
         mMockTelephonyAnalyticsUtil = mock(TelephonyAnalyticsUtil.class);
         verify(mTelephonyAnalyticsUtil).createTable(mCreateTableQuery);
+        verify(mTelephonyAnalyticsUtil)
+                .createIndex(
+                        "CREATE UNIQUE INDEX IF NOT EXISTS SmsMmsDataLogsSuccessKey ON "
+                                + "SmsMmsDataLogs(LogDate, SmsMmsType, SmsMmsStatus, SlotID) "
+                                + "WHERE SmsMmsStatus = 'Success';");
+        verify(mTelephonyAnalyticsUtil)
+                .createIndex(
+                        "CREATE UNIQUE INDEX IF NOT EXISTS SmsMmsDataLogsFailureKey ON "
+                                + "SmsMmsDataLogs(LogDate, SmsMmsStatus, SmsMmsType, RAT, SlotID, "
+                                + "FailureReason, ReleaseVersion) WHERE SmsMmsStatus != 'Success';");
     }
 
     @Test
@@ -81,43 +89,13 @@ public class SmsMmsAnalyticsProviderTest {
         assert (mTelephonyAnalyticsUtil != null);
     }
 
-    private ContentValues getContentValues(
-            String status, String type, String rat, String failureReason) {
-        ContentValues values = new ContentValues();
-        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE, dateToday);
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS, status);
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE, type);
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, rat);
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID, 0);
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.FAILURE_REASON, failureReason);
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RELEASE_VERSION, INCREMENTAL);
-
-        return values;
-    }
-
-    private void mockAndVerifyCall(String selection, String[] selectionArgs) {
-        when(mTelephonyAnalyticsUtil.getCursor(
-                        eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME),
-                        any(String[].class),
-                        anyString(),
-                        any(String[].class),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull()))
-                .thenReturn(mCursor);
-
-        verify(mTelephonyAnalyticsUtil)
-                .getCursor(
-                        eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME),
-                        eq(SMS_MMS_INSERTION_PROJECTION),
-                        eq(selection),
-                        eq(selectionArgs),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull());
+    private void verifyUpsert(String conflictTarget, Object[] bindArgs) {
+        ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mTelephonyAnalyticsUtil).queueUpsert(sqlCaptor.capture(), eq(bindArgs));
+        assertTrue(sqlCaptor.getValue().startsWith("INSERT INTO SmsMmsDataLogs("
+                + "LogDate, SmsMmsStatus, SmsMmsType, RAT, SlotID, FailureReason, ReleaseVersion) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT (" + conflictTarget
+                + " DO UPDATE SET Count = Count + 1"));
     }
 
     @Test
@@ -126,39 +104,14 @@ public class SmsMmsAnalyticsProviderTest {
         String type = "SMS Outgoing";
         String rat = "LTE";
         String failureReason = "SIM_ABSENT";
-        final String smsMmsInsertionFailureSelection =
-                TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.FAILURE_REASON
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RELEASE_VERSION
-                        + " = ? ";
-        ContentValues values = getContentValues(status, type, rat, failureReason);
+        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
 
-        String[] selectionArgs =
-                new String[] {
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE),
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT),
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.FAILURE_REASON),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RELEASE_VERSION)
-                };
         mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
-        mockAndVerifyCall(smsMmsInsertionFailureSelection, selectionArgs);
+
+        verifyUpsert(
+                "LogDate, SmsMmsStatus, SmsMmsType, RAT, SlotID, FailureReason, ReleaseVersion) "
+                        + "WHERE SmsMmsStatus != 'Success'",
+                new Object[] {dateToday, status, type, rat, 0, failureReason, INCREMENTAL});
     }
 
     @Test
@@ -167,142 +120,40 @@ public class SmsMmsAnalyticsProviderTest {
         String type = "SMS Outgoing";
         String rat = "LTE";
         String failureReason = "SIM_ABSENT";
-
-        final String smsMmsInsertionSuccessSelection =
-                TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID
-                        + " = ? ";
-
-        ContentValues values = getContentValues(status, type, rat, failureReason);
-        String[] selectionArgs =
-                new String[] {
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS),
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID)
-                };
+        String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
 
         mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
 
-        mockAndVerifyCall(smsMmsInsertionSuccessSelection, selectionArgs);
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWhenEntryNotExist() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.COUNT, 5);
-        when(mCursor.moveToFirst()).thenReturn(false);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-        verify(mTelephonyAnalyticsUtil)
-                .insert(eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME), eq(values));
+        verifyUpsert(
+                "LogDate, SmsMmsType, SmsMmsStatus, SlotID) WHERE SmsMmsStatus = 'Success'",
+                new Object[] {dateToday, status, type, rat, 0, failureReason, INCREMENTAL});
     }
 
     @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWhenCursorNull() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.COUNT, 5);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(null, values);
-        verify(mTelephonyAnalyticsUtil)
-                .insert(eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME), eq(values));
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWhenEntryExists() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, "LTE");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex("_id")).thenReturn(0);
-        when(mCursor.getColumnIndex("Count")).thenReturn(1);
-        when(mCursor.getInt(0)).thenReturn(100);
-        when(mCursor.getInt(1)).thenReturn(2);
-
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.COUNT, 3);
-
-        String updateSelection = TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable._ID + " = ? ";
-        String[] updateSelectionArgs = {String.valueOf(100)};
-
-        verify(mTelephonyAnalyticsUtil)
-                .update(
-                        eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME),
-                        eq(values),
-                        eq(updateSelection),
-                        eq(updateSelectionArgs));
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWithInvalidIdColumnIndex() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, "LTE");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex("_id")).thenReturn(-1);
-        when(mCursor.getColumnIndex("Count")).thenReturn(1);
-        when(mCursor.getInt(0)).thenReturn(100);
-        when(mCursor.getInt(1)).thenReturn(2);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWithInvalidCountColumnIndex() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, "LTE");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex("_id")).thenReturn(0);
-        when(mCursor.getColumnIndex("Count")).thenReturn(-1);
-        when(mCursor.getInt(0)).thenReturn(100);
-        when(mCursor.getInt(1)).thenReturn(2);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWithInvalidColumnIndex() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, "LTE");
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex("_id")).thenReturn(-1);
-        when(mCursor.getColumnIndex("Count")).thenReturn(-1);
-        when(mCursor.getInt(0)).thenReturn(100);
-        when(mCursor.getInt(1)).thenReturn(2);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+    public void testInsertionDoesNotDeleteData() {
+        String dateToday = "1965-10-12";
+        mSmsMmsAnalyticsProvider.setDateOfDeletedRecordsSmsMmsTable(dateToday);
+        mSmsMmsAnalyticsProvider.insertDataToDb("Success", "SMS Outgoing", "LTE", "SIM_ABSENT");
+        verify(mTelephonyAnalyticsUtil, never())
+                .deleteOverflowAndOldData(anyString(), anyString(), anyString());
     }
 
     @Test
     public void testDeleteWhenDateEqualsToday() {
-        String status = "Success";
-        String type = "SMS Outgoing";
-        String rat = "LTE";
-        String failureReason = "SIM_ABSENT";
-
         String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
         mSmsMmsAnalyticsProvider.setDateOfDeletedRecordsSmsMmsTable(dateToday);
-        mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
+        mSmsMmsAnalyticsProvider.deleteOldAndOverflowData();
         verify(mTelephonyAnalyticsUtil, times(0))
                 .delete(anyString(), anyString(), any(String[].class));
     }
 
     @Test
     public void testDeleteWhenDateNotNullAndNotEqualsToday() {
-        String status = "Success";
-        String type = "SMS Outgoing";
-        String rat = "LTE";
-        String failureReason = "SIM_ABSENT";
         String dateToday = "1965-10-12";
         mSmsMmsAnalyticsProvider.setDateOfDeletedRecordsSmsMmsTable(dateToday);
-        mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
+        ArgumentCaptor<Runnable> taskCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mTelephonyAnalyticsUtil).addRetentionTask(taskCaptor.capture());
+        taskCaptor.getValue().run();
         verify(mTelephonyAnalyticsUtil, times(1))
                 .deleteOverflowAndOldData(anyString(), anyString(), anyString());
     }
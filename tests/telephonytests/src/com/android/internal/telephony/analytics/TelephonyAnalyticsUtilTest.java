@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.analytics;
+
+import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.CallAnalyticsTable;
+import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+
+public class TelephonyAnalyticsUtilTest {
+    private static final String TAG = TelephonyAnalyticsUtilTest.class.getSimpleName();
+    private static final String LEGACY_TABLE_NAME = "LegacyCallDataLogs";
+
+    private HandlerThread mHandlerThread;
+    private TelephonyAnalyticsUtil mTelephonyAnalyticsUtil;
+    private CallAnalyticsProvider mCallAnalyticsProvider;
+    private int mRetentionTaskRuns;
+
+    @Before
+    public void setUp() {
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        // In-memory database
+        mTelephonyAnalyticsUtil = new TelephonyAnalyticsUtil(
+                InstrumentationRegistry.getTargetContext(), null, mHandlerThread.getLooper());
+        mCallAnalyticsProvider = new CallAnalyticsProvider(mTelephonyAnalyticsUtil, 0);
+        mTelephonyAnalyticsUtil.addRetentionTask(() -> mRetentionTaskRuns++);
+    }
+
+    @After
+    public void tearDown() {
+        mTelephonyAnalyticsUtil.close();
+        mHandlerThread.quit();
+    }
+
+    private long queryLong(String table, String column, String selection, String[] args) {
+        Cursor cursor = mTelephonyAnalyticsUtil.getCursor(
+                table, new String[] {column}, selection, args, null, null, null, null);
+        try {
+            return mTelephonyAnalyticsUtil.getCountFromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long countRows(String table) {
+        return queryLong(table, "COUNT(*)", null, null);
+    }
+
+    private long sumCount(String table, String callStatus) {
+        return queryLong(table, "SUM(" + CallAnalyticsTable.COUNT + ")",
+                CallAnalyticsTable.CALL_STATUS + " = ?", new String[] {callStatus});
+    }
+
+    @Test
+    @SmallTest
+    public void testUpsertCountsEvents() {
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Success", 0, "LTE", "");
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Success", 0, "NR", "");
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Success", 0, "LTE", "");
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Failure", 0, "LTE", "Detach");
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Failure", 0, "LTE", "Detach");
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Failure", 0, "LTE", "Busy");
+        assertEquals(6, mTelephonyAnalyticsUtil.getPendingUpsertCount());
+
+        // Successful calls share a row regardless of RAT, failures are keyed by reason
+        assertEquals(3, countRows(CallAnalyticsTable.TABLE_NAME));
+        assertEquals(3, sumCount(CallAnalyticsTable.TABLE_NAME, "Success"));
+        assertEquals(3, sumCount(CallAnalyticsTable.TABLE_NAME, "Failure"));
+        assertEquals(0, mTelephonyAnalyticsUtil.getPendingUpsertCount());
+        assertEquals(1, mRetentionTaskRuns);
+    }
+
+    @Test
+    @SmallTest
+    public void testFlushWhenQueueFull() {
+        for (int i = 0; i < TelephonyAnalyticsUtil.MAX_PENDING_UPSERTS - 1; i++) {
+            mCallAnalyticsProvider.insertDataToDb("Normal Call", "Success", 0, "LTE", "");
+        }
+        assertEquals(TelephonyAnalyticsUtil.MAX_PENDING_UPSERTS - 1,
+                mTelephonyAnalyticsUtil.getPendingUpsertCount());
+        assertEquals(0, mRetentionTaskRuns);
+
+        mCallAnalyticsProvider.insertDataToDb("Normal Call", "Success", 0, "LTE", "");
+        assertEquals(0, mTelephonyAnalyticsUtil.getPendingUpsertCount());
+        assertEquals(1, mRetentionTaskRuns);
+        assertEquals(TelephonyAnalyticsUtil.MAX_PENDING_UPSERTS,
+                sumCount(CallAnalyticsTable.TABLE_NAME, "Success"));
+    }
+
+    @Test
+    @SmallTest
+    public void testFlushWithoutUpsertsSkipsRetention() {
+        mTelephonyAnalyticsUtil.flush();
+        assertEquals(0, mRetentionTaskRuns);
+    }
+
+    /** Creates a table without the unique indexes, like the tables logged before upserts. */
+    private void createLegacyTable() {
+        mTelephonyAnalyticsUtil.createTable("CREATE TABLE " + LEGACY_TABLE_NAME + "("
+                + CallAnalyticsTable._ID + " INTEGER PRIMARY KEY,"
+                + CallAnalyticsTable.LOG_DATE + " DATE,"
+                + CallAnalyticsTable.CALL_STATUS + " TEXT DEFAULT '',"
+                + CallAnalyticsTable.CALL_TYPE + " TEXT DEFAULT '',"
+                + CallAnalyticsTable.SLOT_ID + " INTEGER,"
+                + CallAnalyticsTable.RAT + " TEXT DEFAULT '',"
+                + CallAnalyticsTable.FAILURE_REASON + " TEXT DEFAULT '',"
+                + CallAnalyticsTable.COUNT + " INTEGER DEFAULT 1);");
+    }
+
+    private void insertRow(String callStatus, String failureReason, int count) {
+        ContentValues values = new ContentValues();
+        values.put(CallAnalyticsTable.LOG_DATE, "2024-01-01");
+        values.put(CallAnalyticsTable.CALL_TYPE, "Normal Call");
+        values.put(CallAnalyticsTable.CALL_STATUS, callStatus);
+        values.put(CallAnalyticsTable.SLOT_ID, 0);
+        values.put(CallAnalyticsTable.RAT, "LTE");
+        values.put(CallAnalyticsTable.FAILURE_REASON, failureReason);
+        values.put(CallAnalyticsTable.COUNT, count);
+        mTelephonyAnalyticsUtil.insert(LEGACY_TABLE_NAME, values);
+    }
+
+    @Test
+    @SmallTest
+    public void testMergeDuplicateRows() {
+        createLegacyTable();
+        insertRow("Success", "", 1);
+        insertRow("Success", "Detach", 2);
+        insertRow("Failure", "Detach", 3);
+        insertRow("Failure", "Detach", 4);
+        insertRow("Failure", "Busy", 1);
+        String[] successKey = {CallAnalyticsTable.LOG_DATE, CallAnalyticsTable.CALL_STATUS};
+        String[] failureKey = {CallAnalyticsTable.LOG_DATE, CallAnalyticsTable.CALL_STATUS,
+                CallAnalyticsTable.FAILURE_REASON};
+
+        SQLiteDatabase db = mTelephonyAnalyticsUtil.getWritableDatabase();
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, LEGACY_TABLE_NAME, successKey,
+                CallAnalyticsTable.CALL_STATUS + " = 'Success'", CallAnalyticsTable.COUNT);
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, LEGACY_TABLE_NAME, failureKey,
+                CallAnalyticsTable.CALL_STATUS + " != 'Success'", CallAnalyticsTable.COUNT);
+        // Tables not created yet are skipped
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, "MissingTable", successKey, null,
+                CallAnalyticsTable.COUNT);
+
+        assertEquals(3, countRows(LEGACY_TABLE_NAME));
+        assertEquals(3, sumCount(LEGACY_TABLE_NAME, "Success"));
+        assertEquals(8, sumCount(LEGACY_TABLE_NAME, "Failure"));
+        assertTrue(mTelephonyAnalyticsUtil.createIndex("CREATE UNIQUE INDEX "
+                + LEGACY_TABLE_NAME + "FailureKey ON " + LEGACY_TABLE_NAME + "("
+                + String.join(", ", failureKey) + ") WHERE "
+                + CallAnalyticsTable.CALL_STATUS + " != 'Success'"));
+    }
+
+    @Test
+    @SmallTest
+    public void testReplaceNullWithEmpty() {
+        createLegacyTable();
+        insertRow("Failure", null, 2);
+        insertRow("Failure", "", 3);
+        String[] failureKey = {CallAnalyticsTable.LOG_DATE, CallAnalyticsTable.CALL_STATUS,
+                CallAnalyticsTable.FAILURE_REASON};
+
+        SQLiteDatabase db = mTelephonyAnalyticsUtil.getWritableDatabase();
+        TelephonyAnalyticsUtil.replaceNullWithEmpty(db, LEGACY_TABLE_NAME,
+                new String[] {CallAnalyticsTable.FAILURE_REASON});
+        TelephonyAnalyticsUtil.mergeDuplicateRows(db, LEGACY_TABLE_NAME, failureKey,
+                CallAnalyticsTable.CALL_STATUS + " != 'Success'", CallAnalyticsTable.COUNT);
+        // Tables not created yet are skipped
+        TelephonyAnalyticsUtil.replaceNullWithEmpty(db, "MissingTable",
+                new String[] {CallAnalyticsTable.FAILURE_REASON});
+
+        // The row with a NULL failure reason is merged with the one an upsert would update
+        assertEquals(1, countRows(LEGACY_TABLE_NAME));
+        assertEquals(5, sumCount(LEGACY_TABLE_NAME, "Failure"));
+        assertEquals(0, queryLong(LEGACY_TABLE_NAME, "COUNT(*)",
+                CallAnalyticsTable.FAILURE_REASON + " IS NULL", null));
+    }
+
+    @Test
+    @SmallTest
+    public void testUpdateOrInsert() {
+        createLegacyTable();
+        String[] key = {CallAnalyticsTable.CALL_STATUS, CallAnalyticsTable.SLOT_ID};
+        for (int i = 0; i < 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put(CallAnalyticsTable.CALL_STATUS, "Failure");
+            values.put(CallAnalyticsTable.SLOT_ID, i % 2);
+            mTelephonyAnalyticsUtil.updateOrInsert(LEGACY_TABLE_NAME, values, key,
+                    CallAnalyticsTable.COUNT);
+        }
+
+        assertEquals(2, countRows(LEGACY_TABLE_NAME));
+        assertEquals(3, sumCount(LEGACY_TABLE_NAME, "Failure"));
+        assertEquals(2, queryLong(LEGACY_TABLE_NAME, CallAnalyticsTable.COUNT,
+                CallAnalyticsTable.SLOT_ID + " = 0", null));
+    }
+
+    /** Per event lookup then update or insert, as done before upserts. */
+    private void insertLegacy(String callStatus, String failureReason) {
+        ContentValues values = new ContentValues();
+        values.put(CallAnalyticsTable.LOG_DATE,
+                DATE_FORMAT.format(Calendar.getInstance().toInstant()));
+        values.put(CallAnalyticsTable.CALL_TYPE, "Normal Call");
+        values.put(CallAnalyticsTable.CALL_STATUS, callStatus);
+        values.put(CallAnalyticsTable.SLOT_ID, 0);
+        values.put(CallAnalyticsTable.FAILURE_REASON, failureReason);
+        Cursor cursor = mTelephonyAnalyticsUtil.getCursor(LEGACY_TABLE_NAME,
+                new String[] {CallAnalyticsTable._ID, CallAnalyticsTable.COUNT},
+                CallAnalyticsTable.CALL_STATUS + " = ? AND " + CallAnalyticsTable.FAILURE_REASON
+                        + " = ?", new String[] {callStatus, failureReason},
+                null, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                values.put(CallAnalyticsTable.COUNT, cursor.getInt(1) + 1);
+                mTelephonyAnalyticsUtil.update(LEGACY_TABLE_NAME, values,
+                        CallAnalyticsTable._ID + " = ?", new String[] {cursor.getString(0)});
+            } else {
+                mTelephonyAnalyticsUtil.insert(LEGACY_TABLE_NAME, values);
+            }
+        } finally {
+            cursor.close();
+        }
+        mTelephonyAnalyticsUtil.deleteOverflowAndOldData(LEGACY_TABLE_NAME,
+                CallAnalyticsTable._ID + " IN (SELECT " + CallAnalyticsTable._ID + " FROM "
+                        + LEGACY_TABLE_NAME + " ORDER BY " + CallAnalyticsTable.LOG_DATE
+                        + " DESC LIMIT -1 OFFSET ?)",
+                CallAnalyticsTable.LOG_DATE + " < ?");
+    }
+
+    @Test
+    @SmallTest
+    public void testBenchmarkPerEventCost() {
+        final int events = 500;
+        createLegacyTable();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            insertLegacy(i % 2 == 0 ? "Success" : "Failure", "Reason" + (i % 5));
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            mCallAnalyticsProvider.insertDataToDb("Normal Call",
+                    i % 2 == 0 ? "Success" : "Failure", 0, "LTE", "Reason" + (i % 5));
+        }
+        mTelephonyAnalyticsUtil.flush();
+        long upsertNanos = System.nanoTime() - start;
+
+        Log.d(TAG, "Per event cost: lookup and update " + legacyNanos / events / 1000
+                + " us, batched upsert " + upsertNanos / events / 1000 + " us");
+        assertEquals(events / 2, sumCount(LEGACY_TABLE_NAME, "Success"));
+        assertEquals(events / 2, sumCount(LEGACY_TABLE_NAME, "Failure"));
+        assertEquals(events / 2, sumCount(CallAnalyticsTable.TABLE_NAME, "Success"));
+        assertEquals(events / 2, sumCount(CallAnalyticsTable.TABLE_NAME, "Failure"));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.data;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.content.SharedPreferences;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BandwidthStatsStoreTest {
+    private static final String KEY_1 = "Plmn310260RatLTETac1";
+    private static final String KEY_2 = "Plmn310260RatNRTac2";
+    private static final String KEY_3 = "Plmn310260RatNRTac3";
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    @SmallTest
+    public void testAccumulate() {
+        BandwidthStatsStore store = new BandwidthStatsStore(null, 10);
+        store.add(KEY_1, LinkBandwidthEstimator.LINK_RX, 2, 1000);
+        store.add(KEY_1, LinkBandwidthEstimator.LINK_RX, 2, 3000);
+        store.add(KEY_1, LinkBandwidthEstimator.LINK_TX, 4, 500);
+
+        assertThat(store.getValue(KEY_1, LinkBandwidthEstimator.LINK_RX, 2)).isEqualTo(4000);
+        assertThat(store.getCount(KEY_1, LinkBandwidthEstimator.LINK_RX, 2)).isEqualTo(2);
+        assertThat(store.getValue(KEY_1, LinkBandwidthEstimator.LINK_TX, 4)).isEqualTo(500);
+        assertThat(store.getCount(KEY_1, LinkBandwidthEstimator.LINK_TX, 2)).isEqualTo(0);
+        assertThat(store.getCount(KEY_2, LinkBandwidthEstimator.LINK_RX, 2)).isEqualTo(0);
+        assertThat(store.isDirty()).isTrue();
+    }
+
+    @Test
+    @SmallTest
+    public void testLeastRecentlyUsedEvicted() {
+        BandwidthStatsStore store = new BandwidthStatsStore(null, 2);
+        store.add(KEY_1, LinkBandwidthEstimator.LINK_RX, 0, 100);
+        store.add(KEY_2, LinkBandwidthEstimator.LINK_RX, 0, 200);
+        // Use KEY_1 again, so KEY_2 is the least recently used one
+        store.getValue(KEY_1, LinkBandwidthEstimator.LINK_RX, 0);
+        store.add(KEY_3, LinkBandwidthEstimator.LINK_RX, 0, 300);
+
+        assertThat(store.size()).isEqualTo(2);
+        assertThat(store.getCount(KEY_1, LinkBandwidthEstimator.LINK_RX, 0)).isEqualTo(1);
+        assertThat(store.getCount(KEY_2, LinkBandwidthEstimator.LINK_RX, 0)).isEqualTo(0);
+        assertThat(store.getCount(KEY_3, LinkBandwidthEstimator.LINK_RX, 0)).isEqualTo(1);
+    }
+
+    @Test
+    @SmallTest
+    public void testFlushAndLoad() throws Exception {
+        File file = new File(mFolder.getRoot(), "stats");
+        BandwidthStatsStore store = new BandwidthStatsStore(file, 10);
+        store.add(KEY_1, LinkBandwidthEstimator.LINK_TX, 1, 700);
+        store.add(KEY_2, LinkBandwidthEstimator.LINK_RX, 3, 900);
+        assertThat(file.exists()).isFalse();
+
+        store.flush();
+        assertThat(store.isDirty()).isFalse();
+        assertThat(file.exists()).isTrue();
+
+        BandwidthStatsStore loaded = new BandwidthStatsStore(file, 10);
+        assertThat(loaded.size()).isEqualTo(2);
+        assertThat(loaded.getValue(KEY_1, LinkBandwidthEstimator.LINK_TX, 1)).isEqualTo(700);
+        assertThat(loaded.getCount(KEY_2, LinkBandwidthEstimator.LINK_RX, 3)).isEqualTo(1);
+        assertThat(loaded.isDirty()).isFalse();
+    }
+
+    @Test
+    @SmallTest
+    public void testFlushWithoutChanges_noWrite() {
+        File file = new File(mFolder.getRoot(), "stats");
+        BandwidthStatsStore store = new BandwidthStatsStore(file, 10);
+        store.flush();
+        assertThat(file.exists()).isFalse();
+    }
+
+    private static SharedPreferences mockLegacyPrefs(SharedPreferences.Editor editor) {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put(KEY_1 + "Link1Level2Data", 2100L);
+        legacy.put(KEY_1 + "Link1Level2Count", 3);
+        legacy.put("unrelatedKey", 5L);
+        SharedPreferences prefs = mock(SharedPreferences.class);
+        doReturn(legacy).when(prefs).getAll();
+        doReturn(editor).when(prefs).edit();
+        return prefs;
+    }
+
+    @Test
+    @SmallTest
+    public void testLegacyPrefsImported_deletedAfterWrite() {
+        File file = new File(mFolder.getRoot(), "stats");
+        SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+        BandwidthStatsStore store = new BandwidthStatsStore(file, mockLegacyPrefs(editor), 10);
+
+        assertThat(store.getValue(KEY_1, LinkBandwidthEstimator.LINK_RX, 2)).isEqualTo(2100);
+        assertThat(store.getCount(KEY_1, LinkBandwidthEstimator.LINK_RX, 2)).isEqualTo(3);
+        assertThat(store.size()).isEqualTo(1);
+        assertThat(store.isDirty()).isTrue();
+        verify(editor, never()).remove(anyString());
+
+        store.flush();
+        assertThat(file.exists()).isTrue();
+        verify(editor).remove(KEY_1 + "Link1Level2Data");
+        verify(editor).remove(KEY_1 + "Link1Level2Count");
+        verify(editor, never()).remove("unrelatedKey");
+        verify(editor).apply();
+    }
+
+    @Test
+    @SmallTest
+    public void testLegacyPrefsImported_keptWhenWriteFails() throws Exception {
+        // The parent of the file is a regular file, so the write fails
+        File file = new File(mFolder.newFile("notADirectory"), "stats");
+        SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+        BandwidthStatsStore store = new BandwidthStatsStore(file, mockLegacyPrefs(editor), 10);
+
+        assertThat(store.getCount(KEY_1, LinkBandwidthEstimator.LINK_RX, 2)).isEqualTo(3);
+        store.flush();
+        verify(editor, never()).remove(anyString());
+    }
+}
@@ -69,6 +69,36 @@ public class DataEvaluationTest extends TelephonyTest {
     }
 
 
+    @Test
+    public void testDataDisallowedReasonsBitmask() {
+        mDataEvaluationUT = new DataEvaluation(DataEvaluation.DataEvaluationReason.DATA_RETRY);
+        mDataEvaluationUT.addDataAllowedReason(DataEvaluation.DataAllowedReason.NORMAL);
+        mDataEvaluationUT.addDataDisallowedReasons(0);
+        assertThat(mDataEvaluationUT.containsDisallowedReasons()).isFalse();
+        assertThat(mDataEvaluationUT.getDataAllowedReason())
+                .isEqualTo(DataEvaluation.DataAllowedReason.NORMAL);
+
+        mDataEvaluationUT.addDataDisallowedReasons(DataEvaluation.toBitmask(
+                DataEvaluation.DataDisallowedReason.DATA_LIMIT_REACHED,
+                DataEvaluation.DataDisallowedReason.ROAMING_DISABLED));
+        assertThat(mDataEvaluationUT.getDataAllowedReason())
+                .isEqualTo(DataEvaluation.DataAllowedReason.NONE);
+        // Reasons are listed in the order of the enum
+        assertThat(mDataEvaluationUT.getDataDisallowedReasons()).containsExactly(
+                DataEvaluation.DataDisallowedReason.ROAMING_DISABLED,
+                DataEvaluation.DataDisallowedReason.DATA_LIMIT_REACHED).inOrder();
+        assertThat(mDataEvaluationUT.containsHardDisallowedReasons()).isTrue();
+        assertThat(DataEvaluation.getHardDisallowedReasons(
+                mDataEvaluationUT.getDataDisallowedReasonsBitmask())).isEqualTo(
+                DataEvaluation.DataDisallowedReason.DATA_LIMIT_REACHED.getBit());
+
+        mDataEvaluationUT.removeDataDisallowedReason(
+                DataEvaluation.DataDisallowedReason.DATA_LIMIT_REACHED);
+        assertThat(mDataEvaluationUT.containsHardDisallowedReasons()).isFalse();
+        assertThat(mDataEvaluationUT.containsOnly(
+                DataEvaluation.DataDisallowedReason.ROAMING_DISABLED)).isTrue();
+    }
+
     @Test
     public void testIsSubsetOf() {
         mDataEvaluationUT = new DataEvaluation(DataEvaluation.DataEvaluationReason.DATA_RETRY);
@@ -133,6 +133,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -1221,6 +1222,51 @@ public class DataNetworkControllerTest extends TelephonyTest {
         assertThat(networkRequestList).isEmpty();
     }
 
+    @Test
+    public void testNetworkRequestListIndex() {
+        TelephonyNetworkRequest internetNetworkRequest = createNetworkRequest(
+                NetworkCapabilities.NET_CAPABILITY_INTERNET);
+        TelephonyNetworkRequest imsNetworkRequest = createNetworkRequest(
+                NetworkCapabilities.NET_CAPABILITY_IMS, NetworkCapabilities.NET_CAPABILITY_MMTEL);
+        TelephonyNetworkRequest mmsNetworkRequest = createNetworkRequest(
+                NetworkCapabilities.NET_CAPABILITY_MMS);
+        NetworkRequestList networkRequestList = new NetworkRequestList(
+                List.of(internetNetworkRequest, imsNetworkRequest, mmsNetworkRequest));
+
+        assertThat(networkRequestList.contains(imsNetworkRequest)).isTrue();
+        assertThat(networkRequestList.find(imsNetworkRequest)).isSameInstanceAs(imsNetworkRequest);
+        assertThat(networkRequestList.get(new int[]{NetworkCapabilities.NET_CAPABILITY_MMTEL}))
+                .isSameInstanceAs(imsNetworkRequest);
+        assertThat(networkRequestList.get(new int[]{NetworkCapabilities.NET_CAPABILITY_IMS,
+                NetworkCapabilities.NET_CAPABILITY_MMTEL})).isSameInstanceAs(imsNetworkRequest);
+        assertThat(networkRequestList.get(new int[]{NetworkCapabilities.NET_CAPABILITY_IMS,
+                NetworkCapabilities.NET_CAPABILITY_INTERNET})).isNull();
+
+        // The copy keeps the order and the index.
+        NetworkRequestList copy = new NetworkRequestList(networkRequestList);
+        assertThat(copy).containsExactlyElementsIn(networkRequestList).inOrder();
+        assertThat(copy.contains(mmsNetworkRequest)).isTrue();
+
+        // Removal through removeIf and the iterator keeps the index in sync.
+        assertThat(networkRequestList.removeIf(request -> request == imsNetworkRequest)).isTrue();
+        assertThat(networkRequestList.contains(imsNetworkRequest)).isFalse();
+        assertThat(networkRequestList.get(new int[]{NetworkCapabilities.NET_CAPABILITY_MMTEL}))
+                .isNull();
+        Iterator<TelephonyNetworkRequest> iterator = networkRequestList.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == mmsNetworkRequest) {
+                iterator.remove();
+            }
+        }
+        assertThat(networkRequestList.find(mmsNetworkRequest)).isNull();
+        assertThat(networkRequestList).containsExactly(internetNetworkRequest);
+
+        // The removed request can be added back.
+        assertThat(networkRequestList.add(mmsNetworkRequest)).isTrue();
+        assertThat(networkRequestList.get(0)).isSameInstanceAs(mmsNetworkRequest);
+        assertThat(copy.size()).isEqualTo(3);
+    }
+
     private @NonNull List<DataNetwork> getDataNetworks() throws Exception {
         Field field = DataNetworkController.class.getDeclaredField("mDataNetworkList");
         field.setAccessible(true);
@@ -1472,6 +1518,35 @@ public class DataNetworkControllerTest extends TelephonyTest {
         verifyInternetConnected();
     }
 
+    @Test
+    public void testReevaluationSkippedWhileStillDisallowed() throws Exception {
+        mDataNetworkControllerUT.obtainMessage(EVENT_SIM_STATE_CHANGED,
+                TelephonyManager.SIM_STATE_ABSENT, 0).sendToTarget();
+        mDataNetworkControllerUT.addNetworkRequest(
+                createNetworkRequest(NetworkCapabilities.NET_CAPABILITY_INTERNET));
+        processAllMessages();
+        verifyNoConnectedNetworkHasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+
+        long performed = mDataNetworkControllerUT.getPerformedEvaluationCount();
+        long skipped = mDataNetworkControllerUT.getSkippedEvaluationCount();
+        // SIM is still absent, so the request does not need to be evaluated again.
+        for (int i = 0; i < 3; i++) {
+            mDataNetworkControllerUT.obtainMessage(
+                    5 /*EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS*/,
+                    DataEvaluation.DataEvaluationReason.DATA_SERVICE_STATE_CHANGED)
+                    .sendToTarget();
+            processAllMessages();
+        }
+        assertThat(mDataNetworkControllerUT.getPerformedEvaluationCount()).isEqualTo(performed);
+        assertThat(mDataNetworkControllerUT.getSkippedEvaluationCount()).isEqualTo(skipped + 3);
+
+        mDataNetworkControllerUT.obtainMessage(EVENT_SIM_STATE_CHANGED,
+                TelephonyManager.SIM_STATE_LOADED, 0).sendToTarget();
+        processAllMessages();
+        assertThat(mDataNetworkControllerUT.getPerformedEvaluationCount()).isGreaterThan(performed);
+        verifyInternetConnected();
+    }
+
     @Test
     public void testDuplicateInterface() throws Exception {
         mDataNetworkControllerUT.addNetworkRequest(
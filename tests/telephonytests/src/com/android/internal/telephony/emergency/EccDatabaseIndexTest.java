@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.phone.ecc.nano.ProtobufEccData;
+
+import com.google.protobuf.nano.MessageNano;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+public class EccDatabaseIndexTest {
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private int mOpenCount;
+
+    private static ProtobufEccData.CountryInfo country(String iso, String... numbers) {
+        ProtobufEccData.CountryInfo country = new ProtobufEccData.CountryInfo();
+        country.isoCode = iso;
+        country.eccs = new ProtobufEccData.EccInfo[numbers.length];
+        for (int i = 0; i < numbers.length; i++) {
+            country.eccs[i] = new ProtobufEccData.EccInfo();
+            country.eccs[i].phoneNumber = numbers[i];
+        }
+        return country;
+    }
+
+    private static byte[] database(int revision, ProtobufEccData.CountryInfo... countries)
+            throws IOException {
+        ProtobufEccData.AllInfo allInfo = new ProtobufEccData.AllInfo();
+        allInfo.revision = revision;
+        allInfo.countries = countries;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(MessageNano.toByteArray(allInfo));
+        }
+        return out.toByteArray();
+    }
+
+    private EccDatabaseIndex open(File indexFile, byte[] database) throws IOException {
+        return EccDatabaseIndex.open(indexFile, () -> {
+            mOpenCount++;
+            return new ByteArrayInputStream(database);
+        });
+    }
+
+    private static void assertNumbers(ProtobufEccData.CountryInfo country, String... numbers) {
+        assertThat(country).isNotNull();
+        String[] actual = new String[country.eccs.length];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = country.eccs[i].phoneNumber;
+        }
+        assertThat(actual).asList().containsExactlyElementsIn(numbers).inOrder();
+    }
+
+    @Test
+    @SmallTest
+    public void testLookUpCountry() throws IOException {
+        byte[] database = database(5, country("US", "911"), country("GB", "999", "112"),
+                country("US", "112"));
+        EccDatabaseIndex index = open(new File(mFolder.getRoot(), "index/asset"), database);
+
+        assertThat(index.getRevision()).isEqualTo(5);
+        assertThat(index.getCountryCount()).isEqualTo(2);
+        assertNumbers(index.getCountry("gb"), "999", "112");
+        // Entries of the same country are merged
+        assertNumbers(index.getCountry("US"), "911", "112");
+        assertThat(index.getCountry("FR")).isNull();
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexReused() throws IOException {
+        File indexFile = new File(mFolder.getRoot(), "asset");
+        byte[] database = database(5, country("US", "911"));
+        open(indexFile, database);
+        long modified = indexFile.lastModified();
+        assertThat(indexFile.exists()).isTrue();
+
+        // Fingerprint, then inflate to build the index
+        assertThat(mOpenCount).isEqualTo(2);
+
+        mOpenCount = 0;
+        EccDatabaseIndex index = open(indexFile, database);
+        // Only the fingerprint is read
+        assertThat(mOpenCount).isEqualTo(1);
+        assertThat(indexFile.lastModified()).isEqualTo(modified);
+        assertNumbers(index.getCountry("US"), "911");
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexRebuiltWhenDatabaseChanges() throws IOException {
+        File indexFile = new File(mFolder.getRoot(), "ota");
+        open(indexFile, database(5, country("US", "911")));
+
+        EccDatabaseIndex index = open(indexFile, database(6, country("US", "911", "112")));
+        assertThat(index.getRevision()).isEqualTo(6);
+        assertNumbers(index.getCountry("US"), "911", "112");
+    }
+
+    @Test
+    @SmallTest
+    public void testCorruptedIndexRebuilt() throws IOException {
+        File indexFile = new File(mFolder.getRoot(), "asset");
+        byte[] database = database(5, country("US", "911"));
+        open(indexFile, database);
+        Files.write(indexFile.toPath(), new byte[] {1, 2, 3});
+
+        assertNumbers(open(indexFile, database).getCountry("US"), "911");
+    }
+
+    @Test
+    @SmallTest
+    public void testWithoutIndexFile() throws IOException {
+        EccDatabaseIndex index = open(null, database(7, country("IN", "112")));
+
+        assertThat(index.getRevision()).isEqualTo(7);
+        assertNumbers(index.getCountry("IN"), "112");
+        assertThat(mOpenCount).isEqualTo(1);
+    }
+}
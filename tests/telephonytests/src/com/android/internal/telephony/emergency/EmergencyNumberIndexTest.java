@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+public class EmergencyNumberIndexTest {
+    @Test
+    @SmallTest
+    public void testLists() {
+        EmergencyNumberIndex index = new EmergencyNumberIndex.Builder(true)
+                .add(EmergencyNumberIndex.LIST_MERGED, "911")
+                .add(EmergencyNumberIndex.LIST_DATABASE, "911")
+                .add(EmergencyNumberIndex.LIST_TEST_MODE, "1234")
+                .add(EmergencyNumberIndex.LIST_DATABASE, null)
+                .build();
+
+        assertThat(index.isFromRadio()).isTrue();
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.getLists("911")).isEqualTo(
+                EmergencyNumberIndex.LIST_MERGED | EmergencyNumberIndex.LIST_DATABASE);
+        assertThat(index.getLists("1234")).isEqualTo(EmergencyNumberIndex.LIST_TEST_MODE);
+        assertThat(index.getLists("112")).isEqualTo(0);
+        assertThat(index.getLists(null)).isEqualTo(0);
+    }
+
+    @Test
+    @SmallTest
+    public void testPrefixes() {
+        EmergencyNumberIndex index = new EmergencyNumberIndex.Builder(false)
+                .addWithPrefixes(EmergencyNumberIndex.LIST_ECC_SIM_PRESENT, "112",
+                        new String[] {"*31#", "#31#"})
+                .build();
+
+        assertThat(index.isFromRadio()).isFalse();
+        assertThat(index.getLists("112")).isEqualTo(EmergencyNumberIndex.LIST_ECC_SIM_PRESENT);
+        assertThat(index.getLists("*31#112")).isEqualTo(EmergencyNumberIndex.LIST_ECC_SIM_PRESENT);
+        assertThat(index.getLists("#31#112")).isEqualTo(EmergencyNumberIndex.LIST_ECC_SIM_PRESENT);
+        assertThat(index.getLists("*31#11")).isEqualTo(0);
+        assertThat(EmergencyNumberIndex.EMPTY.size()).isEqualTo(0);
+    }
+}
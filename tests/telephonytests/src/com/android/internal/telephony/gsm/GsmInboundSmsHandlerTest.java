@@ -748,6 +748,89 @@ public class GsmInboundSmsHandlerTest extends TelephonyTest {
         assertEquals("IdleState", getCurrentState().getName());
     }
 
+    private InboundSmsTracker createSegmentTracker(int sequenceNumber, int messageCount) {
+        return new InboundSmsTracker(
+                mContext,
+                mSmsPdu, /* pdu */
+                System.currentTimeMillis(), /* timestamp */
+                -1, /* destPort */
+                false, /* is3gpp2 */
+                "1234567890", /* address */
+                "1234567890", /* displayAddress */
+                5, /* referenceNumber */
+                sequenceNumber,
+                messageCount,
+                false, /* is3gpp2WapPdu */
+                mMessageBodyPart1, /* messageBody */
+                false, /* isClass0 */
+                mSubId0,
+                InboundSmsHandler.SOURCE_NOT_INJECTED);
+    }
+
+    private void sendNewSegment(InboundSmsHandler handler, InboundSmsTracker tracker) {
+        doReturn(tracker).when(mTelephonyComponentFactory)
+                .makeInboundSmsTracker(any(Context.class), nullable(byte[].class), anyLong(),
+                        anyInt(), anyBoolean(),
+                        nullable(String.class), nullable(String.class), anyInt(), anyInt(),
+                        anyInt(), anyBoolean(), nullable(String.class), anyBoolean(), anyInt(),
+                        anyInt());
+        handler.sendMessage(InboundSmsHandler.EVENT_NEW_SMS,
+                new AsyncResult(null, mSmsMessage, null));
+        processAllMessages();
+    }
+
+    @Test
+    @MediumTest
+    public void testMultiPartSmsOutOfOrder() {
+        transitionFromStartupToIdle();
+        mSmsHeader.concatRef = new SmsHeader.ConcatRef();
+        doReturn(mSmsHeader).when(mGsmSmsMessage).getUserDataHeader();
+
+        // The segments are counted by the index as they arrive, in any order
+        sendNewSegment(mGsmInboundSmsHandler, createSegmentTracker(3, 3));
+        assertEquals("IdleState", getCurrentState().getName());
+        sendNewSegment(mGsmInboundSmsHandler, createSegmentTracker(1, 3));
+        assertEquals("IdleState", getCurrentState().getName());
+        verify(mContext, never()).sendBroadcast(any(Intent.class));
+        assertEquals(2, mContentProvider.getNumRows());
+
+        sendNewSegment(mGsmInboundSmsHandler, createSegmentTracker(2, 3));
+
+        ArgumentCaptor<byte[][]> pdusCaptor = ArgumentCaptor.forClass(byte[][].class);
+        verify(mSmsFilter).filterSms(pdusCaptor.capture(), anyInt(),
+                any(InboundSmsTracker.class), any(InboundSmsHandler.SmsBroadcastReceiver.class),
+                anyBoolean(), anyBoolean(), Mockito.<List<InboundSmsHandler.SmsFilter>>any());
+        assertEquals(3, pdusCaptor.getValue().length);
+        verifySmsIntentBroadcasts(0);
+    }
+
+    @Test
+    @MediumTest
+    public void testMultiPartSmsAcrossHandlers() {
+        // The raw table is shared by the handlers of all the SIMs and formats, and the segments
+        // of a message are selected regardless of the handler which added them.
+        GsmInboundSmsHandler otherHandler = GsmInboundSmsHandler.makeInboundSmsHandler(mContext,
+                mSmsStorageMonitor, mPhone, mTestableLooper.getLooper());
+        otherHandler.setSmsFiltersForTesting(mSmsFilters);
+        otherHandler.sendMessage(InboundSmsHandler.EVENT_START_ACCEPTING_SMS);
+        transitionFromStartupToIdle();
+        mSmsHeader.concatRef = new SmsHeader.ConcatRef();
+        doReturn(mSmsHeader).when(mGsmSmsMessage).getUserDataHeader();
+
+        // The message is indexed when the first segment arrives
+        sendNewSegment(mGsmInboundSmsHandler, createSegmentTracker(1, 3));
+        // A segment added by the other handler is counted too
+        sendNewSegment(otherHandler, createSegmentTracker(2, 3));
+        verify(mContext, never()).sendBroadcast(any(Intent.class));
+        assertEquals(2, mContentProvider.getNumRows());
+
+        sendNewSegment(mGsmInboundSmsHandler, createSegmentTracker(3, 3));
+
+        verifySmsIntentBroadcasts(0);
+        verifySmsFiltersInvoked(times(1));
+        otherHandler.quit();
+    }
+
     @Test
     @MediumTest
     public void testMultiPartIncompleteSms() {
@@ -533,6 +533,27 @@ public class GsmSmsDispatcherTest extends TelephonyTest {
         assertEquals(messageRef, pdu[1]);
     }
 
+    @Test
+    @SmallTest
+    public void testSendSmsScheduled() throws Exception {
+        doReturn(true).when(mSmsDispatchersController).isSmsSendSchedulerEnabled();
+
+        for (int i = 0; i < 4; i++) {
+            mGsmSmsDispatcher.sendText("111", "222" /*scAddr*/, TAG,
+                    null, null, null, null, false, -1, false, -1, false, 0L);
+        }
+        // Only a window of messages is sent to the modem, the others are queued.
+        verify(mSimulatedCommandsVerifier, times(2)).sendSMS(anyString(), anyString(),
+                any(Message.class));
+
+        processAllMessages();
+        // The third message is sent while the fourth is queued for the same SMSC.
+        verify(mSimulatedCommandsVerifier).sendSMSExpectMore(anyString(), anyString(),
+                any(Message.class));
+        verify(mSimulatedCommandsVerifier, times(3)).sendSMS(anyString(), anyString(),
+                any(Message.class));
+    }
+
     @Test
     public void testSendMultipartWithMessageRef() throws Exception {
         ArrayList<String> parts = new ArrayList<>();
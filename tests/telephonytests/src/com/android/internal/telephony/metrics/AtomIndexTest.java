@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.telephony.nano.PersistAtomsProto.NetworkRequestsV2;
+
+import org.junit.Test;
+
+public class AtomIndexTest {
+    private final AtomIndex<NetworkRequestsV2> mIndex = new AtomIndex<>(NetworkRequestsV2[]::new,
+            item -> item.carrierId, // collide on purpose
+            (a, b) -> a.carrierId == b.carrierId && a.capability == b.capability);
+
+    private static NetworkRequestsV2 makeNetworkRequests(int carrierId, int capability) {
+        NetworkRequestsV2 item = new NetworkRequestsV2();
+        item.carrierId = carrierId;
+        item.capability = capability;
+        return item;
+    }
+
+    @Test
+    @SmallTest
+    public void find_byDimensions() {
+        NetworkRequestsV2 first = makeNetworkRequests(1, 2);
+        NetworkRequestsV2 second = makeNetworkRequests(1, 3);
+        mIndex.add(first);
+        mIndex.add(second);
+
+        assertThat(mIndex.find(makeNetworkRequests(1, 3))).isSameInstanceAs(second);
+        assertThat(mIndex.find(makeNetworkRequests(1, 2))).isSameInstanceAs(first);
+        assertThat(mIndex.find(makeNetworkRequests(2, 2))).isNull();
+
+        // counters updated in place don't invalidate the index
+        first.requestCount += 5;
+        assertThat(mIndex.find(makeNetworkRequests(1, 2))).isSameInstanceAs(first);
+    }
+
+    @Test
+    @SmallTest
+    public void set_replacesAtom() {
+        NetworkRequestsV2 first = makeNetworkRequests(1, 2);
+        NetworkRequestsV2 second = makeNetworkRequests(1, 3);
+        NetworkRequestsV2 third = makeNetworkRequests(1, 4);
+        mIndex.add(first);
+        mIndex.add(second);
+        mIndex.add(third);
+
+        NetworkRequestsV2 replacement = makeNetworkRequests(5, 6);
+        mIndex.set(0, replacement);
+        assertThat(mIndex.find(makeNetworkRequests(1, 2))).isNull();
+        assertThat(mIndex.find(makeNetworkRequests(1, 3))).isSameInstanceAs(second);
+        assertThat(mIndex.find(makeNetworkRequests(1, 4))).isSameInstanceAs(third);
+        assertThat(mIndex.find(makeNetworkRequests(5, 6))).isSameInstanceAs(replacement);
+        assertThat(mIndex.toArray()).asList()
+                .containsExactly(replacement, second, third).inOrder();
+    }
+
+    @Test
+    @SmallTest
+    public void add_growsTable() {
+        for (int i = 0; i < 100; i++) {
+            mIndex.add(makeNetworkRequests(i % 7, i));
+        }
+        assertThat(mIndex.size()).isEqualTo(100);
+        for (int i = 0; i < 100; i++) {
+            assertThat(mIndex.find(makeNetworkRequests(i % 7, i))).isSameInstanceAs(mIndex.get(i));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void loadAndClear() {
+        NetworkRequestsV2 first = makeNetworkRequests(1, 2);
+        mIndex.load(new NetworkRequestsV2[] {first});
+        assertThat(mIndex.find(makeNetworkRequests(1, 2))).isSameInstanceAs(first);
+
+        mIndex.clear();
+        assertThat(mIndex.size()).isEqualTo(0);
+        assertThat(mIndex.find(makeNetworkRequests(1, 2))).isNull();
+        assertThat(mIndex.toArray()).isEmpty();
+    }
+}
@@ -37,13 +37,16 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.annotation.Nullable;
 import android.content.Context;
@@ -109,6 +112,7 @@ import java.util.Queue;
 
 public class PersistAtomsStorageTest extends TelephonyTest {
     private static final String TEST_FILE = "PersistAtomsStorageTest.pb";
+    private static final String TEST_JOURNAL_FILE = "PersistAtomsStorageTest.journal";
     private static final int MAX_NUM_CALL_SESSIONS = 50;
     private static final long START_TIME_MILLIS = 2000L;
     private static final int CARRIER1_ID = 1;
@@ -1110,7 +1114,11 @@ public class PersistAtomsStorageTest extends TelephonyTest {
         private long mTimeMillis = START_TIME_MILLIS;
 
         TestablePersistAtomsStorage(Context context) {
-            super(context);
+            this(context, /* journalEnabled= */ false);
+        }
+
+        TestablePersistAtomsStorage(Context context, boolean journalEnabled) {
+            super(context, journalEnabled);
             // Remove delay for saving to persistent storage during tests.
             mSaveImmediately = true;
         }
@@ -1431,6 +1439,74 @@ public class PersistAtomsStorageTest extends TelephonyTest {
         assertHasCall(calls, mCall4Proto, /* expectedCount= */ 50);
     }
 
+    @Test
+    @SmallTest
+    public void addVoiceCallSession_journaled_replayedOnLoad() throws Exception {
+        createTestFile(START_TIME_MILLIS);
+        File journalFile = useTestJournalFile();
+
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext, true);
+        mPersistAtomsStorage.addVoiceCallSession(mCall1Proto);
+
+        // the atoms should be journaled instead of saving the whole file
+        verify(mTestFileOutputStream, never()).write(any(byte[].class));
+        assertTrue(journalFile.length() > 0);
+
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext, true);
+        mPersistAtomsStorage.incTimeMillis(100L);
+
+        VoiceCallSession[] expectedVoiceCallSessions =
+                new VoiceCallSession[] {
+                    mCall1Proto, mCall1Proto, mCall2Proto, mCall3Proto, mCall4Proto
+                };
+        assertProtoArrayEqualsIgnoringOrder(
+                expectedVoiceCallSessions, mPersistAtomsStorage.getVoiceCallSessions(0L));
+    }
+
+    @Test
+    @SmallTest
+    public void addVoiceCallSession_journaled_tornRecordIgnored() throws Exception {
+        createTestFile(START_TIME_MILLIS);
+        File journalFile = useTestJournalFile();
+
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext, true);
+        mPersistAtomsStorage.addVoiceCallSession(mCall1Proto);
+        // simulate a crash in the middle of appending a record
+        try (FileOutputStream stream = new FileOutputStream(journalFile, true)) {
+            stream.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 100, 1, 2});
+        }
+
+        // the torn record should be truncated, and new records appended after the valid one
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext, true);
+        mPersistAtomsStorage.addVoiceCallSession(mCall2Proto);
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext, true);
+        mPersistAtomsStorage.incTimeMillis(100L);
+
+        VoiceCallSession[] expectedVoiceCallSessions =
+                new VoiceCallSession[] {
+                    mCall1Proto, mCall1Proto, mCall2Proto, mCall2Proto, mCall3Proto, mCall4Proto
+                };
+        assertProtoArrayEqualsIgnoringOrder(
+                expectedVoiceCallSessions, mPersistAtomsStorage.getVoiceCallSessions(0L));
+    }
+
+    @Test
+    @SmallTest
+    public void addVoiceCallSession_journaled_discardedWhenFileChanges() throws Exception {
+        createTestFile(START_TIME_MILLIS);
+        useTestJournalFile();
+
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext, true);
+        mPersistAtomsStorage.addVoiceCallSession(mCall1Proto);
+        // the file is replaced by a save that did not reset the journal, e.g. due to a crash
+        createEmptyTestFile();
+
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext, true);
+        mPersistAtomsStorage.incTimeMillis(100L);
+
+        assertProtoArrayIsEmpty(mPersistAtomsStorage.getVoiceCallSessions(0L));
+    }
+
     @Test
     @SmallTest
     public void addVoiceCallRatUsage_emptyProto() throws Exception {
@@ -4614,6 +4690,12 @@ public class PersistAtomsStorageTest extends TelephonyTest {
         assertEquals(expectedCount, actualCount);
     }
 
+    private File useTestJournalFile() throws Exception {
+        File journalFile = mFolder.newFile(TEST_JOURNAL_FILE);
+        doReturn(journalFile).when(mContext).getFileStreamPath(eq("persist_atoms.journal"));
+        return journalFile;
+    }
+
     private void verifyCurrentStateSavedToFileOnce() throws Exception {
         InOrder inOrder = inOrder(mTestFileOutputStream);
         inOrder.verify(mTestFileOutputStream, times(1))
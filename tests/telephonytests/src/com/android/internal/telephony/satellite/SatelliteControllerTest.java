@@ -141,6 +141,7 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -2789,6 +2790,33 @@ public class SatelliteControllerTest extends TelephonyTest {
         doReturn(mMockConfig).when(mMockConfigParser).getConfig();
     }
 
+    @Test
+    public void testIsSatelliteAllowedAtLocation() throws Exception {
+        logd("testIsSatelliteAllowedAtLocation");
+        long newYork = SatelliteS2CellIndex.getParent(
+                SatelliteS2CellIndex.getLeafCellId(40.7128, -74.0060), 10);
+        File file = File.createTempFile("s2_cell_index", null);
+        file.deleteOnExit();
+        SatelliteS2CellIndex index = SatelliteS2CellIndex.open(file,
+                new SatelliteS2CellIndex.Builder().addCell(newYork).build());
+        doReturn(mMockConfig).when(mMockConfigParser).getConfig();
+
+        // No index in the config data
+        doReturn(true).when(mMockConfig).isSatelliteDataForAllowedRegion();
+        assertNull(mSatelliteControllerUT.isSatelliteAllowedAtLocation(40.7128, -74.0060));
+
+        // The cells are the allowed region
+        doReturn(index).when(mMockConfig).getSatelliteS2CellIndex(any());
+        assertTrue(mSatelliteControllerUT.isSatelliteAllowedAtLocation(40.7128, -74.0060));
+        assertFalse(mSatelliteControllerUT.isSatelliteAllowedAtLocation(51.5074, -0.1278));
+        assertTrue(mSatelliteControllerUT.isSatelliteAllowedInS2Cell(newYork));
+
+        // The cells are the disallowed region
+        doReturn(false).when(mMockConfig).isSatelliteDataForAllowedRegion();
+        assertFalse(mSatelliteControllerUT.isSatelliteAllowedAtLocation(40.7128, -74.0060));
+        assertTrue(mSatelliteControllerUT.isSatelliteAllowedAtLocation(51.5074, -0.1278));
+    }
+
     @Test
     public void testUpdateSupportedSatelliteServices() throws Exception {
         logd("testUpdateSupportedSatelliteServices");
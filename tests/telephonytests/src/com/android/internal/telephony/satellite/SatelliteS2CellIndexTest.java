@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.satellite;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.Log;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class SatelliteS2CellIndexTest {
+    private static final String TAG = SatelliteS2CellIndexTest.class.getSimpleName();
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    @SmallTest
+    public void testGetLeafCellId() {
+        // Well known S2 cell tokens of New York, London and Sydney.
+        assertThat(Long.toHexString(SatelliteS2CellIndex.getLeafCellId(40.7128, -74.0060)))
+                .startsWith("89c25");
+        assertThat(Long.toHexString(SatelliteS2CellIndex.getLeafCellId(51.5074, -0.1278)))
+                .startsWith("4876");
+        assertThat(Long.toHexString(SatelliteS2CellIndex.getLeafCellId(-33.8688, 151.2093)))
+                .startsWith("6b12");
+        // Faces
+        assertThat(SatelliteS2CellIndex.getLeafCellId(0, 0) >>> 61).isEqualTo(0);
+        assertThat(SatelliteS2CellIndex.getLeafCellId(0, 90) >>> 61).isEqualTo(1);
+        assertThat(SatelliteS2CellIndex.getLeafCellId(90, 0) >>> 61).isEqualTo(2);
+        assertThat(SatelliteS2CellIndex.getLeafCellId(0, 180) >>> 61).isEqualTo(3);
+        assertThat(SatelliteS2CellIndex.getLeafCellId(0, -90) >>> 61).isEqualTo(4);
+        assertThat(SatelliteS2CellIndex.getLeafCellId(-90, 0) >>> 61).isEqualTo(5);
+    }
+
+    @Test
+    @SmallTest
+    public void testContains() throws IOException {
+        long newYork = SatelliteS2CellIndex.getParent(
+                SatelliteS2CellIndex.getLeafCellId(40.7128, -74.0060), 10);
+        // Face 5, whose cell ids are negative as signed values.
+        long southern = SatelliteS2CellIndex.getParent(
+                SatelliteS2CellIndex.getLeafCellId(-60, 45), 2);
+        byte[] data = new SatelliteS2CellIndex.Builder()
+                .addCell(newYork)
+                .addCell(southern)
+                .build();
+        SatelliteS2CellIndex index =
+                SatelliteS2CellIndex.open(new File(mFolder.getRoot(), "index"), data);
+
+        assertThat(index).isNotNull();
+        assertThat(index.getRangeCount()).isEqualTo(2);
+        assertThat(index.contains(40.7128, -74.0060)).isTrue();
+        assertThat(index.contains(-60.01, 45.01)).isTrue();
+        assertThat(index.contains(51.5074, -0.1278)).isFalse();
+        assertThat(index.contains(newYork)).isTrue();
+        assertThat(index.contains(SatelliteS2CellIndex.getParent(newYork, 5))).isFalse();
+    }
+
+    @Test
+    @SmallTest
+    public void testBuilderMergesRanges() {
+        long cell = SatelliteS2CellIndex.getParent(
+                SatelliteS2CellIndex.getLeafCellId(10, 10), 12);
+        long lsb = cell & -cell;
+        long next = cell + 2 * lsb;
+        byte[] data = new SatelliteS2CellIndex.Builder()
+                .addCell(next)
+                .addCell(cell)
+                .addCell(SatelliteS2CellIndex.getParent(
+                        SatelliteS2CellIndex.getLeafCellId(10, 10), 20))
+                .build();
+
+        assertThat(SatelliteS2CellIndex.isIndex(data)).isTrue();
+        assertThat(data.length).isEqualTo(16 + 16);
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexFileOnlyRewrittenWhenChanged() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        byte[] data = new SatelliteS2CellIndex.Builder()
+                .addCell(SatelliteS2CellIndex.getParent(
+                        SatelliteS2CellIndex.getLeafCellId(40.7128, -74.0060), 8))
+                .build();
+        SatelliteS2CellIndex.open(file, data);
+        assertThat(file.setLastModified(0)).isTrue();
+
+        assertThat(SatelliteS2CellIndex.open(file, data.clone())).isNotNull();
+        assertThat(file.lastModified()).isEqualTo(0);
+
+        byte[] newData = new SatelliteS2CellIndex.Builder()
+                .addCell(SatelliteS2CellIndex.getParent(
+                        SatelliteS2CellIndex.getLeafCellId(51.5074, -0.1278), 8))
+                .build();
+        SatelliteS2CellIndex index = SatelliteS2CellIndex.open(file, newData);
+        assertThat(file.lastModified()).isNotEqualTo(0);
+        assertThat(index.contains(51.5074, -0.1278)).isTrue();
+        assertThat(index.contains(40.7128, -74.0060)).isFalse();
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidIndex() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        assertThat(SatelliteS2CellIndex.isIndex("0123456789".getBytes())).isFalse();
+        assertThat(SatelliteS2CellIndex.open(file, "0123456789".getBytes())).isNull();
+
+        Files.write(file.toPath(), new byte[] {1, 2, 3});
+        assertThat(SatelliteS2CellIndex.map(file)).isNull();
+    }
+
+    @Test
+    @SmallTest
+    public void testBenchmarkLookups() throws IOException {
+        final int cells = 100_000;
+        final int lookups = 1_000_000;
+        Random random = new Random(0);
+        SatelliteS2CellIndex.Builder builder = new SatelliteS2CellIndex.Builder();
+        for (int i = 0; i < cells; i++) {
+            builder.addCell(SatelliteS2CellIndex.getParent(SatelliteS2CellIndex.getLeafCellId(
+                    random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180), 13));
+        }
+        SatelliteS2CellIndex index =
+                SatelliteS2CellIndex.open(new File(mFolder.getRoot(), "index"), builder.build());
+        long[] cellIds = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            cellIds[i] = SatelliteS2CellIndex.getLeafCellId(
+                    random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+        }
+
+        int found = 0;
+        long start = System.nanoTime();
+        for (long cellId : cellIds) {
+            if (index.contains(cellId)) found++;
+        }
+        long nanos = System.nanoTime() - start;
+
+        Log.d(TAG, "Lookups per second: " + lookups * 1_000_000_000L / Math.max(1, nanos)
+                + " over " + index.getRangeCount() + " ranges, found " + found);
+        assertThat(index.getRangeCount()).isAtMost(cells);
+    }
+}
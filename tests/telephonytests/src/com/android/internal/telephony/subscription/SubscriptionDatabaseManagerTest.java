@@ -644,6 +644,24 @@ public class SubscriptionDatabaseManagerTest extends TelephonyTest {
                 .isEqualTo(FAKE_CARRIER_NAME1);
     }
 
+    @Test
+    public void testSubscriptionChangedAfterSnapshotPublished() throws Exception {
+        SubscriptionInfoInternal subInfo = insertSubscriptionAndVerify(FAKE_SUBSCRIPTION_INFO1);
+        processAllMessages();
+        List<String> displayNames = new ArrayList<>();
+        doAnswer(invocation -> {
+            displayNames.add(mDatabaseManagerUT.getSubscriptionInfoInternal(
+                    (int) invocation.getArguments()[0]).getDisplayName());
+            return null;
+        }).when(mSubscriptionDatabaseManagerCallback).onSubscriptionChanged(anyInt());
+
+        mDatabaseManagerUT.setDisplayName(subInfo.getSubscriptionId(), FAKE_CARRIER_NAME2);
+        processAllMessages();
+
+        // The callback reads the new value.
+        assertThat(displayNames).containsExactly(FAKE_CARRIER_NAME2);
+    }
+
     @Test
     public void testUpdateCarrierName() throws Exception {
         // exception is expected if there is nothing in the database.
@@ -787,6 +805,33 @@ public class SubscriptionDatabaseManagerTest extends TelephonyTest {
                 .isEqualTo(FAKE_MCC1);
     }
 
+    @Test
+    public void testBatchUpdate() throws Exception {
+        SubscriptionInfoInternal subInfo = insertSubscriptionAndVerify(FAKE_SUBSCRIPTION_INFO1);
+        processAllMessages();
+        Mockito.clearInvocations(mSubscriptionDatabaseManagerCallback);
+
+        mDatabaseManagerUT.runBatchUpdate(() -> {
+            mDatabaseManagerUT.setMcc(1, FAKE_MCC2);
+            mDatabaseManagerUT.setMnc(1, FAKE_MNC2);
+            mDatabaseManagerUT.setCarrierName(1, FAKE_CARRIER_NAME2);
+            // Nested batch joins the outer one.
+            mDatabaseManagerUT.runBatchUpdate(() -> mDatabaseManagerUT.setMcc(1, FAKE_MCC1));
+            // Cache is updated immediately but the callback is deferred.
+            assertThat(mDatabaseManagerUT.getSubscriptionInfoInternal(1).getMnc())
+                    .isEqualTo(FAKE_MNC2);
+            verify(mSubscriptionDatabaseManagerCallback, never()).onSubscriptionChanged(anyInt());
+        });
+        processAllMessages();
+        verify(mSubscriptionDatabaseManagerCallback).onSubscriptionChanged(eq(1));
+
+        moveTimeForward(1000);
+        processAllMessages();
+        subInfo = new SubscriptionInfoInternal.Builder(subInfo).setMcc(FAKE_MCC1)
+                .setMnc(FAKE_MNC2).setCarrierName(FAKE_CARRIER_NAME2).build();
+        verifySubscription(subInfo);
+    }
+
     @Test
     public void testUpdateMnc() throws Exception {
         // exception is expected if there is nothing in the database.
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.subscription;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.telephony.SubscriptionManager;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class SubscriptionInfoSnapshotTest {
+    private static final SubscriptionInfoInternal INACTIVE_SUBSCRIPTION_INFO =
+            new SubscriptionInfoInternal.Builder(
+                    SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO2)
+                    .setId(3)
+                    .setIccId("89012604200000000003")
+                    .setSimSlotIndex(SubscriptionManager.INVALID_SIM_SLOT_INDEX)
+                    .build();
+
+    private final SubscriptionInfoSnapshot mSnapshot = new SubscriptionInfoSnapshot(7, List.of(
+            INACTIVE_SUBSCRIPTION_INFO,
+            SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO2,
+            SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO1));
+
+    @Test
+    public void testLookup() {
+        assertThat(mSnapshot.getVersion()).isEqualTo(7);
+        assertThat(mSnapshot.size()).isEqualTo(3);
+        assertThat(mSnapshot.getSubscription(1))
+                .isEqualTo(SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO1);
+        assertThat(mSnapshot.getSubscription(4)).isNull();
+        assertThat(mSnapshot.getSubscriptionByIccId(SubscriptionDatabaseManagerTest.FAKE_ICCID2))
+                .isEqualTo(SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO2);
+        assertThat(mSnapshot.getActiveSubscriptionBySlot(0))
+                .isEqualTo(SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO1);
+        assertThat(mSnapshot.getSubscriptionsInGroup(SubscriptionDatabaseManagerTest.FAKE_UUID2))
+                .containsExactly(SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO2,
+                        INACTIVE_SUBSCRIPTION_INFO).inOrder();
+        assertThat(mSnapshot.getSubscriptionsInGroup("unknown")).isEmpty();
+    }
+
+    @Test
+    public void testOrderedViews() {
+        assertThat(mSnapshot.getAllSubscriptions()).containsExactly(
+                SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO1,
+                SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO2,
+                INACTIVE_SUBSCRIPTION_INFO).inOrder();
+        assertThat(mSnapshot.getActiveSubscriptions()).containsExactly(
+                SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO1,
+                SubscriptionDatabaseManagerTest.FAKE_SUBSCRIPTION_INFO2).inOrder();
+    }
+
+    @Test
+    public void testImmutable() {
+        assertThrows(UnsupportedOperationException.class,
+                () -> mSnapshot.getAllSubscriptions().clear());
+        assertThrows(UnsupportedOperationException.class,
+                () -> mSnapshot.getActiveSubscriptions().clear());
+    }
+}
@@ -16,7 +16,9 @@
 
 package com.android.internal.telephony.uicc;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
@@ -32,19 +34,23 @@ import static org.mockito.Mockito.verify;
 
 import android.os.AsyncResult;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.os.test.TestLooper;
 import android.util.Log;
 
 import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.SimulatedCommands;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.stubbing.InvocationOnMock;
 
 import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class IccFileHandlerTest {
     CommandsInterface mCi;
@@ -534,4 +540,188 @@ public class IccFileHandlerTest {
         verify(mCi, times(1)).iccIOForApp(anyInt(), anyInt(), anyString(),
                 anyInt(), anyInt(), anyInt(), anyString(), isNull(), isNull(), any(Message.class));
     }
+
+    private static final int SIMULATED_EF = 0x4f30;
+
+    private static byte[][] makeRecords(int count) {
+        byte[][] records = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            records[i] = new byte[] {(byte) i, (byte) (i >> 8), 0x01, 0x02};
+        }
+        return records;
+    }
+
+    /**
+     * Load all records of {@link #SIMULATED_EF} from the simulated modem, on a file handler
+     * running on its own thread so that the simulated latency is real.
+     */
+    private AsyncResult loadAllFromSimulatedModem(SimulatedCommands sc, int window,
+            IccFileHandler[] handlerOut) throws InterruptedException {
+        HandlerThread thread = new HandlerThread("IccFileHandlerTest");
+        thread.start();
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            AsyncResult[] result = new AsyncResult[1];
+            new Handler(thread.getLooper()).post(() -> {
+                IccFileHandler fh = new IccFileHandler(sc) {
+                    @Override
+                    protected String getEFPath(int efid) {
+                        return "3F007F20";
+                    }
+
+                    @Override
+                    protected void logd(String s) {
+                        Log.d("IccFileHandlerTest", s);
+                    }
+
+                    @Override
+                    protected void loge(String s) {
+                        Log.d("IccFileHandlerTest", s);
+                    }
+                };
+                fh.setRecordReadWindow(window);
+                handlerOut[0] = fh;
+                Handler onLoaded = new Handler(thread.getLooper()) {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        result[0] = (AsyncResult) msg.obj;
+                        latch.countDown();
+                    }
+                };
+                fh.loadEFLinearFixedAll(SIMULATED_EF, onLoaded.obtainMessage());
+            });
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            return result[0];
+        } finally {
+            thread.quitSafely();
+        }
+    }
+
+    private static void assertRecords(byte[][] expected, AsyncResult ar) {
+        assertNull(ar.exception);
+        ArrayList<byte[]> results = (ArrayList<byte[]>) ar.result;
+        assertEquals(expected.length, results.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], results.get(i));
+        }
+    }
+
+    @Test
+    public void loadEFLinearFixedAll_serial_oneReadInFlight() throws Exception {
+        byte[][] records = makeRecords(12);
+        SimulatedCommands sc = new SimulatedCommands();
+        try {
+            sc.setSimulatedLinearFixedEf(SIMULATED_EF, records);
+            sc.setIccIoLatencyMillis(5);
+            IccFileHandler[] fh = new IccFileHandler[1];
+
+            assertRecords(records, loadAllFromSimulatedModem(sc,
+                    IccFileHandler.DEFAULT_RECORD_READ_WINDOW, fh));
+            // One GET_RESPONSE and one READ_RECORD per record
+            assertEquals(records.length + 1, sc.getIccIoCount());
+            assertEquals(1, sc.getMaxIccIoInFlight());
+        } finally {
+            sc.dispose();
+        }
+    }
+
+    @Test
+    public void loadEFLinearFixedAll_pipelined_windowReadsInFlight() throws Exception {
+        byte[][] records = makeRecords(12);
+        SimulatedCommands sc = new SimulatedCommands();
+        try {
+            sc.setSimulatedLinearFixedEf(SIMULATED_EF, records);
+            sc.setIccIoLatencyMillis(5);
+            IccFileHandler[] fh = new IccFileHandler[1];
+
+            assertRecords(records, loadAllFromSimulatedModem(sc, 4, fh));
+            assertEquals(records.length + 1, sc.getIccIoCount());
+            assertEquals(4, sc.getMaxIccIoInFlight());
+            assertFalse(fh[0].isSerialRecordReads());
+        } finally {
+            sc.dispose();
+        }
+    }
+
+    @Test
+    public void loadEFLinearFixedAll_concurrencyRejected_fallsBackToSerial() throws Exception {
+        byte[][] records = makeRecords(10);
+        SimulatedCommands sc = new SimulatedCommands();
+        try {
+            sc.setSimulatedLinearFixedEf(SIMULATED_EF, records);
+            sc.setIccIoLatencyMillis(5);
+            sc.setMaxConcurrentIccIo(1);
+            IccFileHandler[] fh = new IccFileHandler[1];
+
+            assertRecords(records, loadAllFromSimulatedModem(sc, 4, fh));
+            assertTrue(fh[0].isSerialRecordReads());
+        } finally {
+            sc.dispose();
+        }
+    }
+
+    @Test
+    public void loadEFLinearFixedAll_pipelinedReadTimesOut_fallsBackToSerial() {
+        byte[][] records = makeRecords(3);
+        ArrayList<InvocationOnMock> reads = new ArrayList<>();
+        doAnswer(
+                invocation -> {
+                    if ((int) invocation.getArgument(0) == 0xc0 /* GET_RESPONSE */) {
+                        byte[] response = new byte[15];
+                        response[3] = (byte) (records.length * records[0].length);
+                        response[6] = 4 /* TYPE_EF */;
+                        response[13] = 1 /* EF_TYPE_LINEAR_FIXED */;
+                        response[14] = (byte) records[0].length;
+                        respond(invocation, new IccIoResult(0x90, 0x00, response));
+                    } else {
+                        reads.add(invocation);
+                    }
+                    return null;
+                })
+                .when(mCi)
+                .iccIOForApp(anyInt(), anyInt(), anyString(), anyInt(), anyInt(), anyInt(),
+                        isNull(), isNull(), isNull(), any(Message.class));
+        AsyncResult[] result = new AsyncResult[1];
+        Handler onLoaded = new Handler(mTestLooper.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                result[0] = (AsyncResult) msg.obj;
+            }
+        };
+
+        mIccFileHandler.setRecordReadWindow(3);
+        mIccFileHandler.loadEFLinearFixedAll(SIMULATED_EF, onLoaded.obtainMessage());
+        mTestLooper.dispatchAll();
+        assertEquals(3, reads.size());
+
+        // The modem answers the first and last reads, and drops the second one
+        respondRecord(reads.get(0), records);
+        respondRecord(reads.get(2), records);
+        mTestLooper.dispatchAll();
+        assertNull(result[0]);
+        assertFalse(mIccFileHandler.isSerialRecordReads());
+
+        mTestLooper.moveTimeForward(IccFileHandler.RECORD_READ_TIMEOUT_MILLIS);
+        mTestLooper.dispatchAll();
+        assertTrue(mIccFileHandler.isSerialRecordReads());
+        assertEquals(4, reads.size());
+        assertEquals(2, (int) reads.get(3).getArgument(3));
+
+        // A late answer to the dropped read is ignored
+        respond(reads.get(1), new IccIoResult(0x90, 0x00, new byte[] {0x7f}));
+        respondRecord(reads.get(3), records);
+        mTestLooper.dispatchAll();
+        assertRecords(records, result[0]);
+    }
+
+    private static void respondRecord(InvocationOnMock read, byte[][] records) {
+        int recordNum = read.getArgument(3);
+        respond(read, new IccIoResult(0x90, 0x00, records[recordNum - 1]));
+    }
+
+    private static void respond(InvocationOnMock invocation, IccIoResult result) {
+        Message response = invocation.getArgument(9);
+        AsyncResult.forMessage(response, result, null);
+        response.sendToTarget();
+    }
 }
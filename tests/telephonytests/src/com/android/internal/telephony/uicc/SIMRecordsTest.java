@@ -25,6 +25,7 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -48,9 +49,13 @@ import com.android.telephony.Rlog;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -67,6 +72,10 @@ public class SIMRecordsTest extends TelephonyTest {
     private static final int EF_SIZE = 12;
     private static final int MAX_NUM_FPLMN = 4;
     private static final int SET_VOICE_MAIL_TIMEOUT = 1000;
+    private static final String ICCID = "89014103211118510720";
+    private static final String OTHER_ICCID = "89014103211118510721";
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
 
     // Mocked classes
     private IccFileHandler mFhMock;
@@ -79,7 +88,7 @@ public class SIMRecordsTest extends TelephonyTest {
     private class SIMRecordsUT extends SIMRecords {
         SIMRecordsUT(UiccCardApplication app, Context c,
                 CommandsInterface ci, IccFileHandler mFhMock) {
-            super(app, c, ci);
+            super(app, c, ci, mFeatureFlags);
             mFh = mFhMock;
         }
     }
@@ -100,6 +109,9 @@ public class SIMRecordsTest extends TelephonyTest {
     public void setUp() throws Exception {
         super.setUp(getClass().getSimpleName());
         mFhMock = mock(IccFileHandler.class);
+        // The EF cache is opened for the card reported by the port, in the files dir
+        doReturn(ICCID).when(mUiccPort).getIccId();
+        doReturn(mFolder.getRoot()).when(mContext).getFilesDir();
         mTestLooper = new TestLooper();
         mTestHandler = new Handler(mTestLooper.getLooper());
         mSIMRecordsReceiver = new SIMRecordsReceiver();
@@ -971,4 +983,123 @@ public class SIMRecordsTest extends TelephonyTest {
         }
         assertEquals("Service Unbound", condition.expected(), condition.actual());
     }
+
+    /** Caches EF_GID1 for the card, as a previous fetch would have. */
+    private void cacheGid1(byte[] gid1) {
+        doReturn(true).when(mFeatureFlags).cacheSimElementaryFiles();
+        SimEfCache cache = new SimEfCache(new File(mFolder.getRoot(), "sim_ef_cache"), ICCID);
+        cache.putTransparent(IccConstants.EF_GID1, gid1);
+        cache.flush();
+    }
+
+    /** Fetches the records and returns the response to the EF_GID1 read from the SIM. */
+    private Message fetchSimRecordsForGid1() {
+        mSIMRecordsUT.fetchSimRecords();
+        mTestLooper.dispatchAll();
+        ArgumentCaptor<Message> gid1Captor = ArgumentCaptor.forClass(Message.class);
+        verify(mFhMock).loadEFTransparent(eq(IccConstants.EF_GID1), gid1Captor.capture());
+        return gid1Captor.getValue();
+    }
+
+    /** Responds to the EF_ICCID read, which BCD encodes the ICCID with swapped nibbles. */
+    private void respondIccId(String iccId) {
+        ArgumentCaptor<Message> iccIdCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mFhMock).loadEFTransparent(eq(IccConstants.EF_ICCID), iccIdCaptor.capture());
+        StringBuilder swapped = new StringBuilder();
+        for (int i = 0; i < iccId.length(); i += 2) {
+            swapped.append(iccId.charAt(i + 1)).append(iccId.charAt(i));
+        }
+        respond(iccIdCaptor.getValue(), IccUtils.hexStringToBytes(swapped.toString()));
+    }
+
+    private void respond(Message response, Object result) {
+        AsyncResult.forMessage(response, result, null);
+        response.sendToTarget();
+        mTestLooper.dispatchAll();
+    }
+
+    @Test
+    public void testCachedEfServedAfterIccIdMatched() {
+        cacheGid1(new byte[] {(byte) 0xAB});
+        Message gid1Response = fetchSimRecordsForGid1();
+
+        // Not served before EF_ICCID confirms the card is the cached one
+        assertNull(mSIMRecordsUT.getGid1());
+        int recordsToLoad = mSIMRecordsUT.mRecordsToLoad;
+        respondIccId(ICCID);
+        assertEquals("ab", mSIMRecordsUT.getGid1());
+        // The EF_ICCID and the cached EF_GID1 loads are counted
+        assertEquals(recordsToLoad - 2, mSIMRecordsUT.mRecordsToLoad);
+
+        // Unchanged on the SIM
+        respond(gid1Response, new byte[] {(byte) 0xAB});
+        assertEquals("ab", mSIMRecordsUT.getGid1());
+        assertEquals(recordsToLoad - 2, mSIMRecordsUT.mRecordsToLoad);
+    }
+
+    @Test
+    public void testChangedCachedEfUpdatedWithoutRecordLoad() {
+        cacheGid1(new byte[] {(byte) 0xAB});
+        Message gid1Response = fetchSimRecordsForGid1();
+        respondIccId(ICCID);
+        int recordsToLoad = mSIMRecordsUT.mRecordsToLoad;
+
+        respond(gid1Response, new byte[] {(byte) 0xCD});
+
+        // The EF is updated, without counting its load again
+        assertEquals("cd", mSIMRecordsUT.getGid1());
+        assertEquals(recordsToLoad, mSIMRecordsUT.mRecordsToLoad);
+    }
+
+    @Test
+    public void testCachedEfNotServedAfterIccIdMismatch() {
+        cacheGid1(new byte[] {(byte) 0xAB});
+        Message gid1Response = fetchSimRecordsForGid1();
+        int recordsToLoad = mSIMRecordsUT.mRecordsToLoad;
+
+        respondIccId(OTHER_ICCID);
+        assertNull(mSIMRecordsUT.getGid1());
+        assertEquals(recordsToLoad - 1, mSIMRecordsUT.mRecordsToLoad);
+
+        // The content read from the SIM is the record load of the EF
+        respond(gid1Response, new byte[] {(byte) 0xCD});
+        assertEquals("cd", mSIMRecordsUT.getGid1());
+        assertEquals(recordsToLoad - 2, mSIMRecordsUT.mRecordsToLoad);
+    }
+
+    @Test
+    public void testChangedCachedEfAfterRecordsLoadedNotifiesAgain() {
+        cacheGid1(new byte[] {(byte) 0xAB});
+        Message gid1Response = fetchSimRecordsForGid1();
+        respondIccId(ICCID);
+        int[] notified = new int[1];
+        mSIMRecordsUT.registerForRecordsLoaded(new Handler(mTestLooper.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                notified[0]++;
+            }
+        }, 0, null);
+        // The other records loaded before EF_GID1 was read from the SIM
+        mSIMRecordsUT.onAllRecordsLoaded();
+        mTestLooper.dispatchAll();
+        assertEquals(1, notified[0]);
+
+        respond(gid1Response, new byte[] {(byte) 0xCD});
+
+        // Listeners that read the stale EF_GID1 are notified again
+        assertEquals("cd", mSIMRecordsUT.getGid1());
+        assertEquals(2, notified[0]);
+    }
+
+    @Test
+    public void testCachedEfNotServedWhenFlagDisabled() {
+        cacheGid1(new byte[] {(byte) 0xAB});
+        doReturn(false).when(mFeatureFlags).cacheSimElementaryFiles();
+        Message gid1Response = fetchSimRecordsForGid1();
+        respondIccId(ICCID);
+        assertNull(mSIMRecordsUT.getGid1());
+
+        respond(gid1Response, new byte[] {(byte) 0xCD});
+        assertEquals("cd", mSIMRecordsUT.getGid1());
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SimEfCacheTest {
+    private static final String ICCID_1 = "89014103211118510720";
+    private static final String ICCID_2 = "89014103211118510721";
+    private static final byte[] AD = {0x00, 0x00, 0x00, 0x03};
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static ArrayList<byte[]> records(byte[]... records) {
+        return new ArrayList<>(Arrays.asList(records));
+    }
+
+    @Test
+    @SmallTest
+    public void testPutReportsChanges() {
+        SimEfCache cache = new SimEfCache(mFolder.getRoot(), ICCID_1);
+        assertThat(cache.getTransparent(IccConstants.EF_AD)).isNull();
+
+        assertThat(cache.putTransparent(IccConstants.EF_AD, AD)).isTrue();
+        assertThat(cache.putTransparent(IccConstants.EF_AD, AD.clone())).isFalse();
+        assertThat(cache.putTransparent(IccConstants.EF_AD, new byte[] {0x01})).isTrue();
+
+        assertThat(cache.putLinearFixedAll(IccConstants.EF_PNN,
+                records(new byte[] {1}, new byte[] {2}))).isTrue();
+        assertThat(cache.putLinearFixedAll(IccConstants.EF_PNN,
+                records(new byte[] {1}, new byte[] {2}))).isFalse();
+        assertThat(cache.putLinearFixedAll(IccConstants.EF_PNN,
+                records(new byte[] {1}))).isTrue();
+    }
+
+    @Test
+    @SmallTest
+    public void testFlushAndLoad() {
+        SimEfCache cache = new SimEfCache(mFolder.getRoot(), ICCID_1);
+        cache.putTransparent(IccConstants.EF_AD, AD);
+        cache.putLinearFixedAll(IccConstants.EF_OPL, records(new byte[] {1, 2}, new byte[] {3}));
+        cache.flush();
+
+        SimEfCache loaded = new SimEfCache(mFolder.getRoot(), ICCID_1);
+        assertThat(loaded.size()).isEqualTo(2);
+        assertThat(loaded.getTransparent(IccConstants.EF_AD)).isEqualTo(AD);
+        ArrayList<byte[]> opl = loaded.getLinearFixedAll(IccConstants.EF_OPL);
+        assertThat(opl).hasSize(2);
+        assertThat(opl.get(0)).isEqualTo(new byte[] {1, 2});
+        assertThat(opl.get(1)).isEqualTo(new byte[] {3});
+
+        // Another card doesn't see the cache of the first one
+        assertThat(new SimEfCache(mFolder.getRoot(), ICCID_2).size()).isEqualTo(0);
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidate() {
+        SimEfCache cache = new SimEfCache(mFolder.getRoot(), ICCID_1);
+        cache.putTransparent(IccConstants.EF_AD, AD);
+        cache.putTransparent(IccConstants.EF_SPDI, new byte[] {1});
+        cache.putLinearFixedAll(IccConstants.EF_PNN, records(new byte[] {1}));
+
+        cache.invalidate(IccConstants.EF_AD);
+        assertThat(cache.getTransparent(IccConstants.EF_AD)).isNull();
+        assertThat(cache.size()).isEqualTo(2);
+
+        cache.invalidateAll();
+        cache.flush();
+        assertThat(new SimEfCache(mFolder.getRoot(), ICCID_1).size()).isEqualTo(0);
+    }
+
+    @Test
+    @SmallTest
+    public void testFileNameSaltedPerDevice() throws Exception {
+        File dir1 = mFolder.newFolder("device1");
+        File dir2 = mFolder.newFolder("device2");
+        for (File dir : new File[] {dir1, dir2}) {
+            SimEfCache cache = new SimEfCache(dir, ICCID_1);
+            cache.putTransparent(IccConstants.EF_AD, AD);
+            cache.flush();
+        }
+
+        String[] names1 = dir1.list((dir, name) -> !name.equals("salt"));
+        String[] names2 = dir2.list((dir, name) -> !name.equals("salt"));
+        assertThat(names1).hasLength(1);
+        assertThat(names2).hasLength(1);
+        assertThat(names1[0]).doesNotContain(ICCID_1);
+        // The same card gets a different file name with another salt
+        assertThat(names1[0]).isNotEqualTo(names2[0]);
+        // and the same one with the same salt
+        assertThat(new SimEfCache(dir1, ICCID_1).getTransparent(IccConstants.EF_AD))
+                .isEqualTo(AD);
+    }
+}
@@ -324,7 +324,7 @@ public class ApduSenderTest {
     }
 
     @Test
-    public void testChannelAlreadyOpened() throws InterruptedException {
+    public void testChannelAlreadyOpened_requestQueued() throws InterruptedException {
         int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
         LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
 
@@ -337,8 +337,130 @@ public class ApduSenderTest {
                 outerResponseCaptor, mHandler);
         mLooper.processAllMessages();
 
-        assertNull("Should not open channel when another one is already opened.", mSelectResponse);
-        assertTrue(mResponseCaptor.exception instanceof ApduException);
+        // The second request waits for the first one to close the channel, then opens it again
+        assertEquals("9000", IccUtils.bytesToHexString(mSelectResponse));
+        assertNull(outerResponseCaptor.exception);
+        assertNull(mResponseCaptor.exception);
+        verify(mMockCi, times(2)).iccOpenLogicalChannel(eq(AID), anyInt(), any());
+        verify(mMockCi, times(2)).iccCloseLogicalChannel(eq(channel), eq(true /*isEs10*/), any());
+    }
+
+    @Test
+    public void testSession_channelReusedUntilIdle() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "A19000", "A29000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+        mSender.setSessionIdleTimeoutMillis(1000);
+
+        ResponseCaptor firstResponseCaptor = new ResponseCaptor();
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "a"), firstResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+        mSender.send((selectResponse, requestBuilder) -> {
+            mSelectResponse = selectResponse;
+            requestBuilder.addApdu(10, 1, 2, 3, 0, "b");
+        }, mResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+
+        assertEquals("A1", IccUtils.bytesToHexString(firstResponseCaptor.response));
+        assertEquals("A2", IccUtils.bytesToHexString(mResponseCaptor.response));
+        // The second request gets the response to the selection of the reused channel
+        assertEquals("9000", IccUtils.bytesToHexString(mSelectResponse));
+        verify(mMockCi, times(1)).iccOpenLogicalChannel(eq(AID), anyInt(), any());
+        verify(mMockCi, never()).iccCloseLogicalChannel(anyInt(), anyBoolean(), any());
+
+        mLooper.moveTimeForward(1000);
+        mLooper.processAllMessages();
+        verify(mMockCi).iccCloseLogicalChannel(eq(channel), eq(true /*isEs10*/), any());
+    }
+
+    @Test
+    public void testSession_closedAfterError() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "6985");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+        mSender.setSessionIdleTimeoutMillis(1000);
+
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "a"), mResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+
+        assertEquals(0x6985, ((ApduException) mResponseCaptor.exception).getApduStatus());
+        verify(mMockCi).iccCloseLogicalChannel(eq(channel), eq(true /*isEs10*/), any());
+    }
+
+    @Test
+    public void testSession_closedAfterRequestResettingCard() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "9000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+        mSender.setSessionIdleTimeoutMillis(1000);
+
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "a"), mResponseCaptor, mHandler, true /* mayResetCard */);
+        mLooper.processAllMessages();
+
+        assertNull(mResponseCaptor.exception);
+        verify(mMockCi).iccCloseLogicalChannel(eq(channel), eq(true /*isEs10*/), any());
+    }
+
+    @Test
+    public void testSession_retriedOnNewChannelAfterTransmitError() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "A19000",
+                new CommandException(CommandException.Error.INVALID_ARGUMENTS), "A29000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+        mSender.setSessionIdleTimeoutMillis(1000);
+
+        ResponseCaptor firstResponseCaptor = new ResponseCaptor();
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "a"), firstResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+        // The reused channel is gone, e.g. after a card reset
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "b"), mResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+
+        assertEquals("A1", IccUtils.bytesToHexString(firstResponseCaptor.response));
+        assertNull(mResponseCaptor.exception);
+        assertEquals("A2", IccUtils.bytesToHexString(mResponseCaptor.response));
+        verify(mMockCi, times(2)).iccOpenLogicalChannel(eq(AID), anyInt(), any());
+        verify(mMockCi, times(1)).iccCloseLogicalChannel(eq(channel), eq(true /*isEs10*/), any());
+    }
+
+    @Test
+    public void testSession_errorNotRetriedOnNewChannel() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "A19000", "6985");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+        mSender.setSessionIdleTimeoutMillis(1000);
+
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "a"), new ResponseCaptor(), mHandler);
+        mLooper.processAllMessages();
+        mSender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(
+                10, 1, 2, 3, 0, "b"), mResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+
+        assertEquals(0x6985, ((ApduException) mResponseCaptor.exception).getApduStatus());
         verify(mMockCi, times(1)).iccOpenLogicalChannel(eq(AID), anyInt(), any());
     }
+
+    @Test
+    public void testSession_closedAfterRequestInProgress() throws InterruptedException {
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "A19000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+        mSender.setSessionIdleTimeoutMillis(1000);
+
+        mSender.send((selectResponse, requestBuilder) -> {
+            mSender.closeSession();
+            requestBuilder.addApdu(10, 1, 2, 3, 0, "a");
+        }, mResponseCaptor, mHandler);
+        mLooper.processAllMessages();
+
+        // The channel is closed once the request finishes, without waiting for the idle timeout
+        assertEquals("A1", IccUtils.bytesToHexString(mResponseCaptor.response));
+        verify(mMockCi).iccCloseLogicalChannel(eq(channel), eq(true /*isEs10*/), any());
+    }
 }